@@ -0,0 +1,194 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.control;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Input stream fed with bytes read from a non-blocking channel. It allows
+ * stream based decoders (e.g. ObjectInputStream) to run on worker threads
+ * while a selector thread does the socket reads. Reading blocks until data
+ * is fed, the stream is closed or the read timeout expires.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class ChannelBufferInputStream extends InputStream {
+
+    private byte[] buf;
+    private int readPos = 0;
+    private int writePos = 0;
+    private boolean eof = false;
+    private final long readTimeout;
+
+    /**
+     * 
+     * @param initialCapacity initial buffer size in bytes
+     * @param readTimeout time in milliseconds a read waits for data
+     */
+    public ChannelBufferInputStream(int initialCapacity, long readTimeout) {
+        this.buf = new byte[initialCapacity];
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Append remaining bytes of src to this stream.
+     * 
+     * @param src
+     */
+    public synchronized void feed(ByteBuffer src) {
+        int n = src.remaining();
+        if (n == 0) {
+            return;
+        }
+        ensureCapacity(n);
+        src.get(buf, writePos, n);
+        writePos += n;
+        notifyAll();
+    }
+
+    private void ensureCapacity(int n) {
+        if (buf.length - writePos >= n) {
+            return;
+        }
+        int buffered = writePos - readPos;
+        if (buf.length - buffered >= n && readPos > 0) {
+            // compact
+            System.arraycopy(buf, readPos, buf, 0, buffered);
+        } else {
+            byte[] nbuf = new byte[Math.max(buf.length * 2, buffered + n)];
+            System.arraycopy(buf, readPos, nbuf, 0, buffered);
+            buf = nbuf;
+        }
+        readPos = 0;
+        writePos = buffered;
+    }
+
+    /**
+     * Mark end of stream, pending readers will receive the remaining bytes and
+     * then -1.
+     */
+    public synchronized void markEof() {
+        eof = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isEof() {
+        return eof;
+    }
+
+    private void awaitData() throws IOException {
+        long deadline = System.currentTimeMillis() + readTimeout;
+        while (readPos == writePos && !eof) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("no data within " + readTimeout + " ms");
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for data");
+            }
+        }
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        awaitData();
+        if (readPos == writePos) {
+            return -1;
+        }
+        return buf[readPos++] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        awaitData();
+        int buffered = writePos - readPos;
+        if (buffered == 0) {
+            return -1;
+        }
+        int n = Math.min(len, buffered);
+        System.arraycopy(buf, readPos, b, off, n);
+        readPos += n;
+        return n;
+    }
+
+    /**
+     * Look at a buffered byte without consuming it.
+     * 
+     * @param offset offset from the read position, less than available()
+     * @return byte at offset
+     */
+    public synchronized int peek(int offset) {
+        if (offset < 0 || offset >= writePos - readPos) {
+            throw new IndexOutOfBoundsException("offset " + offset);
+        }
+        return buf[readPos + offset] & 0xff;
+    }
+
+    /**
+     * Look at a buffered big-endian int without consuming it.
+     * 
+     * @param offset offset from the read position, at most available() - 4
+     * @return int at offset
+     */
+    public synchronized int peekInt(int offset) {
+        return (peek(offset) << 24) | (peek(offset + 1) << 16) | (peek(offset + 2) << 8) | peek(offset + 3);
+    }
+
+    @Override
+    public synchronized int available() {
+        return writePos - readPos;
+    }
+
+    @Override
+    public void close() {
+        markEof();
+    }
+}
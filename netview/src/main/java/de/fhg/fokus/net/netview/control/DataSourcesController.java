@@ -45,9 +45,14 @@ import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.net.Socket;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.ExecutorService;
@@ -68,7 +73,10 @@ import de.fhg.fokus.net.netview.model.Model.ModelEventData;
 import de.fhg.fokus.net.netview.model.Model.ModelEventType;
 import de.fhg.fokus.net.netview.model.Network;
 import de.fhg.fokus.net.netview.model.PersistentPreferences;
+import de.fhg.fokus.net.netview.model.db.BulkImporter;
 import de.fhg.fokus.net.netview.model.db.NetViewDB;
+import de.fhg.fokus.net.netview.model.db.RetentionManager;
+import de.fhg.fokus.net.netview.model.db.SpoolLog;
 import de.fhg.fokus.net.netview.view.ViewMain;
 import de.fhg.fokus.net.worldmap.util.EventSupport;
 import de.fhg.fokus.net.worldmap.util.EventSupport.EventListener;
@@ -109,6 +117,7 @@ public class DataSourcesController implements Controllable, PersistentPreference
 	private final Model model;
 	private final NetViewDB db;
 	private final PacketTrackCollector collector;
+	private final StatsDatagramReceiver statsReceiver;
 	//	private final PacketTrackCollectorTest packetTrackCollector;
 	// view
 	private final JFileChooser fileChooser;
@@ -120,13 +129,39 @@ public class DataSourcesController implements Controllable, PersistentPreference
 		this.view = view;
 		this.model = model;
 		this.executor = executor;
-		this.collector = new PacketTrackCollector(model.getTrackRepository(),this.executor);
+		SpoolLog spool = model.getDb().getSpool();
+		this.collector = new PacketTrackCollector(
+				spool != null ? spool : model.getTrackRepository(), this.executor);
+		if( model.getConfig().isCollectorSelectorMode() ){
+			this.collector.setIoMode(PacketTrackCollector.IoMode.SELECTOR);
+			this.collector.setDecoderThreads(model.getConfig().getCollectorDecoderThreads());
+		}
+		if( spool == null ){
+			this.collector.setIngestPipeline(model.getDb().getIngestPipeline());
+		}
+		try {
+			this.collector.setOverloadPolicy(PacketTrackCollector.OverloadPolicy.valueOf(
+					model.getConfig().getCollectorOverloadPolicy()));
+		} catch (Exception e) {
+			logger.warn("Unknown collector overload policy: "+model.getConfig().getCollectorOverloadPolicy());
+		}
+		this.collector.setSampleRate(model.getConfig().getCollectorSampleRate());
+		if( model.getDb().getStatsSink() != null ){
+			this.statsReceiver = new StatsDatagramReceiver(model.getDb().getStatsSink(),
+					model.getConfig().getStatsDatagramPort());
+		} else {
+			this.statsReceiver = null;
+		}
 		this.db = this.model.getDb();
 		this.eventSupport = new EventSupport<EventType, EventData>(this.executor);
 		this.fileChooser = new JFileChooser(model.getConfig().getNetviewHome());
 
 
 	}
+	/**
+	 * Maximum number of exporters listed in the collector status
+	 */
+	private static final int MAX_EXPORTER_ROWS = 100;
 	private void updateCollectorStatus(){
 		StringBuffer sbuf = new StringBuffer();
 		if( collector.isBound() ){
@@ -134,11 +169,56 @@ public class DataSourcesController implements Controllable, PersistentPreference
 			sbuf.append(String.format("Bound to:\t%s \n",collector.getLocalAddress()));
 			sbuf.append(String.format("Started at:\t%s \n",iso8601s.format(new Date(collector.getStartedAt()))));
 			sbuf.append(String.format("Records:\t%d\n", collector.getNumberOfRecords()));
+			if( statsReceiver != null && statsReceiver.isRunning() ){
+				sbuf.append(String.format("Stats datagrams:\tport %d, %d from %d senders, %d lost, %d malformed, %d records dropped\n",
+						statsReceiver.getPort(), statsReceiver.getDatagrams(), statsReceiver.getSenders().size(),
+						statsReceiver.getLost(), statsReceiver.getMalformed(), statsReceiver.getDropped()));
+			}
+			if( db.getSpool() != null ){
+				sbuf.append(String.format("Spool:\t%d kB not yet committed, %d records drained\n",
+						db.getSpool().getBacklog() / 1024, db.getSpool().getDrainedRecords()));
+			}
+			RetentionManager retention = db.getRetention();
+			if( retention != null && (retention.isRunning() || retention.getPasses() > 0) ){
+				sbuf.append(String.format("Retention:\t%s, %d partitions dropped, %d rows compacted, %d rows deleted, ~%d MB reclaimed\n",
+						retention.isRunning() ? retention.getPendingPartitions() + " partitions pending"
+								: "last pass " + iso8601s.format(new Date(retention.getLastPassAt())),
+						retention.getDroppedPartitions(), retention.getCompactedRows(),
+						retention.getDeletedRows(), retention.getReclaimedBytes() / (1024 * 1024)));
+			}
+			if( db.getArchive() != null && db.getArchive().size() > 0 ){
+				sbuf.append(String.format("Archive:\t%d segments, %d MB, %d rows archived\n",
+						db.getArchive().size(), db.getArchive().getBytes() / (1024 * 1024),
+						retention.getArchivedRows()));
+			}
+			if( collector.getOverloadPolicy() != PacketTrackCollector.OverloadPolicy.BLOCK ){
+				sbuf.append(String.format("Overload:\t%s, dropped stats: %d, sampled tracks: %d\n",
+						collector.getOverloadPolicy(), collector.getDroppedStats(), collector.getSampledTracks()));
+			}
 			if( collector.getClients().size() > 0 ){
-				sbuf.append(String.format("Packet Track Exporters: %d ",collector.getClients().size() ));
-				int i =1;
-				for( Socket socket: collector.getClients() ){
-					sbuf.append(String.format("\n - %d: %s ",i++, socket ));
+				sbuf.append(String.format("Packet Track Exporters: %d\n",collector.getClients().size() ));
+				// most lagging exporters first
+				List<ExporterStats> exporters = new ArrayList<ExporterStats>(collector.getExporters());
+				Collections.sort(exporters, new Comparator<ExporterStats>() {
+					@Override
+					public int compare(ExporterStats o1, ExporterStats o2) {
+						long l1 = o1.getIngestLag(), l2 = o2.getIngestLag();
+						return l1 < l2 ? 1 : (l1 == l2 ? 0 : -1);
+					}
+				});
+				sbuf.append(String.format("%-24s %10s %10s %12s %10s %10s %10s %10s",
+						"exporter","rec/s","kB/s","records","decode us","lag ms","dropped","sampled"));
+				int i = 0;
+				for( ExporterStats exporter: exporters ){
+					if( i++ == MAX_EXPORTER_ROWS ){
+						sbuf.append(String.format("\n... %d more", exporters.size() - MAX_EXPORTER_ROWS));
+						break;
+					}
+					sbuf.append(String.format("\n%-24s %10.1f %10.1f %12d %10.1f %10d %10d %10d",
+							exporter.getAddress(), exporter.getRecordsPerSecond(),
+							exporter.getBytesPerSecond() / 1024, exporter.getRecords(),
+							exporter.getDecodeMicros(), exporter.getIngestLag(),
+							exporter.getDroppedStats(), exporter.getSampledTracks()));
 				}
 			}
 		} else {
@@ -155,6 +235,10 @@ public class DataSourcesController implements Controllable, PersistentPreference
 		setupTracks();
 		setupModelBindings();
 		setupCollector();
+		if( statsReceiver != null ){
+			statsReceiver.init();
+			statsReceiver.start();
+		}
 	}
 
 	private final TimerTask timerTaskUpdateCollectorStatus = new TimerTask() {
@@ -167,7 +251,7 @@ public class DataSourcesController implements Controllable, PersistentPreference
 	};
 	private void setupCollector() {
 		// refresh status
-		timer.scheduleAtFixedRate(timerTaskUpdateCollectorStatus, 5000, 5000);
+		timer.scheduleAtFixedRate(timerTaskUpdateCollectorStatus, 1000, 1000);
 
 		collector.addEventListener(PtcEventType.STARTED, new EventListener<PtcEventData>() {
 			public void onEvent(PtcEventData e) {
@@ -325,29 +409,87 @@ public class DataSourcesController implements Controllable, PersistentPreference
 		);
 	}
 	
+	/**
+	 * Committed offsets of the last canceled or failed import, used to resume it;
+	 * replaced as a whole by the importer thread
+	 */
+	private volatile Map<File, Long> importOffsets = Collections.emptyMap();
 	private void setupTracksImport() {
+		final BulkImporter importer = db.getBulkImporter();
+		final String importText = view.getjButtonTracksImport().getText();
+		importer.addEventListener(BulkImporter.EventType.PROGRESS, new EventListener<BulkImporter.EventData>() {
+			@Override
+			public void onEvent(BulkImporter.EventData e) {
+				view.message(String.format("Importing: %d objects, %.0f objects/s, %d%%, ETA %ds",
+						e.records, e.recordsPerSecond,
+						e.totalBytes == 0 ? 100 : e.bytesRead * 100 / e.totalBytes, e.eta / 1000));
+			}
+		});
+		importer.addEventListener(BulkImporter.EventType.FILE_FAILED, new EventListener<BulkImporter.EventData>() {
+			@Override
+			public void onEvent(BulkImporter.EventData e) {
+				view.message("Could not import " + e.file + ": " + e.message);
+			}
+		});
+		EventListener<BulkImporter.EventData> onDone = new EventListener<BulkImporter.EventData>() {
+			@Override
+			public void onEvent(BulkImporter.EventData e) {
+				importOffsets = Collections.unmodifiableMap(new HashMap<File, Long>(e.committedOffsets));
+				view.getBusyIconAnimator().stop();
+				view.getjButtonTracksImport().setText(importText);
+				logger.debug("Imported " + e.records + " objects");
+				view.message(String.format("Imported %d objects in %ds", e.records, e.elapsedTime / 1000), 5);
+			}
+		};
+		importer.addEventListener(BulkImporter.EventType.FINISHED, onDone);
+		importer.addEventListener(BulkImporter.EventType.CANCELED, onDone);
 		view.getjButtonTracksImport().addActionListener(
 				new ActionListener() {
 					@Override
 					public void actionPerformed(ActionEvent arg0) {
+						if( importer.isRunning() ){
+							view.message("Canceling import ..");
+							importer.cancel();
+							return;
+						}
+						if( !db.isDatabaseStorage() ){
+							view.message("Importing needs the h2 storage engine", 5);
+							return;
+						}
 						executor.execute(new Runnable() {
 							@Override
 							public void run() {
 								JFileChooser fc = new JFileChooser();
-								fc.setFileSelectionMode(JFileChooser.FILES_ONLY);
+								fc.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
 								if(fc.showOpenDialog(view.getFrame()) == JFileChooser.APPROVE_OPTION) {
-									view.getBusyIconAnimator().start();
 									File f = fc.getSelectedFile();
+									List<File> files = f.isDirectory() ? BulkImporter.listFiles(f) : Collections.singletonList(f);
+									Map<File, Long> offsets = null;
+									// offsets stored by an import before a restart, newer ones in memory
+									Map<File, Long> committed = BulkImporter.loadOffsets(files);
+									committed.putAll(importOffsets);
+									long resumable = 0;
+									for( File file: files ){
+										Long offset = committed.get(file);
+										if( offset != null && offset > 0 && offset < file.length() ){
+											resumable++;
+										}
+									}
+									if( resumable > 0 && JOptionPane.showConfirmDialog(view.getFrame(),
+											"A previous import of " + resumable + " file(s) was interrupted. Resume it?",
+											"Import",
+											JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION ){
+										offsets = committed;
+									}
 									logger.debug("importing tracks from " + f.toString());
 									view.message("Importing objects from " + f.toString());
-									int count = db.importTracks(f);
-									JOptionPane.showMessageDialog(view.getFrame(), 
-											"Imported " + Integer.toString(count) + " objects.",
-											"Import",
-											JOptionPane.INFORMATION_MESSAGE);
-									logger.debug("Imported " + Integer.toString(count) + " objects");
-									view.message("Imported " + Integer.toString(count) + " objects", 5);
-									view.getBusyIconAnimator().stop();
+									try {
+										importer.start(files, offsets);
+										view.getBusyIconAnimator().start();
+										view.getjButtonTracksImport().setText("Cancel");
+									} catch (IllegalStateException e) {
+										view.message(e.getMessage(), 5);
+									}
 								}
 							}
 						});
@@ -454,6 +596,20 @@ public class DataSourcesController implements Controllable, PersistentPreference
 		timerTaskUpdateCollectorStatus.cancel();
 		timer.cancel();
 		savePreferences();
+		// write what is still spooled and queued
+		if( db.getSpool() != null ){
+			db.getSpool().stop();
+		}
+		if( db.getIngestPipeline() != null ){
+			db.getIngestPipeline().stop();
+		}
+		if( statsReceiver != null ){
+			statsReceiver.stop();
+			if( db.getStatsPipeline() != null ){
+				db.getStatsPipeline().stop();
+			}
+		}
+		db.getStorageEngine().flush();
 
 	}
 
@@ -0,0 +1,255 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.control;
+
+import java.net.SocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of a single packet track exporter connection. Counters are updated
+ * lock-free by the thread decoding the connection; rates are derived when
+ * read, over windows of at least {@link #RATE_WINDOW_MILLIS}.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class ExporterStats {
+
+    public static enum RecordType {
+
+        TRACK,
+        INTERFACE_STATS,
+        PROBE_STATS,
+        PROBE_LOCATION,
+        BEARER_INFORMATION
+    }
+    public static final long RATE_WINDOW_MILLIS = 1000;
+    private static final int NTYPES = RecordType.values().length;
+    /**
+     * Record types an exporter sends continuously
+     */
+    private static final RecordType[] STREAMED_TYPES = {RecordType.TRACK,
+        RecordType.INTERFACE_STATS, RecordType.PROBE_STATS};
+    private final SocketAddress address;
+    private final long connectedAt;
+    private final AtomicLongArray records = new AtomicLongArray(NTYPES);
+    private final AtomicLongArray bytes = new AtomicLongArray(NTYPES);
+    private final AtomicLongArray decodeNanos = new AtomicLongArray(NTYPES);
+    /**
+     * Newest record timestamp (ms) seen per type
+     */
+    private final AtomicLongArray newestTimestamp = new AtomicLongArray(NTYPES);
+    /**
+     * Stats records dropped because the ingest pipeline was overloaded
+     */
+    final AtomicLong droppedStats = new AtomicLong();
+    /**
+     * Track records discarded by sampling while the ingest pipeline was overloaded
+     */
+    final AtomicLong sampledTracks = new AtomicLong();
+    /**
+     * Track records seen while sampling, used to select every n-th record
+     */
+    final AtomicLong overloadedTracks = new AtomicLong();
+    // rates, guarded by this
+    private long windowStart;
+    private final long[] windowRecords = new long[NTYPES];
+    private final long[] windowBytes = new long[NTYPES];
+    private final double[] recordRate = new double[NTYPES];
+    private final double[] byteRate = new double[NTYPES];
+
+    public ExporterStats(SocketAddress address) {
+        this.address = address;
+        this.connectedAt = System.currentTimeMillis();
+        this.windowStart = connectedAt;
+    }
+
+    /**
+     * Account a received record.
+     * 
+     * @param type
+     * @param size encoded size in bytes
+     * @param nanos time spent decoding
+     * @param timestamp record timestamp in milliseconds, 0 if unknown
+     */
+    void received(RecordType type, long size, long nanos, long timestamp) {
+        int i = type.ordinal();
+        records.incrementAndGet(i);
+        bytes.addAndGet(i, size);
+        decodeNanos.addAndGet(i, nanos);
+        long newest = newestTimestamp.get(i);
+        while (timestamp > newest && !newestTimestamp.compareAndSet(i, newest, timestamp)) {
+            newest = newestTimestamp.get(i);
+        }
+    }
+
+    public SocketAddress getAddress() {
+        return address;
+    }
+
+    public long getConnectedAt() {
+        return connectedAt;
+    }
+
+    public long getRecords(RecordType type) {
+        return records.get(type.ordinal());
+    }
+
+    public long getRecords() {
+        return sum(records);
+    }
+
+    public long getBytes(RecordType type) {
+        return bytes.get(type.ordinal());
+    }
+
+    public long getBytes() {
+        return sum(bytes);
+    }
+
+    /**
+     * 
+     * @param type
+     * @return mean decode time in microseconds, 0 if nothing was received
+     */
+    public double getDecodeMicros(RecordType type) {
+        long n = records.get(type.ordinal());
+        return n == 0 ? 0 : decodeNanos.get(type.ordinal()) / (1000.0 * n);
+    }
+
+    public double getDecodeMicros() {
+        long n = getRecords();
+        return n == 0 ? 0 : sum(decodeNanos) / (1000.0 * n);
+    }
+
+    /**
+     * 
+     * @param type
+     * @return wall clock minus newest record timestamp in milliseconds, -1 if nothing was received
+     */
+    public long getIngestLag(RecordType type) {
+        long newest = newestTimestamp.get(type.ordinal());
+        return newest == 0 ? -1 : System.currentTimeMillis() - newest;
+    }
+
+    /**
+     * Largest ingest lag of the streamed record types, i.e. track records and
+     * stats. Locations and bearer information are only sent on changes, their
+     * age is no lag.
+     * 
+     * @return largest ingest lag of the streamed record types, -1 if none of
+     *         them was received
+     */
+    public long getIngestLag() {
+        long lag = -1;
+        for (RecordType type : STREAMED_TYPES) {
+            lag = Math.max(lag, getIngestLag(type));
+        }
+        return lag;
+    }
+
+    public synchronized double getRecordsPerSecond(RecordType type) {
+        updateRates();
+        return recordRate[type.ordinal()];
+    }
+
+    public synchronized double getRecordsPerSecond() {
+        updateRates();
+        return sum(recordRate);
+    }
+
+    public synchronized double getBytesPerSecond(RecordType type) {
+        updateRates();
+        return byteRate[type.ordinal()];
+    }
+
+    public synchronized double getBytesPerSecond() {
+        updateRates();
+        return sum(byteRate);
+    }
+
+    public long getDroppedStats() {
+        return droppedStats.get();
+    }
+
+    public long getSampledTracks() {
+        return sampledTracks.get();
+    }
+
+    /**
+     * Start a new rate window if the current one is complete.
+     */
+    private void updateRates() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - windowStart;
+        if (elapsed < RATE_WINDOW_MILLIS) {
+            return;
+        }
+        double seconds = elapsed / (double) TimeUnit.SECONDS.toMillis(1);
+        for (int i = 0; i < NTYPES; i++) {
+            long r = records.get(i);
+            long b = bytes.get(i);
+            recordRate[i] = (r - windowRecords[i]) / seconds;
+            byteRate[i] = (b - windowBytes[i]) / seconds;
+            windowRecords[i] = r;
+            windowBytes[i] = b;
+        }
+        windowStart = now;
+    }
+
+    private static long sum(AtomicLongArray a) {
+        long s = 0;
+        for (int i = 0; i < a.length(); i++) {
+            s += a.get(i);
+        }
+        return s;
+    }
+
+    private static double sum(double[] a) {
+        double s = 0;
+        for (double d : a) {
+            s += d;
+        }
+        return s;
+    }
+}
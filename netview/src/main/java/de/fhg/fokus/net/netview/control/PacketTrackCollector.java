@@ -40,20 +40,42 @@
  */
 package de.fhg.fokus.net.netview.control;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.fhg.fokus.net.netview.control.ExporterStats.RecordType;
+import de.fhg.fokus.net.netview.model.db.TrackIngestPipeline;
 import de.fhg.fokus.net.netview.model.db.TrackRecordRepository;
+import de.fhg.fokus.net.netview.util.MeteredInputStream;
+import de.fhg.fokus.net.netview.util.PtWireCodec;
+import de.fhg.fokus.net.netview.util.PtWireCodec.RecordReader;
 import de.fhg.fokus.net.worldmap.util.EventSupport;
 import de.fhg.fokus.net.ptapi.PacketTrackRecord;
 import de.fhg.fokus.net.ptapi.PtInterfaceStats;
@@ -62,7 +84,13 @@ import de.fhg.fokus.net.ptapi.PtProbeStats;
 import de.fhg.fokus.net.ptapi.PtBearerInformation;
 
 /**
- * Default packet track collector implementation
+ * Default packet track collector implementation. 
+ * 
+ * In {@link IoMode#BLOCKING} mode each exporter connection is served by its
+ * own thread. In {@link IoMode#SELECTOR} mode a single selector thread accepts
+ * and reads all connections and a fixed pool of decoder threads turns the
+ * received bytes into records, so thousands of exporters can be served by a
+ * small, fixed set of threads.
  * 
  * @author FhG-FOKUS NETwork Research
  *
@@ -86,6 +114,37 @@ public class PacketTrackCollector {
         STOPPED
     }
 
+    public static enum IoMode {
+
+        /**
+         * One thread per exporter connection
+         */
+        BLOCKING,
+        /**
+         * One selector thread and a fixed number of decoder threads
+         */
+        SELECTOR
+    }
+
+    /**
+     * What to do with received records while the ingest pipeline is overloaded.
+     */
+    public static enum OverloadPolicy {
+
+        /**
+         * Stop reading from exporters until the pipeline caught up
+         */
+        BLOCK,
+        /**
+         * Drop interface and probe stats, block for track records
+         */
+        DROP_STATS,
+        /**
+         * Drop stats and keep only every n-th track record of an exporter
+         */
+        SAMPLE_TRACKS
+    }
+
     public static class PtcEventData {
 
         public SocketAddress clientAddress;
@@ -104,8 +163,29 @@ public class PacketTrackCollector {
     private final Logger logger = LoggerFactory.getLogger(getClass());
     // model
     private final List<Socket> clients = new CopyOnWriteArrayList<Socket>();
-    private long numberOfRecords = 0;
+    private final AtomicLong numberOfRecords = new AtomicLong();
     private long startedAt = 0;
+    // selector mode
+    private IoMode ioMode = IoMode.BLOCKING;
+    private int decoderThreads = Runtime.getRuntime().availableProcessors();
+    /**
+     * Bytes buffered per connection before reading from it is suspended.
+     */
+    private int maxBufferedBytes = 1 << 20;
+    /**
+     * Time in milliseconds a decoder waits for the rest of a partially received
+     * serialized object. Binary frames are decoded once they are complete.
+     */
+    private long readTimeout = 30000;
+    // overload handling
+    private TrackIngestPipeline ingestPipeline;
+    private volatile OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
+    private volatile int sampleRate = 10;
+    private final ConcurrentMap<SocketAddress, ExporterStats> exporters = new ConcurrentHashMap<SocketAddress, ExporterStats>();
+    private final AtomicLong droppedStats = new AtomicLong();
+    private final AtomicLong sampledTracks = new AtomicLong();
+    private volatile Selector selector;
+    private final Queue<SelectionKey> resumeQueue = new ConcurrentLinkedQueue<SelectionKey>();
 
     public PacketTrackCollector(TrackRecordRepository db, ExecutorService executor) {
         this.executor = executor;
@@ -113,6 +193,89 @@ public class PacketTrackCollector {
         this.eventSupport = new EventSupport<PtcEventType, PtcEventData>(executor);
     }
 
+    /**
+     * Read next record and account it.
+     * 
+     * @return next record or null at the end of the stream
+     */
+    private Object readRecord(RecordReader reader, MeteredInputStream metered, ExporterStats exporter)
+            throws IOException, ClassNotFoundException {
+        long before = metered.getCount();
+        Object obj = reader.read();
+        if (obj != null) {
+            long nanos = metered.getElapsedNanos();
+            long size = metered.getCount() - before;
+            if (obj instanceof PacketTrackRecord) {
+                long[] ts = ((PacketTrackRecord) obj).ts;
+                exporter.received(RecordType.TRACK, size, nanos,
+                        ts == null || ts.length == 0 ? 0 : TimeUnit.MICROSECONDS.toMillis(ts[ts.length - 1]));
+            } else if (obj instanceof PtInterfaceStats) {
+                exporter.received(RecordType.INTERFACE_STATS, size, nanos,
+                        ((PtInterfaceStats) obj).observationTimeMilliseconds);
+            } else if (obj instanceof PtProbeStats) {
+                exporter.received(RecordType.PROBE_STATS, size, nanos,
+                        ((PtProbeStats) obj).observationTimeMilliseconds);
+            } else if (obj instanceof PtProbeLocation) {
+                exporter.received(RecordType.PROBE_LOCATION, size, nanos,
+                        ((PtProbeLocation) obj).observationTimeMilliseconds);
+            } else if (obj instanceof PtBearerInformation) {
+                exporter.received(RecordType.BEARER_INFORMATION, size, nanos,
+                        ((PtBearerInformation) obj).observationTimeMilliseconds);
+            }
+        }
+        metered.resetTimer();
+        return obj;
+    }
+
+    /**
+     * Pass a received object to the repository, applying the overload policy.
+     * 
+     * @param obj
+     * @param exporter
+     */
+    private void onObject(Object obj, ExporterStats exporter) {
+        if (obj != null) {
+            OverloadPolicy policy = overloadPolicy;
+            boolean overloaded = policy != OverloadPolicy.BLOCK
+                    && ingestPipeline != null && ingestPipeline.isOverloaded();
+            if (obj instanceof PacketTrackRecord) {
+                if (overloaded && policy == OverloadPolicy.SAMPLE_TRACKS
+                        && exporter.overloadedTracks.getAndIncrement() % sampleRate != 0) {
+                    exporter.sampledTracks.incrementAndGet();
+                    sampledTracks.incrementAndGet();
+                    return;
+                }
+                db.addPacketTrackRecord((PacketTrackRecord) obj);
+                numberOfRecords.incrementAndGet();
+            } else if (obj instanceof PtInterfaceStats) {
+                if (overloaded) {
+                    dropStats(exporter);
+                    return;
+                }
+                db.addPtInterfaceStats((PtInterfaceStats) obj);
+            } else if (obj instanceof PtProbeStats) {
+                if (overloaded) {
+                    dropStats(exporter);
+                    return;
+                }
+                db.addPtProbeStats((PtProbeStats) obj);
+            } else if (obj instanceof PtProbeLocation) {
+                db.addPtProbeLocation((PtProbeLocation) obj);
+            } else if (obj instanceof PtBearerInformation) {
+                db.addBearerInformation((PtBearerInformation) obj);
+            } else {
+                logger.warn("Unexpected object of class " + obj.getClass() + " received.");
+            }
+        }
+    }
+
+    private void dropStats(ExporterStats exporter) {
+        exporter.droppedStats.incrementAndGet();
+        if (droppedStats.getAndIncrement() == 0) {
+            logger.warn("ingest pipeline overloaded, dropping stats records");
+        }
+    }
+
     /**
      * Handle incoming clients
      * 
@@ -121,37 +284,26 @@ public class PacketTrackCollector {
     private void handleConnection(final Socket socket) {
         final SocketAddress remote = socket.getRemoteSocketAddress();
         clients.add(socket);
+        ExporterStats exporter = new ExporterStats(remote);
+        exporters.put(remote, exporter);
         eventSupport.dispatch(PtcEventType.CLIENT_CONNECTED, new PtcEventData(remote));
         try {
-            InputStream inStream = socket.getInputStream();
-            ObjectInput inObjectStream = new ObjectInputStream(inStream);
+            InputStream inStream = new BufferedInputStream(socket.getInputStream());
+            MeteredInputStream metered = new MeteredInputStream(inStream);
+            RecordReader reader = PtWireCodec.openReader(metered);
+            metered.resetTimer();
+            if (reader.getVersion() > 0) {
+                socket.getOutputStream().write(reader.getVersion());
+            }
 
-            Object obj;
 //			socket.getRemoteSocketAddress();
-            while (true) {
-                obj = inObjectStream.readObject();
-                if (obj != null) {
-                    if (obj instanceof PacketTrackRecord) {
-                        db.addPacketTrackRecord((PacketTrackRecord) obj);
-                        numberOfRecords++;
-                    } else if (obj instanceof PtInterfaceStats) {
-                        db.addPtInterfaceStats((PtInterfaceStats) obj);
-                    } else if (obj instanceof PtProbeStats) {
-                        db.addPtProbeStats((PtProbeStats) obj);
-                    } else if (obj instanceof PtProbeLocation) {
-                        db.addPtProbeLocation((PtProbeLocation) obj);
-                    } else if (obj instanceof PtBearerInformation) {
-                        db.addBearerInformation((PtBearerInformation) obj);
-                    } else {
-                        logger.warn("Unexpected object of class " + obj.getClass() + " received.");
-                    }
-                }
-
+            Object obj;
+            while ((obj = readRecord(reader, metered, exporter)) != null) {
+                onObject(obj, exporter);
             }
         } catch (Exception e) {
-            e.printStackTrace();
             logger.debug(e.getMessage());
-            e.printStackTrace();
+        } finally {
             try {
                 socket.getInputStream().close();
                 socket.close();
@@ -159,6 +311,7 @@ public class PacketTrackCollector {
                 logger.debug(e1.getMessage());
             }
             clients.remove(socket);
+            exporters.remove(remote);
             eventSupport.dispatch(PtcEventType.CLIENT_DISCONNECTED, new PtcEventData(remote));
         }
     }
@@ -186,8 +339,14 @@ public class PacketTrackCollector {
      * @throws Exception
      */
     public void bind(int port) {
+        if (ioMode == IoMode.SELECTOR) {
+            bindSelector(port);
+            return;
+        }
         shouldRun = true;
-        numberOfRecords = 0;
+        numberOfRecords.set(0);
+        droppedStats.set(0);
+        sampledTracks.set(0);
         try {
             serverSocket = new ServerSocket(port);
             startedAt = System.currentTimeMillis();
@@ -210,12 +369,334 @@ public class PacketTrackCollector {
         }
     }
 
+    /**
+     * State of a connection served in selector mode.
+     */
+    private final class ChannelConnection implements Runnable {
+
+        final SocketChannel channel;
+        final SocketAddress remote;
+        final ChannelBufferInputStream in;
+        final MeteredInputStream metered;
+        final ExporterStats exporter;
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        volatile boolean suspended = false;
+        RecordReader reader;
+        SelectionKey key;
+
+        ChannelConnection(SocketChannel channel) {
+            this.channel = channel;
+            this.remote = channel.socket().getRemoteSocketAddress();
+            this.in = new ChannelBufferInputStream(8192, readTimeout);
+            this.metered = new MeteredInputStream(in);
+            this.exporter = new ExporterStats(remote);
+        }
+
+        /**
+         * Hand connection to a decoder thread unless one is already working on it.
+         */
+        void schedule(ExecutorService decoders) {
+            if (scheduled.compareAndSet(false, true)) {
+                decoders.execute(this);
+            }
+        }
+
+        /**
+         * 
+         * @return true if the stream header or next record can be decoded
+         *         without waiting for more data
+         */
+        boolean recordBuffered() {
+            int available = in.available();
+            if (in.isEof()) {
+                return true;
+            }
+            if (reader == null) {
+                return available > PtWireCodec.MAGIC.length;
+            }
+            if (reader.getVersion() == 0) {
+                // serialized objects carry no length, the decoder may have to wait for the rest
+                return available > 0;
+            }
+            // frames of unknown types are skipped by the decoder, so they have to be buffered as well
+            int offset = 0;
+            while (available >= offset + PtWireCodec.FRAME_HEADER_LENGTH) {
+                int type = in.peek(offset);
+                int length = in.peekInt(offset + 1);
+                if (length < 0 || length > PtWireCodec.MAX_FRAME_LENGTH) {
+                    // let the decoder report the corrupt frame
+                    return true;
+                }
+                offset += PtWireCodec.FRAME_HEADER_LENGTH + length;
+                if (available < offset) {
+                    return false;
+                }
+                if (PtWireCodec.isKnownType(type)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Decode all complete objects buffered so far, partially received ones
+         * are left to the next run.
+         */
+        @Override
+        public void run() {
+            try {
+                if (reader == null && recordBuffered()) {
+                    reader = PtWireCodec.openReader(metered);
+                    metered.resetTimer();
+                    if (reader.getVersion() > 0) {
+                        channel.write(ByteBuffer.wrap(new byte[]{(byte) reader.getVersion()}));
+                    }
+                }
+                while (reader != null && recordBuffered()) {
+                    Object obj = readRecord(reader, metered, exporter);
+                    if (obj == null) {
+                        throw new EOFException("connection closed");
+                    }
+                    onObject(obj, exporter);
+                }
+            } catch (Exception e) {
+                logger.debug(remote + ": " + e.getMessage());
+                disconnect(this);
+                return;
+            } finally {
+                scheduled.set(false);
+            }
+            if (suspended && in.available() < maxBufferedBytes / 2) {
+                suspended = false;
+                resumeQueue.add(key);
+                selector.wakeup();
+            }
+            // data might have arrived while we were finishing
+            if (recordBuffered()) {
+                schedule(decoders);
+            }
+        }
+    }
+    private volatile ExecutorService decoders;
+
+    /**
+     * Serve all connections using a selector.
+     * 
+     * @param port
+     */
+    private void bindSelector(int port) {
+        shouldRun = true;
+        numberOfRecords.set(0);
+        droppedStats.set(0);
+        sampledTracks.set(0);
+        ServerSocketChannel serverChannel = null;
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            serverSocket = serverChannel.socket();
+            decoders = Executors.newFixedThreadPool(decoderThreads);
+            startedAt = System.currentTimeMillis();
+            eventSupport.dispatch(PtcEventType.STARTED, null);
+            ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+            while (shouldRun) {
+                selector.select();
+                SelectionKey resumed;
+                while ((resumed = resumeQueue.poll()) != null) {
+                    if (resumed.isValid()) {
+                        resumed.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                    } else if (key.isReadable()) {
+                        read(key, readBuffer);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            logger.debug(e.getMessage());
+        } finally {
+            if (selector != null) {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() instanceof ChannelConnection) {
+                        disconnect((ChannelConnection) key.attachment());
+                    }
+                }
+            }
+            try {
+                if (serverChannel != null) {
+                    serverChannel.close();
+                }
+                if (selector != null) {
+                    selector.close();
+                }
+            } catch (IOException e) {
+                logger.debug(e.getMessage());
+            }
+            if (decoders != null) {
+                decoders.shutdown();
+            }
+            eventSupport.dispatch(PtcEventType.STOPPED, new PtcEventData());
+            serverSocket = null;
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        ChannelConnection conn = new ChannelConnection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        clients.add(channel.socket());
+        exporters.put(conn.remote, conn.exporter);
+        eventSupport.dispatch(PtcEventType.CLIENT_CONNECTED, new PtcEventData(conn.remote));
+    }
+
+    private void read(SelectionKey key, ByteBuffer readBuffer) {
+        ChannelConnection conn = (ChannelConnection) key.attachment();
+        try {
+            readBuffer.clear();
+            int n = conn.channel.read(readBuffer);
+            if (n < 0) {
+                key.interestOps(0);
+                conn.in.markEof();
+            } else {
+                readBuffer.flip();
+                conn.in.feed(readBuffer);
+                if (conn.in.available() >= maxBufferedBytes) {
+                    // decoders are behind, stop reading until they catch up
+                    conn.suspended = true;
+                    key.interestOps(0);
+                }
+            }
+            conn.schedule(decoders);
+        } catch (IOException e) {
+            logger.debug(conn.remote + ": " + e.getMessage());
+            disconnect(conn);
+        }
+    }
+
+    private void disconnect(ChannelConnection conn) {
+        if (!clients.remove(conn.channel.socket())) {
+            return;
+        }
+        conn.in.markEof();
+        try {
+            conn.channel.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage());
+        }
+        exporters.remove(conn.remote);
+        eventSupport.dispatch(PtcEventType.CLIENT_DISCONNECTED, new PtcEventData(conn.remote));
+    }
+
+    public IoMode getIoMode() {
+        return ioMode;
+    }
+
+    /**
+     * Set i/o mode, takes effect on next bind.
+     * 
+     * @param ioMode
+     */
+    public void setIoMode(IoMode ioMode) {
+        this.ioMode = ioMode;
+    }
+
+    public int getDecoderThreads() {
+        return decoderThreads;
+    }
+
+    /**
+     * Set number of decoder threads used in selector mode, takes effect on next bind.
+     * 
+     * @param decoderThreads
+     */
+    public void setDecoderThreads(int decoderThreads) {
+        this.decoderThreads = Math.max(1, decoderThreads);
+    }
+
     public long getStartedAt() {
         return startedAt;
     }
 
     public long getNumberOfRecords() {
-        return numberOfRecords;
+        return numberOfRecords.get();
+    }
+
+    /**
+     * Pipeline checked for overload, without one records are never dropped.
+     * 
+     * @param ingestPipeline
+     */
+    public void setIngestPipeline(TrackIngestPipeline ingestPipeline) {
+        this.ingestPipeline = ingestPipeline;
+    }
+
+    public OverloadPolicy getOverloadPolicy() {
+        return overloadPolicy;
+    }
+
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * 
+     * @param sampleRate keep one of sampleRate track records when sampling
+     */
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    /**
+     * 
+     * @return stats records dropped since bind
+     */
+    public long getDroppedStats() {
+        return droppedStats.get();
+    }
+
+    /**
+     * 
+     * @return track records discarded by sampling since bind
+     */
+    public long getSampledTracks() {
+        return sampledTracks.get();
+    }
+
+    /**
+     * 
+     * @return counters of connected exporters
+     */
+    public Collection<ExporterStats> getExporters() {
+        return exporters.values();
+    }
+
+    /**
+     * 
+     * @param address
+     * @return counters of the exporter connected from address or null
+     */
+    public ExporterStats getExporterStats(SocketAddress address) {
+        return exporters.get(address);
     }
 
     /**
@@ -224,6 +705,11 @@ public class PacketTrackCollector {
     public void stop() {
         logger.debug("=> stopping collector...");
         shouldRun = false;
+        if (ioMode == IoMode.SELECTOR && selector != null) {
+            // selector loop closes its channels on exit
+            selector.wakeup();
+            return;
+        }
         for (Socket socket : clients) {
             logger.debug("Closing client: {}", socket);
             try {
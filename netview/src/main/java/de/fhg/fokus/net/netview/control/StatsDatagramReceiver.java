@@ -0,0 +1,322 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.control;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fhg.fokus.net.netview.model.db.TrackIngestPipeline;
+import de.fhg.fokus.net.netview.model.db.TrackRecordRepository;
+import de.fhg.fokus.net.netview.util.StatsDatagramCodec;
+import de.fhg.fokus.net.ptapi.PtInterfaceStats;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+
+/**
+ * Receives interface and probe statistics as datagrams (see
+ * {@link StatsDatagramCodec}) on a single thread using one reusable direct
+ * buffer. Records are passed to a repository, typically an ingest pipeline of
+ * their own so stats do not compete with track records. Losses are accounted
+ * per sender using the datagram sequence numbers.
+ * 
+ * The receiver never blocks on the repository: if it is an ingest pipeline
+ * whose queue is full, records are dropped and counted per sender instead of
+ * stalling the socket, which would only move the loss into the kernel's
+ * receive buffer.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class StatsDatagramReceiver implements Controllable {
+
+    /**
+     * Counters of a single sender.
+     */
+    public static final class SenderStats {
+
+        private final SocketAddress address;
+        private volatile long datagrams = 0;
+        private volatile long records = 0;
+        private volatile long lost = 0;
+        private volatile long reordered = 0;
+        private volatile long dropped = 0;
+        private volatile long lastSequence = -1;
+        private volatile long lastSeen = 0;
+
+        SenderStats(SocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Account a datagram, only called by the receiver thread.
+         */
+        void received(long sequence, int count) {
+            datagrams++;
+            records += count;
+            lastSeen = System.currentTimeMillis();
+            if (lastSequence >= 0) {
+                long gap = (sequence - lastSequence) & 0xffffffffL;
+                if (gap == 0 || gap > 0x7fffffffL) {
+                    // duplicate or late datagram, it was counted as lost before
+                    reordered++;
+                    if (lost > 0 && gap != 0) {
+                        lost--;
+                    }
+                    return;
+                }
+                lost += gap - 1;
+            }
+            lastSequence = sequence;
+        }
+
+        public SocketAddress getAddress() {
+            return address;
+        }
+
+        public long getDatagrams() {
+            return datagrams;
+        }
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getLost() {
+            return lost;
+        }
+
+        public long getReordered() {
+            return reordered;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * 
+         * @return records received but dropped because the repository was
+         *         overloaded
+         */
+        public long getDropped() {
+            return dropped;
+        }
+    }
+    // sys
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final TrackRecordRepository db;
+    // db if it is a pipeline that can be offered to without blocking
+    private final TrackIngestPipeline pipeline;
+    private final int port;
+    private DatagramChannel channel;
+    private Thread receiver;
+    private volatile boolean shouldRun = false;
+    // model
+    private final ConcurrentMap<SocketAddress, SenderStats> senders = new ConcurrentHashMap<SocketAddress, SenderStats>();
+    private volatile long datagrams = 0;
+    private volatile long malformed = 0;
+
+    /**
+     * 
+     * @param db repository records are passed to
+     * @param port udp port
+     */
+    public StatsDatagramReceiver(TrackRecordRepository db, int port) {
+        this.db = db;
+        this.pipeline = db instanceof TrackIngestPipeline ? (TrackIngestPipeline) db : null;
+        this.port = port;
+    }
+
+    @Override
+    public void init() {
+        logger.debug("stats datagram receiver on port {}", port);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (shouldRun) {
+            return;
+        }
+        try {
+            channel = DatagramChannel.open();
+            channel.socket().setReceiveBufferSize(4 * 1024 * 1024);
+            channel.socket().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            logger.warn("could not bind stats datagram receiver to port " + port + ": " + e.getMessage());
+            return;
+        }
+        shouldRun = true;
+        receiver = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        }, "StatsDatagramReceiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        shouldRun = false;
+        if (channel != null) {
+            try {
+                // unblocks receive
+                channel.close();
+            } catch (IOException e) {
+                logger.debug(e.getMessage());
+            }
+        }
+        if (receiver != null) {
+            try {
+                receiver.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            receiver = null;
+        }
+    }
+
+    private void receiveLoop() {
+        final ByteBuffer buf = ByteBuffer.allocateDirect(64 * 1024);
+        final StatsDatagramCodec.Header header = new StatsDatagramCodec.Header();
+        // reused holders, the repository copies what it needs
+        final PtInterfaceStats interfaceStats = new PtInterfaceStats();
+        final PtProbeStats probeStats = new PtProbeStats();
+        while (shouldRun) {
+            try {
+                buf.clear();
+                SocketAddress sender = channel.receive(buf);
+                buf.flip();
+                datagrams++;
+                if (!StatsDatagramCodec.getHeader(buf, header)) {
+                    malformed++;
+                    continue;
+                }
+                SenderStats stats = senders.get(sender);
+                if (stats == null) {
+                    stats = new SenderStats(sender);
+                    senders.put(sender, stats);
+                }
+                stats.received(header.sequence, header.count);
+                for (int i = 0; i < header.count; i++) {
+                    boolean stored = true;
+                    if (header.type == StatsDatagramCodec.TYPE_INTERFACE_STATS) {
+                        StatsDatagramCodec.getInterfaceStats(buf, interfaceStats);
+                        if (pipeline != null) {
+                            stored = pipeline.offerPtInterfaceStats(interfaceStats);
+                        } else {
+                            db.addPtInterfaceStats(interfaceStats);
+                        }
+                    } else {
+                        StatsDatagramCodec.getProbeStats(buf, probeStats);
+                        if (pipeline != null) {
+                            stored = pipeline.offerPtProbeStats(probeStats);
+                        } else {
+                            db.addPtProbeStats(probeStats);
+                        }
+                    }
+                    if (!stored) {
+                        stats.dropped++;
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (Exception e) {
+                logger.debug("stats datagram: " + e.getMessage());
+            }
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public boolean isRunning() {
+        return shouldRun;
+    }
+
+    public long getDatagrams() {
+        return datagrams;
+    }
+
+    public long getMalformed() {
+        return malformed;
+    }
+
+    /**
+     * 
+     * @return total number of datagrams lost over all senders
+     */
+    public long getLost() {
+        long lost = 0;
+        for (SenderStats stats : senders.values()) {
+            lost += stats.getLost();
+        }
+        return lost;
+    }
+
+    /**
+     * 
+     * @return total number of records dropped over all senders
+     */
+    public long getDropped() {
+        long dropped = 0;
+        for (SenderStats stats : senders.values()) {
+            dropped += stats.getDropped();
+        }
+        return dropped;
+    }
+
+    public Collection<SenderStats> getSenders() {
+        return senders.values();
+    }
+}
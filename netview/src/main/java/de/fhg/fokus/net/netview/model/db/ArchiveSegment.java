@@ -0,0 +1,525 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.h2.tools.SimpleRowSource;
+
+/**
+ * Immutable columnar segment holding the rows of one time range of a table,
+ * sorted by time. The columns are memory-mapped separately, a scan only
+ * decodes the rows of the requested time range.
+ * 
+ * <pre>
+ * segment := header column*
+ * header  := magic(i32) version(i32) rows(i32) minTs(i64) maxTs(i64)
+ *            minTrackId(i32) maxTrackId(i32)
+ *            dictionary-size(i32) probe-id(i64)*
+ *            blocks(i32) (first-ts(i64) offset(i32))*
+ *            columns(i32) (name(utf) sql-type(i32) encoding(i8) offset(i64) length(i64))*
+ * </pre>
+ * 
+ * Encodings: the time column holds unsigned varint deltas, restarting at
+ * the first timestamp of every block of {@link #BLOCK_ROWS} rows; probe id
+ * columns hold 16 bit codes into the probe id dictionary; other columns are
+ * stored as fixed width 32 or 64 bit values.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+public class ArchiveSegment {
+
+    private static final int MAGIC = 0x4e564153; // "NVAS"
+    private static final int VERSION = 1;
+    /**
+     * Rows per block of the time column index
+     */
+    public static final int BLOCK_ROWS = 1024;
+    private static final int MAX_DICTIONARY = 0x10000;
+    private static final byte TIME = 0;
+    private static final byte PROBE = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    /**
+     * Columns dictionary-encoded as probe ids
+     */
+    private static final List<String> PROBE_COLUMNS = Arrays.asList("PROBE_ID", "NEXT_HOP");
+
+    /**
+     * A mapped column.
+     */
+    private static final class Column {
+
+        final String name;
+        final int sqlType;
+        final byte encoding;
+        ByteBuffer data;
+
+        Column(String name, int sqlType, byte encoding) {
+            this.name = name;
+            this.sqlType = sqlType;
+            this.encoding = encoding;
+        }
+    }
+    private final File file;
+    private final int rows;
+    private final long minTs;
+    private final long maxTs;
+    private final int minTrackId;
+    private final int maxTrackId;
+    private final long[] dictionary;
+    private final long[] blockTs;
+    private final int[] blockOffset;
+    private final Column[] columns;
+    private final int timeColumn;
+
+    private ArchiveSegment(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                throw new IOException("not an archive segment: " + file);
+            }
+            rows = raf.readInt();
+            minTs = raf.readLong();
+            maxTs = raf.readLong();
+            minTrackId = raf.readInt();
+            maxTrackId = raf.readInt();
+            dictionary = new long[raf.readInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = raf.readLong();
+            }
+            int blocks = raf.readInt();
+            blockTs = new long[blocks];
+            blockOffset = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockTs[i] = raf.readLong();
+                blockOffset[i] = raf.readInt();
+            }
+            columns = new Column[raf.readInt()];
+            int time = -1;
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new Column(raf.readUTF(), raf.readInt(), raf.readByte());
+                long offset = raf.readLong();
+                long length = raf.readLong();
+                columns[i].data = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                if (columns[i].encoding == TIME) {
+                    time = i;
+                }
+            }
+            if (time < 0) {
+                throw new IOException("archive segment without time column: " + file);
+            }
+            timeColumn = time;
+        } finally {
+            // mappings stay valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * Map a segment file.
+     * 
+     * @param file
+     * @return segment
+     * @throws IOException if the file is not a valid segment
+     */
+    public static ArchiveSegment open(File file) throws IOException {
+        return new ArchiveSegment(file);
+    }
+
+    /**
+     * Write rows into a new segment file. The rows must be sorted by the
+     * time column.
+     * 
+     * @param file segment file, written completely before it is renamed
+     * @param rs rows
+     * @param timeColumn name of the time column
+     * @return number of rows written
+     * @throws IOException
+     * @throws SQLException
+     */
+    public static int write(File file, ResultSet rs, String timeColumn) throws IOException, SQLException {
+        ResultSetMetaData meta = rs.getMetaData();
+        int n = meta.getColumnCount();
+        Column[] columns = new Column[n];
+        File[] parts = new File[n];
+        DataOutputStream[] outs = new DataOutputStream[n];
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            for (int i = 0; i < n; i++) {
+                String name = meta.getColumnName(i + 1).toUpperCase();
+                int type = meta.getColumnType(i + 1);
+                byte encoding;
+                if (name.equalsIgnoreCase(timeColumn)) {
+                    encoding = TIME;
+                } else if (PROBE_COLUMNS.contains(name)) {
+                    encoding = PROBE;
+                } else if (type == Types.INTEGER || type == Types.SMALLINT || type == Types.TINYINT) {
+                    encoding = INT;
+                    type = Types.INTEGER;
+                } else if (type == Types.BIGINT) {
+                    encoding = LONG;
+                } else {
+                    throw new IOException("unsupported column type of " + name + ": " + type);
+                }
+                columns[i] = new Column(name, encoding == PROBE ? Types.BIGINT : type, encoding);
+                parts[i] = new File(file.getPath() + "." + i + ".tmp");
+                outs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(parts[i]), 65536));
+            }
+            Map<Long, Integer> codes = new HashMap<Long, Integer>();
+            List<Long> dictionary = new ArrayList<Long>();
+            List<long[]> blocks = new ArrayList<long[]>();
+            int rows = 0;
+            long minTs = Long.MAX_VALUE, maxTs = Long.MIN_VALUE, prevTs = 0;
+            int minTrackId = Integer.MAX_VALUE, maxTrackId = Integer.MIN_VALUE;
+            while (rs.next()) {
+                for (int i = 0; i < n; i++) {
+                    Column column = columns[i];
+                    switch (column.encoding) {
+                        case TIME:
+                            long ts = rs.getLong(i + 1);
+                            if (rows % BLOCK_ROWS == 0) {
+                                blocks.add(new long[]{ts, outs[i].size()});
+                                prevTs = ts;
+                            }
+                            if (ts < prevTs) {
+                                throw new IOException("rows not sorted by " + timeColumn);
+                            }
+                            writeVarLong(outs[i], ts - prevTs);
+                            prevTs = ts;
+                            minTs = Math.min(minTs, ts);
+                            maxTs = Math.max(maxTs, ts);
+                            break;
+                        case PROBE:
+                            long probeId = rs.getLong(i + 1);
+                            Integer code = codes.get(probeId);
+                            if (code == null) {
+                                if (dictionary.size() == MAX_DICTIONARY) {
+                                    throw new IOException("too many probe ids for an archive segment");
+                                }
+                                code = dictionary.size();
+                                dictionary.add(probeId);
+                                codes.put(probeId, code);
+                            }
+                            outs[i].writeShort(code);
+                            break;
+                        case INT:
+                            int value = rs.getInt(i + 1);
+                            if (column.name.equals("TRACK_ID")) {
+                                minTrackId = Math.min(minTrackId, value);
+                                maxTrackId = Math.max(maxTrackId, value);
+                            }
+                            outs[i].writeInt(value);
+                            break;
+                        default:
+                            outs[i].writeLong(rs.getLong(i + 1));
+                    }
+                }
+                rows++;
+            }
+            for (DataOutputStream out : outs) {
+                out.close();
+            }
+            // header
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(rows);
+                out.writeLong(minTs);
+                out.writeLong(maxTs);
+                out.writeInt(minTrackId);
+                out.writeInt(maxTrackId);
+                out.writeInt(dictionary.size());
+                for (long probeId : dictionary) {
+                    out.writeLong(probeId);
+                }
+                out.writeInt(blocks.size());
+                for (long[] block : blocks) {
+                    out.writeLong(block[0]);
+                    out.writeInt((int) block[1]);
+                }
+                out.writeInt(n);
+                int headerSize = out.size();
+                for (int i = 0; i < n; i++) {
+                    headerSize += 2 + columns[i].name.getBytes("UTF-8").length + 4 + 1 + 8 + 8;
+                }
+                long offset = headerSize;
+                for (int i = 0; i < n; i++) {
+                    out.writeUTF(columns[i].name);
+                    out.writeInt(columns[i].sqlType);
+                    out.writeByte(columns[i].encoding);
+                    out.writeLong(offset);
+                    out.writeLong(parts[i].length());
+                    offset += parts[i].length();
+                }
+                // column data
+                byte[] buf = new byte[65536];
+                for (int i = 0; i < n; i++) {
+                    FileInputStream in = new FileInputStream(parts[i]);
+                    try {
+                        int len;
+                        while ((len = in.read(buf)) > 0) {
+                            out.write(buf, 0, len);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                }
+                out.flush();
+            } finally {
+                out.close();
+            }
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not rename " + tmp + " to " + file);
+            }
+            return rows;
+        } finally {
+            for (int i = 0; i < n; i++) {
+                if (outs[i] != null) {
+                    try {
+                        outs[i].close();
+                    } catch (IOException e) {
+                        // already failing
+                    }
+                }
+                if (parts[i] != null) {
+                    parts[i].delete();
+                }
+            }
+            tmp.delete();
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buf) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Rows with a timestamp within [fromTs, toTs], in the given column order.
+     * 
+     * @param fromTs
+     * @param toTs inclusive
+     * @param names column names, upper case
+     * @return row source, null values for unknown columns
+     */
+    public SimpleRowSource scan(final long fromTs, final long toTs, String[] names) {
+        final ByteBuffer[] data = new ByteBuffer[names.length];
+        final byte[] encodings = new byte[names.length];
+        for (int i = 0; i < names.length; i++) {
+            encodings[i] = -1;
+            for (Column column : columns) {
+                if (column.name.equals(names[i])) {
+                    // private position per scan
+                    data[i] = column.data.duplicate();
+                    encodings[i] = column.encoding;
+                }
+            }
+        }
+        final ByteBuffer time = columns[timeColumn].data.duplicate();
+        return new SimpleRowSource() {
+
+            private int row;
+            private long ts;
+            private boolean done;
+
+            {
+                reset();
+            }
+
+            @Override
+            public Object[] readRow() throws SQLException {
+                while (!done) {
+                    if (row >= rows) {
+                        done = true;
+                        break;
+                    }
+                    if (row % BLOCK_ROWS == 0) {
+                        int block = row / BLOCK_ROWS;
+                        ts = blockTs[block];
+                        time.position(blockOffset[block]);
+                    }
+                    ts += readVarLong(time);
+                    int r = row++;
+                    if (ts < fromTs) {
+                        continue;
+                    }
+                    if (ts > toTs) {
+                        done = true;
+                        break;
+                    }
+                    Object[] values = new Object[data.length];
+                    for (int i = 0; i < data.length; i++) {
+                        switch (encodings[i]) {
+                            case TIME:
+                                values[i] = ts;
+                                break;
+                            case PROBE:
+                                values[i] = dictionary[data[i].getShort(r * 2) & 0xffff];
+                                break;
+                            case INT:
+                                values[i] = data[i].getInt(r * 4);
+                                break;
+                            case LONG:
+                                values[i] = data[i].getLong(r * 8);
+                                break;
+                            default:
+                                values[i] = null;
+                        }
+                    }
+                    return values;
+                }
+                return null;
+            }
+
+            @Override
+            public void close() {
+                done = true;
+            }
+
+            @Override
+            public void reset() {
+                done = fromTs > maxTs || toTs < minTs;
+                // start at the last block beginning before fromTs
+                int block = Arrays.binarySearch(blockTs, fromTs);
+                if (block < 0) {
+                    block = -block - 2;
+                } else {
+                    // equal timestamps may continue the previous block
+                    while (block > 0 && blockTs[block - 1] == fromTs) {
+                        block--;
+                    }
+                    block--;
+                }
+                row = Math.max(0, block) * BLOCK_ROWS;
+            }
+        };
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public long getMinTs() {
+        return minTs;
+    }
+
+    public long getMaxTs() {
+        return maxTs;
+    }
+
+    public int getMinTrackId() {
+        return minTrackId;
+    }
+
+    public int getMaxTrackId() {
+        return maxTrackId;
+    }
+
+    /**
+     * 
+     * @param minTrackId
+     * @param maxTrackId inclusive
+     * @return false if no row of the segment has a track id in the range
+     */
+    public boolean mayHoldTracks(long minTrackId, long maxTrackId) {
+        return rows > 0 && minTrackId <= this.maxTrackId && maxTrackId >= this.minTrackId;
+    }
+
+    /**
+     * 
+     * @return column names and SQL types in stored order
+     */
+    public Map<String, Integer> getColumns() {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (Column column : columns) {
+            result.put(column.name, column.sqlType);
+        }
+        return result;
+    }
+}
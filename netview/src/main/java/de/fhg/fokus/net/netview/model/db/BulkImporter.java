@@ -0,0 +1,537 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+
+import de.fhg.fokus.net.netview.util.MeteredInputStream;
+import de.fhg.fokus.net.netview.util.PtWireCodec;
+import de.fhg.fokus.net.netview.util.PtWireCodec.RecordReader;
+import de.fhg.fokus.net.ptapi.PacketTrackRecord;
+import de.fhg.fokus.net.ptapi.PtBearerInformation;
+import de.fhg.fokus.net.ptapi.PtInterfaceStats;
+import de.fhg.fokus.net.ptapi.PtProbeLocation;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+import de.fhg.fokus.net.worldmap.util.EventSupport;
+
+/**
+ * Bulk import of recorded object streams (Java serialization or binary wire
+ * format). Each file is read by one decode thread, several files are decoded
+ * concurrently. The records of a file are written by a dedicated
+ * {@link TrackIngestPipeline}, i.e. by several batch-insert workers using one
+ * transaction per batch.
+ * 
+ * Every {@link #CHECKPOINT_RECORDS} records the file's pipeline is flushed and
+ * the file position is remembered as committed offset. The offset is also
+ * stored next to the file (file name plus {@link #OFFSET_SUFFIX}) until the
+ * file is imported completely. An import canceled or failed can be resumed
+ * from these offsets, after a restart as well, see {@link #loadOffsets(List)}.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class BulkImporter {
+
+    public static enum EventType {
+
+        /**
+         * EventData: records, bytesRead, totalBytes, recordsPerSecond, eta
+         */
+        PROGRESS,
+        /**
+         * EventData: file, message
+         */
+        FILE_FAILED,
+        /**
+         * EventData: records, elapsedTime, committedOffsets
+         */
+        FINISHED,
+        /**
+         * EventData: records, elapsedTime, committedOffsets
+         */
+        CANCELED
+    }
+
+    public static final class EventData {
+
+        public long records;
+        public long bytesRead;
+        public long totalBytes;
+        public double recordsPerSecond;
+        /**
+         * Estimated remaining time in milliseconds, -1 if unknown.
+         */
+        public long eta = -1;
+        /**
+         * In milliseconds.
+         */
+        public long elapsedTime;
+        public File file;
+        public String message;
+        /**
+         * Offsets up to which files were committed, see {@link BulkImporter#start(List, Map)}
+         */
+        public Map<File, Long> committedOffsets;
+    }
+    /**
+     * Records decoded between two checkpoints
+     */
+    public static final int CHECKPOINT_RECORDS = 50000;
+    /**
+     * Suffix of the file storing the committed offset of an imported file
+     */
+    public static final String OFFSET_SUFFIX = ".offset";
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final EbeanServer eServer;
+    private final FlowKeyDictionary flowKeys;
+    private final TrackPathCache trackPaths;
+    private final TablePartitions partitions;
+    private final ExecutorService executor;
+    private final EventSupport<EventType, EventData> eventSupport;
+    private final int batchSize;
+    private final int numberOfWriters;
+    private final int fileConcurrency;
+    // state of the current import
+    private volatile HotWindow hotWindow;
+    private volatile StatsIndex statsIndex;
+    private volatile ResultCache resultCache;
+    private volatile boolean canceled = false;
+    private volatile CountDownLatch done = new CountDownLatch(0);
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final ConcurrentMap<File, Long> positions = new ConcurrentHashMap<File, Long>();
+    private final ConcurrentMap<File, Long> committedOffsets = new ConcurrentHashMap<File, Long>();
+    private long totalBytes;
+    private long startedAt;
+
+    /**
+     * 
+     * @param eServer
+     * @param flowKeys dictionary assigning the flow key ids of raw track data
+     * @param trackPaths probe paths, the path of each new track id is stored
+     * @param partitions day partitions rows are routed to
+     * @param executor used for event dispatching and the coordinating thread
+     * @param batchSize rows per insert transaction
+     * @param numberOfWriters number of batch-insert workers
+     * @param fileConcurrency number of files decoded concurrently
+     */
+    public BulkImporter(EbeanServer eServer, FlowKeyDictionary flowKeys,
+            TrackPathCache trackPaths, TablePartitions partitions, ExecutorService executor,
+            int batchSize, int numberOfWriters, int fileConcurrency) {
+        this.eServer = eServer;
+        this.flowKeys = flowKeys;
+        this.trackPaths = trackPaths;
+        this.partitions = partitions;
+        this.executor = executor;
+        this.eventSupport = new EventSupport<EventType, EventData>(executor);
+        this.batchSize = Math.max(1, batchSize);
+        this.numberOfWriters = Math.max(1, numberOfWriters);
+        this.fileConcurrency = Math.max(1, fileConcurrency);
+    }
+
+    /**
+     * List importable files of a directory, sorted by name.
+     * 
+     * @param dir
+     * @return files
+     */
+    public static List<File> listFiles(File dir) {
+        File[] files = dir.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && !f.isHidden() && !f.getName().endsWith(OFFSET_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Read the committed offsets stored next to files by an interrupted
+     * import.
+     * 
+     * @param files
+     * @return committed offsets of the files having one
+     */
+    public static Map<File, Long> loadOffsets(List<File> files) {
+        Map<File, Long> offsets = new HashMap<File, Long>();
+        for (File file : files) {
+            File f = offsetFile(file);
+            if (!f.exists()) {
+                continue;
+            }
+            LineNumberReader reader = null;
+            try {
+                reader = new LineNumberReader(new FileReader(f));
+                offsets.put(file, Long.parseLong(reader.readLine().trim()));
+            } catch (Exception e) {
+                LoggerFactory.getLogger(BulkImporter.class).warn("invalid import offset " + f + ": "
+                        + e.getMessage());
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        LoggerFactory.getLogger(BulkImporter.class).debug(e.getMessage());
+                    }
+                }
+            }
+        }
+        return offsets;
+    }
+
+    private static File offsetFile(File file) {
+        return new File(file.getPath() + OFFSET_SUFFIX);
+    }
+
+    /**
+     * Store the committed offset next to the file, remove it once the file is
+     * imported completely.
+     */
+    private void storeOffset(File file, long offset) {
+        File f = offsetFile(file);
+        if (offset >= file.length()) {
+            if (f.exists() && !f.delete()) {
+                logger.warn("could not delete " + f);
+            }
+            return;
+        }
+        File tmp = new File(f.getPath() + ".tmp");
+        try {
+            FileWriter writer = new FileWriter(tmp);
+            try {
+                writer.write(offset + "\n");
+            } finally {
+                writer.close();
+            }
+            if (!tmp.renameTo(f)) {
+                // not atomic on all platforms
+                f.delete();
+                if (!tmp.renameTo(f)) {
+                    throw new IOException("could not rename " + tmp);
+                }
+            }
+        } catch (IOException e) {
+            logger.warn("could not store import offset of " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start importing files in the background.
+     * 
+     * @param files
+     * @param offsets committed offsets of a previous import to resume from, may be null
+     * @throws IllegalStateException if an import is running
+     */
+    public synchronized void start(List<File> files, Map<File, Long> offsets) {
+        if (isRunning()) {
+            throw new IllegalStateException("import already running");
+        }
+        canceled = false;
+        records.set(0);
+        failedBatches.set(0);
+        positions.clear();
+        committedOffsets.clear();
+        totalBytes = 0;
+        final List<File> todo = new ArrayList<File>();
+        for (File file : files) {
+            long offset = 0;
+            if (offsets != null && offsets.containsKey(file)) {
+                offset = offsets.get(file);
+            }
+            committedOffsets.put(file, offset);
+            positions.put(file, offset);
+            totalBytes += file.length();
+            if (offset < file.length()) {
+                todo.add(file);
+            }
+        }
+        startedAt = System.currentTimeMillis();
+        done = new CountDownLatch(1);
+        final ExecutorService decoders = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(fileConcurrency, todo.size())));
+        for (final File file : todo) {
+            decoders.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    importFile(file, committedOffsets.get(file));
+                }
+            });
+        }
+        decoders.shutdown();
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    while (!decoders.awaitTermination(1, TimeUnit.SECONDS)) {
+                        eventSupport.dispatch(EventType.PROGRESS, progress());
+                    }
+                } catch (InterruptedException e) {
+                    canceled = true;
+                    Thread.currentThread().interrupt();
+                }
+                if (failedBatches.get() > 0) {
+                    logger.warn("{} import batches failed", failedBatches.get());
+                }
+                // imported rows are mostly older than the watermarks, so
+                // they would not invalidate cached results
+                ResultCache cache = resultCache;
+                if (cache != null && records.get() > 0) {
+                    cache.clear();
+                }
+                EventData evt = progress();
+                done.countDown();
+                eventSupport.dispatch(canceled ? EventType.CANCELED : EventType.FINISHED, evt);
+            }
+        });
+    }
+
+    /**
+     * Cancel the running import. Records decoded so far are written, committed
+     * offsets are reported with the CANCELED event.
+     */
+    public void cancel() {
+        canceled = true;
+    }
+
+    public boolean isRunning() {
+        return done.getCount() > 0;
+    }
+
+    /**
+     * Wait for the running import to finish.
+     * 
+     * @return number of records imported
+     * @throws InterruptedException
+     */
+    public long awaitCompletion() throws InterruptedException {
+        done.await();
+        return records.get();
+    }
+
+    /**
+     * 
+     * @return offsets up to which files of the current (or last) import were committed
+     */
+    public Map<File, Long> getCommittedOffsets() {
+        return new HashMap<File, Long>(committedOffsets);
+    }
+
+    private EventData progress() {
+        EventData evt = new EventData();
+        evt.records = records.get();
+        for (Long position : positions.values()) {
+            evt.bytesRead += position;
+        }
+        evt.totalBytes = totalBytes;
+        evt.elapsedTime = System.currentTimeMillis() - startedAt;
+        if (evt.elapsedTime > 0) {
+            evt.recordsPerSecond = evt.records * 1000.0 / evt.elapsedTime;
+            double bytesPerMs = evt.bytesRead / (double) evt.elapsedTime;
+            if (bytesPerMs > 0) {
+                evt.eta = (long) ((evt.totalBytes - evt.bytesRead) / bytesPerMs);
+            }
+        }
+        evt.committedOffsets = getCommittedOffsets();
+        return evt;
+    }
+
+    /**
+     * Decode a file starting at offset. Binary files are positioned at the
+     * offset directly; object streams have to be decoded from the beginning,
+     * records before the offset are skipped.
+     */
+    private void importFile(File file, long offset) {
+        TrackIngestPipeline pipeline = new TrackIngestPipeline(eServer, flowKeys, trackPaths, partitions, batchSize, 500,
+                batchSize * numberOfWriters * 4, numberOfWriters);
+        pipeline.setHotWindow(hotWindow);
+        pipeline.setStatsIndex(statsIndex);
+        pipeline.setResultCache(resultCache);
+        pipeline.init();
+        pipeline.start();
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(file);
+            MeteredInputStream in = new MeteredInputStream(new BufferedInputStream(fis, 64 * 1024));
+            RecordReader reader = PtWireCodec.openReader(in);
+            long base = 0;
+            if (offset > in.getCount() && reader.getVersion() > 0) {
+                fis.getChannel().position(offset);
+                in = new MeteredInputStream(new BufferedInputStream(fis, 64 * 1024));
+                reader = new PtWireCodec.Decoder(in, reader.getVersion());
+                base = offset;
+            }
+            logger.debug("importing {} from offset {}", file, offset);
+            long sinceCheckpoint = 0;
+            Object obj;
+            while (!canceled && (obj = reader.read()) != null) {
+                long position = base + in.getCount();
+                if (position <= offset) {
+                    continue;
+                }
+                if (add(pipeline, obj)) {
+                    records.incrementAndGet();
+                }
+                positions.put(file, position);
+                if (++sinceCheckpoint >= CHECKPOINT_RECORDS) {
+                    checkpoint(pipeline, file, position);
+                    sinceCheckpoint = 0;
+                }
+            }
+            if (!canceled) {
+                positions.put(file, file.length());
+                checkpoint(pipeline, file, file.length());
+            } else {
+                checkpoint(pipeline, file, positions.get(file));
+            }
+        } catch (Exception e) {
+            logger.warn("import of " + file + " failed: " + e.getMessage());
+            EventData evt = new EventData();
+            evt.file = file;
+            evt.message = e.getMessage();
+            evt.committedOffsets = getCommittedOffsets();
+            eventSupport.dispatch(EventType.FILE_FAILED, evt);
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    logger.debug(e.getMessage());
+                }
+            }
+            pipeline.stop();
+            failedBatches.addAndGet(pipeline.getFailedBatches());
+        }
+    }
+
+    private void checkpoint(TrackIngestPipeline pipeline, File file, long position) {
+        long failed = pipeline.getFailedBatches();
+        pipeline.flush();
+        if (pipeline.getFailedBatches() == failed) {
+            committedOffsets.put(file, position);
+            storeOffset(file, position);
+        } else {
+            logger.warn("batches failed while importing {}, not advancing committed offset", file);
+        }
+    }
+
+    private boolean add(TrackIngestPipeline pipeline, Object obj) {
+        if (obj instanceof PacketTrackRecord) {
+            pipeline.addPacketTrackRecord((PacketTrackRecord) obj);
+        } else if (obj instanceof PtInterfaceStats) {
+            pipeline.addPtInterfaceStats((PtInterfaceStats) obj);
+        } else if (obj instanceof PtProbeStats) {
+            pipeline.addPtProbeStats((PtProbeStats) obj);
+        } else if (obj instanceof PtProbeLocation) {
+            pipeline.addPtProbeLocation((PtProbeLocation) obj);
+        } else if (obj instanceof PtBearerInformation) {
+            pipeline.addBearerInformation((PtBearerInformation) obj);
+        } else {
+            logger.warn("Unexpected object of class " + obj.getClass() + " in object stream.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 
+     * @param hotWindow in-memory store imported rows are added to, or null
+     */
+    public void setHotWindow(HotWindow hotWindow) {
+        this.hotWindow = hotWindow;
+    }
+
+    /**
+     * 
+     * @param statsIndex time index imported stats are added to, or null
+     */
+    public void setStatsIndex(StatsIndex statsIndex) {
+        this.statsIndex = statsIndex;
+    }
+
+    /**
+     * 
+     * @param resultCache cache whose watermarks imported rows advance and
+     *        which is cleared when an import ends, or null
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public void addEventListener(EventType eventType, EventSupport.EventListener<EventData> lsn) {
+        eventSupport.addEventListener(eventType, lsn);
+    }
+
+    public void removeEventListener(EventSupport.EventListener<EventData> lsn) {
+        eventSupport.removeEventListener(lsn);
+    }
+}
@@ -0,0 +1,441 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fhg.fokus.net.netview.util.PtWireCodec;
+import de.fhg.fokus.net.ptapi.PacketTrackRecord;
+import de.fhg.fokus.net.ptapi.PtBearerInformation;
+import de.fhg.fokus.net.ptapi.PtInterfaceStats;
+import de.fhg.fokus.net.ptapi.PtProbeLocation;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+
+/**
+ * Storage engine appending the received records to a log file and serving
+ * queries from memory like {@link MemoryStorageEngine}. On init the log is
+ * replayed, a torn entry at its end is cut off.
+ * 
+ * <pre>
+ * log   := magic version entry*
+ * entry := length(u32) crc32(u32) frame(length bytes, see {@link PtWireCodec})
+ * </pre>
+ * 
+ * The log is never compacted; records older than the memory capacity stay on
+ * disk only.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class FileStorageEngine extends MemoryStorageEngine {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private static final String LOG_FILE = "records.log";
+    private static final int ENTRY_HEADER = 8;
+    /**
+     * Maximum time in milliseconds appended records stay in the write buffer
+     */
+    private static final long FLUSH_INTERVAL = 1000;
+    // --
+    private final File directory;
+    // writer, guarded by this
+    private DataOutputStream out;
+    private FileOutputStream file;
+    private final ByteBuffer frame = ByteBuffer.allocate(PtWireCodec.MAX_FRAME_LENGTH + 5);
+    private final CRC32 crc = new CRC32();
+    private long lastFlush;
+    /**
+     * Flushes records an idle writer left in the buffer, if a scheduler is set
+     */
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> flusher;
+    private volatile long appendedRecords = 0;
+    private volatile long replayedRecords = 0;
+
+    /**
+     * 
+     * @param directory log directory, created if needed
+     * @param capacity maximum number of track records kept in memory
+     */
+    public FileStorageEngine(File directory, int capacity) {
+        super(capacity);
+        this.directory = directory;
+    }
+
+    /**
+     * 
+     * @param scheduler runs the periodic flush, without one records stay
+     *        buffered until the next append after the flush interval
+     */
+    public synchronized void setScheduler(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Replay the log and open it for appending.
+     */
+    @Override
+    public synchronized void init() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("could not create " + directory);
+        }
+        File log = new File(directory, LOG_FILE);
+        try {
+            long valid = log.exists() ? replay(log) : 0;
+            if (valid < log.length()) {
+                logger.warn("truncating {} at {} of {} bytes", new Object[]{log, valid, log.length()});
+                RandomAccessFile raf = new RandomAccessFile(log, "rw");
+                try {
+                    raf.setLength(valid);
+                } finally {
+                    raf.close();
+                }
+            }
+            file = new FileOutputStream(log, true);
+            out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+            if (valid == 0) {
+                out.write(PtWireCodec.MAGIC);
+                out.write(PtWireCodec.VERSION);
+                flush();
+            }
+            lastFlush = System.currentTimeMillis();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        logger.info("replayed {} records from {}", replayedRecords, log);
+    }
+
+    /**
+     * 
+     * @return length of the valid part of the log
+     */
+    private long replay(File log) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log), 64 * 1024));
+        try {
+            byte[] head = new byte[PtWireCodec.MAGIC.length];
+            try {
+                in.readFully(head);
+                if (!Arrays.equals(head, PtWireCodec.MAGIC) || in.readUnsignedByte() != PtWireCodec.VERSION) {
+                    throw new IOException("unsupported record log " + log);
+                }
+            } catch (EOFException e) {
+                return 0;
+            }
+            long valid = head.length + 1;
+            PtWireCodec.Decoder decoder = new PtWireCodec.Decoder();
+            CRC32 check = new CRC32();
+            byte[] tmp = new byte[PtWireCodec.MAX_FRAME_LENGTH + 5];
+            while (true) {
+                int length;
+                int expected;
+                try {
+                    length = in.readInt();
+                    expected = in.readInt();
+                    if (length <= 0 || length > tmp.length) {
+                        return valid;
+                    }
+                    in.readFully(tmp, 0, length);
+                } catch (EOFException e) {
+                    return valid;
+                }
+                check.reset();
+                check.update(tmp, 0, length);
+                if ((int) check.getValue() != expected) {
+                    return valid;
+                }
+                add(decoder.decode(ByteBuffer.wrap(tmp, 0, length)));
+                valid += ENTRY_HEADER + length;
+                replayedRecords++;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void add(Object obj) {
+        if (obj instanceof PacketTrackRecord) {
+            super.addPacketTrackRecord((PacketTrackRecord) obj);
+        } else if (obj instanceof PtInterfaceStats) {
+            super.addPtInterfaceStats((PtInterfaceStats) obj);
+        } else if (obj instanceof PtProbeStats) {
+            super.addPtProbeStats((PtProbeStats) obj);
+        } else if (obj instanceof PtProbeLocation) {
+            super.addPtProbeLocation((PtProbeLocation) obj);
+        } else if (obj instanceof PtBearerInformation) {
+            super.addBearerInformation((PtBearerInformation) obj);
+        }
+    }
+
+    private synchronized void append(Object record) {
+        frame.clear();
+        PtWireCodec.encode(record, frame);
+        int length = frame.position();
+        crc.reset();
+        crc.update(frame.array(), 0, length);
+        try {
+            out.writeInt(length);
+            out.writeInt((int) crc.getValue());
+            out.write(frame.array(), 0, length);
+            appendedRecords++;
+            long now = System.currentTimeMillis();
+            if (now - lastFlush >= FLUSH_INTERVAL) {
+                out.flush();
+                lastFlush = now;
+            }
+        } catch (IOException e) {
+            logger.warn("could not append record: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void addPacketTrackRecord(PacketTrackRecord record) {
+        append(record);
+        super.addPacketTrackRecord(record);
+    }
+
+    @Override
+    public void addBearerInformation(PtBearerInformation record) {
+        append(record);
+        super.addBearerInformation(record);
+    }
+
+    @Override
+    public void addPtInterfaceStats(PtInterfaceStats sampling) {
+        append(sampling);
+        super.addPtInterfaceStats(sampling);
+    }
+
+    @Override
+    public void addPtProbeStats(PtProbeStats stats) {
+        append(stats);
+        super.addPtProbeStats(stats);
+    }
+
+    @Override
+    public void addPtProbeLocation(PtProbeLocation location) {
+        append(location);
+        super.addPtProbeLocation(location);
+    }
+
+    /**
+     * Locations set by the user are logged as probe location records.
+     */
+    @Override
+    public void saveProbeLocation(ProbeLocation location) {
+        append(toRecord(location));
+        flush();
+        super.saveProbeLocation(location);
+    }
+
+    private static PtProbeLocation toRecord(ProbeLocation location) {
+        PtProbeLocation record = new PtProbeLocation();
+        record.oid = location.getOid();
+        record.observationTimeMilliseconds = location.getTimestamp();
+        record.latitude = location.getLatitude();
+        record.longitude = location.getLongitude();
+        record.probeName = location.getName();
+        record.probeLocationName = location.getLocationName();
+        record.sourceIpv4Address = parseAddress(location.getAddress());
+        return record;
+    }
+
+    /**
+     * 
+     * @param address dotted quad
+     * @return address or 0.0.0.0 if it is not a dotted quad, no name lookup
+     *         is done
+     */
+    private static Inet4Address parseAddress(String address) {
+        byte[] addr = new byte[4];
+        String[] parts = address == null ? new String[0] : address.split("\\.");
+        if (parts.length == 4) {
+            try {
+                for (int i = 0; i < 4; i++) {
+                    int b = Integer.parseInt(parts[i]);
+                    if (b < 0 || b > 255) {
+                        throw new NumberFormatException(parts[i]);
+                    }
+                    addr[i] = (byte) b;
+                }
+            } catch (NumberFormatException e) {
+                Arrays.fill(addr, (byte) 0);
+            }
+        }
+        try {
+            return (Inet4Address) InetAddress.getByAddress(addr);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write the buffered records and force them to disk.
+     */
+    @Override
+    public synchronized void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+            file.getChannel().force(false);
+            lastFlush = System.currentTimeMillis();
+        } catch (IOException e) {
+            logger.warn("could not flush record log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Flush the records left in the write buffer every flush interval.
+     */
+    @Override
+    public synchronized void start() {
+        super.start();
+        if (scheduler == null || flusher != null) {
+            return;
+        }
+        flusher = scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                synchronized (FileStorageEngine.this) {
+                    if (out != null && System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+                        flush();
+                    }
+                }
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (flusher != null) {
+            flusher.cancel(false);
+            flusher = null;
+        }
+        if (out == null) {
+            return;
+        }
+        flush();
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * Empty the log as well, the kept bearer information and probe locations
+     * are logged again.
+     */
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        try {
+            out.flush();
+            file.getChannel().truncate(PtWireCodec.MAGIC.length + 1);
+        } catch (IOException e) {
+            logger.warn("could not truncate record log: " + e.getMessage());
+        }
+        for (BearerInformation bi : getBearerInformation()) {
+            PtBearerInformation record = new PtBearerInformation();
+            record.ruleFlag = bi.getRuleFlag();
+            record.ruleId = bi.getRuleId();
+            record.apn = bi.getApn();
+            record.ruleName = bi.getRuleName();
+            record.imsi = bi.getImsi();
+            record.maxDl = bi.getMaximumDownload();
+            record.maxUl = bi.getMaximumUpload();
+            record.guaDl = bi.getGuaranteedDownload();
+            record.guaUl = bi.getGuaranteedUpload();
+            record.apnDl = bi.getApnDownload();
+            record.apnUl = bi.getApnUpload();
+            record.srcIp = parseAddress(bi.getSourceAddress());
+            record.dstIp = parseAddress(bi.getDestinationAddress());
+            record.srcPort = bi.getSourcePort();
+            record.dstPort = bi.getDestinationPort();
+            record.observationTimeMilliseconds = bi.getTimestamp();
+            append(record);
+        }
+        for (ProbeLocation location : getProbeLocations()) {
+            append(toRecord(location));
+        }
+        flush();
+    }
+
+    /**
+     * 
+     * @return number of records appended since init
+     */
+    public long getAppendedRecords() {
+        return appendedRecords;
+    }
+
+    /**
+     * 
+     * @return number of records read from the log on init
+     */
+    public long getReplayedRecords() {
+        return replayedRecords;
+    }
+}
@@ -0,0 +1,183 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.net.InetAddress;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+import de.fhg.fokus.net.ptapi.PacketTrackRecord;
+
+/**
+ * Dictionary entry of a flow 5-tuple. Raw track data only references the
+ * entry id instead of repeating the tuple on every hop.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+@Entity
+public class FlowKey {
+
+    public FlowKey() {
+    }
+
+    public FlowKey(String sourceAddress, int sourcePort, String destinationAddress,
+            int destinationPort, short protocolIdentifier) {
+        this.sourceAddress = sourceAddress;
+        this.sourcePort = sourcePort;
+        this.destinationAddress = destinationAddress;
+        this.destinationPort = destinationPort;
+        this.protocolIdentifier = protocolIdentifier;
+    }
+
+    public FlowKey(PacketTrackRecord record) {
+        // Not all records contain source and destination addresses
+        this(address(record.sourceAddress, "unkown source"), record.sourcePort,
+                address(record.destinationAddress, "unkown destination"),
+                record.destinationPort, record.protocolIdentifier);
+    }
+
+    private static String address(InetAddress address, String unknown) {
+        return address != null ? address.getHostAddress() : unknown;
+    }
+    /**
+     * Unique Id
+     */
+    @Id
+    private int uid;
+    @Column
+    private String sourceAddress;
+    @Column
+    private int sourcePort;
+    @Column
+    private String destinationAddress;
+    @Column
+    private int destinationPort;
+    @Column
+    private short protocolIdentifier;
+
+    public int getUid() {
+        return uid;
+    }
+
+    public void setUid(int uid) {
+        this.uid = uid;
+    }
+
+    public String getSourceAddress() {
+        return sourceAddress;
+    }
+
+    public void setSourceAddress(String sourceAddress) {
+        this.sourceAddress = sourceAddress;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    public void setSourcePort(int sourcePort) {
+        this.sourcePort = sourcePort;
+    }
+
+    public String getDestinationAddress() {
+        return destinationAddress;
+    }
+
+    public void setDestinationAddress(String destinationAddress) {
+        this.destinationAddress = destinationAddress;
+    }
+
+    public int getDestinationPort() {
+        return destinationPort;
+    }
+
+    public void setDestinationPort(int destinationPort) {
+        this.destinationPort = destinationPort;
+    }
+
+    public short getProtocolIdentifier() {
+        return protocolIdentifier;
+    }
+
+    public void setProtocolIdentifier(short protocolIdentifier) {
+        this.protocolIdentifier = protocolIdentifier;
+    }
+
+    /**
+     * Flow keys are equal if their tuples are, the id is not compared.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FlowKey)) {
+            return false;
+        }
+        FlowKey other = (FlowKey) obj;
+        return sourcePort == other.sourcePort
+                && destinationPort == other.destinationPort
+                && protocolIdentifier == other.protocolIdentifier
+                && (sourceAddress == null ? other.sourceAddress == null
+                : sourceAddress.equals(other.sourceAddress))
+                && (destinationAddress == null ? other.destinationAddress == null
+                : destinationAddress.equals(other.destinationAddress));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 17;
+        hash = 31 * hash + (sourceAddress == null ? 0 : sourceAddress.hashCode());
+        hash = 31 * hash + sourcePort;
+        hash = 31 * hash + (destinationAddress == null ? 0 : destinationAddress.hashCode());
+        hash = 31 * hash + destinationPort;
+        hash = 31 * hash + protocolIdentifier;
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s:%d -> %s:%d (%d)", sourceAddress, sourcePort,
+                destinationAddress, destinationPort, protocolIdentifier);
+    }
+}
@@ -0,0 +1,114 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+
+/**
+ * Assigns compact ids to flow 5-tuples. Known keys are answered from memory,
+ * new keys are written in their own transaction so that an id handed out is
+ * never lost by a rolled back ingest batch.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+public class FlowKeyDictionary {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // --
+    private final EbeanServer eServer;
+    private final ConcurrentMap<FlowKey, Integer> ids = new ConcurrentHashMap<FlowKey, Integer>();
+
+    public FlowKeyDictionary(EbeanServer eServer) {
+        this.eServer = eServer;
+    }
+
+    /**
+     * Load all flow keys stored in the database.
+     */
+    public void load() {
+        List<FlowKey> keys = eServer.find(FlowKey.class).findList();
+        for (FlowKey key : keys) {
+            ids.put(key, key.getUid());
+        }
+        logger.debug("loaded {} flow keys", keys.size());
+    }
+
+    /**
+     * Get the id of a flow key, storing the key if it is new.
+     * 
+     * @param key
+     * @return flow key id
+     */
+    public int getId(FlowKey key) {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(key);
+            if (id != null) {
+                return id;
+            }
+            FlowKey entry = new FlowKey(key.getSourceAddress(), key.getSourcePort(),
+                    key.getDestinationAddress(), key.getDestinationPort(),
+                    key.getProtocolIdentifier());
+            entry.setUid(((Number) eServer.nextId(FlowKey.class)).intValue());
+            Transaction txn = eServer.createTransaction();
+            try {
+                eServer.save(entry, txn);
+                txn.commit();
+            } finally {
+                txn.end();
+            }
+            ids.put(entry, entry.getUid());
+            return entry.getUid();
+        }
+    }
+}
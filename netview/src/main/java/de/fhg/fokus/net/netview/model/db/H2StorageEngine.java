@@ -0,0 +1,737 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.Transaction;
+
+import de.fhg.fokus.net.ptapi.PacketTrackRecord;
+import de.fhg.fokus.net.ptapi.PtBearerInformation;
+import de.fhg.fokus.net.ptapi.PtInterfaceStats;
+import de.fhg.fokus.net.ptapi.PtProbeLocation;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+
+/**
+ * Storage engine on the H2 database. Records are written by an ingest
+ * pipeline into day partitions and rollups; queries read through the query
+ * server, recent ranges are answered from the hot window and latest stats
+ * from the stats index if set.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class H2StorageEngine implements StorageEngine {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // --
+    private static final String SCAN_TRACKS = "SELECT track_id, "
+            + "SUM(volume), SUM(delay_sum), MIN(min_start), MAX(max_stop) "
+            + "FROM track_rollup WHERE resolution = ? AND bucket >= ? "
+            + "AND bucket < ? GROUP BY bucket, track_id";
+    private static final int FETCH_SIZE = 1000;
+    /**
+     * Buckets aggregated per track scan statement. H2 runs one statement at a
+     * time even with MVCC, a scan over a whole preload window would stall
+     * ingest for seconds.
+     */
+    private static final long SCAN_BUCKETS = 64;
+    /**
+     * Track window lists are padded to one of these sizes, so a few statement
+     * texts cover all batches
+     */
+    private static final int[] TRACK_LIST_SIZES = {1, 8, 64, 500};
+    private static final String BEARERS = "SELECT r.track_id, r.rule_id, r.window_start, r.volume, "
+            + "b.uid, b.apn, b.rule_name, b.imsi, b.qci, b.maximum_download, b.maximum_upload, "
+            + "b.guaranteed_download, b.guaranteed_upload, b.apn_download, b.apn_upload, "
+            + "b.source_address, b.destination_address, b.source_port, b.destination_port "
+            + "FROM (SELECT w.track_id, rule_id, w.lo AS window_start, count(*) AS volume "
+            + "FROM {from} JOIN ({windows}) w ON raw_track_data.track_id = w.track_id "
+            + "AND ts BETWEEN w.lo AND w.hi WHERE raw_track_data.track_id IN ({tracks}) "
+            + "AND ts BETWEEN ? AND ? GROUP BY w.track_id, rule_id, w.lo) r "
+            + "JOIN bearer_information b ON r.rule_id = b.rule_id WHERE b.rule_flag = 1 "
+            + "ORDER BY r.track_id, r.window_start, b.uid";
+    private static final String FLOWS = "SELECT f.track_id, f.rule_id, f.window_start, f.volume, "
+            + "f.flow_key, k.source_address, k.destination_address, k.source_port, "
+            + "k.destination_port FROM (SELECT w.track_id, rule_id, flow_key, "
+            + "w.lo AS window_start, count(*) AS volume FROM {from} JOIN ({windows}) w "
+            + "ON raw_track_data.track_id = w.track_id AND ts BETWEEN w.lo AND w.hi "
+            + "WHERE raw_track_data.track_id IN ({tracks}) AND ts BETWEEN ? AND ? "
+            + "GROUP BY w.track_id, rule_id, flow_key, w.lo) f "
+            + "JOIN flow_key k ON k.uid = f.flow_key ORDER BY f.track_id, f.window_start, f.flow_key";
+    private static final String WINDOW = "SELECT CAST(? AS BIGINT) AS track_id, "
+            + "CAST(? AS BIGINT) AS lo, CAST(? AS BIGINT) AS hi";
+    private static final String HOP_DELAYS = "SELECT hop_number, ts, packet_id, delay FROM {from} "
+            + "WHERE ts BETWEEN ? AND ? AND track_id = ?";
+    /**
+     * Average delay per bucket of compacted hops, a key may be spread over
+     * several rows
+     */
+    private static final String ROLLUP_HOP_DELAYS = "SELECT hop_number, bucket, "
+            + "SUM(delay_sum) / SUM(volume) FROM hop_rollup WHERE track_id = ? "
+            + "AND bucket BETWEEN ? AND ? GROUP BY hop_number, bucket ORDER BY hop_number, bucket";
+    private static final String TRACK_RECORDS = "SELECT uid FROM {from} "
+            + "WHERE track_id = ? AND start_ts BETWEEN ? AND ?";
+    private static final String NEXT_TRACK = "SELECT MIN(start_ts) FROM {from} WHERE start_ts > ?";
+    private static final String PREV_TRACK = "SELECT MAX(start_ts) FROM {from} WHERE start_ts < ?";
+    private static final String LOCATIONS = "SELECT oid, latitude, longitude, name, "
+            + "location_name, address FROM probe_location ORDER BY uid";
+    private final EbeanServer eServer;
+    private final EbeanServer queryServer;
+    private final TablePartitions partitions;
+    private final TrackPathCache trackPaths;
+    private final TrackIngestPipeline ingest;
+    private final HotQuery[] bearerQueries = new HotQuery[TRACK_LIST_SIZES.length];
+    private final HotQuery[] flowQueries = new HotQuery[TRACK_LIST_SIZES.length];
+    /**
+     * Hop delay queries by filter: none, rule, flow key, both
+     */
+    private final HotQuery[] hopDelayQueries = new HotQuery[4];
+    private final HotQuery rollupHopDelaysQuery;
+    private final HotQuery trackRecordsQuery;
+    private final HotQuery nextTrackQuery;
+    private final HotQuery prevTrackQuery;
+    /**
+     * Recent tracks and hops, if set
+     */
+    private volatile HotWindow hotWindow;
+    /**
+     * Latest stats lookups, if set
+     */
+    private volatile StatsIndex statsIndex;
+
+    /**
+     * A running track scan.
+     */
+    private static final class Scan {
+
+        PreparedStatement stmt;
+        volatile boolean canceled;
+    }
+    private final Set<Scan> scans = new HashSet<Scan>();
+
+    /**
+     * Reads the rows of a query into entities, in query order.
+     */
+    private abstract static class ListReader<T> implements HotQuery.RowReader {
+
+        final List<T> rows = new ArrayList<T>();
+
+        @Override
+        public void read(ResultSet rs) throws SQLException {
+            rows.add(row(rs));
+        }
+
+        abstract T row(ResultSet rs) throws SQLException;
+    }
+
+    private static final class BearerReader extends ListReader<BearerVolume> {
+
+        @Override
+        BearerVolume row(ResultSet rs) throws SQLException {
+            BearerVolume row = new BearerVolume();
+            row.trackId = rs.getLong(1);
+            row.ruleId = rs.getLong(2);
+            row.from = rs.getLong(3);
+            row.volume = rs.getInt(4);
+            row.uid = rs.getLong(5);
+            row.apn = rs.getString(6);
+            row.ruleName = rs.getString(7);
+            row.imsi = rs.getString(8);
+            row.qci = rs.getLong(9);
+            row.maximumDownload = rs.getLong(10);
+            row.maximumUpload = rs.getLong(11);
+            row.guaranteedDownload = rs.getLong(12);
+            row.guaranteedUpload = rs.getLong(13);
+            row.apnDownload = rs.getLong(14);
+            row.apnUpload = rs.getLong(15);
+            row.sourceAddress = rs.getString(16);
+            row.destinationAddress = rs.getString(17);
+            row.sourcePort = rs.getInt(18);
+            row.destinationPort = rs.getInt(19);
+            return row;
+        }
+    }
+
+    private static final class FlowReader extends ListReader<FlowVolume> {
+
+        @Override
+        FlowVolume row(ResultSet rs) throws SQLException {
+            FlowVolume row = new FlowVolume();
+            row.trackId = rs.getLong(1);
+            row.ruleId = rs.getLong(2);
+            row.from = rs.getLong(3);
+            row.volume = rs.getInt(4);
+            row.flowKey = rs.getInt(5);
+            row.sourceAddress = rs.getString(6);
+            row.destinationAddress = rs.getString(7);
+            row.sourcePort = rs.getInt(8);
+            row.destinationPort = rs.getInt(9);
+            return row;
+        }
+    }
+
+    /**
+     * Reads a single nullable long.
+     */
+    private static final class LongReader implements HotQuery.RowReader {
+
+        long value;
+        boolean found;
+
+        @Override
+        public void read(ResultSet rs) throws SQLException {
+            value = rs.getLong(1);
+            found = !rs.wasNull();
+        }
+    }
+
+    /**
+     * 
+     * @param eServer server probe locations are saved and tables purged with
+     * @param queryServer server tracks, hops and stats are read with
+     * @param partitions day partitions of the track and stats tables
+     * @param trackPaths probe paths of the tracks
+     * @param ingest pipeline new records are forwarded to
+     */
+    public H2StorageEngine(EbeanServer eServer, EbeanServer queryServer, TablePartitions partitions,
+            TrackPathCache trackPaths, TrackIngestPipeline ingest) {
+        this.eServer = eServer;
+        this.queryServer = queryServer;
+        this.partitions = partitions;
+        this.trackPaths = trackPaths;
+        this.ingest = ingest;
+        for (int i = 0; i < TRACK_LIST_SIZES.length; i++) {
+            StringBuilder tracks = new StringBuilder("?");
+            StringBuilder windows = new StringBuilder(WINDOW);
+            for (int j = 1; j < TRACK_LIST_SIZES[i]; j++) {
+                tracks.append(", ?");
+                windows.append(" UNION ALL ").append(WINDOW);
+            }
+            bearerQueries[i] = new HotQuery(queryServer, BEARERS.replace("{tracks}", tracks)
+                    .replace("{windows}", windows), FETCH_SIZE);
+            flowQueries[i] = new HotQuery(queryServer, FLOWS.replace("{tracks}", tracks)
+                    .replace("{windows}", windows), FETCH_SIZE);
+        }
+        for (int i = 0; i < hopDelayQueries.length; i++) {
+            hopDelayQueries[i] = new HotQuery(queryServer, HOP_DELAYS
+                    + ((i & 1) != 0 ? " AND rule_id = ?" : "")
+                    + ((i & 2) != 0 ? " AND flow_key = ?" : "")
+                    + " ORDER BY hop_number, ts", FETCH_SIZE);
+        }
+        this.rollupHopDelaysQuery = new HotQuery(queryServer, ROLLUP_HOP_DELAYS, FETCH_SIZE);
+        this.trackRecordsQuery = new HotQuery(queryServer, TRACK_RECORDS, 0);
+        this.nextTrackQuery = new HotQuery(queryServer, NEXT_TRACK, 0);
+        this.prevTrackQuery = new HotQuery(queryServer, PREV_TRACK, 0);
+    }
+
+    /**
+     * 
+     * @param hotWindow in-memory store of recent rows queried before the
+     *        database, or null
+     */
+    public void setHotWindow(HotWindow hotWindow) {
+        this.hotWindow = hotWindow;
+    }
+
+    /**
+     * 
+     * @param statsIndex time index answering latest stats lookups, or null to
+     *        query the database
+     */
+    public void setStatsIndex(StatsIndex statsIndex) {
+        this.statsIndex = statsIndex;
+    }
+
+    @Override
+    public void init() {
+        // tables, partitions and the ingest pipeline are set up by NetViewDB
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+        cancelScans();
+    }
+
+    @Override
+    public void flush() {
+        ingest.flush();
+    }
+
+    @Override
+    public void addPacketTrackRecord(PacketTrackRecord record) {
+        ingest.addPacketTrackRecord(record);
+    }
+
+    @Override
+    public void addBearerInformation(PtBearerInformation record) {
+        ingest.addBearerInformation(record);
+    }
+
+    @Override
+    public void addPtInterfaceStats(PtInterfaceStats sampling) {
+        ingest.addPtInterfaceStats(sampling);
+    }
+
+    @Override
+    public void addPtProbeStats(PtProbeStats probeStats) {
+        ingest.addPtProbeStats(probeStats);
+    }
+
+    @Override
+    public void addPtProbeLocation(PtProbeLocation location) {
+        ingest.addPtProbeLocation(location);
+    }
+
+    /**
+     * Scan the track rollups of a range, or the hot window if it covers the
+     * range. Rows are read from a cursor on a connection of its own.
+     */
+    @Override
+    public long scanTracks(long resolution, long from, long to, TrackVisitor visitor) {
+        long visited = 0;
+        HotWindow window = hotWindow;
+        List<long[]> recent = window != null ? window.rollupTracks(resolution, from, to) : null;
+        if (recent != null) {
+            for (long[] row : recent) {
+                visited++;
+                if (!visitor.visit((int) row[0], row[1], row[2], row[3], row[4])) {
+                    break;
+                }
+            }
+            return visited;
+        }
+        Scan scan = new Scan();
+        Transaction txn = queryServer.createTransaction();
+        try {
+            // rollups are bucketed by track start
+            scan.stmt = txn.getConnection().prepareStatement(SCAN_TRACKS);
+            synchronized (scans) {
+                scans.add(scan);
+            }
+            scan.stmt.setFetchSize(FETCH_SIZE);
+            scan.stmt.setLong(1, resolution);
+            boolean more = true;
+            long step = resolution * SCAN_BUCKETS;
+            for (long lo = from; more && !scan.canceled && lo < to; lo = to - lo > step ? lo + step : to) {
+                scan.stmt.setLong(2, lo);
+                scan.stmt.setLong(3, to - lo > step ? lo + step : to);
+                ResultSet rs = scan.stmt.executeQuery();
+                while (!scan.canceled && rs.next()) {
+                    visited++;
+                    if (!visitor.visit(rs.getInt(1), rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getLong(5))) {
+                        more = false;
+                        break;
+                    }
+                }
+                rs.close();
+            }
+        } catch (SQLException e) {
+            if (!scan.canceled) {
+                throw new RuntimeException(e);
+            }
+        } finally {
+            if (scan.stmt != null) {
+                synchronized (scans) {
+                    scans.remove(scan);
+                }
+                try {
+                    scan.stmt.close();
+                } catch (SQLException e) {
+                    logger.debug(e.getMessage());
+                }
+            }
+            txn.end();
+        }
+        return visited;
+    }
+
+    @Override
+    public void cancelScans() {
+        synchronized (scans) {
+            for (Scan scan : scans) {
+                scan.canceled = true;
+                try {
+                    scan.stmt.cancel();
+                } catch (SQLException e) {
+                    logger.debug(e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public long[] getTrackPath(int trackId) {
+        return trackPaths.get(trackId);
+    }
+
+    @Override
+    public List<Long> findTrackRecords(long trackId, long from, long to) {
+        final List<Long> records = new ArrayList<Long>();
+        trackRecordsQuery.execute(partitions.from(TablePartitions.TRACK_DATA, from, to),
+                new HotQuery.RowReader() {
+
+                    @Override
+                    public void read(ResultSet rs) throws SQLException {
+                        records.add(rs.getLong(1));
+                    }
+                }, trackId, from, to);
+        return records;
+    }
+
+    @Override
+    public long nextTrackStart(long ts) {
+        // partitions are ordered by time, the first hit is the next track
+        LongReader next = new LongReader();
+        for (String table : partitions.list(TablePartitions.TRACK_DATA, ts, Long.MAX_VALUE)) {
+            nextTrackQuery.execute(table, next, ts);
+            if (next.found) {
+                return next.value;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public long previousTrackStart(long ts) {
+        LongReader prev = new LongReader();
+        List<String> tables = partitions.list(TablePartitions.TRACK_DATA, Long.MIN_VALUE, ts);
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            prevTrackQuery.execute(tables.get(i), prev, ts);
+            if (prev.found) {
+                return prev.value;
+            }
+        }
+        return Long.MIN_VALUE;
+    }
+
+    @Override
+    public List<BearerVolume> findBearerVolumes(long[] trackIds, long[] from, long[] to) {
+        BearerReader reader = new BearerReader();
+        queryTracks(bearerQueries, reader, trackIds, from, to);
+        return reader.rows;
+    }
+
+    @Override
+    public List<FlowVolume> findFlowVolumes(long[] trackIds, long[] from, long[] to) {
+        FlowReader reader = new FlowReader();
+        queryTracks(flowQueries, reader, trackIds, from, to);
+        return reader.rows;
+    }
+
+    /**
+     * Run a track window query in batches of at most the largest list size,
+     * in order of the track ids and window starts.
+     */
+    private void queryTracks(HotQuery[] queries, HotQuery.RowReader reader, long[] trackIds,
+            long[] from, long[] to) {
+        long[][] windows = new long[trackIds.length][];
+        for (int i = 0; i < windows.length; i++) {
+            windows[i] = new long[]{trackIds[i], from[i], to[i]};
+        }
+        Arrays.sort(windows, new Comparator<long[]>() {
+
+            @Override
+            public int compare(long[] a, long[] b) {
+                if (a[0] != b[0]) {
+                    return a[0] < b[0] ? -1 : 1;
+                }
+                return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+            }
+        });
+        int max = TRACK_LIST_SIZES[TRACK_LIST_SIZES.length - 1];
+        for (int offset = 0; offset < windows.length; offset += max) {
+            int n = Math.min(max, windows.length - offset);
+            int size = 0;
+            while (TRACK_LIST_SIZES[size] < n) {
+                size++;
+            }
+            // windows padded with empty ones, track ids padded with the last
+            // one, time range of all windows
+            int length = TRACK_LIST_SIZES[size];
+            long[] params = new long[4 * length + 2];
+            long lo = Long.MAX_VALUE;
+            long hi = Long.MIN_VALUE;
+            long minTrackId = Long.MAX_VALUE;
+            long maxTrackId = Long.MIN_VALUE;
+            for (int k = 0; k < length; k++) {
+                long[] window = k < n ? windows[offset + k] : new long[]{-1, 0, -1};
+                params[3 * k] = window[0];
+                params[3 * k + 1] = window[1];
+                params[3 * k + 2] = window[2];
+                params[3 * length + k] = windows[offset + Math.min(k, n - 1)][0];
+                if (k < n) {
+                    lo = Math.min(lo, window[1]);
+                    hi = Math.max(hi, window[2]);
+                    minTrackId = Math.min(minTrackId, window[0]);
+                    maxTrackId = Math.max(maxTrackId, window[0]);
+                }
+            }
+            params[4 * length] = lo;
+            params[4 * length + 1] = hi;
+            queries[size].execute(partitions.from(TablePartitions.RAW_TRACK_DATA, lo, hi, minTrackId, maxTrackId),
+                    reader, params);
+        }
+    }
+
+    /**
+     * Recent ranges are answered from the hot window. Without a rule or flow
+     * key filter, hops compacted by the retention are read from the hop
+     * rollups: one row per bucket with the average delay and packet id -1.
+     */
+    @Override
+    public SortedMap<Integer, List<long[]>> findHopDelays(long trackId, long ruleId, long flowKey,
+            long from, long to) {
+        HotWindow window = hotWindow;
+        SortedMap<Integer, List<long[]>> result = window != null
+                ? window.hopDelays(trackId, ruleId, flowKey, from, to) : null;
+        if (result != null) {
+            return result;
+        }
+        final SortedMap<Integer, List<long[]>> hops = new TreeMap<Integer, List<long[]>>();
+        if (ruleId == -1 && flowKey == -1) {
+            // compacted days are older than the raw hops left
+            rollupHopDelaysQuery.execute("hop_rollup", new HotQuery.RowReader() {
+
+                @Override
+                public void read(ResultSet rs) throws SQLException {
+                    List<long[]> rows = hops.get(rs.getInt(1));
+                    if (rows == null) {
+                        rows = new ArrayList<long[]>();
+                        hops.put(rs.getInt(1), rows);
+                    }
+                    rows.add(new long[]{rs.getLong(2), -1, rs.getLong(3)});
+                }
+            }, trackId, TrackRollup.bucketOf(from,
+                    TimeUnit.MILLISECONDS.toMicros(RetentionManager.COMPACTION_RESOLUTION)), to);
+        }
+        int filter = (ruleId != -1 ? 1 : 0) | (flowKey != -1 ? 2 : 0);
+        long[] params = new long[3 + Integer.bitCount(filter)];
+        params[0] = from;
+        params[1] = to;
+        params[2] = trackId;
+        int i = 3;
+        if (ruleId != -1) {
+            params[i++] = ruleId;
+        }
+        if (flowKey != -1) {
+            params[i] = flowKey;
+        }
+        hopDelayQueries[filter].execute(partitions.from(TablePartitions.RAW_TRACK_DATA, from, to, trackId, trackId),
+                new HotQuery.RowReader() {
+
+                    private int hop = -1;
+                    private List<long[]> rows;
+
+                    @Override
+                    public void read(ResultSet rs) throws SQLException {
+                        int hopNumber = rs.getInt(1);
+                        if (rows == null || hopNumber != hop) {
+                            hop = hopNumber;
+                            rows = hops.get(hopNumber);
+                            if (rows == null) {
+                                rows = new ArrayList<long[]>();
+                                hops.put(hopNumber, rows);
+                            }
+                        }
+                        rows.add(new long[]{rs.getLong(2), rs.getLong(3), rs.getLong(4)});
+                    }
+                }, params);
+        return hops;
+    }
+
+    @Override
+    public InterfaceStats getLatestInterfaceStats(long oid, long ts) {
+        StatsIndex index = statsIndex;
+        if (index != null) {
+            return index.getLatestInterfaceStats(oid, ts);
+        }
+        SqlRow row = findLatestStats(TablePartitions.INTERFACE_STATS, oid, ts);
+        if (row == null) {
+            return null;
+        }
+        InterfaceStats r = new InterfaceStats();
+        r.setUid(row.getLong("uid"));
+        r.setOid(row.getLong("oid"));
+        r.setTimestamp(row.getLong("timestamp"));
+        r.setSamplingSize(row.getLong("sampling_size"));
+        r.setPacketDeltaCount(row.getLong("packet_delta_count"));
+        r.setPcapStatRecv(row.getLong("pcap_stat_recv"));
+        r.setPcapStatDrop(row.getLong("pcap_stat_drop"));
+        r.setInterfaceName(row.getString("interface_name"));
+        r.setInterfaceDescription(row.getString("interface_description"));
+        return r;
+    }
+
+    @Override
+    public ProbeStats getLatestProbeStats(long oid, long ts) {
+        StatsIndex index = statsIndex;
+        if (index != null) {
+            return index.getLatestProbeStats(oid, ts);
+        }
+        SqlRow row = findLatestStats(TablePartitions.PROBE_STATS, oid, ts);
+        if (row == null) {
+            return null;
+        }
+        ProbeStats r = new ProbeStats();
+        r.setUid(row.getLong("uid"));
+        r.setOid(row.getLong("oid"));
+        r.setTimestamp(row.getLong("timestamp"));
+        r.setSystemCpuIdle(row.getFloat("system_cpu_idle"));
+        r.setSystemMemFree(row.getLong("system_mem_free"));
+        r.setProcessCpuUser(row.getFloat("process_cpu_user"));
+        r.setProcessCpuSys(row.getFloat("process_cpu_sys"));
+        r.setProcessMemVzs(row.getLong("process_mem_vzs"));
+        r.setProcessMemRss(row.getLong("process_mem_rss"));
+        return r;
+    }
+
+    /**
+     * Find the latest stats row of a probe before ts, searching the
+     * partitions backwards from the day of ts.
+     * 
+     * @param table stats table
+     * @param oid probe id
+     * @param ts unix timestamp in milliseconds
+     * @return row or null if there is none
+     */
+    private SqlRow findLatestStats(String table, long oid, long ts) {
+        List<String> tables = partitions.list(table, Long.MIN_VALUE, ts);
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            SqlRow row = queryServer.createSqlQuery("SELECT * FROM " + tables.get(i)
+                    + " WHERE oid = :oid AND timestamp < :ts ORDER BY timestamp DESC LIMIT 1")
+                    .setParameter("oid", oid)
+                    .setParameter("ts", ts).findUnique();
+            if (row != null) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public ProbeLocation getLatestProbeLocation(long oid, long ts) {
+        StatsIndex index = statsIndex;
+        if (index != null) {
+            return index.getLatestProbeLocation(oid, ts);
+        }
+        return queryServer.find(ProbeLocation.class).where().lt("timestamp", ts).eq("oid", oid)
+                .orderBy("timestamp desc").setMaxRows(1).findUnique();
+    }
+
+    @Override
+    public void scanLocations(LocationVisitor visitor) {
+        Transaction txn = queryServer.createTransaction();
+        PreparedStatement stmt = null;
+        try {
+            stmt = txn.getConnection().prepareStatement(LOCATIONS);
+            stmt.setFetchSize(FETCH_SIZE);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                visitor.visit(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4),
+                        rs.getString(5), rs.getString(6));
+            }
+            rs.close();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    logger.debug(e.getMessage());
+                }
+            }
+            txn.end();
+        }
+    }
+
+    @Override
+    public void saveProbeLocation(ProbeLocation location) {
+        eServer.save(location);
+    }
+
+    /**
+     * Drop the track and stats partitions, the rollups and the track paths.
+     */
+    @Override
+    public void clear() {
+        partitions.dropAll(TablePartitions.RAW_TRACK_DATA);
+        partitions.dropAll(TablePartitions.TRACK_DATA);
+        partitions.dropAll(TablePartitions.INTERFACE_STATS);
+        partitions.dropAll(TablePartitions.PROBE_STATS);
+        // no foreign keys point to these tables, truncating them does not
+        // log every row like a delete would
+        for (String table : new String[]{"TRACK_ROLLUP", "HOP_ROLLUP", "INTERFACE_STATS_ROLLUP", "TRACK_PATH"}) {
+            eServer.createSqlUpdate("truncate table " + table).execute();
+        }
+        trackPaths.clear();
+        HotWindow window = hotWindow;
+        if (window != null) {
+            window.reset(Long.MIN_VALUE);
+        }
+        StatsIndex index = statsIndex;
+        if (index != null) {
+            index.clear();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Hop delays of raw track data within one bucket, written when expired raw
+ * track data is compacted. A (bucket, track id, hop) key may be spread over
+ * several rows, readers sum them up.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+@Entity
+public class HopRollup {
+
+    /**
+     * Unique Id
+     */
+    @Id
+    private int uid;
+    /**
+     * Bucket width in database time units (microseconds)
+     */
+    @Column
+    private long resolution;
+    /**
+     * Start of the bucket
+     */
+    @Column
+    private long bucket;
+    @Column
+    private int trackID;
+    @Column
+    private int hopNumber;
+    @Column
+    private long volume;
+    @Column
+    private long delaySum;
+    @Column
+    private long minDelay;
+    @Column
+    private long maxDelay;
+    /**
+     * Day (days since epoch) of the compacted partition, -1 for rows of the
+     * unpartitioned base table
+     */
+    @Column
+    private long sourceDay;
+
+    public int getUid() {
+        return uid;
+    }
+
+    public void setUid(int uid) {
+        this.uid = uid;
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    public void setResolution(long resolution) {
+        this.resolution = resolution;
+    }
+
+    public long getBucket() {
+        return bucket;
+    }
+
+    public void setBucket(long bucket) {
+        this.bucket = bucket;
+    }
+
+    public int getTrackID() {
+        return trackID;
+    }
+
+    public void setTrackID(int trackID) {
+        this.trackID = trackID;
+    }
+
+    public int getHopNumber() {
+        return hopNumber;
+    }
+
+    public void setHopNumber(int hopNumber) {
+        this.hopNumber = hopNumber;
+    }
+
+    public long getVolume() {
+        return volume;
+    }
+
+    public void setVolume(long volume) {
+        this.volume = volume;
+    }
+
+    public long getDelaySum() {
+        return delaySum;
+    }
+
+    public void setDelaySum(long delaySum) {
+        this.delaySum = delaySum;
+    }
+
+    public long getMinDelay() {
+        return minDelay;
+    }
+
+    public void setMinDelay(long minDelay) {
+        this.minDelay = minDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public long getSourceDay() {
+        return sourceDay;
+    }
+
+    public void setSourceDay(long sourceDay) {
+        this.sourceDay = sourceDay;
+    }
+}
@@ -0,0 +1,158 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+
+/**
+ * A read query executed with plain JDBC. The SQL text is built once per FROM
+ * expression, so the statement cache of each pooled connection prepares it
+ * once and reuses it afterwards. Rows are handed to a {@link RowReader}
+ * straight from the result set, without Ebean's SqlRow maps.
+ * <p>
+ * The template may contain <code>{from}</code>, replaced by a FROM
+ * expression of {@link TablePartitions}. All parameters are longs.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ * 
+ */
+public class HotQuery {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // --
+    /**
+     * Reads the current row of a result set into typed fields.
+     */
+    public interface RowReader {
+
+        void read(ResultSet rs) throws SQLException;
+    }
+    /**
+     * SQL texts are rebuilt once that many FROM expressions were seen
+     */
+    private static final int MAX_TEXTS = 256;
+    private final EbeanServer eServer;
+    private final String template;
+    private final int fetchSize;
+    private final ConcurrentMap<String, String> texts = new ConcurrentHashMap<String, String>();
+
+    /**
+     * 
+     * @param eServer server whose connections run the query
+     * @param template SQL with ? parameters and an optional {from}
+     * @param fetchSize rows fetched per round trip, 0 for the driver default
+     */
+    public HotQuery(EbeanServer eServer, String template, int fetchSize) {
+        this.eServer = eServer;
+        this.template = template;
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * 
+     * @param from FROM expression, ignored if the template has none
+     * @return SQL text of the query
+     */
+    public String sql(String from) {
+        String sql = texts.get(from);
+        if (sql == null) {
+            if (texts.size() >= MAX_TEXTS) {
+                texts.clear();
+            }
+            sql = template.replace("{from}", from);
+            texts.put(from, sql);
+        }
+        return sql;
+    }
+
+    /**
+     * Run the query on a pooled connection.
+     * 
+     * @param from FROM expression, ignored if the template has none
+     * @param reader called for each row
+     * @param params values of the ? parameters in order
+     * @return number of rows read
+     */
+    public int execute(String from, RowReader reader, long... params) {
+        Transaction txn = eServer.createTransaction();
+        PreparedStatement stmt = null;
+        try {
+            stmt = txn.getConnection().prepareStatement(sql(from));
+            if (fetchSize > 0) {
+                stmt.setFetchSize(fetchSize);
+            }
+            for (int i = 0; i < params.length; i++) {
+                stmt.setLong(i + 1, params[i]);
+            }
+            ResultSet rs = stmt.executeQuery();
+            int rows = 0;
+            while (rs.next()) {
+                reader.read(rs);
+                rows++;
+            }
+            rs.close();
+            return rows;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (stmt != null) {
+                try {
+                    // returns the statement to the connection's cache
+                    stmt.close();
+                } catch (SQLException e) {
+                    logger.debug(e.getMessage());
+                }
+            }
+            txn.end();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory store of the most recent track records and hops, fed by the
+ * ingest pipelines after each commit. Rows are kept in primitive
+ * ring buffer columns; when a ring is full or a row falls out of the time
+ * span, the oldest row is dropped.
+ * <p>
+ * Each ring is complete from its covered timestamp on: every committed row
+ * with a later timestamp is in memory, so queries starting there can skip the
+ * database. Rows older than the covered timestamp are not accepted.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ * 
+ */
+public class HotWindow {
+
+    /**
+     * Ring of row slots ordered by arrival. Caller must hold the lock.
+     */
+    private static final class Ring {
+
+        final int capacity;
+        /**
+         * Rows older than the newest row by more than span are dropped
+         */
+        final long span;
+        final long[] ts;
+        /**
+         * Next slot written
+         */
+        int head;
+        int size;
+        long newest = Long.MIN_VALUE;
+        long coveredFrom;
+
+        Ring(int capacity, long span) {
+            this.capacity = Math.max(1, capacity);
+            this.span = span;
+            this.ts = new long[this.capacity];
+        }
+
+        /**
+         * 
+         * @return slot the row is to be written to, or -1 if the row is too old
+         */
+        int claim(long t) {
+            if (t < coveredFrom || (newest != Long.MIN_VALUE && t < newest - span)) {
+                coveredFrom = Math.max(coveredFrom, t + 1);
+                return -1;
+            }
+            if (size == capacity) {
+                evict();
+            }
+            int slot = head;
+            head = (head + 1) % capacity;
+            size++;
+            ts[slot] = t;
+            if (t > newest) {
+                newest = t;
+                while (size > 0 && ts[slot(0)] < newest - span) {
+                    evict();
+                }
+            }
+            return slot;
+        }
+
+        void evict() {
+            coveredFrom = Math.max(coveredFrom, ts[slot(0)] + 1);
+            size--;
+        }
+
+        /**
+         * 
+         * @param k row index, 0 is the oldest row
+         * @return slot of the row
+         */
+        int slot(int k) {
+            return (head - size + k + capacity) % capacity;
+        }
+
+        void reset(long from) {
+            head = 0;
+            size = 0;
+            newest = Long.MIN_VALUE;
+            coveredFrom = from;
+        }
+    }
+    private static final Comparator<long[]> BY_TS = new Comparator<long[]>() {
+
+        @Override
+        public int compare(long[] a, long[] b) {
+            return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+        }
+    };
+    // --
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // track records, timestamps in microseconds
+    private final Ring tracks;
+    private final int[] trackId;
+    private final long[] trackStop;
+    private final long[] trackRule;
+    private final long[] trackDelay;
+    // hops, timestamps in microseconds
+    private final Ring hops;
+    private final int[] hopTrackId;
+    private final long[] hopRule;
+    private final int[] hopFlowKey;
+    private final int[] hopNumber;
+    private final int[] hopPacketId;
+    private final long[] hopDelay;
+
+    /**
+     * 
+     * @param span time span kept in milliseconds
+     * @param capacity maximum number of hops kept, half as many track records
+     *        are kept
+     */
+    public HotWindow(long span, int capacity) {
+        long spanUs = TimeUnit.MILLISECONDS.toMicros(span);
+        this.tracks = new Ring(capacity / 2, spanUs);
+        this.trackId = new int[tracks.capacity];
+        this.trackStop = new long[tracks.capacity];
+        this.trackRule = new long[tracks.capacity];
+        this.trackDelay = new long[tracks.capacity];
+        this.hops = new Ring(capacity, spanUs);
+        this.hopTrackId = new int[hops.capacity];
+        this.hopRule = new long[hops.capacity];
+        this.hopFlowKey = new int[hops.capacity];
+        this.hopNumber = new int[hops.capacity];
+        this.hopPacketId = new int[hops.capacity];
+        this.hopDelay = new long[hops.capacity];
+        reset(Long.MAX_VALUE);
+    }
+
+    /**
+     * Drop all rows. Rows are accepted again from the given timestamp on,
+     * which has to be later than any row already stored in the database.
+     * 
+     * @param from track and hop timestamp in microseconds
+     */
+    public void reset(long from) {
+        lock.writeLock().lock();
+        try {
+            tracks.reset(from);
+            hops.reset(from);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a committed track record and its hops.
+     * 
+     * @param td
+     * @param hopRows hops with record id and flow key assigned
+     */
+    public void addTrack(TrackData td, RawTrackData[] hopRows) {
+        lock.writeLock().lock();
+        try {
+            int slot = tracks.claim(td.getStart_ts());
+            if (slot >= 0) {
+                trackId[slot] = td.getTrackID();
+                trackStop[slot] = td.getStop_ts();
+                trackRule[slot] = td.getRuleID();
+                trackDelay[slot] = td.getDelay();
+            }
+            for (RawTrackData rtd : hopRows) {
+                slot = hops.claim(rtd.getTs());
+                if (slot >= 0) {
+                    hopTrackId[slot] = rtd.getTrackID();
+                    hopRule[slot] = rtd.getRuleID();
+                    hopFlowKey[slot] = rtd.getFlowKey();
+                    hopNumber[slot] = rtd.getHopNumber();
+                    hopPacketId[slot] = rtd.getPacketID();
+                    hopDelay[slot] = rtd.getDelay();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Aggregate the track records starting in [from, to) by rollup bucket and
+     * track id, like the track_rollup rows of that range.
+     * 
+     * @param resolution rollup resolution in microseconds
+     * @param from in microseconds
+     * @param to in microseconds, exclusive
+     * @return rows of track id, volume, delay sum, first start and last stop,
+     *         or null if the range is not covered
+     */
+    public List<long[]> rollupTracks(long resolution, long from, long to) {
+        lock.readLock().lock();
+        try {
+            if (from < tracks.coveredFrom) {
+                return null;
+            }
+            Map<Long, Map<Integer, long[]>> buckets = new HashMap<Long, Map<Integer, long[]>>();
+            List<long[]> result = new ArrayList<long[]>();
+            for (int k = 0; k < tracks.size; k++) {
+                int slot = tracks.slot(k);
+                long start = tracks.ts[slot];
+                long bucket = TrackRollup.bucketOf(start, resolution);
+                if (bucket < from || bucket >= to) {
+                    continue;
+                }
+                Map<Integer, long[]> rows = buckets.get(bucket);
+                if (rows == null) {
+                    rows = new HashMap<Integer, long[]>();
+                    buckets.put(bucket, rows);
+                }
+                long[] row = rows.get(trackId[slot]);
+                if (row == null) {
+                    row = new long[]{trackId[slot], 0, 0, start, trackStop[slot]};
+                    rows.put(trackId[slot], row);
+                    result.add(row);
+                }
+                row[1]++;
+                row[2] += trackDelay[slot];
+                row[3] = Math.min(row[3], start);
+                row[4] = Math.max(row[4], trackStop[slot]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delays of the hops of a track in [from, to].
+     * 
+     * @param trackId
+     * @param ruleId rule id or -1 for any
+     * @param flowKey flow key id or -1 for any
+     * @param from in microseconds
+     * @param to in microseconds, inclusive
+     * @return ts, packet id and delay of each hop by hop number, ordered by
+     *         ts, or null if the range is not covered
+     */
+    public SortedMap<Integer, List<long[]>> hopDelays(long trackId, long ruleId, long flowKey,
+            long from, long to) {
+        lock.readLock().lock();
+        try {
+            if (from < hops.coveredFrom) {
+                return null;
+            }
+            SortedMap<Integer, List<long[]>> result = new TreeMap<Integer, List<long[]>>();
+            for (int k = 0; k < hops.size; k++) {
+                int slot = hops.slot(k);
+                long ts = hops.ts[slot];
+                if (ts < from || ts > to || hopTrackId[slot] != trackId
+                        || (ruleId != -1 && hopRule[slot] != ruleId)
+                        || (flowKey != -1 && hopFlowKey[slot] != flowKey)) {
+                    continue;
+                }
+                List<long[]> rows = result.get(hopNumber[slot]);
+                if (rows == null) {
+                    rows = new ArrayList<long[]>();
+                    result.put(hopNumber[slot], rows);
+                }
+                rows.add(new long[]{ts, hopPacketId[slot], hopDelay[slot]});
+            }
+            for (List<long[]> rows : result.values()) {
+                Collections.sort(rows, BY_TS);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 
+     * @return first track timestamp in microseconds from which on all hops are
+     *         in memory
+     */
+    public long getCoveredFrom() {
+        lock.readLock().lock();
+        try {
+            return Math.max(tracks.coveredFrom, hops.coveredFrom);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getHops() {
+        lock.readLock().lock();
+        try {
+            return hops.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
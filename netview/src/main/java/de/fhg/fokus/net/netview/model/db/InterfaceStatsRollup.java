@@ -0,0 +1,184 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Interface stats of a probe interface within one bucket, written when expired
+ * interface stats are compacted. Delta counts are summed up, pcap counters
+ * keep their maximum. A (bucket, oid, interface) key may be spread over
+ * several rows, readers aggregate them.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+@Entity
+public class InterfaceStatsRollup {
+
+    /**
+     * Unique Id
+     */
+    @Id
+    private long uid;
+    /**
+     * Bucket width in milliseconds
+     */
+    @Column
+    private long resolution;
+    /**
+     * Start of the bucket, unix timestamp in milliseconds
+     */
+    @Column
+    private long bucket;
+    @Column
+    private long oid;
+    @Column
+    private String interfaceName;
+    /**
+     * Number of stats records
+     */
+    @Column
+    private long samples;
+    @Column
+    private long samplingSize;
+    @Column
+    private long packetDeltaCount;
+    @Column
+    private long pcapStatRecv;
+    @Column
+    private long pcapStatDrop;
+    /**
+     * Day (days since epoch) of the compacted partition, -1 for rows of the
+     * unpartitioned base table
+     */
+    @Column
+    private long sourceDay;
+
+    public long getUid() {
+        return uid;
+    }
+
+    public void setUid(long uid) {
+        this.uid = uid;
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    public void setResolution(long resolution) {
+        this.resolution = resolution;
+    }
+
+    public long getBucket() {
+        return bucket;
+    }
+
+    public void setBucket(long bucket) {
+        this.bucket = bucket;
+    }
+
+    public long getOid() {
+        return oid;
+    }
+
+    public void setOid(long oid) {
+        this.oid = oid;
+    }
+
+    public String getInterfaceName() {
+        return interfaceName;
+    }
+
+    public void setInterfaceName(String interfaceName) {
+        this.interfaceName = interfaceName;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public void setSamples(long samples) {
+        this.samples = samples;
+    }
+
+    public long getSamplingSize() {
+        return samplingSize;
+    }
+
+    public void setSamplingSize(long samplingSize) {
+        this.samplingSize = samplingSize;
+    }
+
+    public long getPacketDeltaCount() {
+        return packetDeltaCount;
+    }
+
+    public void setPacketDeltaCount(long packetDeltaCount) {
+        this.packetDeltaCount = packetDeltaCount;
+    }
+
+    public long getPcapStatRecv() {
+        return pcapStatRecv;
+    }
+
+    public void setPcapStatRecv(long pcapStatRecv) {
+        this.pcapStatRecv = pcapStatRecv;
+    }
+
+    public long getPcapStatDrop() {
+        return pcapStatDrop;
+    }
+
+    public void setPcapStatDrop(long pcapStatDrop) {
+        this.pcapStatDrop = pcapStatDrop;
+    }
+
+    public long getSourceDay() {
+        return sourceDay;
+    }
+
+    public void setSourceDay(long sourceDay) {
+        this.sourceDay = sourceDay;
+    }
+}
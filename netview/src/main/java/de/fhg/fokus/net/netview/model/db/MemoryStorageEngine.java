@@ -0,0 +1,741 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import de.fhg.fokus.net.ptapi.PacketTrackRecord;
+import de.fhg.fokus.net.ptapi.PtBearerInformation;
+import de.fhg.fokus.net.ptapi.PtInterfaceStats;
+import de.fhg.fokus.net.ptapi.PtProbeLocation;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+
+/**
+ * Storage engine keeping everything on the heap, for short-lived or demo
+ * deployments. At most capacity track records are kept, the oldest ones are
+ * dropped first; stats and locations are kept up to capacity rows per probe,
+ * bearer information up to capacity rows per rule. Track paths go with the
+ * last record of their track. Flow keys and the rule and probe ids are never
+ * dropped, they grow with the number of distinct flows, rules and probes
+ * seen until {@link #clear()} or a restart. Tracks are aggregated by rollup
+ * bucket when scanned.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class MemoryStorageEngine implements StorageEngine {
+
+    /**
+     * A track record with the timestamps of its hops.
+     */
+    private static final class Entry {
+
+        final long uid;
+        final int trackId;
+        final int packetId;
+        final long ruleId;
+        final int flowKey;
+        /**
+         * Hop timestamps in hop order, the first one is the track start
+         */
+        final long[] ts;
+
+        Entry(long uid, PacketTrackRecord record, int flowKey) {
+            this.uid = uid;
+            this.trackId = record.trackid;
+            this.packetId = record.pktid;
+            this.ruleId = record.ruleId;
+            this.flowKey = flowKey;
+            this.ts = record.ts.clone();
+        }
+
+        long start() {
+            return ts[0];
+        }
+
+        long stop() {
+            return ts[ts.length - 1];
+        }
+    }
+    private static final Comparator<long[]> BY_TS = new Comparator<long[]>() {
+
+        @Override
+        public int compare(long[] a, long[] b) {
+            return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+        }
+    };
+    private static final Comparator<BearerVolume> BY_BEARER = new Comparator<BearerVolume>() {
+
+        @Override
+        public int compare(BearerVolume a, BearerVolume b) {
+            return a.uid < b.uid ? -1 : (a.uid == b.uid ? 0 : 1);
+        }
+    };
+    private static final Comparator<FlowVolume> BY_FLOW_KEY = new Comparator<FlowVolume>() {
+
+        @Override
+        public int compare(FlowVolume a, FlowVolume b) {
+            return a.flowKey < b.flowKey ? -1 : (a.flowKey == b.flowKey ? 0 : 1);
+        }
+    };
+    // --
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final int capacity;
+    private long nextUid = 1;
+    private volatile long evicted = 0;
+    // track records in arrival order, by start and by track id
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    private final TreeMap<Long, List<Entry>> byStart = new TreeMap<Long, List<Entry>>();
+    private final Map<Integer, ArrayDeque<Entry>> byTrack = new HashMap<Integer, ArrayDeque<Entry>>();
+    private final Map<Integer, long[]> paths = new HashMap<Integer, long[]>();
+    // flow keys by id, ids start at 1, kept as long as the engine since
+    // records refer to them by id
+    private final List<FlowKey> flowKeys = new ArrayList<FlowKey>();
+    private final Map<FlowKey, Integer> flowKeyIds = new HashMap<FlowKey, Integer>();
+    private final Map<Long, List<BearerInformation>> bearersByRule = new HashMap<Long, List<BearerInformation>>();
+    // stats and locations by probe id and timestamp
+    private final Map<Long, TreeMap<Long, InterfaceStats>> interfaceStats = new HashMap<Long, TreeMap<Long, InterfaceStats>>();
+    private final Map<Long, TreeMap<Long, ProbeStats>> probeStats = new HashMap<Long, TreeMap<Long, ProbeStats>>();
+    private final Map<Long, TreeMap<Long, ProbeLocation>> locations = new HashMap<Long, TreeMap<Long, ProbeLocation>>();
+    /**
+     * Cache whose watermarks added rows advance, if set
+     */
+    private volatile ResultCache resultCache;
+
+    /**
+     * 
+     * @param capacity maximum number of track records kept
+     */
+    public MemoryStorageEngine(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * 
+     * @param resultCache cache whose watermarks added rows advance, or null
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    @Override
+    public void init() {
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    /**
+     * Records are visible as soon as they were added.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void addPacketTrackRecord(PacketTrackRecord record) {
+        if (record.ts == null || record.ts.length == 0) {
+            return;
+        }
+        FlowKey key = new FlowKey(record);
+        lock.writeLock().lock();
+        try {
+            Integer flowKey = flowKeyIds.get(key);
+            if (flowKey == null) {
+                flowKeys.add(key);
+                flowKey = flowKeys.size();
+                key.setUid(flowKey);
+                flowKeyIds.put(key, flowKey);
+            }
+            if (entries.size() == capacity) {
+                evict();
+            }
+            Entry entry = new Entry(nextUid++, record, flowKey);
+            entries.addLast(entry);
+            List<Entry> started = byStart.get(entry.start());
+            if (started == null) {
+                started = new ArrayList<Entry>(1);
+                byStart.put(entry.start(), started);
+            }
+            started.add(entry);
+            ArrayDeque<Entry> track = byTrack.get(entry.trackId);
+            if (track == null) {
+                track = new ArrayDeque<Entry>();
+                byTrack.put(entry.trackId, track);
+            }
+            track.addLast(entry);
+            if (!paths.containsKey(entry.trackId)) {
+                paths.put(entry.trackId, record.oids.clone());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        advance(ResultCache.Source.TRACKS, record.ts[record.ts.length - 1]);
+    }
+
+    private void advance(ResultCache.Source source, long ts) {
+        ResultCache cache = resultCache;
+        if (cache != null) {
+            cache.advance(source, ts);
+        }
+    }
+
+    /**
+     * Drop the oldest track record. Caller must hold the write lock.
+     */
+    private void evict() {
+        Entry oldest = entries.removeFirst();
+        List<Entry> started = byStart.get(oldest.start());
+        started.remove(oldest);
+        if (started.isEmpty()) {
+            byStart.remove(oldest.start());
+        }
+        // records of a track are in arrival order as well
+        ArrayDeque<Entry> track = byTrack.get(oldest.trackId);
+        track.removeFirst();
+        if (track.isEmpty()) {
+            byTrack.remove(oldest.trackId);
+            paths.remove(oldest.trackId);
+        }
+        evicted++;
+    }
+
+    @Override
+    public void addBearerInformation(PtBearerInformation record) {
+        BearerInformation bi = new BearerInformation(record);
+        lock.writeLock().lock();
+        try {
+            bi.setUid(nextUid++);
+            List<BearerInformation> rule = bearersByRule.get(bi.getRuleId());
+            if (rule == null) {
+                rule = new ArrayList<BearerInformation>();
+                bearersByRule.put(bi.getRuleId(), rule);
+            }
+            rule.add(bi);
+            if (rule.size() > capacity) {
+                rule.remove(0);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addPtInterfaceStats(PtInterfaceStats sampling) {
+        InterfaceStats is = new InterfaceStats(sampling);
+        lock.writeLock().lock();
+        try {
+            is.setUid(nextUid++);
+            put(interfaceStats, is.getOid(), is.getTimestamp(), is);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        advance(ResultCache.Source.INTERFACE_STATS, is.getTimestamp());
+    }
+
+    @Override
+    public void addPtProbeStats(PtProbeStats stats) {
+        ProbeStats ps = new ProbeStats(stats);
+        lock.writeLock().lock();
+        try {
+            ps.setUid(nextUid++);
+            put(probeStats, ps.getOid(), ps.getTimestamp(), ps);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        advance(ResultCache.Source.PROBE_STATS, ps.getTimestamp());
+    }
+
+    @Override
+    public void addPtProbeLocation(PtProbeLocation location) {
+        putLocation(new ProbeLocation(location));
+    }
+
+    @Override
+    public void saveProbeLocation(ProbeLocation location) {
+        putLocation(location);
+    }
+
+    private void putLocation(ProbeLocation location) {
+        lock.writeLock().lock();
+        try {
+            location.setUid(nextUid++);
+            put(locations, location.getOid(), location.getTimestamp(), location);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a row to the rows of a probe, dropping its oldest row when full.
+     * Caller must hold the write lock.
+     */
+    private <T> void put(Map<Long, TreeMap<Long, T>> rows, long oid, long ts, T row) {
+        TreeMap<Long, T> probe = rows.get(oid);
+        if (probe == null) {
+            probe = new TreeMap<Long, T>();
+            rows.put(oid, probe);
+        }
+        probe.put(ts, row);
+        if (probe.size() > capacity) {
+            probe.pollFirstEntry();
+        }
+    }
+
+    private <T> T latest(Map<Long, TreeMap<Long, T>> rows, long oid, long ts) {
+        lock.readLock().lock();
+        try {
+            TreeMap<Long, T> probe = rows.get(oid);
+            if (probe == null) {
+                return null;
+            }
+            Map.Entry<Long, T> entry = probe.lowerEntry(ts);
+            return entry == null ? null : entry.getValue();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The tracks are aggregated before the first one is visited, the lock
+     * isn't held while visiting.
+     */
+    @Override
+    public long scanTracks(long resolution, long from, long to, TrackVisitor visitor) {
+        List<long[]> rows = new ArrayList<long[]>();
+        lock.readLock().lock();
+        try {
+            Map<Long, Map<Integer, long[]>> buckets = new HashMap<Long, Map<Integer, long[]>>();
+            // a bucket before to may hold tracks starting up to one resolution later
+            long end = to > Long.MAX_VALUE - resolution ? Long.MAX_VALUE : to + resolution;
+            for (List<Entry> started : byStart.subMap(from, true, end, false).values()) {
+                for (Entry entry : started) {
+                    long bucket = TrackRollup.bucketOf(entry.start(), resolution);
+                    if (bucket < from || bucket >= to) {
+                        continue;
+                    }
+                    Map<Integer, long[]> tracks = buckets.get(bucket);
+                    if (tracks == null) {
+                        tracks = new HashMap<Integer, long[]>();
+                        buckets.put(bucket, tracks);
+                    }
+                    long[] row = tracks.get(entry.trackId);
+                    if (row == null) {
+                        row = new long[]{entry.trackId, 0, 0, entry.start(), entry.stop()};
+                        tracks.put(entry.trackId, row);
+                        rows.add(row);
+                    }
+                    row[1]++;
+                    row[2] += entry.stop() - entry.start();
+                    row[3] = Math.min(row[3], entry.start());
+                    row[4] = Math.max(row[4], entry.stop());
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        long visited = 0;
+        for (long[] row : rows) {
+            visited++;
+            if (!visitor.visit((int) row[0], row[1], row[2], row[3], row[4])) {
+                break;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Scans don't wait for anything, there is nothing to cancel.
+     */
+    @Override
+    public void cancelScans() {
+    }
+
+    @Override
+    public long[] getTrackPath(int trackId) {
+        lock.readLock().lock();
+        try {
+            long[] path = paths.get(trackId);
+            return path == null ? new long[0] : path.clone();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Long> findTrackRecords(long trackId, long from, long to) {
+        List<Long> records = new ArrayList<Long>();
+        lock.readLock().lock();
+        try {
+            ArrayDeque<Entry> track = byTrack.get((int) trackId);
+            if (track != null) {
+                for (Entry entry : track) {
+                    if (entry.start() >= from && entry.start() <= to) {
+                        records.add(entry.uid);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return records;
+    }
+
+    @Override
+    public long nextTrackStart(long ts) {
+        lock.readLock().lock();
+        try {
+            Long next = byStart.higherKey(ts);
+            return next == null ? Long.MAX_VALUE : next;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long previousTrackStart(long ts) {
+        lock.readLock().lock();
+        try {
+            Long prev = byStart.lowerKey(ts);
+            return prev == null ? Long.MIN_VALUE : prev;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Count the hops of a track in [from, to] by a key derived from the
+     * record. Caller must hold the read lock.
+     * 
+     * @return counts by rule id and flow key (0 if not counted)
+     */
+    private Map<List<Long>, int[]> countHops(long trackId, long from, long to, boolean byFlow) {
+        Map<List<Long>, int[]> counts = new LinkedHashMap<List<Long>, int[]>();
+        ArrayDeque<Entry> track = byTrack.get((int) trackId);
+        if (track == null) {
+            return counts;
+        }
+        for (Entry entry : track) {
+            for (long ts : entry.ts) {
+                if (ts < from || ts > to) {
+                    continue;
+                }
+                List<Long> key = Arrays.asList(entry.ruleId, byFlow ? (long) entry.flowKey : 0L);
+                int[] count = counts.get(key);
+                if (count == null) {
+                    count = new int[1];
+                    counts.put(key, count);
+                }
+                count[0]++;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * 
+     * @return indexes of the windows ordered by track id and window start
+     */
+    private static Integer[] windowOrder(final long[] trackIds, final long[] from) {
+        Integer[] order = new Integer[trackIds.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (trackIds[a] != trackIds[b]) {
+                    return trackIds[a] < trackIds[b] ? -1 : 1;
+                }
+                return from[a] < from[b] ? -1 : (from[a] == from[b] ? 0 : 1);
+            }
+        });
+        return order;
+    }
+
+    @Override
+    public List<BearerVolume> findBearerVolumes(long[] trackIds, long[] from, long[] to) {
+        List<BearerVolume> result = new ArrayList<BearerVolume>();
+        lock.readLock().lock();
+        try {
+            for (int i : windowOrder(trackIds, from)) {
+                List<BearerVolume> track = new ArrayList<BearerVolume>();
+                for (Map.Entry<List<Long>, int[]> count
+                        : countHops(trackIds[i], from[i], to[i], false).entrySet()) {
+                    List<BearerInformation> rule = bearersByRule.get(count.getKey().get(0));
+                    if (rule == null) {
+                        continue;
+                    }
+                    for (BearerInformation bi : rule) {
+                        if (bi.getRuleFlag() != 1) {
+                            continue;
+                        }
+                        BearerVolume row = new BearerVolume();
+                        row.trackId = trackIds[i];
+                        row.ruleId = bi.getRuleId();
+                        row.from = from[i];
+                        row.volume = count.getValue()[0];
+                        row.uid = bi.getUid();
+                        row.apn = bi.getApn();
+                        row.ruleName = bi.getRuleName();
+                        row.imsi = bi.getImsi();
+                        row.qci = bi.getQci();
+                        row.maximumDownload = bi.getMaximumDownload();
+                        row.maximumUpload = bi.getMaximumUpload();
+                        row.guaranteedDownload = bi.getGuaranteedDownload();
+                        row.guaranteedUpload = bi.getGuaranteedUpload();
+                        row.apnDownload = bi.getApnDownload();
+                        row.apnUpload = bi.getApnUpload();
+                        row.sourceAddress = bi.getSourceAddress();
+                        row.destinationAddress = bi.getDestinationAddress();
+                        row.sourcePort = bi.getSourcePort();
+                        row.destinationPort = bi.getDestinationPort();
+                        track.add(row);
+                    }
+                }
+                Collections.sort(track, BY_BEARER);
+                result.addAll(track);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public List<FlowVolume> findFlowVolumes(long[] trackIds, long[] from, long[] to) {
+        List<FlowVolume> result = new ArrayList<FlowVolume>();
+        lock.readLock().lock();
+        try {
+            for (int i : windowOrder(trackIds, from)) {
+                List<FlowVolume> track = new ArrayList<FlowVolume>();
+                for (Map.Entry<List<Long>, int[]> count
+                        : countHops(trackIds[i], from[i], to[i], true).entrySet()) {
+                    FlowKey key = flowKeys.get(count.getKey().get(1).intValue() - 1);
+                    FlowVolume row = new FlowVolume();
+                    row.trackId = trackIds[i];
+                    row.ruleId = count.getKey().get(0);
+                    row.from = from[i];
+                    row.volume = count.getValue()[0];
+                    row.flowKey = key.getUid();
+                    row.sourceAddress = key.getSourceAddress();
+                    row.destinationAddress = key.getDestinationAddress();
+                    row.sourcePort = key.getSourcePort();
+                    row.destinationPort = key.getDestinationPort();
+                    track.add(row);
+                }
+                Collections.sort(track, BY_FLOW_KEY);
+                result.addAll(track);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public SortedMap<Integer, List<long[]>> findHopDelays(long trackId, long ruleId, long flowKey,
+            long from, long to) {
+        SortedMap<Integer, List<long[]>> result = new TreeMap<Integer, List<long[]>>();
+        lock.readLock().lock();
+        try {
+            ArrayDeque<Entry> track = byTrack.get((int) trackId);
+            if (track == null) {
+                return result;
+            }
+            for (Entry entry : track) {
+                if ((ruleId != -1 && entry.ruleId != ruleId)
+                        || (flowKey != -1 && entry.flowKey != flowKey)) {
+                    continue;
+                }
+                for (int hop = 0; hop < entry.ts.length; hop++) {
+                    long ts = entry.ts[hop];
+                    if (ts < from || ts > to) {
+                        continue;
+                    }
+                    List<long[]> rows = result.get(hop);
+                    if (rows == null) {
+                        rows = new ArrayList<long[]>();
+                        result.put(hop, rows);
+                    }
+                    // the last hop has no successor and no delay
+                    rows.add(new long[]{ts, entry.packetId,
+                                hop < entry.ts.length - 1 ? entry.ts[hop + 1] - ts : 0});
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (List<long[]> rows : result.values()) {
+            Collections.sort(rows, BY_TS);
+        }
+        return result;
+    }
+
+    @Override
+    public InterfaceStats getLatestInterfaceStats(long oid, long ts) {
+        return latest(interfaceStats, oid, ts);
+    }
+
+    @Override
+    public ProbeStats getLatestProbeStats(long oid, long ts) {
+        return latest(probeStats, oid, ts);
+    }
+
+    @Override
+    public ProbeLocation getLatestProbeLocation(long oid, long ts) {
+        return latest(locations, oid, ts);
+    }
+
+    @Override
+    public void scanLocations(LocationVisitor visitor) {
+        for (ProbeLocation l : getProbeLocations()) {
+            visitor.visit(l.getOid(), l.getLatitude(), l.getLongitude(), l.getName(),
+                    l.getLocationName(), l.getAddress());
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            byStart.clear();
+            byTrack.clear();
+            paths.clear();
+            interfaceStats.clear();
+            probeStats.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 
+     * @return bearer information in the order it was added
+     */
+    protected List<BearerInformation> getBearerInformation() {
+        List<BearerInformation> result = new ArrayList<BearerInformation>();
+        lock.readLock().lock();
+        try {
+            for (List<BearerInformation> rule : bearersByRule.values()) {
+                result.addAll(rule);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.sort(result, new Comparator<BearerInformation>() {
+
+            @Override
+            public int compare(BearerInformation a, BearerInformation b) {
+                return a.getUid() < b.getUid() ? -1 : (a.getUid() == b.getUid() ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 
+     * @return probe locations in the order they were added
+     */
+    protected List<ProbeLocation> getProbeLocations() {
+        List<ProbeLocation> result = new ArrayList<ProbeLocation>();
+        lock.readLock().lock();
+        try {
+            for (TreeMap<Long, ProbeLocation> probe : locations.values()) {
+                result.addAll(probe.values());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.sort(result, new Comparator<ProbeLocation>() {
+
+            @Override
+            public int compare(ProbeLocation a, ProbeLocation b) {
+                return a.getUid() < b.getUid() ? -1 : (a.getUid() == b.getUid() ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 
+     * @return number of track records kept
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 
+     * @return number of track records dropped to stay within capacity
+     */
+    public long getEvicted() {
+        return evicted;
+    }
+}
@@ -0,0 +1,240 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.config.DataSourceConfig;
+import com.avaje.ebeaninternal.server.lib.sql.DataSourceNotify;
+import com.avaje.ebeaninternal.server.lib.sql.DataSourcePool;
+import com.avaje.ebeaninternal.server.lib.sql.DataSourcePool.Status;
+
+/**
+ * Connection pool reporting how long callers wait for a connection and how
+ * much of the pool is in use. Utilization is the mean share of busy
+ * connections over the samples taken by {@link #sample()}.
+ * <p>
+ * Waits for the H2 engine are not counted: without MULTI_THREADED, which
+ * can't be combined with MVCC, H2 runs one statement at a time across all
+ * connections. A long read delays the commits of ingest although neither
+ * pool reports a wait; it shows up as longer statements instead.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ * 
+ */
+public class MeteredDataSource implements DataSource {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // --
+    private final DataSourcePool pool;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private long samples = 0;
+    private long busySum = 0;
+
+    public MeteredDataSource(String name, DataSourceConfig config) {
+        this.pool = new DataSourcePool(new DataSourceNotify() {
+
+            @Override
+            public void notifyDataSourceUp(String name) {
+                logger.info("data source {} up", name);
+            }
+
+            @Override
+            public void notifyDataSourceDown(String name) {
+                logger.warn("data source {} down", name);
+            }
+
+            @Override
+            public void notifyWarning(String subject, String message) {
+                logger.warn("{}: {}", subject, message);
+            }
+        }, name, config);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        Connection connection = pool.getConnection();
+        long wait = System.nanoTime() - start;
+        acquired.incrementAndGet();
+        waitNanos.addAndGet(wait);
+        long max = maxWaitNanos.get();
+        while (wait > max && !maxWaitNanos.compareAndSet(max, wait)) {
+            max = maxWaitNanos.get();
+        }
+        return connection;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return getConnection();
+    }
+
+    /**
+     * Record the number of busy connections, called periodically.
+     */
+    public synchronized void sample() {
+        busySum += pool.getStatus(false).getBusy();
+        samples++;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public String getName() {
+        return pool.getName();
+    }
+
+    public int getMaxSize() {
+        return pool.getMaxSize();
+    }
+
+    public int getBusy() {
+        return pool.getStatus(false).getBusy();
+    }
+
+    /**
+     * 
+     * @return callers currently waiting for a connection
+     */
+    public int getWaiting() {
+        return pool.getStatus(false).getWaiting();
+    }
+
+    public int getHighWaterMark() {
+        return pool.getStatus(false).getHighWaterMark();
+    }
+
+    /**
+     * 
+     * @return connections handed out so far
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * 
+     * @return total time callers waited for a connection in milliseconds
+     */
+    public long getWaitTime() {
+        return waitNanos.get() / 1000000;
+    }
+
+    /**
+     * 
+     * @return longest wait for a connection in milliseconds
+     */
+    public long getMaxWaitTime() {
+        return maxWaitNanos.get() / 1000000;
+    }
+
+    /**
+     * 
+     * @return mean share of busy connections, 0..1
+     */
+    public synchronized double getUtilization() {
+        return samples == 0 ? 0 : (double) busySum / samples / pool.getMaxSize();
+    }
+
+    @Override
+    public String toString() {
+        Status status = pool.getStatus(false);
+        long n = acquired.get();
+        return String.format("%s: busy %d/%d (high %d), waiting %d, acquired %d, "
+                + "mean wait %.3f ms, max wait %d ms, utilization %.1f%%",
+                getName(), status.getBusy(), status.getMaxSize(), status.getHighWaterMark(),
+                status.getWaiting(), n, n == 0 ? 0.0 : waitNanos.get() / 1e6 / n,
+                getMaxWaitTime(), getUtilization() * 100);
+    }
+
+    // javax.sql.DataSource
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return pool.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        pool.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        pool.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return pool.getLoginTimeout();
+    }
+
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return pool.unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || pool.isWrapperFor(iface);
+    }
+}
@@ -40,15 +40,17 @@
  */
 package de.fhg.fokus.net.netview.model.db;
 
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+import javax.swing.SwingUtilities;
 
 import org.h2.tools.RunScript;
 import org.slf4j.Logger;
@@ -62,6 +64,7 @@ import com.avaje.ebean.config.AutofetchConfig;
 import com.avaje.ebean.config.AutofetchMode;
 import com.avaje.ebean.config.DataSourceConfig;
 import com.avaje.ebean.config.ServerConfig;
+import com.avaje.ebean.config.dbplatform.H2Platform;
 import com.avaje.ebeaninternal.server.lib.ShutdownManager;
 import com.thoughtworks.xstream.XStream;
 
@@ -74,11 +77,11 @@ import de.fhg.fokus.net.netview.model.NodePhysicalProperties;
 import de.fhg.fokus.net.netview.model.NodeViewProperties;
 import de.fhg.fokus.net.netview.model.Probe;
 import de.fhg.fokus.net.netview.sys.NetViewConfig;
-import de.fhg.fokus.net.ptapi.PacketTrackRecord;
-import de.fhg.fokus.net.ptapi.PtInterfaceStats;
-import de.fhg.fokus.net.ptapi.PtProbeStats;
-import de.fhg.fokus.net.ptapi.PtBearerInformation;
+import de.fhg.fokus.net.netview.util.LocationResolver;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -101,11 +104,33 @@ public class NetViewDB {
     };
     // --
     private final EbeanServer eServer;
+    private final EbeanServer queryServer;
+    private final MeteredDataSource writePool;
+    private final MeteredDataSource readPool;
+    private final ScheduledFuture<?> poolSampler;
     private final Model model;
     private final ScheduledExecutorService scheduler;
     private final TrackRepository trackRepository;
+    private final FlowKeyDictionary flowKeys;
+    private final TrackPathCache trackPaths;
+    private final TablePartitions partitions;
+    private final TrackArchive archive;
+    private final HotWindow hotWindow;
+    private final LocationResolver locationResolver;
+    private final StatsIndex statsIndex;
+    private final TrackIngestPipeline ingestPipeline;
+    private final StorageEngine storage;
+    private final ResultCache resultCache;
+    private final BulkImporter bulkImporter;
+    private final SpoolLog spool;
+    private final TrackIngestPipeline statsPipeline;
+    private final RetentionManager retention;
     private final NetViewConfig config;
     private final ServerConfig serverConfig;
+    /**
+     * Prepared statements cached per pooled connection
+     */
+    private static final int STATEMENT_CACHE_SIZE = 100;
 
     public NetViewDB(Model model, ScheduledExecutorService scheduler, NetViewConfig config) {
         this.scheduler = scheduler;
@@ -116,43 +141,16 @@ public class NetViewDB {
         //
 
         // ### Configuration Objects ###
-        this.serverConfig = new ServerConfig();
-        DataSourceConfig dataSourceConfig = new DataSourceConfig();
-
-        // ### Configuration Settings ###
-        // -> data source
-        dataSourceConfig.setDriver(config.getDbDriver());
-        dataSourceConfig.setUsername(config.getDbUser());
-        dataSourceConfig.setPassword(config.getDbPass());
-        dataSourceConfig.setUrl(config.getDbUrl());
-        // -> server
-        serverConfig.setName("default");
-        serverConfig.setDataSourceConfig(dataSourceConfig);
+        // ingest and maintenance write through their own pool, charts,
+        // preloading and exports read through another one
+        this.writePool = new MeteredDataSource("write", createDataSourceConfig(config.getDbWritePoolSize()));
+        this.readPool = new MeteredDataSource("read", createDataSourceConfig(config.getDbReadPoolSize()));
+        this.serverConfig = createServerConfig("default", this.writePool);
+        // ingest assigns ids itself, fetch them in chunks of a batch
+        serverConfig.setDatabaseSequenceBatchSize(config.getIngestBatchSize());
 //        serverConfig.setTransactionLogging(TxLogLevel.NONE);
 //       serverConfig.setTransactionLogDirectory(config.getNetviewHome().getAbsolutePath() + File.separator + "ebean.logs");
 
-        //    -> entities
-        serverConfig.addClass(ProbeStats.class);
-        serverConfig.addClass(ProbeLocation.class);
-        serverConfig.addClass(InterfaceStats.class);
-        serverConfig.addClass(RawTrackData.class);
-        serverConfig.addClass(TrackData.class);
-        serverConfig.addClass(BearerInformation.class);
-        serverConfig.addClass(Network.class);
-        serverConfig.addClass(Node.class);
-        serverConfig.addClass(NodeViewProperties.class);
-        serverConfig.addClass(Probe.class);
-        serverConfig.addClass(NodeMeasurementProperties.class);
-        serverConfig.addClass(NodePhysicalProperties.class);
-        serverConfig.addClass(WayPoint.class);
-
-        // autofetch
-        AutofetchConfig autofetchConfig = new AutofetchConfig();
-        autofetchConfig.setMode(AutofetchMode.DEFAULT_OFF);
-        autofetchConfig.setQueryTuning(false);
-        serverConfig.setAutofetchConfig(autofetchConfig);
-
-
         //  auto create db if does not exist
         if (!(config.getDbFile()).exists()) {
             serverConfig.setDdlGenerate(true);
@@ -166,9 +164,17 @@ public class NetViewDB {
             this.eServer.createSqlUpdate("create index ix_pkt_record on raw_track_data (record_id);").execute();
             this.eServer.createSqlUpdate("create index ix_pkt_probe on raw_track_data (probe_id);").execute();
             this.eServer.createSqlUpdate("create index ix_pkt_track on raw_track_data (track_id);").execute();
+            this.eServer.createSqlUpdate("create index ix_pkt_flow on raw_track_data (flow_key);").execute();
             this.eServer.createSqlUpdate("create index ix_track_start on track_data (start_ts);").execute();
             this.eServer.createSqlUpdate("create index ix_track_time on track_data (start_ts, stop_ts);").execute();
             this.eServer.createSqlUpdate("create index ix_track_id on track_data (track_id);").execute();
+            this.eServer.createSqlUpdate("create index ix_rollup_bucket on track_rollup (resolution, bucket, track_id);").execute();
+            this.eServer.createSqlUpdate("create index ix_hop_rollup_bucket on hop_rollup (bucket);").execute();
+            this.eServer.createSqlUpdate("create index ix_hop_rollup_source on hop_rollup (source_day);").execute();
+            this.eServer.createSqlUpdate("create index ix_hop_rollup_track on hop_rollup (track_id, bucket);").execute();
+            this.eServer.createSqlUpdate("create index ix_interface_rollup_bucket on interface_stats_rollup (bucket);").execute();
+            this.eServer.createSqlUpdate("create index ix_interface_rollup_source on interface_stats_rollup (source_day);").execute();
+            this.eServer.createSqlUpdate("create index ix_interface_rollup_oid on interface_stats_rollup (oid, bucket);").execute();
             this.eServer.createSqlUpdate("create index ix_interface_oid on interface_stats (oid);").execute();
             this.eServer.createSqlUpdate("create index ix_interface_timestamp on interface_stats (timestamp);").execute();
             this.eServer.createSqlUpdate("create index ix_probe_oid on probe_stats (oid);").execute();
@@ -177,7 +183,14 @@ public class NetViewDB {
 
         } else {
             this.eServer = EbeanServerFactory.create(serverConfig);
+            migrateFlowKeys();
+            migrateTrackRollups();
+            migrateCompactionRollups();
+            migrateTrackPaths();
         }
+        ServerConfig queryConfig = createServerConfig("query", this.readPool);
+        queryConfig.setDefaultServer(false);
+        this.queryServer = EbeanServerFactory.create(queryConfig);
         //
         // Xml import / export
         //
@@ -191,25 +204,517 @@ public class NetViewDB {
         }
 
 
-        this.trackRepository = new TrackRepository(this.eServer,
-                this.scheduler, this.model.getProbeIdMarkerMap());
+        this.flowKeys = new FlowKeyDictionary(this.eServer);
+        this.flowKeys.load();
+        this.partitions = new TablePartitions(this.eServer);
+        this.partitions.init();
+        // the ingest writers, the archive and the retention manager only
+        // work on the database tables, the memory and file engines keep
+        // their records themselves
+        String engine = config.getStorageEngine();
+        boolean database = !"memory".equals(engine) && !"file".equals(engine);
+        if (database) {
+            this.archive = new TrackArchive(this.eServer, this.partitions,
+                    new File(config.getNetviewHome(), "archive"));
+            this.archive.init();
+            this.partitions.setArchive(this.archive);
+        } else {
+            this.archive = null;
+        }
+        this.trackPaths = new TrackPathCache(this.eServer, this.partitions,
+                config.getTrackPathCacheSize());
+        this.trackPaths.load();
+        this.hotWindow = new HotWindow(TimeUnit.MINUTES.toMillis(config.getHotWindowMinutes()),
+                config.getHotWindowCapacity());
+        resetHotWindow();
+        this.statsIndex = new StatsIndex(this.queryServer, this.partitions,
+                TimeUnit.MINUTES.toMillis(config.getStatsIndexSpanMinutes()));
+        this.statsIndex.init();
+        this.resultCache = new ResultCache(config.getResultCacheMegabytes() * 1024L * 1024L);
+        advanceResultCache();
+        String gazetteer = config.getGazetteerFile();
+        this.locationResolver = new LocationResolver(new File(config.getNetviewHome(), "geonames.cache"),
+                gazetteer != null && gazetteer.length() > 0 ? new File(gazetteer) : null,
+                config.isGeonamesWebService(), config.getGeonamesThreads());
+        this.locationResolver.init();
+        if (database) {
+            this.ingestPipeline = new TrackIngestPipeline(this.eServer, this.flowKeys, this.trackPaths,
+                    this.partitions, config.getIngestBatchSize(), config.getIngestMaxFlushLatency(),
+                    config.getIngestQueueCapacity(), config.getIngestWriterThreads());
+            this.ingestPipeline.setHotWindow(this.hotWindow);
+            this.ingestPipeline.setStatsIndex(this.statsIndex);
+            this.ingestPipeline.setResultCache(this.resultCache);
+            this.ingestPipeline.init();
+            this.ingestPipeline.start();
+        } else {
+            this.ingestPipeline = null;
+        }
+        this.storage = createStorageEngine();
+        this.storage.init();
+        this.storage.start();
+        // the spool and the stats pipeline write to the database
+        boolean h2 = this.storage instanceof H2StorageEngine;
+        if (h2 && config.isCollectorSpool()) {
+            this.spool = new SpoolLog(new File(config.getNetviewHome(), "spool"), this.ingestPipeline,
+                    config.getSpoolSegmentSize(), config.getSpoolMaxSegments());
+            this.spool.init();
+            this.spool.start();
+        } else {
+            this.spool = null;
+        }
+        if (h2 && config.isStatsDatagramEnabled()) {
+            // stats received as datagrams get their own writer
+            this.statsPipeline = new TrackIngestPipeline(this.eServer, this.flowKeys, this.trackPaths,
+                    this.partitions, config.getIngestBatchSize(), config.getIngestMaxFlushLatency(),
+                    config.getIngestQueueCapacity(), 1);
+            this.statsPipeline.setHotWindow(this.hotWindow);
+            this.statsPipeline.setStatsIndex(this.statsIndex);
+            this.statsPipeline.setResultCache(this.resultCache);
+            this.statsPipeline.init();
+            this.statsPipeline.start();
+        } else {
+            this.statsPipeline = null;
+        }
 
+        this.trackRepository = new TrackRepository(this.storage, this.scheduler,
+                this.model.getProbeIdMarkerMap());
+        this.trackRepository.setResultCache(this.resultCache);
+        this.bulkImporter = new BulkImporter(this.eServer, this.flowKeys, this.trackPaths,
+                this.partitions, this.scheduler, config.getImportBatchSize(), config.getImportWriterThreads(),
+                config.getImportFileConcurrency());
+        this.bulkImporter.setHotWindow(this.hotWindow);
+        this.bulkImporter.setStatsIndex(this.statsIndex);
+        this.bulkImporter.setResultCache(this.resultCache);
+
+        int[] rollupDays = config.getRetentionRollupDays();
+        long[] rollupRetention = new long[TrackRollup.RESOLUTIONS.length];
+        for (int i = 0; i < rollupRetention.length && i < rollupDays.length; i++) {
+            rollupRetention[i] = TimeUnit.DAYS.toMillis(rollupDays[i]);
+        }
+        this.trackRepository.setRollupRetention(rollupRetention);
+        if (h2) {
+            this.retention = new RetentionManager(this.eServer, this.partitions, this.archive,
+                    TimeUnit.DAYS.toMillis(config.getArchiveAfterDays()),
+                    TimeUnit.DAYS.toMillis(config.getRetentionRawDays()),
+                    TimeUnit.DAYS.toMillis(config.getRetentionStatsDays()), rollupRetention,
+                    TimeUnit.MINUTES.toMillis(config.getRetentionInterval()));
+            this.retention.init();
+            this.retention.start();
+        } else {
+            this.retention = null;
+        }
+        this.poolSampler = startPoolSampler();
     }
 
     public void shutdown() {
+        poolSampler.cancel(false);
+        if (retention != null) {
+            retention.stop();
+        }
+        if (spool != null) {
+            spool.stop();
+        }
+        if (ingestPipeline != null) {
+            ingestPipeline.stop();
+        }
+        if (statsPipeline != null) {
+            statsPipeline.stop();
+        }
+        storage.stop();
+        locationResolver.shutdown();
         // FIXME we shouldn't need to shutdown Ebean manually 
 
         ShutdownManager.shutdown();
+        readPool.shutdown();
+        writePool.shutdown();
+    }
+
+    /**
+     * Create the storage engine selected by the configuration, unknown names
+     * fall back to the database.
+     */
+    private StorageEngine createStorageEngine() {
+        String name = config.getStorageEngine();
+        if ("memory".equals(name)) {
+            MemoryStorageEngine memory = new MemoryStorageEngine(config.getStorageCapacity());
+            memory.setResultCache(this.resultCache);
+            return memory;
+        }
+        if ("file".equals(name)) {
+            FileStorageEngine file = new FileStorageEngine(new File(config.getNetviewHome(), "records"),
+                    config.getStorageCapacity());
+            file.setResultCache(this.resultCache);
+            file.setScheduler(this.scheduler);
+            return file;
+        }
+        if (!"h2".equals(name)) {
+            logger.warn("Unknown storage engine: " + name + ", using h2");
+        }
+        H2StorageEngine h2 = new H2StorageEngine(this.eServer, this.queryServer, this.partitions,
+                this.trackPaths, this.ingestPipeline);
+        h2.setHotWindow(this.hotWindow);
+        h2.setStatsIndex(this.statsIndex);
+        return h2;
+    }
+
+    private DataSourceConfig createDataSourceConfig(int poolSize) {
+        DataSourceConfig dataSourceConfig = new DataSourceConfig();
+        dataSourceConfig.setDriver(config.getDbDriver());
+        dataSourceConfig.setUsername(config.getDbUser());
+        dataSourceConfig.setPassword(config.getDbPass());
+        dataSourceConfig.setUrl(config.getDbUrl());
+        dataSourceConfig.setMinConnections(Math.min(2, poolSize));
+        dataSourceConfig.setMaxConnections(poolSize);
+        // keeps the hot queries of each partition prepared
+        dataSourceConfig.setPstmtCacheSize(STATEMENT_CACHE_SIZE);
+        return dataSourceConfig;
+    }
+
+    private ServerConfig createServerConfig(String name, DataSource dataSource) {
+        ServerConfig serverConfig = new ServerConfig();
+        serverConfig.setName(name);
+        serverConfig.setDataSource(dataSource);
+        serverConfig.setDatabasePlatform(new H2Platform());
+
+        //    -> entities
+        serverConfig.addClass(ProbeStats.class);
+        serverConfig.addClass(ProbeLocation.class);
+        serverConfig.addClass(InterfaceStats.class);
+        serverConfig.addClass(RawTrackData.class);
+        serverConfig.addClass(FlowKey.class);
+        serverConfig.addClass(TrackData.class);
+        serverConfig.addClass(TrackRollup.class);
+        serverConfig.addClass(TrackPath.class);
+        serverConfig.addClass(HopRollup.class);
+        serverConfig.addClass(InterfaceStatsRollup.class);
+        serverConfig.addClass(BearerInformation.class);
+        serverConfig.addClass(Network.class);
+        serverConfig.addClass(Node.class);
+        serverConfig.addClass(NodeViewProperties.class);
+        serverConfig.addClass(Probe.class);
+        serverConfig.addClass(NodeMeasurementProperties.class);
+        serverConfig.addClass(NodePhysicalProperties.class);
+        serverConfig.addClass(WayPoint.class);
+
+        // autofetch
+        AutofetchConfig autofetchConfig = new AutofetchConfig();
+        autofetchConfig.setMode(AutofetchMode.DEFAULT_OFF);
+        autofetchConfig.setQueryTuning(false);
+        serverConfig.setAutofetchConfig(autofetchConfig);
+        return serverConfig;
+    }
+
+    /**
+     * Sample the busy connections of both pools every second and log a
+     * report every report interval.
+     */
+    private ScheduledFuture<?> startPoolSampler() {
+        final int reportInterval = config.getDbPoolReportInterval();
+        return scheduler.scheduleAtFixedRate(new Runnable() {
+
+            private int seconds = 0;
+
+            @Override
+            public void run() {
+                writePool.sample();
+                readPool.sample();
+                if (reportInterval > 0 && ++seconds % reportInterval == 0) {
+                    logger.info("connection pool {}", writePool);
+                    logger.info("connection pool {}", readPool);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Empty the hot window, it accepts rows later than the latest stored ones.
+     */
+    private void resetHotWindow() {
+        long ts = Math.max(partitions.maxTs(TablePartitions.TRACK_DATA),
+                partitions.maxTs(TablePartitions.RAW_TRACK_DATA));
+        hotWindow.reset(ts == Long.MIN_VALUE ? ts : ts + 1);
+    }
+
+    /**
+     * Start the cache watermarks at the latest stored rows.
+     */
+    private void advanceResultCache() {
+        resultCache.advance(ResultCache.Source.TRACKS, Math.max(partitions.maxTs(TablePartitions.TRACK_DATA),
+                partitions.maxTs(TablePartitions.RAW_TRACK_DATA)));
+        resultCache.advance(ResultCache.Source.INTERFACE_STATS,
+                partitions.maxTs(TablePartitions.INTERFACE_STATS));
+        resultCache.advance(ResultCache.Source.PROBE_STATS, partitions.maxTs(TablePartitions.PROBE_STATS));
+    }
+
+    /**
+     * Move the 5-tuple columns of raw track data created by previous versions
+     * into the flow key dictionary.
+     */
+    private void migrateFlowKeys() {
+        if (hasColumn("RAW_TRACK_DATA", "FLOW_KEY")) {
+            return;
+        }
+        logger.info("migrating raw track data to flow key dictionary");
+        String[] statements = {
+            "create table flow_key (uid integer not null, source_address varchar(255), "
+                + "source_port integer, destination_address varchar(255), "
+                + "destination_port integer, protocol_identifier smallint, "
+                + "constraint pk_flow_key primary key (uid))",
+            "create sequence flow_key_seq",
+            "insert into flow_key (uid, source_address, source_port, destination_address, "
+                + "destination_port, protocol_identifier) select next value for flow_key_seq, "
+                + "source_address, source_port, destination_address, destination_port, "
+                + "protocol_identifier from (select distinct source_address, source_port, "
+                + "destination_address, destination_port, protocol_identifier from raw_track_data)",
+            "create index ix_flow_key_tuple on flow_key (source_address, source_port, "
+                + "destination_address, destination_port, protocol_identifier)",
+            "alter table raw_track_data add column flow_key integer",
+            "update raw_track_data r set flow_key = (select k.uid from flow_key k "
+                + "where k.source_address = r.source_address and k.source_port = r.source_port "
+                + "and k.destination_address = r.destination_address "
+                + "and k.destination_port = r.destination_port "
+                + "and k.protocol_identifier = r.protocol_identifier)",
+            "drop index ix_flow_key_tuple",
+            "alter table raw_track_data drop column source_address",
+            "alter table raw_track_data drop column source_port",
+            "alter table raw_track_data drop column destination_address",
+            "alter table raw_track_data drop column destination_port",
+            "alter table raw_track_data drop column protocol_identifier",
+            "create index ix_pkt_flow on raw_track_data (flow_key)"
+        };
+        execute(statements);
+    }
+
+    /**
+     * Create the track rollups of databases created by previous versions from
+     * the stored tracks. Rollups of a single resolution are rebuilt.
+     */
+    private void migrateTrackRollups() {
+        if (hasColumn("TRACK_ROLLUP", "RESOLUTION")) {
+            return;
+        }
+        logger.info("creating track rollups");
+        List<String> statements = new ArrayList<String>();
+        statements.add("drop table if exists track_rollup");
+        statements.add("drop sequence if exists track_rollup_seq");
+        statements.add("create table track_rollup (uid integer not null, resolution bigint, "
+                + "bucket bigint, track_id integer, volume bigint, delay_sum bigint, "
+                + "min_start bigint, max_stop bigint, constraint pk_track_rollup primary key (uid))");
+        statements.add("create sequence track_rollup_seq");
+        for (long resolution : TrackRollup.RESOLUTIONS) {
+            String bucket = "(start_ts - mod(start_ts, " + resolution + "))";
+            statements.add("insert into track_rollup (uid, resolution, bucket, track_id, "
+                    + "volume, delay_sum, min_start, max_stop) select next value for "
+                    + "track_rollup_seq, " + resolution + ", bucket, track_id, volume, "
+                    + "delay_sum, min_start, max_stop from (select " + bucket + " as bucket, "
+                    + "track_id, count(*) as volume, sum(delay) as delay_sum, "
+                    + "min(start_ts) as min_start, max(stop_ts) as max_stop from track_data "
+                    + "group by " + bucket + ", track_id)");
+        }
+        statements.add("create index ix_rollup_bucket on track_rollup (resolution, bucket, track_id)");
+        execute(statements.toArray(new String[statements.size()]));
+    }
+
+    /**
+     * Create the rollup tables expired raw hops and interface stats are
+     * compacted into, if the database was created by a previous version.
+     */
+    private void migrateCompactionRollups() {
+        List<String> statements = new ArrayList<String>();
+        if (!hasTable("HOP_ROLLUP")) {
+            statements.add("create table hop_rollup (uid integer not null, resolution bigint, "
+                    + "bucket bigint, track_id integer, hop_number integer, volume bigint, "
+                    + "delay_sum bigint, min_delay bigint, max_delay bigint, source_day bigint, "
+                    + "constraint pk_hop_rollup primary key (uid))");
+            statements.add("create sequence hop_rollup_seq");
+            statements.add("create index ix_hop_rollup_bucket on hop_rollup (bucket)");
+            statements.add("create index ix_hop_rollup_source on hop_rollup (source_day)");
+            statements.add("create index ix_hop_rollup_track on hop_rollup (track_id, bucket)");
+        }
+        if (!hasTable("INTERFACE_STATS_ROLLUP")) {
+            statements.add("create table interface_stats_rollup (uid bigint not null, "
+                    + "resolution bigint, bucket bigint, oid bigint, interface_name varchar(255), "
+                    + "samples bigint, sampling_size bigint, packet_delta_count bigint, "
+                    + "pcap_stat_recv bigint, pcap_stat_drop bigint, source_day bigint, "
+                    + "constraint pk_interface_stats_rollup primary key (uid))");
+            statements.add("create sequence interface_stats_rollup_seq");
+            statements.add("create index ix_interface_rollup_bucket on interface_stats_rollup (bucket)");
+            statements.add("create index ix_interface_rollup_source on interface_stats_rollup (source_day)");
+            statements.add("create index ix_interface_rollup_oid on interface_stats_rollup (oid, bucket)");
+        }
+        if (!statements.isEmpty()) {
+            logger.info("creating compaction rollup tables");
+            execute(statements.toArray(new String[statements.size()]));
+        }
+    }
+
+    /**
+     * Create the track path table if the database was created by a previous
+     * version. Paths of stored tracks are added when they are first looked
+     * up.
+     */
+    private void migrateTrackPaths() {
+        if (hasTable("TRACK_PATH")) {
+            return;
+        }
+        logger.info("creating track path table");
+        execute(new String[]{
+                    "create table track_path (track_id integer not null, first_ts bigint, "
+                    + "probes varchar(4000), constraint pk_track_path primary key (track_id))",
+                    "create sequence track_path_seq"
+                });
+    }
+
+    private boolean hasTable(String table) {
+        SqlRow row = eServer.createSqlQuery("SELECT count(*) AS n FROM information_schema.tables "
+                + "WHERE table_name = :table")
+                .setParameter("table", table).findUnique();
+        return row.getInteger("n") > 0;
+    }
+
+    private boolean hasColumn(String table, String column) {
+        SqlRow row = eServer.createSqlQuery("SELECT count(*) AS n FROM information_schema.columns "
+                + "WHERE table_name = :table AND column_name = :column")
+                .setParameter("table", table)
+                .setParameter("column", column).findUnique();
+        return row.getInteger("n") > 0;
+    }
+
+    private void execute(String[] statements) {
+        try {
+            eServer.beginTransaction();
+            for (String statement : statements) {
+                eServer.createSqlUpdate(statement).execute();
+            }
+            eServer.commitTransaction();
+        } finally {
+            eServer.endTransaction();
+        }
     }
 
     public EbeanServer getEbeanServer() {
         return eServer;
     }
 
+    /**
+     * 
+     * @return server reading through the read pool, for charts, preloading
+     *         and exports
+     */
+    public EbeanServer getQueryServer() {
+        return queryServer;
+    }
+
+    public MeteredDataSource getWritePool() {
+        return writePool;
+    }
+
+    public MeteredDataSource getReadPool() {
+        return readPool;
+    }
+
     public TrackRepository getTrackRepository() {
         return trackRepository;
     }
 
+    public TablePartitions getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * 
+     * @return archive of raw hops, null unless the records are stored in the
+     *         database
+     */
+    public TrackArchive getArchive() {
+        return archive;
+    }
+
+    public HotWindow getHotWindow() {
+        return hotWindow;
+    }
+
+    public LocationResolver getLocationResolver() {
+        return locationResolver;
+    }
+
+    public StatsIndex getStatsIndex() {
+        return statsIndex;
+    }
+
+    /**
+     * 
+     * @return pipeline writing records to the database, null unless the
+     *         records are stored there
+     */
+    public TrackIngestPipeline getIngestPipeline() {
+        return ingestPipeline;
+    }
+
+    public StorageEngine getStorageEngine() {
+        return storage;
+    }
+
+    /**
+     * Per packet charts, node stats charts, the delay CSV export and the bulk
+     * import read or write the database tables directly, they are only
+     * available if the records are stored there.
+     * 
+     * @return whether the storage engine is the database
+     */
+    public boolean isDatabaseStorage() {
+        return storage instanceof H2StorageEngine;
+    }
+
+    /**
+     * 
+     * @return cache of chart query results
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public BulkImporter getBulkImporter() {
+        return bulkImporter;
+    }
+
+    /**
+     * 
+     * @return write-ahead spool the collector writes to, null if disabled
+     */
+    public SpoolLog getSpool() {
+        return spool;
+    }
+
+    /**
+     * 
+     * @return pipeline writing stats received as datagrams, null if disabled
+     */
+    public TrackIngestPipeline getStatsPipeline() {
+        return statsPipeline;
+    }
+
+    /**
+     * 
+     * @return repository stats received as datagrams are written to, null if
+     *         disabled
+     */
+    public TrackRecordRepository getStatsSink() {
+        if (statsPipeline != null) {
+            return statsPipeline;
+        }
+        return config.isStatsDatagramEnabled() ? storage : null;
+    }
+
+    /**
+     * 
+     * @return retention manager, null unless the records are stored in the
+     *         database
+     */
+    public RetentionManager getRetention() {
+        return retention;
+    }
+
     public List<Network> getNetworks() {
         return eServer.find(Network.class).join("nodes").join("nodes.view").join("nodes.phy").join("nodes.phy.waypoint").join("nodes.mp").orderBy("label").findList();
     }
@@ -247,13 +752,8 @@ public class NetViewDB {
         return true;
     }
 
-    public boolean locationAlreadyRegistered(Node node, List<SqlRow> receivedLocations) {
-        for (SqlRow row : receivedLocations) {
-            if ((Long) row.get("oid") == node.getMp().getProbe().getProbeId()) {
-                return true;
-            }
-        }
-        return false;
+    public boolean locationAlreadyRegistered(Node node, Set<Long> locatedProbes) {
+        return locatedProbes.contains(node.getMp().getProbe().getProbeId());
     }
 
     public void setPreviousEntries(Node node) {
@@ -298,15 +798,25 @@ public class NetViewDB {
         FileReader fr = new FileReader(file);
         List<Node> nodes = (List<Node>) xstream.fromXML(fr);
 
-        List<SqlRow> receivedLocations = trackRepository.getFirstPositions();
+        Set<Long> receivedLocations = trackRepository.getNodesByProbeId().keySet();
         List<Node> newNodes = new ArrayList<Node>();
-        Set<Node> RepoNodes = trackRepository.getNodesHashSet();
+        Map<Long, List<Node>> repoNodes = new HashMap<Long, List<Node>>();
+        for (Node node : trackRepository.getNodesHashSet()) {
+            long probeId = node.getMp().getProbe().getProbeId();
+            List<Node> probeNodes = repoNodes.get(probeId);
+            if (probeNodes == null) {
+                probeNodes = new ArrayList<Node>(1);
+                repoNodes.put(probeId, probeNodes);
+            }
+            probeNodes.add(node);
+        }
         for (Node node : nodes) {
 
             // Setting the new Names and the IP-Address immediately
             setPreviousEntries(node);
-            for (Node node2 : RepoNodes) {
-                if (node2.getMp().getProbe().getProbeId() == node.getMp().getProbe().getProbeId()) {
+            List<Node> probeNodes = repoNodes.get(node.getMp().getProbe().getProbeId());
+            if (probeNodes != null) {
+                for (Node node2 : probeNodes) {
                     node2.getView().setLabel(node.getView().getLabel());
                     node2.getMp().getProbe().setLabel(node.getMp().getProbe().getLabel());
                 }
@@ -355,14 +865,13 @@ public class NetViewDB {
     }
 
     public List<Node> getNewNodes(Set<Node> nodeSet) {
-        List<Long> uids = new ArrayList<Long>();
+        Set<Long> uids = new HashSet<Long>();
         for (Node tempNode : nodeSet) {
             uids.add(tempNode.getUid());
         }
-        List<Node> repoNodes = trackRepository.getNodes();
         List<Node> newNodes = new ArrayList<Node>();
-        for (Node tempNode : repoNodes) {
-            if (!uidAlreadyReaded(uids, tempNode)) {
+        for (Node tempNode : trackRepository.getNodes()) {
+            if (!uids.contains(tempNode.getUid())) {
                 newNodes.add(tempNode);
             }
         }
@@ -381,12 +890,16 @@ public class NetViewDB {
     public void importNodesAlternative(Model model, Set<Node> nodeSet) {
         List<Node> newNodes = getNewNodes(nodeSet);
         for (Node node : newNodes) {
+            boolean unresolved = false;
             if (node.getView().getLabel().substring(node.getView().getLabel().indexOf("@") + 1).equals("Unknown")) {
-                String locationName = trackRepository.getLocationNameOverWebservice(
-                        node.getMp().getProbe().getProbeId(),
+                String locationName = locationResolver.getCached(
                         node.getPhy().getWaypoint().getLatitude(),
                         node.getPhy().getWaypoint().getLongitude());
-                node.getView().setLabel(node.getView().getLabel().substring(0, node.getView().getLabel().indexOf("@") + 1) + locationName);
+                if (locationName != null) {
+                    node.getView().setLabel(node.getView().getLabel().substring(0, node.getView().getLabel().indexOf("@") + 1) + locationName);
+                } else {
+                    unresolved = true;
+                }
             }
             model.getNodeStatsLayer().previousNames.put(
                     node.getMp().getProbe().getProbeId(),
@@ -427,16 +940,52 @@ public class NetViewDB {
             } finally {
                 eServer.endTransaction();
             }
+            if (unresolved) {
+                resolveLocationName(model, node);
+            }
         }
     }
 
-    public boolean uidAlreadyReaded(List<Long> uids, Node node) {
-        for (long uid : uids) {
-            if (node.getUid() == uid) {
-                return true;
+    /**
+     * Look up the location name of an imported node in the background and
+     * relabel the node once it is known.
+     */
+    private void resolveLocationName(final Model model, Node node) {
+        final long uid = node.getUid();
+        final long probeId = node.getMp().getProbe().getProbeId();
+        locationResolver.resolve(node.getPhy().getWaypoint().getLatitude(),
+                node.getPhy().getWaypoint().getLongitude(), new LocationResolver.Listener() {
+
+            @Override
+            public void resolved(final String locationName) {
+                if (LocationResolver.UNKNOWN.equals(locationName)) {
+                    return;
+                }
+                Node nodeBean = getNodeFromUid(uid);
+                if (nodeBean == null) {
+                    return;
+                }
+                String label = NodeViewProperties.getLabel(nodeBean);
+                final String newLabel = label.substring(0, label.indexOf("@") + 1) + locationName;
+                NodeViewProperties.setLabel(nodeBean, newLabel);
+                eServer.save(nodeBean);
+                logger.debug("resolved location of probe {}: {}", probeId, locationName);
+                SwingUtilities.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        model.getNodeStatsLayer().previousLocationNames.put(probeId, locationName);
+                        if (model.network != null && model.network.getNodes() != null) {
+                            for (Node n : model.network.getNodes()) {
+                                if (n.getUid() == uid) {
+                                    NodeViewProperties.setLabel(n, newLabel);
+                                }
+                            }
+                        }
+                    }
+                });
             }
-        }
-        return false;
+        });
     }
 
     public Node getNodeFromUid(long uid) {
@@ -489,71 +1038,34 @@ public class NetViewDB {
      * 
      */
     public void purgePacketTracks() {
-        try {
-            eServer.beginTransaction();
-            eServer.createSqlUpdate("delete from RAW_TRACK_DATA").execute();
-            eServer.createSqlUpdate("delete from TRACK_DATA").execute();
-            eServer.createSqlUpdate("delete from INTERFACE_STATS").execute();
-            eServer.createSqlUpdate("delete from PROBE_STATS").execute();
-            eServer.commitTransaction();
-        } finally {
-            eServer.endTransaction();
+        storage.clear();
+        if (archive != null) {
+            archive.deleteAll(TablePartitions.RAW_TRACK_DATA);
         }
-
+        resultCache.clear();
     }
 
     /**
-     * Import tracks/stats from a File (object stream).
+     * Import tracks/stats from a File (object stream or binary wire format)
+     * and wait for the import to finish.
      * @param f
      * @return the number of objects imported from the file.
      */
     public int importTracks(File file) {
-        ObjectInputStream ois = null;
-        Object obj = null;
-        int count = 0;
-
+        if (!isDatabaseStorage()) {
+            logger.warn("importing needs the h2 storage engine");
+            return 0;
+        }
         try {
-            ois = new ObjectInputStream(new FileInputStream(file));
-
-            while (true) {
-                obj = ois.readObject();
-                if (obj != null) {
-                    if (obj instanceof PacketTrackRecord) {
-                        trackRepository.addPacketTrackRecord((PacketTrackRecord) obj);
-                        count++;
-                    } else if (obj instanceof PtInterfaceStats) {
-                        trackRepository.addPtInterfaceStats((PtInterfaceStats) obj);
-                        count++;
-                    } else if (obj instanceof PtProbeStats) {
-                        trackRepository.addPtProbeStats((PtProbeStats) obj);
-                        count++;
-                    } else if (obj instanceof PtBearerInformation) {
-                        trackRepository.addBearerInformation((PtBearerInformation) obj);
-                        count++;
-                    } else {
-                        logger.warn("Unexpected object of class " + obj.getClass() + " in object stream.");
-                    }
-                }
-
-            }
-        } catch (EOFException eof) {
-            /* NOP */
-        } catch (IOException ioe) {
-            logger.warn("IO error while reading " + file.getAbsolutePath());
-            ioe.printStackTrace();
-        } catch (ClassNotFoundException cnfe) {
-            logger.warn("Unknown  class in object stream.");
-            cnfe.printStackTrace();
-        } finally {
-            if (ois != null) {
-                try {
-                    ois.close();
-                } catch (IOException e) {
-                    /* NOP */
-                }
-            }
+            bulkImporter.start(Collections.singletonList(file), null);
+            return (int) bulkImporter.awaitCompletion();
+        } catch (InterruptedException e) {
+            bulkImporter.cancel();
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            logger.warn(e.getMessage());
         }
-        return count;
+        return 0;
     }
 
     /**
@@ -571,8 +1083,6 @@ public class NetViewDB {
             eServer.createSqlUpdate("delete from node_view_properties").execute();
             eServer.createSqlUpdate("delete from node_measurement_properties").execute();
             eServer.createSqlUpdate("delete from probe").execute();
-            eServer.createSqlUpdate("delete from PROBE_STATS").execute();
-            eServer.createSqlUpdate("delete from INTERFACE_STATS").execute();
             eServer.createSqlUpdate("delete from NETWORK").execute();
 
 
@@ -581,11 +1091,19 @@ public class NetViewDB {
         } finally {
             eServer.endTransaction();
         }
+        partitions.dropAll(TablePartitions.PROBE_STATS);
+        partitions.dropAll(TablePartitions.INTERFACE_STATS);
+        eServer.createSqlUpdate("delete from INTERFACE_STATS_ROLLUP").execute();
+        statsIndex.clear();
     }
 
     public long getPacketTrackCount() {
-        SqlRow row = eServer.createSqlQuery("select count(*) as n from track_data").findUnique();
-        return row.getLong("n");
+        long count = 0;
+        for (String table : partitions.list(TablePartitions.TRACK_DATA)) {
+            SqlRow row = eServer.createSqlQuery("select count(*) as n from " + table).findUnique();
+            count += row.getLong("n");
+        }
+        return count;
     }
 
     /**
@@ -79,24 +79,6 @@ public class RawTrackData {
             this.nextHop = record.oids[i + 1];
             this.delay = record.ts[i + 1] - record.ts[i];
         }
-
-        // Not all records contain source addresses
-        if (record.sourceAddress != null) {
-            this.sourceAddress = record.sourceAddress.toString().substring(1);
-        } else {
-            this.sourceAddress = "unkown source";
-        }
-
-        // Not all records contain destination addresses
-        if (record.destinationAddress != null) {
-            this.destinationAddress = record.destinationAddress.toString().substring(1);
-        } else {
-            this.destinationAddress = "unkown destination";
-        }
-        
-        this.sourcePort = record.sourcePort;
-        this.destinationPort = record.destinationPort;
-        this.protocolIdentifier = record.protocolIdentifier;
     }
     /**
      * Unique Id
@@ -123,16 +105,11 @@ public class RawTrackData {
     private long delay;
     @Column
     private int hopNumber;
+    /**
+     * Id of the flow 5-tuple, see {@link FlowKey}
+     */
     @Column
-    private String sourceAddress;
-    @Column
-    private int sourcePort;
-    @Column
-    private String destinationAddress;
-    @Column
-    private int destinationPort;
-    @Column
-    private short protocolIdentifier;
+    private int flowKey;
 
     public int getUid() {
         return uid;
@@ -222,43 +199,11 @@ public class RawTrackData {
         this.hopNumber = hopNumber;
     }
 
-    public String getDestinationAddress() {
-        return destinationAddress;
-    }
-
-    public void setDestinationAddress(String destinationAddress) {
-        this.destinationAddress = destinationAddress;
-    }
-
-    public int getDestinationPort() {
-        return destinationPort;
-    }
-
-    public void setDestinationPort(int destinationPort) {
-        this.destinationPort = destinationPort;
-    }
-
-    public String getSourceAddress() {
-        return sourceAddress;
-    }
-
-    public void setSourceAddress(String sourceAddress) {
-        this.sourceAddress = sourceAddress;
+    public int getFlowKey() {
+        return flowKey;
     }
 
-    public int getSourcePort() {
-        return sourcePort;
-    }
-
-    public void setSourcePort(int sourcePort) {
-        this.sourcePort = sourcePort;
-    }
-
-    public short getProtocolIdentifier() {
-        return this.protocolIdentifier;
-    }
-    
-    public void setProtocolIdentifier(short protocolIdentifier) {
-        this.protocolIdentifier = protocolIdentifier;    
+    public void setFlowKey(int flowKey) {
+        this.flowKey = flowKey;
     }
 }
@@ -0,0 +1,368 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.SqlRow;
+
+/**
+ * Shared cache of chart query results, keyed by entity, time window and query.
+ * Entries are evicted least recently used first once their estimated size
+ * exceeds the memory budget.
+ * <p>
+ * The ingest paths advance a watermark per source, the latest timestamp
+ * stored. An entry remembers the watermark it was loaded at and stays valid
+ * until the watermark advances into its window; rows arriving later than the
+ * watermark for an earlier time are not noticed. Bulk imports, which mostly
+ * store such rows, clear the cache when they end.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ * 
+ */
+public class ResultCache {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // --
+    /**
+     * Estimated bytes of an entry without its value, a row without its
+     * values, a primitive and a boxed value.
+     */
+    private static final long ENTRY_BYTES = 128;
+    private static final long ROW_BYTES = 32;
+    private static final long VALUE_BYTES = 8;
+    private static final long OBJECT_BYTES = 48;
+    /**
+     * Width of the buckets window ends are rounded down to, 1 s in database
+     * time units and in milliseconds
+     */
+    private static final long TRACKS_BUCKET = TrackRollup.RESOLUTIONS[0];
+    private static final long STATS_BUCKET = 1000;
+
+    /**
+     * Timestamp series a cached query reads.
+     */
+    public enum Source {
+
+        /**
+         * Track records and hops, in database time units
+         */
+        TRACKS,
+        /**
+         * Interface stats, in milliseconds
+         */
+        INTERFACE_STATS,
+        /**
+         * Probe stats, in milliseconds
+         */
+        PROBE_STATS
+    }
+
+    /**
+     * Runs a query on a cache miss.
+     */
+    public interface Loader<T> {
+
+        T load();
+
+        /**
+         * 
+         * @return estimated bytes held by the result
+         */
+        long sizeOf(T result);
+    }
+
+    private static final class Key {
+
+        final Source source;
+        final String entity;
+        final long from;
+        final long to;
+        final String query;
+
+        Key(Source source, String entity, long from, long to, String query) {
+            this.source = source;
+            this.entity = entity;
+            this.from = from;
+            this.to = to;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) obj;
+            return source == k.source && from == k.from && to == k.to
+                    && entity.equals(k.entity) && query.equals(k.query);
+        }
+
+        @Override
+        public int hashCode() {
+            int h = source.hashCode();
+            h = 31 * h + entity.hashCode();
+            h = 31 * h + (int) (from ^ (from >>> 32));
+            h = 31 * h + (int) (to ^ (to >>> 32));
+            return 31 * h + query.hashCode();
+        }
+    }
+
+    private static final class Entry {
+
+        final Object result;
+        final long watermark;
+        final long bytes;
+
+        Entry(Object result, long watermark, long bytes) {
+            this.result = result;
+            this.watermark = watermark;
+            this.bytes = bytes;
+        }
+    }
+    private final Map<Source, AtomicLong> watermarks = new EnumMap<Source, AtomicLong>(Source.class);
+    /**
+     * Entries in access order, guarded by this
+     */
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    private final long budget;
+    private long bytes;
+    /**
+     * Incremented on clear, results loaded before are not stored
+     */
+    private long generation;
+    private long hits;
+    private long misses;
+    private long invalidations;
+    private long evictions;
+
+    /**
+     * 
+     * @param budget maximum estimated bytes of all entries
+     */
+    public ResultCache(long budget) {
+        this.budget = budget;
+        for (Source source : Source.values()) {
+            watermarks.put(source, new AtomicLong(Long.MIN_VALUE));
+        }
+    }
+
+    /**
+     * Return the cached result of a query over [from, to], or run the query
+     * and cache its result.
+     * 
+     * @param source series the query reads
+     * @param entity queried track, bearer, flow or probe
+     * @param from window start, inclusive
+     * @param to window end, inclusive
+     * @param query query type
+     * @param loader runs the query
+     * @return query result, shared between callers and not to be modified
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Source source, String entity, long from, long to, String query, Loader<T> loader) {
+        Key key = new Key(source, entity, from, to, query);
+        long gen;
+        synchronized (this) {
+            Entry e = entries.get(key);
+            if (e != null) {
+                if (!isStale(key, e)) {
+                    hits++;
+                    return (T) e.result;
+                }
+                entries.remove(key);
+                bytes -= e.bytes;
+                invalidations++;
+            }
+            misses++;
+            gen = generation;
+        }
+        // read before loading, rows stored meanwhile invalidate the result
+        long watermark = watermarks.get(source).get();
+        T result = loader.load();
+        long size = ENTRY_BYTES + loader.sizeOf(result);
+        synchronized (this) {
+            if (gen == generation && size <= budget) {
+                Entry old = entries.put(key, new Entry(result, watermark, size));
+                if (old != null) {
+                    bytes -= old.bytes;
+                }
+                bytes += size;
+                evict();
+            }
+        }
+        return result;
+    }
+
+    private boolean isStale(Key key, Entry e) {
+        long watermark = watermarks.get(key.source).get();
+        return watermark > e.watermark && watermark >= key.from && e.watermark < key.to;
+    }
+
+    /**
+     * Drop least recently used entries until the budget is met. Caller must
+     * hold the lock.
+     */
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > budget && it.hasNext()) {
+            bytes -= it.next().bytes;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Record that rows of a source up to ts are stored.
+     */
+    public void advance(Source source, long ts) {
+        AtomicLong watermark = watermarks.get(source);
+        long current = watermark.get();
+        while (ts > current && !watermark.compareAndSet(current, ts)) {
+            current = watermark.get();
+        }
+    }
+
+    /**
+     * 
+     * @return latest timestamp stored of a source, Long.MIN_VALUE if unknown
+     */
+    public long getWatermark(Source source) {
+        return watermarks.get(source).get();
+    }
+
+    /**
+     * Round a window end down to its bucket, so that windows ending in the
+     * same bucket, e.g. at consecutive player ticks, share an entry.
+     * 
+     * @param source series of the timestamp
+     * @param ts window end
+     * @return start of the bucket containing ts
+     */
+    public static long bucketOf(Source source, long ts) {
+        long width = source == Source.TRACKS ? TRACKS_BUCKET : STATS_BUCKET;
+        return ts - ts % width;
+    }
+
+    /**
+     * Drop all entries, e.g. after stored rows were deleted.
+     */
+    public synchronized void clear() {
+        logger.debug("clearing " + entries.size() + " results, " + bytes + " bytes");
+        entries.clear();
+        bytes = 0;
+        generation++;
+    }
+
+    /**
+     * 
+     * @return estimated bytes of hop delays by hop number
+     */
+    public static long sizeOfHops(Map<Integer, List<long[]>> hops) {
+        long size = 0;
+        for (List<long[]> rows : hops.values()) {
+            size += OBJECT_BYTES + sizeOfRows(rows);
+        }
+        return size;
+    }
+
+    /**
+     * 
+     * @return estimated bytes of rows of primitive values
+     */
+    public static long sizeOfRows(Collection<long[]> rows) {
+        long size = 0;
+        for (long[] row : rows) {
+            size += ROW_BYTES + VALUE_BYTES * row.length;
+        }
+        return size;
+    }
+
+    /**
+     * 
+     * @return estimated bytes of sql rows
+     */
+    public static long sizeOfSqlRows(Collection<SqlRow> rows) {
+        long size = 0;
+        for (SqlRow row : rows) {
+            size += OBJECT_BYTES + OBJECT_BYTES * row.size();
+        }
+        return size;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,654 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.SqlUpdate;
+import com.avaje.ebean.Transaction;
+
+import de.fhg.fokus.net.netview.control.Controllable;
+
+/**
+ * Enforces the retention policy in a low priority background thread.
+ * <p>
+ * Raw hops and interface stats are compacted into 1 min rollups
+ * ({@link HopRollup}, {@link InterfaceStatsRollup}) before they are removed,
+ * an hour per transaction; tracks are rolled up at ingest already. Expired day partitions are dropped
+ * as a whole. Expired rows of the unpartitioned base tables and expired
+ * rollups are deleted in small transactions with a pause after each, so
+ * ingest and UI queries never wait long for a table lock.
+ * <p>
+ * Closed days of raw hops are moved into the {@link TrackArchive} before
+ * they expire, their partitions are dropped once the segment is written.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+public class RetentionManager implements Controllable {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    /**
+     * Rows compacted or deleted per transaction
+     */
+    private static final int CHUNK_ROWS = 5000;
+    /**
+     * Pause in milliseconds after each transaction
+     */
+    private static final long CHUNK_PAUSE = 100;
+    /**
+     * Bucket width of compacted raw hops and interface stats in milliseconds
+     */
+    public static final long COMPACTION_RESOLUTION = 60000;
+    /**
+     * Time range compacted per transaction in milliseconds, a multiple of
+     * COMPACTION_RESOLUTION
+     */
+    private static final long COMPACTION_CHUNK = TimeUnit.HOURS.toMillis(1);
+    /**
+     * Assumed size of a stored column in bytes, used to estimate reclaimed
+     * space
+     */
+    private static final int COLUMN_BYTES = 8;
+    private static final long BASE_TABLE = -1;
+
+    /**
+     * Aggregation of a partitioned table into a rollup table.
+     */
+    private static final class Compaction {
+
+        final String source;
+        final String target;
+        final String timeColumn;
+        /**
+         * Bucket width in the source table's unit
+         */
+        final long resolution;
+        /**
+         * Grouping columns, named alike in source and target
+         */
+        final String[] keys;
+        final String[] columns;
+        /**
+         * Aggregate expression over the source for each target column
+         */
+        final String[] aggregates;
+
+        Compaction(TablePartitions partitions, String source, String target,
+                String[] keys, String[] columns, String[] aggregates) {
+            this.source = source;
+            this.target = target;
+            this.timeColumn = partitions.getTimeColumn(source);
+            this.resolution = partitions.getTimeUnit(source).convert(COMPACTION_RESOLUTION,
+                    TimeUnit.MILLISECONDS);
+            this.keys = keys;
+            this.columns = columns;
+            this.aggregates = aggregates;
+        }
+
+        /**
+         * 
+         * @param from table to aggregate
+         * @param where row filter, may be null
+         * @return INSERT statement, the day is bound to :day
+         */
+        String insert(String from, String where) {
+            String bucket = timeColumn + " - MOD(" + timeColumn + ", " + resolution + ")";
+            StringBuilder keyList = new StringBuilder();
+            for (String key : keys) {
+                keyList.append(", ").append(key);
+            }
+            StringBuilder columnList = new StringBuilder();
+            StringBuilder valueList = new StringBuilder();
+            StringBuilder aggregateList = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                columnList.append(", ").append(columns[i]);
+                valueList.append(", a").append(i);
+                aggregateList.append(", ").append(aggregates[i]).append(" AS a").append(i);
+            }
+            return "INSERT INTO " + target + " (uid, resolution, bucket" + keyList + columnList
+                    + ", source_day) SELECT NEXT VALUE FOR " + target + "_seq, " + resolution
+                    + ", b" + keyList + valueList + ", :day FROM (SELECT " + bucket + " AS b"
+                    + keyList + aggregateList + " FROM " + from
+                    + (where == null ? "" : " WHERE " + where)
+                    + " GROUP BY " + bucket + keyList + ")";
+        }
+    }
+    // --
+    private final EbeanServer eServer;
+    private final TablePartitions partitions;
+    private final TrackArchive archive;
+    private final long archiveAfter;
+    private final long rawRetention;
+    private final long statsRetention;
+    private final long[] rollupRetention;
+    private final long interval;
+    private final Compaction hops;
+    private final Compaction interfaces;
+    private final Map<String, Integer> columnCounts = new HashMap<String, Integer>();
+    private final Object passLock = new Object();
+    private Thread worker;
+    private volatile boolean shouldRun = false;
+    // metrics, written by the pass in progress only
+    private volatile boolean running = false;
+    private volatile long passes = 0;
+    private volatile long lastPassAt = 0;
+    private volatile long lastPassDuration = 0;
+    private volatile long pendingPartitions = 0;
+    private volatile long compactedRows = 0;
+    private volatile long deletedRows = 0;
+    private volatile long droppedPartitions = 0;
+    private volatile long reclaimedBytes = 0;
+    private volatile long archivedPartitions = 0;
+    private volatile long archivedRows = 0;
+
+    /**
+     * Retention times are in milliseconds, 0 keeps data forever.
+     * 
+     * @param eServer
+     * @param partitions
+     * @param archive archive of raw hops, may be null
+     * @param archiveAfter age of raw hops moved into the archive, 0 disables
+     *        archiving
+     * @param rawRetention raw hops and tracks
+     * @param statsRetention interface and probe stats
+     * @param rollupRetention track rollups for each of
+     *        {@link TrackRollup#RESOLUTIONS}, compacted hops and interface
+     *        stats expire with the 1 min rollups
+     * @param interval time between two passes
+     */
+    public RetentionManager(EbeanServer eServer, TablePartitions partitions, TrackArchive archive,
+            long archiveAfter, long rawRetention, long statsRetention, long[] rollupRetention,
+            long interval) {
+        this.eServer = eServer;
+        this.partitions = partitions;
+        this.archive = archive;
+        this.archiveAfter = archive == null ? 0 : archiveAfter;
+        this.rawRetention = rawRetention;
+        this.statsRetention = statsRetention;
+        this.rollupRetention = rollupRetention.clone();
+        this.interval = interval;
+        this.hops = new Compaction(partitions, TablePartitions.RAW_TRACK_DATA, "hop_rollup",
+                new String[]{"track_id", "hop_number"},
+                new String[]{"volume", "delay_sum", "min_delay", "max_delay"},
+                new String[]{"COUNT(*)", "SUM(delay)", "MIN(delay)", "MAX(delay)"});
+        this.interfaces = new Compaction(partitions, TablePartitions.INTERFACE_STATS,
+                "interface_stats_rollup",
+                new String[]{"oid", "interface_name"},
+                new String[]{"samples", "sampling_size", "packet_delta_count",
+                    "pcap_stat_recv", "pcap_stat_drop"},
+                new String[]{"COUNT(*)", "SUM(sampling_size)", "SUM(packet_delta_count)",
+                    "MAX(pcap_stat_recv)", "MAX(pcap_stat_drop)"});
+    }
+
+    @Override
+    public void init() {
+        logger.debug("retention raw {} ms, stats {} ms, archive after {} ms",
+                new Object[]{rawRetention, statsRetention, archiveAfter});
+    }
+
+    @Override
+    public synchronized void start() {
+        if (shouldRun) {
+            return;
+        }
+        shouldRun = true;
+        worker = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                while (shouldRun) {
+                    enforce();
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "Retention");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    /**
+     * Stop the background thread, a pass in progress is aborted after the
+     * current transaction.
+     */
+    @Override
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            shouldRun = false;
+            t = worker;
+            worker = null;
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Run a retention pass in the calling thread.
+     */
+    public void enforce() {
+        synchronized (passLock) {
+            enforcePass();
+        }
+    }
+
+    private void enforcePass() {
+        long startedAt = System.currentTimeMillis();
+        running = true;
+        try {
+            if (rawRetention > 0) {
+                expire(TablePartitions.RAW_TRACK_DATA, hops, startedAt - rawRetention);
+                expire(TablePartitions.TRACK_DATA, null, startedAt - rawRetention);
+            }
+            if (archiveAfter > 0) {
+                archive(TablePartitions.RAW_TRACK_DATA, startedAt - archiveAfter);
+            }
+            if (statsRetention > 0) {
+                expire(TablePartitions.INTERFACE_STATS, interfaces, startedAt - statsRetention);
+                expire(TablePartitions.PROBE_STATS, null, startedAt - statsRetention);
+            }
+            for (int i = 0; i < TrackRollup.RESOLUTIONS.length && i < rollupRetention.length; i++) {
+                long resolution = TrackRollup.RESOLUTIONS[i];
+                if (rollupRetention[i] <= 0) {
+                    continue;
+                }
+                long cutoff = TimeUnit.MILLISECONDS.toMicros(startedAt - rollupRetention[i]);
+                deleteChunks("track_rollup", "resolution = " + resolution
+                        + " AND bucket <= :ts", cutoff - resolution);
+                if (resolution == TimeUnit.MILLISECONDS.toMicros(COMPACTION_RESOLUTION)) {
+                    deleteChunks(hops.target, "bucket <= :ts", cutoff - hops.resolution);
+                    deleteChunks(interfaces.target, "bucket <= :ts",
+                            startedAt - rollupRetention[i] - interfaces.resolution);
+                }
+            }
+            passes++;
+            lastPassAt = startedAt;
+        } catch (RuntimeException e) {
+            logger.warn("retention pass failed: " + e.getMessage());
+        } finally {
+            pendingPartitions = 0;
+            lastPassDuration = System.currentTimeMillis() - startedAt;
+            running = false;
+        }
+    }
+
+    /**
+     * Remove the rows of a table older than the day of the cutoff.
+     * 
+     * @param table partitioned table
+     * @param compaction compaction run before rows are removed, may be null
+     * @param cutoff unix timestamp in milliseconds
+     */
+    private void expire(String table, Compaction compaction, long cutoff) {
+        long ts = partitions.startOfDay(table,
+                partitions.getTimeUnit(table).convert(cutoff, TimeUnit.MILLISECONDS));
+        SortedMap<Long, String> expired = partitions.partitionsBefore(table, ts);
+        SortedMap<Long, String> segments = new TreeMap<Long, String>();
+        if (archive != null && TrackArchive.isArchived(table)) {
+            segments = archive.segmentsBefore(table,
+                    TimeUnit.DAYS.convert(ts, partitions.getTimeUnit(table)));
+        }
+        SortedMap<Long, String> days = new TreeMap<Long, String>(segments);
+        days.putAll(expired);
+        pendingPartitions += days.size();
+        for (Long day : days.keySet()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (segments.containsKey(day) && !archive.resume(table, day)) {
+                return;
+            }
+            // an archived day may have a partition of late rows too
+            ArchiveSegment segment = segments.containsKey(day) ? archive.getSegment(table, day) : null;
+            long rows = 0;
+            if (segment != null) {
+                rows += segment.getRows();
+            }
+            String partition = expired.get(day);
+            if (partition != null) {
+                rows += count(partition);
+            }
+            if (compaction != null && (segment != null || partition != null)) {
+                if (!compact(compaction, day, segment == null ? null : segments.get(day), partition)) {
+                    // interrupted, the rows are kept until the day is compacted completely
+                    return;
+                }
+                compactedRows += rows;
+            }
+            if (partition != null) {
+                partitions.drop(table, day);
+                droppedPartitions++;
+                reclaimed(table, rows - (segment == null ? 0 : segment.getRows()));
+            }
+            if (segment != null) {
+                long bytes = segment.getFile().length();
+                archive.delete(table, day);
+                deletedRows += segment.getRows();
+                reclaimedBytes += bytes;
+            }
+            logger.debug("expired day {} of {}, {} rows", new Object[]{day, table, rows});
+            pendingPartitions--;
+            pause();
+        }
+        if (partitions.hasLegacyRows(table)) {
+            String timeColumn = partitions.getTimeColumn(table);
+            // the chunk is fixed by its last uid, compaction and delete see the same rows
+            String bound = "SELECT MAX(uid) AS hi, COUNT(*) AS n FROM (SELECT uid FROM " + table
+                    + " WHERE " + timeColumn + " < :ts ORDER BY uid LIMIT " + CHUNK_ROWS + ")";
+            String chunk = "uid <= :hi AND " + timeColumn + " < :ts";
+            long n;
+            do {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                SqlRow row = eServer.createSqlQuery(bound).setParameter("ts", ts).findUnique();
+                n = row.getLong("n");
+                if (n == 0) {
+                    break;
+                }
+                long hi = row.getLong("hi");
+                // compaction and delete of a chunk commit together
+                int rows;
+                Transaction txn = eServer.createTransaction();
+                try {
+                    if (compaction != null) {
+                        eServer.execute(eServer.createSqlUpdate(compaction.insert(table, chunk))
+                                .setParameter("day", BASE_TABLE).setParameter("ts", ts)
+                                .setParameter("hi", hi), txn);
+                    }
+                    rows = eServer.execute(eServer.createSqlUpdate("DELETE FROM " + table
+                            + " WHERE " + chunk).setParameter("ts", ts).setParameter("hi", hi), txn);
+                    txn.commit();
+                } finally {
+                    txn.end();
+                }
+                if (compaction != null) {
+                    compactedRows += n;
+                }
+                reclaimed(table, rows);
+                pause();
+            } while (n == CHUNK_ROWS);
+            partitions.checkLegacyRows(table);
+        }
+    }
+
+    /**
+     * Aggregate the rows of a day, replacing the rollups of an interrupted
+     * previous attempt. The day is aggregated in chunks of COMPACTION_CHUNK,
+     * each in a transaction of its own followed by a pause.
+     * 
+     * @param compaction
+     * @param day days since epoch
+     * @param segment archive segment of the day, may be null
+     * @param partition partition of the day, may be null
+     * @return false if interrupted before the day was compacted completely
+     */
+    private boolean compact(Compaction compaction, long day, String segment, String partition) {
+        eServer.execute(eServer.createSqlUpdate("DELETE FROM " + compaction.target
+                + " WHERE source_day = :day").setParameter("day", day));
+        TimeUnit unit = partitions.getTimeUnit(compaction.source);
+        long dayStart = unit.convert(TimeUnit.DAYS.toMillis(day), TimeUnit.MILLISECONDS);
+        long dayEnd = unit.convert(TimeUnit.DAYS.toMillis(day + 1), TimeUnit.MILLISECONDS);
+        long step = unit.convert(COMPACTION_CHUNK, TimeUnit.MILLISECONDS);
+        String where = compaction.timeColumn + " >= :lo AND " + compaction.timeColumn + " < :hi";
+        for (long lo = dayStart; lo < dayEnd; lo += step) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            long hi = lo + step;
+            List<String> sources = new ArrayList<String>(2);
+            if (segment != null) {
+                sources.add("SELECT * FROM " + archive.source(segment, lo, hi - 1));
+            }
+            if (partition != null) {
+                sources.add("SELECT * FROM " + partition);
+            }
+            String from = sources.size() == 1 ? "(" + sources.get(0) + ")"
+                    : "(" + sources.get(0) + " UNION ALL " + sources.get(1) + ")";
+            Transaction txn = eServer.createTransaction();
+            try {
+                eServer.execute(eServer.createSqlUpdate(compaction.insert(from, where))
+                        .setParameter("day", day).setParameter("lo", lo).setParameter("hi", hi), txn);
+                txn.commit();
+            } finally {
+                txn.end();
+            }
+            pause();
+        }
+        return true;
+    }
+
+    /**
+     * Move the partitions of a table older than the day of the cutoff into
+     * the archive. Rows added to a partition while its segment was written
+     * stay in the partition, the next pass merges them.
+     * 
+     * @param table archived table
+     * @param cutoff unix timestamp in milliseconds
+     */
+    private void archive(String table, long cutoff) {
+        if (archiveAfter <= 0) {
+            return;
+        }
+        long ts = partitions.startOfDay(table,
+                partitions.getTimeUnit(table).convert(cutoff, TimeUnit.MILLISECONDS));
+        SortedMap<Long, String> closed = partitions.partitionsBefore(table, ts);
+        pendingPartitions += closed.size();
+        for (Map.Entry<Long, String> entry : closed.entrySet()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            long day = entry.getKey();
+            String partition = entry.getValue();
+            try {
+                int moved = archive.archive(table, day);
+                archivedRows += moved;
+                reclaimed(table, moved);
+                if (partitions.getPartition(table, day) == null) {
+                    archivedPartitions++;
+                }
+            } catch (IOException e) {
+                logger.warn("could not archive " + partition + ": " + e.getMessage());
+                pendingPartitions--;
+                return;
+            }
+            pendingPartitions--;
+            pause();
+        }
+    }
+
+    /**
+     * Delete rows in chunks.
+     * 
+     * @param table
+     * @param where row filter, :ts is bound to ts
+     * @param ts
+     */
+    private void deleteChunks(String table, String where, long ts) {
+        String sql = "DELETE FROM " + table + " WHERE uid IN (SELECT uid FROM " + table
+                + " WHERE " + where + " LIMIT " + CHUNK_ROWS + ")";
+        int rows;
+        do {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            SqlUpdate update = eServer.createSqlUpdate(sql).setParameter("ts", ts);
+            Transaction txn = eServer.createTransaction();
+            try {
+                rows = eServer.execute(update, txn);
+                txn.commit();
+            } finally {
+                txn.end();
+            }
+            reclaimed(table, rows);
+            if (rows > 0) {
+                pause();
+            }
+        } while (rows == CHUNK_ROWS);
+    }
+
+    private long count(String table) {
+        return eServer.createSqlQuery("SELECT COUNT(*) AS n FROM " + table).findUnique().getLong("n");
+    }
+
+    private void reclaimed(String table, long rows) {
+        Integer columns = columnCounts.get(table);
+        if (columns == null) {
+            columns = eServer.createSqlQuery("SELECT COUNT(*) AS n FROM information_schema.columns "
+                    + "WHERE table_name = :table").setParameter("table", table.toUpperCase())
+                    .findUnique().getInteger("n");
+            columnCounts.put(table, columns);
+        }
+        deletedRows += rows;
+        reclaimedBytes += rows * columns * COLUMN_BYTES;
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(CHUNK_PAUSE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 
+     * @return true while a pass is in progress
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 
+     * @return number of completed passes
+     */
+    public long getPasses() {
+        return passes;
+    }
+
+    /**
+     * 
+     * @return start of the last completed pass, unix timestamp in milliseconds
+     */
+    public long getLastPassAt() {
+        return lastPassAt;
+    }
+
+    /**
+     * 
+     * @return duration of the last pass in milliseconds
+     */
+    public long getLastPassDuration() {
+        return lastPassDuration;
+    }
+
+    /**
+     * 
+     * @return expired partitions not yet dropped by the pass in progress
+     */
+    public long getPendingPartitions() {
+        return pendingPartitions;
+    }
+
+    /**
+     * 
+     * @return rows aggregated into rollups
+     */
+    public long getCompactedRows() {
+        return compactedRows;
+    }
+
+    /**
+     * 
+     * @return rows removed, including dropped partitions and expired rollups
+     */
+    public long getDeletedRows() {
+        return deletedRows;
+    }
+
+    public long getDroppedPartitions() {
+        return droppedPartitions;
+    }
+
+    /**
+     * 
+     * @return estimated size of the removed rows in bytes
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes;
+    }
+
+    public long getArchivedPartitions() {
+        return archivedPartitions;
+    }
+
+    /**
+     * 
+     * @return rows moved into the archive
+     */
+    public long getArchivedRows() {
+        return archivedRows;
+    }
+}
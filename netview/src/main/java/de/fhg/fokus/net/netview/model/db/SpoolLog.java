@@ -0,0 +1,545 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.LineNumberReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fhg.fokus.net.netview.control.Controllable;
+import de.fhg.fokus.net.netview.util.PtWireCodec;
+import de.fhg.fokus.net.ptapi.PacketTrackRecord;
+import de.fhg.fokus.net.ptapi.PtBearerInformation;
+import de.fhg.fokus.net.ptapi.PtInterfaceStats;
+import de.fhg.fokus.net.ptapi.PtProbeLocation;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+
+/**
+ * Write-ahead spool between collector and database. Records are appended to
+ * memory-mapped segment files, so receiving records never waits for the
+ * database. A drainer thread reads the segments and passes the records to the
+ * ingest pipeline. After the pipeline was flushed the drained position is
+ * stored as committed offset; on restart draining resumes from there, i.e.
+ * records not yet in the database when the process died are replayed.
+ * 
+ * <pre>
+ * segment := entry* (end-of-segment | zero)
+ * entry   := length(u32) crc32(u32) frame(length bytes, see {@link PtWireCodec})
+ * </pre>
+ * 
+ * Segments are preallocated and zero filled, a zero length marks the end of
+ * the written data. A new segment is started on every start, segments
+ * completely committed are deleted.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class SpoolLog implements TrackRecordRepository, Controllable {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT_FILE = "spool.checkpoint";
+    private static final int END_OF_SEGMENT = -1;
+    private static final int ENTRY_HEADER = 8;
+    /**
+     * Maximum time in milliseconds between two commits of the drained position.
+     */
+    private static final long COMMIT_INTERVAL = 1000;
+    // --
+    private final File directory;
+    private final TrackIngestPipeline pipeline;
+    private final int segmentSize;
+    private final int maxSegments;
+    // writer, guarded by this
+    private MappedByteBuffer writeBuffer;
+    private final ByteBuffer frame = ByteBuffer.allocate(PtWireCodec.MAX_FRAME_LENGTH + 5);
+    private final CRC32 writeCrc = new CRC32();
+    /**
+     * Write segment id (upper 32 bits) and offset (lower 32 bits), published
+     * after each append.
+     */
+    private volatile long writeMark;
+    // drainer
+    private Thread drainer;
+    private volatile boolean shouldRun = false;
+    private volatile long committedSegment;
+    private volatile long committedOffset;
+    private volatile long drainedRecords = 0;
+    private volatile long corruptEntries = 0;
+
+    /**
+     * 
+     * @param directory spool directory, created if needed
+     * @param pipeline pipeline the records are drained into
+     * @param segmentSize size of a segment file in bytes
+     * @param maxSegments maximum number of segments on disk, appending blocks when reached
+     */
+    public SpoolLog(File directory, TrackIngestPipeline pipeline, int segmentSize, int maxSegments) {
+        this.directory = directory;
+        this.pipeline = pipeline;
+        this.segmentSize = Math.max(segmentSize, 2 * (PtWireCodec.MAX_FRAME_LENGTH + 5 + ENTRY_HEADER));
+        this.maxSegments = Math.max(2, maxSegments);
+    }
+
+    /**
+     * Recover committed offset and open a new segment for writing.
+     */
+    @Override
+    public synchronized void init() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("could not create spool directory " + directory);
+        }
+        readCheckpoint();
+        long[] ids = segmentIds();
+        long last = committedSegment;
+        for (long id : ids) {
+            if (id < committedSegment) {
+                deleteSegment(id);
+            }
+            last = Math.max(last, id);
+        }
+        if (ids.length > 0 && ids[ids.length - 1] >= committedSegment) {
+            logger.info("replaying spool from segment {} offset {}", committedSegment, committedOffset);
+        } else {
+            // nothing to replay
+            committedOffset = 0;
+        }
+        try {
+            openWriteSegment(ids.length == 0 ? committedSegment : last + 1);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not open spool segment: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (shouldRun) {
+            return;
+        }
+        shouldRun = true;
+        drainer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "SpoolDrainer");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Stop draining after everything appended so far was drained and committed.
+     */
+    @Override
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            shouldRun = false;
+            t = drainer;
+            drainer = null;
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (writeBuffer != null) {
+                writeBuffer.force();
+            }
+        }
+    }
+
+    // -- writer
+
+    private void append(Object record) {
+        synchronized (this) {
+            frame.clear();
+            try {
+                PtWireCodec.encode(record, frame);
+            } catch (RuntimeException e) {
+                logger.warn("could not spool record: " + e.getMessage());
+                return;
+            }
+            frame.flip();
+            int length = frame.remaining();
+            try {
+                int offset = (int) writeMark;
+                if (offset + ENTRY_HEADER + length + 4 > segmentSize) {
+                    writeBuffer.putInt(offset, END_OF_SEGMENT);
+                    openWriteSegment((writeMark >>> 32) + 1);
+                    offset = 0;
+                }
+                writeCrc.reset();
+                writeCrc.update(frame.array(), 0, length);
+                writeBuffer.position(offset + ENTRY_HEADER);
+                writeBuffer.put(frame);
+                writeBuffer.putInt(offset + 4, (int) writeCrc.getValue());
+                writeBuffer.putInt(offset, length);
+                writeMark = (writeMark & 0xffffffff00000000L) | (offset + ENTRY_HEADER + length);
+            } catch (IOException e) {
+                logger.warn("could not spool record: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Caller must hold the lock.
+     */
+    private void openWriteSegment(long id) throws IOException {
+        while (shouldRun && id - committedSegment >= maxSegments) {
+            logger.warn("spool full ({} segments), waiting for drainer", maxSegments);
+            try {
+                wait(COMMIT_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for spool space");
+            }
+        }
+        if (writeBuffer != null) {
+            writeBuffer.force();
+        }
+        writeBuffer = map(id, FileChannel.MapMode.READ_WRITE);
+        writeMark = id << 32;
+    }
+
+    private MappedByteBuffer map(long id, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segmentFile(id),
+                mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            if (mode != FileChannel.MapMode.READ_ONLY && raf.length() < segmentSize) {
+                raf.setLength(segmentSize);
+            }
+            return raf.getChannel().map(mode, 0, Math.min(raf.length(), segmentSize));
+        } finally {
+            // the mapping stays valid after closing the file
+            raf.close();
+        }
+    }
+
+    // -- drainer
+
+    private void drainLoop() {
+        final CRC32 crc = new CRC32();
+        final PtWireCodec.Decoder decoder = new PtWireCodec.Decoder();
+        long segment = committedSegment;
+        int offset = (int) committedOffset;
+        MappedByteBuffer readBuffer = null;
+        long lastCommit = System.currentTimeMillis();
+        boolean dirty = false;
+        byte[] tmp = new byte[PtWireCodec.MAX_FRAME_LENGTH + 5];
+        while (true) {
+            try {
+                long mark = writeMark;
+                long writeSegment = mark >>> 32;
+                int limit = segment == writeSegment ? (int) mark : segmentSize;
+                if (segment > writeSegment) {
+                    segment = writeSegment;
+                    offset = 0;
+                }
+                if (offset + ENTRY_HEADER > limit) {
+                    if (segment < writeSegment) {
+                        segment++;
+                        offset = 0;
+                        readBuffer = null;
+                        continue;
+                    }
+                    // caught up with the writer
+                    if (dirty) {
+                        dirty = commit(segment, offset);
+                        lastCommit = System.currentTimeMillis();
+                    } else if (!shouldRun) {
+                        break;
+                    } else {
+                        Thread.sleep(5);
+                    }
+                    continue;
+                }
+                if (readBuffer == null) {
+                    if (segment < writeSegment && !segmentFile(segment).exists()) {
+                        segment++;
+                        offset = 0;
+                        continue;
+                    }
+                    readBuffer = map(segment, FileChannel.MapMode.READ_ONLY);
+                }
+                int length = readBuffer.getInt(offset);
+                if (length == END_OF_SEGMENT || (length == 0 && segment < writeSegment)) {
+                    offset = segmentSize;
+                    continue;
+                }
+                if (length <= 0 || offset + ENTRY_HEADER + length > limit) {
+                    if (segment < writeSegment) {
+                        // torn write of a previous run
+                        corruptEntries++;
+                        logger.warn("invalid spool entry in segment {} at {}, skipping rest of segment", segment, offset);
+                        offset = segmentSize;
+                    } else {
+                        Thread.sleep(1);
+                    }
+                    continue;
+                }
+                int expected = readBuffer.getInt(offset + 4);
+                readBuffer.position(offset + ENTRY_HEADER);
+                readBuffer.get(tmp, 0, length);
+                crc.reset();
+                crc.update(tmp, 0, length);
+                offset += ENTRY_HEADER + length;
+                if ((int) crc.getValue() != expected) {
+                    corruptEntries++;
+                    logger.warn("crc mismatch in spool segment {}, skipping entry", segment);
+                    continue;
+                }
+                add(decoder.decode(ByteBuffer.wrap(tmp, 0, length)));
+                drainedRecords++;
+                dirty = true;
+                if (System.currentTimeMillis() - lastCommit >= COMMIT_INTERVAL) {
+                    dirty = commit(segment, offset);
+                    lastCommit = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                logger.warn("spool drainer: " + e.getMessage());
+                try {
+                    Thread.sleep(COMMIT_INTERVAL);
+                } catch (InterruptedException e1) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    private void add(Object obj) {
+        if (obj instanceof PacketTrackRecord) {
+            pipeline.addPacketTrackRecord((PacketTrackRecord) obj);
+        } else if (obj instanceof PtInterfaceStats) {
+            pipeline.addPtInterfaceStats((PtInterfaceStats) obj);
+        } else if (obj instanceof PtProbeStats) {
+            pipeline.addPtProbeStats((PtProbeStats) obj);
+        } else if (obj instanceof PtProbeLocation) {
+            pipeline.addPtProbeLocation((PtProbeLocation) obj);
+        } else if (obj instanceof PtBearerInformation) {
+            pipeline.addBearerInformation((PtBearerInformation) obj);
+        }
+    }
+
+    /**
+     * Flush the pipeline and store the drained position.
+     * 
+     * @return true if the position could not be committed and is still dirty
+     */
+    private boolean commit(long segment, int offset) {
+        long failed = pipeline.getFailedBatches();
+        pipeline.flush();
+        if (pipeline.getFailedBatches() != failed) {
+            logger.warn("ingest batches failed, spool offset not committed");
+            return true;
+        }
+        try {
+            writeCheckpoint(segment, offset);
+        } catch (IOException e) {
+            logger.warn("could not write spool checkpoint: " + e.getMessage());
+            return true;
+        }
+        long previous = committedSegment;
+        committedOffset = offset;
+        committedSegment = segment;
+        for (long id = previous; id < segment; id++) {
+            deleteSegment(id);
+        }
+        if (segment != previous) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+        return false;
+    }
+
+    // -- files
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("%016d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private void deleteSegment(long id) {
+        File f = segmentFile(id);
+        if (f.exists() && !f.delete()) {
+            logger.warn("could not delete spool segment {}", f);
+        }
+    }
+
+    private long[] segmentIds() {
+        File[] files = directory.listFiles(new FileFilter() {
+
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new long[0];
+        }
+        long[] ids = new long[files.length];
+        int n = 0;
+        for (File f : files) {
+            try {
+                ids[n] = Long.parseLong(f.getName().substring(0, f.getName().length() - SEGMENT_SUFFIX.length()));
+                n++;
+            } catch (NumberFormatException e) {
+                logger.debug("ignoring {}", f);
+            }
+        }
+        ids = Arrays.copyOf(ids, n);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private void readCheckpoint() {
+        File f = new File(directory, CHECKPOINT_FILE);
+        committedSegment = 0;
+        committedOffset = 0;
+        if (!f.exists()) {
+            return;
+        }
+        LineNumberReader reader = null;
+        try {
+            reader = new LineNumberReader(new FileReader(f));
+            String[] parts = reader.readLine().trim().split("\\s+");
+            committedSegment = Long.parseLong(parts[0]);
+            committedOffset = Long.parseLong(parts[1]);
+        } catch (Exception e) {
+            logger.warn("invalid spool checkpoint, replaying all segments: " + e.getMessage());
+            long[] ids = segmentIds();
+            committedSegment = ids.length > 0 ? ids[0] : 0;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    logger.debug(e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void writeCheckpoint(long segment, long offset) throws IOException {
+        File tmp = new File(directory, CHECKPOINT_FILE + ".tmp");
+        FileWriter writer = new FileWriter(tmp);
+        try {
+            writer.write(segment + " " + offset + "\n");
+        } finally {
+            writer.close();
+        }
+        File f = new File(directory, CHECKPOINT_FILE);
+        if (!tmp.renameTo(f)) {
+            // not atomic on all platforms
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("could not rename " + tmp);
+            }
+        }
+    }
+
+    // -- status
+
+    /**
+     * 
+     * @return bytes appended but not yet committed
+     */
+    public long getBacklog() {
+        long mark = writeMark;
+        return ((mark >>> 32) - committedSegment) * segmentSize + (int) mark - committedOffset;
+    }
+
+    public long getDrainedRecords() {
+        return drainedRecords;
+    }
+
+    public long getCorruptEntries() {
+        return corruptEntries;
+    }
+
+    // -- TrackRecordRepository
+
+    @Override
+    public void addPacketTrackRecord(PacketTrackRecord record) {
+        append(record);
+    }
+
+    @Override
+    public void addBearerInformation(PtBearerInformation record) {
+        append(record);
+    }
+
+    @Override
+    public void addPtInterfaceStats(PtInterfaceStats sampling) {
+        append(sampling);
+    }
+
+    @Override
+    public void addPtProbeStats(PtProbeStats probeStats) {
+        append(probeStats);
+    }
+
+    @Override
+    public void addPtProbeLocation(PtProbeLocation location) {
+        append(location);
+    }
+}
@@ -0,0 +1,824 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlQuery;
+import com.avaje.ebean.SqlRow;
+
+/**
+ * Time index of the interface stats, probe stats and probe locations of each
+ * probe, answering latest-before lookups by binary search. Rows are kept in a
+ * primitive timestamp array with parallel value columns per probe, strings are
+ * stored as dictionary codes.
+ * <p>
+ * The series of a probe is complete within one time interval. Lookups outside
+ * of it load the rows around the requested timestamp from the database; rows
+ * committed later are added by the ingest pipelines. Loads run without the
+ * series monitor, rows committed meanwhile are added to the range being
+ * loaded. A series is trimmed to its latest rows once it grows too long, and
+ * the dictionary is dropped together with all series once it holds too many
+ * strings.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ * 
+ */
+public class StatsIndex {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // --
+    /**
+     * A series is reloaded instead of extended once it holds that many rows,
+     * and trimmed to its latest half when ingest grows it beyond
+     */
+    private static final int MAX_SERIES_ROWS = 100000;
+    /**
+     * The dictionary is dropped with all series once it holds that many
+     * strings
+     */
+    private static final int MAX_CODES = 100000;
+
+    /**
+     * Rows of one probe ordered by timestamp, complete in [lo, hi).
+     */
+    private static final class Series {
+
+        long lo = Long.MAX_VALUE;
+        long hi = Long.MAX_VALUE;
+        /**
+         * Range being loaded from the database, if loading
+         */
+        long loadLo = Long.MAX_VALUE;
+        long loadHi = Long.MAX_VALUE;
+        boolean loading;
+        /**
+         * Incremented when rows are dropped, loads planned before are
+         * discarded
+         */
+        int epoch;
+        int size;
+        long[] ts = new long[16];
+        long[] uid = new long[16];
+        long[][] values;
+
+        Series(int columns) {
+            values = new long[columns][16];
+        }
+
+        /**
+         * 
+         * @return index of the last row before t, or -1
+         */
+        int floor(long t) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (ts[mid] < t) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        void insert(long t, long rowUid, long[] row) {
+            int i = floor(t) + 1;
+            for (int j = i; j < size && ts[j] == t; j++) {
+                if (uid[j] == rowUid) {
+                    return;
+                }
+            }
+            if (size == ts.length) {
+                int capacity = size * 2;
+                ts = Arrays.copyOf(ts, capacity);
+                uid = Arrays.copyOf(uid, capacity);
+                for (int c = 0; c < values.length; c++) {
+                    values[c] = Arrays.copyOf(values[c], capacity);
+                }
+            }
+            if (i < size) {
+                System.arraycopy(ts, i, ts, i + 1, size - i);
+                System.arraycopy(uid, i, uid, i + 1, size - i);
+                for (long[] column : values) {
+                    System.arraycopy(column, i, column, i + 1, size - i);
+                }
+            }
+            ts[i] = t;
+            uid[i] = rowUid;
+            for (int c = 0; c < values.length; c++) {
+                values[c][i] = row[c];
+            }
+            size++;
+        }
+
+        /**
+         * 
+         * @return whether rows at t are kept by ingest
+         */
+        boolean covers(long t) {
+            return (t >= lo && t < hi) || (loading && t >= loadLo && t < loadHi);
+        }
+
+        /**
+         * Drop the oldest rows, keeping at least the latest <code>keep</code>
+         * ones. The cut is moved to the next timestamp, so the series stays
+         * complete from its first row.
+         */
+        void trim(int keep) {
+            int k = size - keep;
+            while (k > 0 && k < size && ts[k] == ts[k - 1]) {
+                k++;
+            }
+            if (k <= 0) {
+                return;
+            }
+            if (k >= size) {
+                clear();
+                return;
+            }
+            size -= k;
+            System.arraycopy(ts, k, ts, 0, size);
+            System.arraycopy(uid, k, uid, 0, size);
+            for (long[] column : values) {
+                System.arraycopy(column, k, column, 0, size);
+            }
+            lo = ts[0];
+            epoch++;
+        }
+
+        void clear() {
+            size = 0;
+            lo = Long.MAX_VALUE;
+            hi = Long.MAX_VALUE;
+            epoch++;
+        }
+    }
+
+    /**
+     * A database read planned under the series monitor and run without it.
+     */
+    private static final class Load {
+
+        final long from;
+        final long to;
+        /**
+         * Bounds of the series once loaded
+         */
+        final long lo;
+        final long hi;
+        final int epoch;
+        /**
+         * Only the latest row before <code>to</code> is read
+         */
+        final boolean latestOnly;
+
+        Load(long from, long to, long lo, long hi, int epoch, boolean latestOnly) {
+            this.from = from;
+            this.to = to;
+            this.lo = lo;
+            this.hi = hi;
+            this.epoch = epoch;
+            this.latestOnly = latestOnly;
+        }
+    }
+
+    /**
+     * Series of one stats table, and the mapping of its rows to columns.
+     */
+    private abstract class Index<T> {
+
+        final Class<T> type;
+        final String table;
+        final boolean partitioned;
+        final int columns;
+        final ConcurrentMap<Long, Series> series = new ConcurrentHashMap<Long, Series>();
+        /**
+         * Latest timestamp stored, series reaching beyond are kept complete
+         * by ingest
+         */
+        volatile long maxTs = Long.MIN_VALUE;
+
+        Index(Class<T> type, String table, boolean partitioned, int columns) {
+            this.type = type;
+            this.table = table;
+            this.partitioned = partitioned;
+            this.columns = columns;
+        }
+
+        abstract long uid(T row);
+
+        abstract long oid(T row);
+
+        abstract long timestamp(T row);
+
+        abstract void encode(T row, long[] values);
+
+        abstract T decode(long uid, long oid, long ts, long[] values);
+
+        abstract T read(SqlRow row);
+
+        String from(long fromTs, long toTs) {
+            return partitioned ? partitions.from(table, fromTs, toTs) : table;
+        }
+
+        Series series(long oid) {
+            Series s = series.get(oid);
+            if (s == null) {
+                Series created = new Series(columns);
+                s = series.putIfAbsent(oid, created);
+                if (s == null) {
+                    s = created;
+                }
+            }
+            return s;
+        }
+
+        void add(Series s, T row) {
+            long[] values = new long[columns];
+            encode(row, values);
+            s.insert(timestamp(row), uid(row), values);
+        }
+
+        T get(Series s, int i, long oid) {
+            long[] values = new long[columns];
+            for (int c = 0; c < columns; c++) {
+                values[c] = s.values[c][i];
+            }
+            return decode(s.uid[i], oid, s.ts[i], values);
+        }
+    }
+    private final EbeanServer eServer;
+    private final TablePartitions partitions;
+    /**
+     * Rows loaded on either side of a timestamp looked up outside of a series
+     */
+    private final long span;
+    private final ConcurrentMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+    private final List<String> strings = new ArrayList<String>();
+    /**
+     * Held for reading while rows are coded and decoded, for writing while
+     * the dictionary is dropped; taken before any series monitor
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Index<InterfaceStats> interfaceStats;
+    private final Index<ProbeStats> probeStats;
+    private final Index<ProbeLocation> probeLocations;
+
+    /**
+     * 
+     * @param eServer
+     * @param partitions partitions of the stats tables
+     * @param span time in milliseconds loaded on either side of a timestamp
+     *        when a lookup misses
+     */
+    public StatsIndex(EbeanServer eServer, TablePartitions partitions, long span) {
+        this.eServer = eServer;
+        this.partitions = partitions;
+        this.span = Math.max(1, span);
+        this.interfaceStats = new Index<InterfaceStats>(InterfaceStats.class,
+                TablePartitions.INTERFACE_STATS, true, 6) {
+
+            @Override
+            long uid(InterfaceStats row) {
+                return row.getUid();
+            }
+
+            @Override
+            long oid(InterfaceStats row) {
+                return row.getOid();
+            }
+
+            @Override
+            long timestamp(InterfaceStats row) {
+                return row.getTimestamp();
+            }
+
+            @Override
+            void encode(InterfaceStats row, long[] values) {
+                values[0] = row.getSamplingSize();
+                values[1] = row.getPacketDeltaCount();
+                values[2] = row.getPcapStatRecv();
+                values[3] = row.getPcapStatDrop();
+                values[4] = code(row.getInterfaceName());
+                values[5] = code(row.getInterfaceDescription());
+            }
+
+            @Override
+            InterfaceStats decode(long uid, long oid, long ts, long[] values) {
+                InterfaceStats r = new InterfaceStats();
+                r.setUid(uid);
+                r.setOid(oid);
+                r.setTimestamp(ts);
+                r.setSamplingSize(values[0]);
+                r.setPacketDeltaCount(values[1]);
+                r.setPcapStatRecv(values[2]);
+                r.setPcapStatDrop(values[3]);
+                r.setInterfaceName(string(values[4]));
+                r.setInterfaceDescription(string(values[5]));
+                return r;
+            }
+
+            @Override
+            InterfaceStats read(SqlRow row) {
+                InterfaceStats r = new InterfaceStats();
+                r.setUid(row.getLong("uid"));
+                r.setOid(row.getLong("oid"));
+                r.setTimestamp(row.getLong("timestamp"));
+                r.setSamplingSize(row.getLong("sampling_size"));
+                r.setPacketDeltaCount(row.getLong("packet_delta_count"));
+                r.setPcapStatRecv(row.getLong("pcap_stat_recv"));
+                r.setPcapStatDrop(row.getLong("pcap_stat_drop"));
+                r.setInterfaceName(row.getString("interface_name"));
+                r.setInterfaceDescription(row.getString("interface_description"));
+                return r;
+            }
+        };
+        this.probeStats = new Index<ProbeStats>(ProbeStats.class,
+                TablePartitions.PROBE_STATS, true, 6) {
+
+            @Override
+            long uid(ProbeStats row) {
+                return row.getUid();
+            }
+
+            @Override
+            long oid(ProbeStats row) {
+                return row.getOid();
+            }
+
+            @Override
+            long timestamp(ProbeStats row) {
+                return row.getTimestamp();
+            }
+
+            @Override
+            void encode(ProbeStats row, long[] values) {
+                values[0] = Float.floatToIntBits(row.getSystemCpuIdle());
+                values[1] = row.getSystemMemFree();
+                values[2] = Float.floatToIntBits(row.getProcessCpuUser());
+                values[3] = Float.floatToIntBits(row.getProcessCpuSys());
+                values[4] = row.getProcessMemVzs();
+                values[5] = row.getProcessMemRss();
+            }
+
+            @Override
+            ProbeStats decode(long uid, long oid, long ts, long[] values) {
+                ProbeStats r = new ProbeStats();
+                r.setUid(uid);
+                r.setOid(oid);
+                r.setTimestamp(ts);
+                r.setSystemCpuIdle(Float.intBitsToFloat((int) values[0]));
+                r.setSystemMemFree(values[1]);
+                r.setProcessCpuUser(Float.intBitsToFloat((int) values[2]));
+                r.setProcessCpuSys(Float.intBitsToFloat((int) values[3]));
+                r.setProcessMemVzs(values[4]);
+                r.setProcessMemRss(values[5]);
+                return r;
+            }
+
+            @Override
+            ProbeStats read(SqlRow row) {
+                ProbeStats r = new ProbeStats();
+                r.setUid(row.getLong("uid"));
+                r.setOid(row.getLong("oid"));
+                r.setTimestamp(row.getLong("timestamp"));
+                r.setSystemCpuIdle(row.getFloat("system_cpu_idle"));
+                r.setSystemMemFree(row.getLong("system_mem_free"));
+                r.setProcessCpuUser(row.getFloat("process_cpu_user"));
+                r.setProcessCpuSys(row.getFloat("process_cpu_sys"));
+                r.setProcessMemVzs(row.getLong("process_mem_vzs"));
+                r.setProcessMemRss(row.getLong("process_mem_rss"));
+                return r;
+            }
+        };
+        this.probeLocations = new Index<ProbeLocation>(ProbeLocation.class,
+                "probe_location", false, 5) {
+
+            @Override
+            long uid(ProbeLocation row) {
+                return row.getUid();
+            }
+
+            @Override
+            long oid(ProbeLocation row) {
+                return row.getOid();
+            }
+
+            @Override
+            long timestamp(ProbeLocation row) {
+                return row.getTimestamp();
+            }
+
+            @Override
+            void encode(ProbeLocation row, long[] values) {
+                values[0] = code(row.getLatitude());
+                values[1] = code(row.getLongitude());
+                values[2] = code(row.getName());
+                values[3] = code(row.getLocationName());
+                values[4] = code(row.getAddress());
+            }
+
+            @Override
+            ProbeLocation decode(long uid, long oid, long ts, long[] values) {
+                ProbeLocation r = new ProbeLocation(oid, ts, string(values[0]), string(values[1]),
+                        string(values[2]), string(values[3]), string(values[4]));
+                r.setUid(uid);
+                return r;
+            }
+
+            @Override
+            ProbeLocation read(SqlRow row) {
+                ProbeLocation r = new ProbeLocation(row.getLong("oid"), row.getLong("timestamp"),
+                        row.getString("latitude"), row.getString("longitude"), row.getString("name"),
+                        row.getString("location_name"), row.getString("address"));
+                r.setUid(row.getLong("uid"));
+                return r;
+            }
+        };
+    }
+
+    /**
+     * Read the latest stored timestamps.
+     */
+    public void init() {
+        interfaceStats.maxTs = partitions.maxTs(TablePartitions.INTERFACE_STATS);
+        probeStats.maxTs = partitions.maxTs(TablePartitions.PROBE_STATS);
+        SqlRow row = eServer.createSqlQuery("SELECT MAX(timestamp) AS max_ts FROM probe_location").findUnique();
+        Long ts = row != null ? row.getLong("max_ts") : null;
+        probeLocations.maxTs = ts != null ? ts : Long.MIN_VALUE;
+    }
+
+    /**
+     * Drop all series and the dictionary, e.g. after the stats tables were
+     * purged.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            for (Index<?> index : indexes()) {
+                for (Series s : index.series.values()) {
+                    synchronized (s) {
+                        s.clear();
+                    }
+                }
+            }
+            synchronized (strings) {
+                codes.clear();
+                strings.clear();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Clear the index once the dictionary holds MAX_CODES strings.
+     */
+    private void checkCodes() {
+        synchronized (strings) {
+            if (strings.size() < MAX_CODES) {
+                return;
+            }
+        }
+        logger.debug("dictionary full, dropping all series");
+        clear();
+    }
+
+    private List<Index<?>> indexes() {
+        return Arrays.<Index<?>>asList(interfaceStats, probeStats, probeLocations);
+    }
+
+    /**
+     * 
+     * @param oid
+     * @param ts unix timestamp in milliseconds
+     * @return latest interface stats of a probe before ts, or null
+     */
+    public InterfaceStats getLatestInterfaceStats(long oid, long ts) {
+        return latest(interfaceStats, oid, ts);
+    }
+
+    /**
+     * 
+     * @param oid
+     * @param ts unix timestamp in milliseconds
+     * @return latest probe stats of a probe before ts, or null
+     */
+    public ProbeStats getLatestProbeStats(long oid, long ts) {
+        return latest(probeStats, oid, ts);
+    }
+
+    /**
+     * 
+     * @param oid
+     * @param ts unix timestamp in milliseconds
+     * @return latest location of a probe before ts, or null
+     */
+    public ProbeLocation getLatestProbeLocation(long oid, long ts) {
+        return latest(probeLocations, oid, ts);
+    }
+
+    /**
+     * Add a committed row to the series of its probe, if the series covers
+     * its timestamp.
+     * 
+     * @param row interface stats, probe stats or probe location
+     */
+    public void add(Object row) {
+        if (row instanceof InterfaceStats) {
+            add(interfaceStats, (InterfaceStats) row);
+        } else if (row instanceof ProbeStats) {
+            add(probeStats, (ProbeStats) row);
+        } else if (row instanceof ProbeLocation) {
+            add(probeLocations, (ProbeLocation) row);
+        }
+    }
+
+    private <T> void add(Index<T> index, T row) {
+        long ts = index.timestamp(row);
+        synchronized (index) {
+            if (ts > index.maxTs) {
+                index.maxTs = ts;
+            }
+        }
+        Series s = index.series.get(index.oid(row));
+        if (s == null) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            synchronized (s) {
+                if (s.covers(ts)) {
+                    index.add(s, row);
+                    if (s.size > MAX_SERIES_ROWS) {
+                        s.trim(MAX_SERIES_ROWS / 2);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        checkCodes();
+    }
+
+    private <T> T latest(Index<T> index, long oid, long ts) {
+        Series s = index.series(oid);
+        while (true) {
+            Load load = null;
+            lock.readLock().lock();
+            try {
+                synchronized (s) {
+                    if (s.loading) {
+                        // wait for the running load below
+                    } else if (s.lo >= ts || ts > s.hi) {
+                        load = plan(index, s, ts);
+                    } else {
+                        int i = s.floor(ts);
+                        if (i >= 0 && s.ts[i] >= s.lo) {
+                            return index.get(s, i, oid);
+                        }
+                        if (s.lo == Long.MIN_VALUE) {
+                            return null;
+                        }
+                        // no row in [lo, ts), the latest row before lo
+                        // extends the series
+                        s.loading = true;
+                        s.loadLo = Long.MIN_VALUE;
+                        s.loadHi = s.lo;
+                        load = new Load(Long.MIN_VALUE, s.lo, s.lo, s.hi, s.epoch, true);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (load != null) {
+                run(index, oid, s, load);
+            } else if (!await(s)) {
+                return findLatest(index, oid, ts);
+            }
+        }
+    }
+
+    /**
+     * Plan to extend or replace a series so that it covers [ts - span, ts].
+     * Series reaching beyond the latest stored row are kept open ended.
+     * Caller must hold the series monitor.
+     */
+    private <T> Load plan(Index<T> index, Series s, long ts) {
+        long from = ts - span;
+        long to = ts + span > index.maxTs ? Long.MAX_VALUE : ts + span;
+        if (s.size >= MAX_SERIES_ROWS) {
+            s.clear();
+        }
+        long lo = from;
+        long hi = to;
+        if (s.lo < ts && ts > s.hi && ts - s.hi <= span) {
+            // extend upwards
+            from = s.hi;
+            lo = s.lo;
+        } else if (ts <= s.lo && s.lo != Long.MAX_VALUE && s.lo - ts <= span) {
+            // extend downwards
+            to = s.lo;
+            hi = s.hi;
+        } else {
+            s.clear();
+        }
+        // rows committed while loading are added by ingest
+        s.loading = true;
+        s.loadLo = from;
+        s.loadHi = to;
+        return new Load(from, to, lo, hi, s.epoch, false);
+    }
+
+    /**
+     * Read the rows of a load and add them to the series, unless rows were
+     * dropped meanwhile.
+     */
+    private <T> void run(Index<T> index, long oid, Series s, Load load) {
+        List<T> rows = null;
+        try {
+            rows = read(index, oid, load);
+        } finally {
+            lock.readLock().lock();
+            try {
+                synchronized (s) {
+                    s.loading = false;
+                    s.loadLo = Long.MAX_VALUE;
+                    s.loadHi = Long.MAX_VALUE;
+                    s.notifyAll();
+                    if (rows != null && s.epoch == load.epoch) {
+                        for (T row : rows) {
+                            index.add(s, row);
+                        }
+                        if (!load.latestOnly) {
+                            s.lo = load.lo;
+                            s.hi = load.hi;
+                        } else if (rows.isEmpty()) {
+                            s.lo = Long.MIN_VALUE;
+                        } else {
+                            s.lo = index.timestamp(rows.get(0));
+                        }
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        checkCodes();
+    }
+
+    private <T> List<T> read(Index<T> index, long oid, Load load) {
+        List<T> rows = new ArrayList<T>();
+        if (load.latestOnly) {
+            T row = findLatest(index, oid, load.to);
+            if (row != null) {
+                rows.add(row);
+            }
+            return rows;
+        }
+        logger.debug("loading {} of probe {} from {}", new Object[]{index.table, oid, load.from});
+        SqlQuery query = eServer.createSqlQuery("SELECT * FROM "
+                + index.from(load.from, load.to == Long.MAX_VALUE ? load.to : load.to - 1)
+                + " WHERE oid = :oid AND timestamp >= :from AND timestamp < :to ORDER BY timestamp")
+                .setParameter("oid", oid)
+                .setParameter("from", load.from)
+                .setParameter("to", load.to);
+        for (SqlRow row : query.findList()) {
+            rows.add(index.read(row));
+        }
+        return rows;
+    }
+
+    /**
+     * Wait for the running load of a series.
+     * 
+     * @return false if interrupted
+     */
+    private static boolean await(Series s) {
+        synchronized (s) {
+            while (s.loading) {
+                try {
+                    s.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the latest row of a probe before ts, searching partitions
+     * backwards from the day of ts.
+     */
+    private <T> T findLatest(Index<T> index, long oid, long ts) {
+        List<String> tables = index.partitioned ? partitions.list(index.table, Long.MIN_VALUE, ts)
+                : Arrays.asList(index.table);
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            SqlRow row = eServer.createSqlQuery("SELECT * FROM " + tables.get(i)
+                    + " WHERE oid = :oid AND timestamp < :ts ORDER BY timestamp DESC LIMIT 1")
+                    .setParameter("oid", oid)
+                    .setParameter("ts", ts).findUnique();
+            if (row != null) {
+                return index.read(row);
+            }
+        }
+        return null;
+    }
+
+    private long code(String s) {
+        if (s == null) {
+            return -1;
+        }
+        Integer code = codes.get(s);
+        if (code == null) {
+            synchronized (strings) {
+                code = codes.get(s);
+                if (code == null) {
+                    code = strings.size();
+                    strings.add(s);
+                    codes.put(s, code);
+                }
+            }
+        }
+        return code;
+    }
+
+    private String string(long code) {
+        if (code < 0) {
+            return null;
+        }
+        synchronized (strings) {
+            return strings.get((int) code);
+        }
+    }
+
+    /**
+     * 
+     * @return number of rows held
+     */
+    public long size() {
+        long rows = 0;
+        for (Index<?> index : indexes()) {
+            for (Series s : index.series.values()) {
+                synchronized (s) {
+                    rows += s.size;
+                }
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,272 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.util.List;
+import java.util.SortedMap;
+
+import de.fhg.fokus.net.netview.control.Controllable;
+
+/**
+ * Storage of track records, hops, bearer information, stats and probe
+ * locations. Records are added through {@link TrackRecordRepository}, the
+ * queries cover what the track repository needs: preloading tracks, hop
+ * delays, bearers and flows of tracks, latest stats and probe locations.
+ * <p>
+ * Track and hop timestamps are in database time units (microseconds), stats
+ * and location timestamps in milliseconds.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public interface StorageEngine extends TrackRecordRepository, Controllable {
+
+    /**
+     * Receives the tracks of a scan, aggregated by rollup bucket and track id.
+     */
+    public static interface TrackVisitor {
+
+        /**
+         * 
+         * @param trackId
+         * @param volume number of track records
+         * @param delaySum sum of the track record delays
+         * @param minStart first start timestamp
+         * @param maxStop last stop timestamp
+         * @return false to stop the scan
+         */
+        public boolean visit(int trackId, long volume, long delaySum, long minStart, long maxStop);
+    }
+
+    /**
+     * Receives the probe locations in the order they were stored.
+     */
+    public static interface LocationVisitor {
+
+        public void visit(long oid, String latitude, String longitude, String name,
+                String locationName, String address);
+    }
+
+    /**
+     * Hop count of a bearer of a track within one window, with the bearer
+     * information.
+     */
+    public static final class BearerVolume {
+
+        public long trackId;
+        public long ruleId;
+        /**
+         * Start of the window
+         */
+        public long from;
+        public int volume;
+        public long uid;
+        public String apn;
+        public String ruleName;
+        public String imsi;
+        public long qci;
+        public long maximumDownload;
+        public long maximumUpload;
+        public long guaranteedDownload;
+        public long guaranteedUpload;
+        public long apnDownload;
+        public long apnUpload;
+        public String sourceAddress;
+        public String destinationAddress;
+        public int sourcePort;
+        public int destinationPort;
+    }
+
+    /**
+     * Hop count of a flow of a track within one window, with the flow key.
+     */
+    public static final class FlowVolume {
+
+        public long trackId;
+        public long ruleId;
+        /**
+         * Start of the window
+         */
+        public long from;
+        public int volume;
+        public int flowKey;
+        public String sourceAddress;
+        public String destinationAddress;
+        public int sourcePort;
+        public int destinationPort;
+    }
+
+    /**
+     * Wait until all records added so far are stored and visible to queries.
+     */
+    public void flush();
+
+    /**
+     * Aggregate the track records starting in [from, to) by rollup bucket and
+     * track id.
+     * 
+     * @param resolution one of {@link TrackRollup#RESOLUTIONS}
+     * @param from first bucket
+     * @param to end of the range, exclusive
+     * @param visitor
+     * @return number of aggregates visited
+     */
+    public long scanTracks(long resolution, long from, long to, TrackVisitor visitor);
+
+    /**
+     * Stop the running scans, they return without visiting further tracks.
+     */
+    public void cancelScans();
+
+    /**
+     * 
+     * @param trackId
+     * @return probe ids in hop order, empty if the track is unknown
+     */
+    public long[] getTrackPath(int trackId);
+
+    /**
+     * 
+     * @param trackId
+     * @param from start timestamp
+     * @param to start timestamp, inclusive
+     * @return record ids of the track records starting in [from, to]
+     */
+    public List<Long> findTrackRecords(long trackId, long from, long to);
+
+    /**
+     * 
+     * @param ts
+     * @return first track start after ts, Long.MAX_VALUE if there is none
+     */
+    public long nextTrackStart(long ts);
+
+    /**
+     * 
+     * @param ts
+     * @return last track start before ts, Long.MIN_VALUE if there is none
+     */
+    public long previousTrackStart(long ts);
+
+    /**
+     * Count the hops of bearers (rule flag 1) of track windows: hops of track
+     * <code>trackIds[i]</code> with a timestamp in
+     * <code>[from[i], to[i]]</code>.
+     * 
+     * @param trackIds track id of each window
+     * @param from hop timestamp of each window
+     * @param to hop timestamp of each window, inclusive
+     * @return volumes ordered by track id, window start and bearer
+     *         information uid
+     */
+    public List<BearerVolume> findBearerVolumes(long[] trackIds, long[] from, long[] to);
+
+    /**
+     * Count the hops of the flows of track windows by rule id, see
+     * {@link #findBearerVolumes(long[], long[], long[])}.
+     * 
+     * @param trackIds track id of each window
+     * @param from hop timestamp of each window
+     * @param to hop timestamp of each window, inclusive
+     * @return volumes ordered by track id, window start and flow key
+     */
+    public List<FlowVolume> findFlowVolumes(long[] trackIds, long[] from, long[] to);
+
+    /**
+     * Delays of the hops of a track in [from, to]. Engines keeping compacted
+     * hops return their buckets for ranges whose hops expired, with packet id
+     * -1, if neither rule nor flow key is given.
+     * 
+     * @param trackId
+     * @param ruleId rule id or -1 for any
+     * @param flowKey flow key id or -1 for any
+     * @param from hop timestamp
+     * @param to hop timestamp, inclusive
+     * @return ts, packet id and delay of each hop by hop number, ordered by ts
+     */
+    public SortedMap<Integer, List<long[]>> findHopDelays(long trackId, long ruleId, long flowKey,
+            long from, long to);
+
+    /**
+     * 
+     * @param oid probe id
+     * @param ts in milliseconds
+     * @return latest interface stats of the probe before ts, or null
+     */
+    public InterfaceStats getLatestInterfaceStats(long oid, long ts);
+
+    /**
+     * 
+     * @param oid probe id
+     * @param ts in milliseconds
+     * @return latest probe stats of the probe before ts, or null
+     */
+    public ProbeStats getLatestProbeStats(long oid, long ts);
+
+    /**
+     * 
+     * @param oid probe id
+     * @param ts in milliseconds
+     * @return latest location of the probe before ts, or null
+     */
+    public ProbeLocation getLatestProbeLocation(long oid, long ts);
+
+    /**
+     * Visit all probe locations, reported and saved, in the order they were
+     * stored.
+     * 
+     * @param visitor
+     */
+    public void scanLocations(LocationVisitor visitor);
+
+    /**
+     * Store a location set by the user.
+     * 
+     * @param location
+     */
+    public void saveProbeLocation(ProbeLocation location);
+
+    /**
+     * Drop all track records, hops and stats. Bearer information and probe
+     * locations are kept.
+     */
+    public void clear();
+}
@@ -0,0 +1,600 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlQuery;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.Transaction;
+
+/**
+ * Routes the high volume tables to one table per day (UTC), named
+ * &lt;table&gt;_yyyyMMdd. Writers ask for the partition of a timestamp,
+ * readers for a FROM expression covering the partitions overlapping a time
+ * range. Expiring a day drops its tables.
+ * <p>
+ * Timestamps are in the unit of the table: microseconds for track data,
+ * milliseconds for stats. Rows written before partitioning stay in the
+ * base table, which is included as long as it holds rows.
+ * <p>
+ * Listing archived days synchronizes on this instance, the archive holds
+ * the monitor while it replaces partition rows by a segment.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+public class TablePartitions {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // --
+    public static final String RAW_TRACK_DATA = "raw_track_data";
+    public static final String TRACK_DATA = "track_data";
+    public static final String INTERFACE_STATS = "interface_stats";
+    public static final String PROBE_STATS = "probe_stats";
+    private static final long DAY_MS = TimeUnit.DAYS.toMillis(1);
+    public static final long NO_DAY = Long.MIN_VALUE;
+    private static final Pattern DAY_SUFFIX = Pattern.compile("_(\\d{8})$");
+
+    /**
+     * A partitioned table.
+     */
+    private static final class Table {
+
+        final String name;
+        final String timeColumn;
+        final TimeUnit unit;
+        /**
+         * Indexed columns, one index per entry
+         */
+        final String[] indexes;
+        /**
+         * Day (days since epoch) to partition name
+         */
+        final ConcurrentNavigableMap<Long, String> partitions = new ConcurrentSkipListMap<Long, String>();
+        volatile boolean legacyRows;
+
+        Table(String name, String timeColumn, TimeUnit unit, String... indexes) {
+            this.name = name;
+            this.timeColumn = timeColumn;
+            this.unit = unit;
+            this.indexes = indexes;
+        }
+
+        long dayOf(long ts) {
+            long ms = unit.toMillis(ts);
+            return ms >= 0 ? ms / DAY_MS : (ms + 1) / DAY_MS - 1;
+        }
+    }
+    private final EbeanServer eServer;
+    private volatile TrackArchive archive;
+    private final Map<String, Table> tables = new HashMap<String, Table>();
+    private final SimpleDateFormat dayFormat = new SimpleDateFormat("yyyyMMdd");
+
+    public TablePartitions(EbeanServer eServer) {
+        this.eServer = eServer;
+        dayFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        add(new Table(RAW_TRACK_DATA, "ts", TimeUnit.MICROSECONDS,
+                "ts", "record_id", "probe_id", "track_id", "flow_key"));
+        add(new Table(TRACK_DATA, "start_ts", TimeUnit.MICROSECONDS,
+                "start_ts", "start_ts, stop_ts", "track_id"));
+        add(new Table(INTERFACE_STATS, "timestamp", TimeUnit.MILLISECONDS,
+                "oid", "timestamp"));
+        add(new Table(PROBE_STATS, "timestamp", TimeUnit.MILLISECONDS,
+                "oid", "timestamp"));
+    }
+
+    private void add(Table table) {
+        tables.put(table.name, table);
+    }
+
+    private Table table(String name) {
+        Table table = tables.get(name);
+        if (table == null) {
+            throw new IllegalArgumentException("not a partitioned table: " + name);
+        }
+        return table;
+    }
+
+    /**
+     * Include the segments of an archive when listing the sources of a time
+     * range.
+     * 
+     * @param archive
+     */
+    public void setArchive(TrackArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Discover existing partitions.
+     */
+    public void init() {
+        List<SqlRow> rows = eServer.createSqlQuery("SELECT table_name FROM information_schema.tables "
+                + "WHERE table_schema = 'PUBLIC'").findList();
+        for (SqlRow row : rows) {
+            String tableName = row.getString("table_name").toLowerCase();
+            long day = dayOfPartition(tableName);
+            if (day != NO_DAY) {
+                table(tableName.substring(0, tableName.length() - 9)).partitions.put(day, tableName);
+            }
+        }
+        for (Table table : tables.values()) {
+            checkLegacyRows(table.name);
+            logger.debug("{}: {} partitions", table.name, table.partitions.size());
+        }
+    }
+
+    /**
+     * 
+     * @param partition name of a partition or of an archived partition
+     * @return day (days since epoch) of the partition or NO_DAY if the name
+     *         is not the name of a partition
+     */
+    public long dayOfPartition(String partition) {
+        Matcher m = DAY_SUFFIX.matcher(partition);
+        if (!m.find() || !tables.containsKey(partition.substring(0, m.start()))) {
+            return NO_DAY;
+        }
+        try {
+            synchronized (dayFormat) {
+                return dayFormat.parse(m.group(1)).getTime() / DAY_MS;
+            }
+        } catch (ParseException e) {
+            logger.debug(e.getMessage());
+            return NO_DAY;
+        }
+    }
+
+    /**
+     * Get the partition a row with the given timestamp is written to, the
+     * partition is created if it does not exist yet. Creating a table commits
+     * in H2, so this must not be called within a writing transaction.
+     * 
+     * @param name partitioned table
+     * @param ts timestamp in the table's unit
+     * @return partition table name
+     */
+    public String partitionFor(String name, long ts) {
+        Table table = table(name);
+        long day = table.dayOf(ts);
+        String partition = table.partitions.get(day);
+        if (partition != null) {
+            return partition;
+        }
+        synchronized (table) {
+            partition = table.partitions.get(day);
+            if (partition == null) {
+                partition = create(table, day);
+                table.partitions.put(day, partition);
+            }
+        }
+        return partition;
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @param day days since epoch
+     * @return name of the day's partition, whether it exists or not
+     */
+    public String partitionName(String name, long day) {
+        synchronized (dayFormat) {
+            return table(name).name + "_" + dayFormat.format(new Date(day * DAY_MS));
+        }
+    }
+
+    private String create(Table table, long day) {
+        String partition = partitionName(table.name, day);
+        logger.debug("creating partition {}", partition);
+        Transaction txn = eServer.createTransaction();
+        try {
+            eServer.execute(eServer.createSqlUpdate("CREATE TABLE IF NOT EXISTS " + partition
+                    + " AS SELECT * FROM " + table.name + " WHERE 1 = 0"), txn);
+            // CREATE TABLE AS does not copy constraints
+            eServer.execute(eServer.createSqlUpdate("ALTER TABLE " + partition
+                    + " ALTER COLUMN uid SET NOT NULL"), txn);
+            eServer.execute(eServer.createSqlUpdate("ALTER TABLE " + partition
+                    + " ADD CONSTRAINT IF NOT EXISTS pk_" + partition + " PRIMARY KEY (uid)"), txn);
+            for (int i = 0; i < table.indexes.length; i++) {
+                eServer.execute(eServer.createSqlUpdate("CREATE INDEX IF NOT EXISTS ix_" + partition
+                        + "_" + i + " ON " + partition + " (" + table.indexes[i] + ")"), txn);
+            }
+            txn.commit();
+        } finally {
+            txn.end();
+        }
+        return partition;
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @return all tables holding rows of the table, oldest first
+     */
+    public List<String> list(String name) {
+        return list(name, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @param fromTs start of the range in the table's unit
+     * @param toTs end of the range, inclusive
+     * @return tables or archive scans that may hold rows of the range, oldest
+     *         first
+     */
+    public List<String> list(String name, long fromTs, long toTs) {
+        List<String> result = new ArrayList<String>();
+        for (List<String> sources : listByDay(name, fromTs, toTs, Long.MIN_VALUE, Long.MAX_VALUE)) {
+            result.addAll(sources);
+        }
+        return result;
+    }
+
+    /**
+     * Sources of a time range grouped by day, the base table holding legacy
+     * rows is the first group. Archived days are skipped if their segment
+     * holds no rows of the track range.
+     * 
+     * @return sources of each day, oldest day first
+     */
+    private List<List<String>> listByDay(String name, long fromTs, long toTs, long minTrackId, long maxTrackId) {
+        Table table = table(name);
+        List<List<String>> result = new ArrayList<List<String>>();
+        if (table.legacyRows) {
+            result.add(Collections.singletonList(table.name));
+        }
+        if (fromTs <= toTs) {
+            long fromDay = table.dayOf(fromTs);
+            long toDay = table.dayOf(toTs);
+            TrackArchive a = archive;
+            if (a == null || !TrackArchive.isArchived(name)) {
+                for (String partition : table.partitions.subMap(fromDay, true, toDay, true).values()) {
+                    result.add(Collections.singletonList(partition));
+                }
+            } else {
+                synchronized (this) {
+                    // a day may have a segment and a partition of late rows,
+                    // never with the same rows
+                    TreeMap<Long, List<String>> days = new TreeMap<Long, List<String>>();
+                    for (Map.Entry<Long, String> entry : a.segments(name, fromDay, toDay).entrySet()) {
+                        List<String> sources = a.sources(entry.getValue(), fromTs, toTs, minTrackId, maxTrackId);
+                        if (!sources.isEmpty()) {
+                            days.put(entry.getKey(), sources);
+                        }
+                    }
+                    for (Map.Entry<Long, String> entry : table.partitions.subMap(fromDay, true, toDay, true).entrySet()) {
+                        List<String> sources = days.get(entry.getKey());
+                        if (sources == null) {
+                            sources = new ArrayList<String>(1);
+                            days.put(entry.getKey(), sources);
+                        }
+                        sources.add(entry.getValue());
+                    }
+                    result.addAll(days.values());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * FROM expression for all rows of a table, see
+     * {@link #from(String, long, long)}.
+     */
+    public String from(String name) {
+        return from(name, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * FROM expression covering the partitions overlapping a time range. The
+     * expression is aliased to the table name, so queries may keep qualifying
+     * columns with it.
+     * 
+     * @param name partitioned table
+     * @param fromTs start of the range in the table's unit
+     * @param toTs end of the range, inclusive
+     * @return FROM expression
+     */
+    public String from(String name, long fromTs, long toTs) {
+        return from(name, fromTs, toTs, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * FROM expression covering the partitions overlapping a time range,
+     * without the archived days holding no rows of the track range, see
+     * {@link #from(String, long, long)}. The query must still filter the
+     * rows by track.
+     * 
+     * @param name partitioned table
+     * @param fromTs start of the range in the table's unit
+     * @param toTs end of the range, inclusive
+     * @param minTrackId smallest track id queried
+     * @param maxTrackId largest track id queried, inclusive
+     * @return FROM expression
+     */
+    public String from(String name, long fromTs, long toTs, long minTrackId, long maxTrackId) {
+        List<String> result = new ArrayList<String>();
+        for (List<String> sources : listByDay(name, fromTs, toTs, minTrackId, maxTrackId)) {
+            result.addAll(sources);
+        }
+        return from(name, result);
+    }
+
+    private String from(String name, List<String> partitions) {
+        if (partitions.isEmpty()) {
+            // empty base table
+            return name;
+        }
+        if (partitions.size() == 1) {
+            return partitions.get(0) + " " + name;
+        }
+        StringBuilder sb = new StringBuilder("(");
+        for (String partition : partitions) {
+            if (sb.length() > 1) {
+                sb.append(" UNION ALL ");
+            }
+            sb.append("SELECT * FROM ").append(partition);
+        }
+        return sb.append(") ").append(name).toString();
+    }
+
+    /**
+     * Find the latest rows up to a timestamp without a scan over all
+     * partitions: the days are queried backwards from the day of the
+     * timestamp until enough rows are found.
+     * 
+     * @param server server to query
+     * @param name partitioned table
+     * @param columns select list
+     * @param where condition of the rows, may use named parameters; must
+     *        bound the time of the rows itself
+     * @param params named parameters of the condition
+     * @param ts timestamp in the table's unit, days after its day are skipped
+     * @param limit maximum number of rows
+     * @return rows ordered by the table's time column, latest first
+     */
+    public List<SqlRow> findLatest(EbeanServer server, String name, String columns, String where,
+            Map<String, Object> params, long ts, int limit) {
+        String timeColumn = table(name).timeColumn;
+        List<List<String>> days = listByDay(name, Long.MIN_VALUE, ts, Long.MIN_VALUE, Long.MAX_VALUE);
+        List<SqlRow> rows = new ArrayList<SqlRow>();
+        for (int i = days.size() - 1; i >= 0 && rows.size() < limit; i--) {
+            SqlQuery query = server.createSqlQuery("SELECT " + columns + " FROM " + from(name, days.get(i))
+                    + " WHERE " + where + " ORDER BY " + timeColumn + " DESC LIMIT :limit");
+            for (Map.Entry<String, Object> param : params.entrySet()) {
+                query.setParameter(param.getKey(), param.getValue());
+            }
+            rows.addAll(query.setParameter("limit", limit - rows.size()).findList());
+        }
+        return rows;
+    }
+
+    /**
+     * Drop all partitions of days ending before the given timestamp.
+     * 
+     * @param name partitioned table
+     * @param ts timestamp in the table's unit
+     * @return number of dropped partitions
+     */
+    public int dropBefore(String name, long ts) {
+        Table table = table(name);
+        int dropped = 0;
+        for (Map.Entry<Long, String> entry : table.partitions.headMap(table.dayOf(ts)).entrySet()) {
+            drop(table, entry.getKey(), entry.getValue());
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @param ts timestamp in the table's unit
+     * @return partitions of days ending before the given timestamp by day
+     *         (days since epoch), oldest first
+     */
+    public SortedMap<Long, String> partitionsBefore(String name, long ts) {
+        Table table = table(name);
+        return new TreeMap<Long, String>(table.partitions.headMap(table.dayOf(ts)));
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @param day days since epoch
+     * @return name of the day's partition, or null if there is none
+     */
+    public String getPartition(String name, long day) {
+        return table(name).partitions.get(day);
+    }
+
+    /**
+     * Drop the partition of a day.
+     * 
+     * @param name partitioned table
+     * @param day days since epoch
+     * @return true if the partition existed
+     */
+    public boolean drop(String name, long day) {
+        Table table = table(name);
+        String partition = table.partitions.get(day);
+        if (partition == null) {
+            return false;
+        }
+        drop(table, day, partition);
+        return true;
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @param ts timestamp in the table's unit
+     * @return start of the day (UTC) containing ts in the table's unit
+     */
+    public long startOfDay(String name, long ts) {
+        Table table = table(name);
+        return table.unit.convert(table.dayOf(ts) * DAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @return latest timestamp stored in the table, Long.MIN_VALUE if it is
+     *         empty
+     */
+    public long maxTs(String name) {
+        Table table = table(name);
+        long max = Long.MIN_VALUE;
+        if (table.legacyRows) {
+            max = maxTs(table, table.name);
+        }
+        for (String partition : table.partitions.descendingMap().values()) {
+            long ts = maxTs(table, partition);
+            if (ts != Long.MIN_VALUE) {
+                return Math.max(max, ts);
+            }
+        }
+        TrackArchive a = archive;
+        if (a != null) {
+            SortedMap<Long, String> segments = a.segments(name, Long.MIN_VALUE, Long.MAX_VALUE);
+            if (!segments.isEmpty()) {
+                max = Math.max(max, a.getSegment(name, segments.lastKey()).getMaxTs());
+            }
+        }
+        return max;
+    }
+
+    private long maxTs(Table table, String tableName) {
+        SqlRow row = eServer.createSqlQuery("SELECT MAX(" + table.timeColumn + ") AS max_ts FROM "
+                + tableName).findUnique();
+        Long ts = row != null ? row.getLong("max_ts") : null;
+        return ts != null ? ts : Long.MIN_VALUE;
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @return true if the base table may still hold rows
+     */
+    public boolean hasLegacyRows(String name) {
+        return table(name).legacyRows;
+    }
+
+    /**
+     * Check again whether the base table holds rows, e.g. after rows were
+     * deleted from it.
+     * 
+     * @param name partitioned table
+     */
+    public void checkLegacyRows(String name) {
+        Table table = table(name);
+        table.legacyRows = eServer.createSqlQuery("SELECT uid FROM " + table.name + " LIMIT 1")
+                .findUnique() != null;
+    }
+
+    /**
+     * Drop all partitions of a table and delete the rows of its base table.
+     * 
+     * @param name partitioned table
+     */
+    public void dropAll(String name) {
+        Table table = table(name);
+        for (Map.Entry<Long, String> entry : table.partitions.entrySet()) {
+            drop(table, entry.getKey(), entry.getValue());
+        }
+        eServer.createSqlUpdate("DELETE FROM " + table.name).execute();
+        table.legacyRows = false;
+    }
+
+    private void drop(Table table, long day, String partition) {
+        logger.debug("dropping partition {}", partition);
+        table.partitions.remove(day);
+        eServer.createSqlUpdate("DROP TABLE IF EXISTS " + partition).execute();
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @return number of partitions
+     */
+    public int size(String name) {
+        return table(name).partitions.size();
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @return timestamp column the table is partitioned by
+     */
+    public String getTimeColumn(String name) {
+        return table(name).timeColumn;
+    }
+
+    /**
+     * 
+     * @param name partitioned table
+     * @return unit of the timestamp column
+     */
+    public TimeUnit getTimeUnit(String name) {
+        return table(name).unit;
+    }
+}
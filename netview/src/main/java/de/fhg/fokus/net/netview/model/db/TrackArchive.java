@@ -0,0 +1,634 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.h2.tools.SimpleResultSet;
+import org.h2.tools.SimpleRowSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.Transaction;
+
+/**
+ * Archive tier for closed days of raw track data. A day partition is written
+ * into an immutable {@link ArchiveSegment} file named like the partition.
+ * A row is never listed twice: after a segment was written its rows are
+ * deleted from the partition in chunks, readers see the new segment only up
+ * to the time the rows were deleted to and the segment it replaces after
+ * that. Once done, a day's partition only holds rows added after its
+ * segment was written.
+ * <p>
+ * Segments are read through the SQL table function ARCHIVE_SCAN(segment,
+ * fromTs, toTs), {@link TablePartitions} lists it next to the partitions so
+ * queries of a time range include archived days transparently. The function
+ * looks segments up in a registry shared by the process, i.e. there is one
+ * archive per process.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+public class TrackArchive {
+    // sys
+
+    private static final Logger logger = LoggerFactory.getLogger(TrackArchive.class);
+    private static final String SUFFIX = ".seg";
+    private static final String COLUMN_LIST_URL = "jdbc:columnlist:connection";
+    /**
+     * Registry name suffix of a segment whose rows are being deleted from
+     * its partition
+     */
+    private static final String NEXT = "_next";
+    /**
+     * Rows deleted from a partition per transaction, about
+     */
+    private static final int CHUNK_ROWS = 5000;
+    /**
+     * Pause in milliseconds after each transaction of an archiving pass
+     */
+    private static final long CHUNK_PAUSE = 100;
+    /**
+     * Tables that can be archived
+     */
+    private static final String[] TABLES = {TablePartitions.RAW_TRACK_DATA};
+    /**
+     * Open segments by name, read by the SQL function
+     */
+    private static final ConcurrentMap<String, ArchiveSegment> SEGMENTS = new ConcurrentHashMap<String, ArchiveSegment>();
+    /**
+     * Column names and SQL types of the archived tables, upper case names
+     * in table order
+     */
+    private static final ConcurrentMap<String, String[]> COLUMN_NAMES = new ConcurrentHashMap<String, String[]>();
+    private static final ConcurrentMap<String, int[]> COLUMN_TYPES = new ConcurrentHashMap<String, int[]>();
+    // --
+    private final EbeanServer eServer;
+    private final TablePartitions partitions;
+    private final File directory;
+    /**
+     * Table to day (days since epoch) to segment name
+     */
+    private final Map<String, ConcurrentNavigableMap<Long, String>> tables = new HashMap<String, ConcurrentNavigableMap<Long, String>>();
+    /**
+     * Segments whose rows are being deleted from their partition, by segment
+     * name. Guarded by the partitions monitor.
+     */
+    private final Map<String, Cleanup> cleanups = new HashMap<String, Cleanup>();
+
+    /**
+     * A written segment whose rows are not deleted from the partition yet.
+     */
+    private static final class Cleanup {
+
+        final String partition;
+        final ArchiveSegment segment;
+        /**
+         * Rows of the segment up to this time are deleted from the partition
+         */
+        long cutoff;
+
+        Cleanup(String partition, ArchiveSegment segment) {
+            this.partition = partition;
+            this.segment = segment;
+            this.cutoff = segment.getMinTs() - 1;
+        }
+    }
+
+    /**
+     * 
+     * @param eServer
+     * @param partitions partitions of the archived tables
+     * @param directory segment directory, created if needed
+     */
+    public TrackArchive(EbeanServer eServer, TablePartitions partitions, File directory) {
+        this.eServer = eServer;
+        this.partitions = partitions;
+        this.directory = directory;
+        for (String table : TABLES) {
+            tables.put(table, new ConcurrentSkipListMap<Long, String>());
+        }
+    }
+
+    /**
+     * Register the SQL function and open existing segments. Must be called
+     * after the partitions were discovered.
+     */
+    public void init() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("could not create archive directory " + directory);
+        }
+        eServer.createSqlUpdate("CREATE ALIAS IF NOT EXISTS ARCHIVE_SCAN FOR \""
+                + TrackArchive.class.getName() + ".scan\"").execute();
+        for (String table : TABLES) {
+            List<SqlRow> rows = eServer.createSqlQuery("SELECT column_name, data_type FROM "
+                    + "information_schema.columns WHERE table_name = :table ORDER BY ordinal_position")
+                    .setParameter("table", table.toUpperCase()).findList();
+            String[] names = new String[rows.size()];
+            int[] types = new int[rows.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = rows.get(i).getString("column_name").toUpperCase();
+                types[i] = rows.get(i).getInteger("data_type");
+            }
+            COLUMN_NAMES.put(table, names);
+            COLUMN_TYPES.put(table, types);
+        }
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                // left over by an interrupted write
+                file.delete();
+                continue;
+            }
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            String segment = name.substring(0, name.length() - SUFFIX.length());
+            long day = partitions.dayOfPartition(segment);
+            String table = segment.substring(0, Math.max(0, segment.length() - 9));
+            if (day == TablePartitions.NO_DAY || !tables.containsKey(table)) {
+                continue;
+            }
+            ArchiveSegment s;
+            try {
+                s = ArchiveSegment.open(file);
+            } catch (IOException e) {
+                logger.warn("could not open archive segment " + file + ": " + e.getMessage());
+                continue;
+            }
+            String partition = partitions.getPartition(table, day);
+            if (partition == null) {
+                SEGMENTS.put(segment, s);
+                tables.get(table).put(day, segment);
+            } else {
+                // the segment may have been written without its rows removed
+                publish(table, day, segment, partition, s);
+                removeArchived(table, day, segment, -1, false);
+            }
+        }
+        logger.debug("{} archive segments", SEGMENTS.size());
+    }
+
+    private ConcurrentNavigableMap<Long, String> table(String name) {
+        ConcurrentNavigableMap<Long, String> table = tables.get(name);
+        if (table == null) {
+            throw new IllegalArgumentException("not an archived table: " + name);
+        }
+        return table;
+    }
+
+    /**
+     * 
+     * @param table archived table
+     * @return true if rows of the table can be archived
+     */
+    public static boolean isArchived(String table) {
+        for (String t : TABLES) {
+            if (t.equals(table)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 
+     * @param table archived table
+     * @param fromDay
+     * @param toDay inclusive
+     * @return segment names by day
+     */
+    public SortedMap<Long, String> segments(String table, long fromDay, long toDay) {
+        ConcurrentNavigableMap<Long, String> t = tables.get(table);
+        if (t == null) {
+            return new TreeMap<Long, String>();
+        }
+        return t.subMap(fromDay, true, toDay, true);
+    }
+
+    /**
+     * 
+     * @param table archived table
+     * @param day days since epoch
+     * @return segment of the day or null
+     */
+    public ArchiveSegment getSegment(String table, long day) {
+        String segment = table(table).get(day);
+        if (segment == null) {
+            return null;
+        }
+        ArchiveSegment next = SEGMENTS.get(segment + NEXT);
+        return next == null ? SEGMENTS.get(segment) : next;
+    }
+
+    /**
+     * FROM expression scanning a segment.
+     * 
+     * @param segment segment name
+     * @param fromTs
+     * @param toTs inclusive
+     * @return table function call
+     */
+    public String source(String segment, long fromTs, long toTs) {
+        ArchiveSegment s = SEGMENTS.get(segment);
+        if (s != null) {
+            // keep the literals within the range of BIGINT
+            fromTs = Math.max(fromTs, s.getMinTs());
+            toTs = Math.min(toTs, s.getMaxTs());
+        }
+        return "ARCHIVE_SCAN('" + segment + "', " + fromTs + ", " + toTs + ")";
+    }
+
+    /**
+     * FROM expressions scanning the archived rows of a day that are not in
+     * its partition. Segments without rows of the track range are skipped.
+     * Caller must hold the partitions monitor.
+     * 
+     * @param segment segment name
+     * @param fromTs
+     * @param toTs inclusive
+     * @param minTrackId
+     * @param maxTrackId inclusive
+     * @return table function calls
+     */
+    List<String> sources(String segment, long fromTs, long toTs, long minTrackId, long maxTrackId) {
+        List<String> sources = new ArrayList<String>(2);
+        Cleanup cleanup = cleanups.get(segment);
+        ArchiveSegment s = SEGMENTS.get(segment);
+        boolean tracks = s != null && s.mayHoldTracks(minTrackId, maxTrackId);
+        if (cleanup == null) {
+            if (tracks) {
+                sources.add(source(segment, fromTs, toTs));
+            }
+            return sources;
+        }
+        if (fromTs <= cleanup.cutoff && cleanup.segment.mayHoldTracks(minTrackId, maxTrackId)) {
+            sources.add(source(segment + NEXT, fromTs, Math.min(toTs, cleanup.cutoff)));
+        }
+        if (toTs > cleanup.cutoff && tracks) {
+            sources.add(source(segment, Math.max(fromTs, cleanup.cutoff + 1), toTs));
+        }
+        return sources;
+    }
+
+    /**
+     * Move the rows of a day's partition into the day's segment, merged with
+     * the rows of an existing segment. Rows added to the partition while the
+     * segment is written stay in the partition, the partition is dropped if
+     * there are none.
+     * 
+     * @param table archived table
+     * @param day days since epoch
+     * @return number of rows moved out of the partition
+     * @throws IOException
+     */
+    public int archive(String table, long day) throws IOException {
+        String segment = partitions.partitionName(table, day);
+        if (!resume(table, day)) {
+            return 0;
+        }
+        String partition = partitions.getPartition(table, day);
+        if (partition == null) {
+            return 0;
+        }
+        ArchiveSegment previous = getSegment(table, day);
+        // the partition holds late rows only, the segment none of them
+        String from = previous == null ? partition
+                : "(SELECT * FROM " + source(segment, Long.MIN_VALUE, Long.MAX_VALUE)
+                + " UNION ALL SELECT * FROM " + partition + ")";
+        File file = new File(directory, segment + SUFFIX);
+        int rows;
+        Transaction txn = eServer.createTransaction();
+        try {
+            Statement stmt = txn.getConnection().createStatement();
+            try {
+                stmt.setFetchSize(1000);
+                ResultSet rs = stmt.executeQuery("SELECT * FROM " + from + " ORDER BY "
+                        + partitions.getTimeColumn(table));
+                rows = ArchiveSegment.write(file, rs, partitions.getTimeColumn(table));
+                rs.close();
+            } finally {
+                stmt.close();
+            }
+            txn.commit();
+        } catch (SQLException e) {
+            throw new IOException("could not read " + from + ": " + e.getMessage());
+        } finally {
+            txn.end();
+        }
+        int moved = rows - (previous == null ? 0 : previous.getRows());
+        publish(table, day, segment, partition, ArchiveSegment.open(file));
+        removeArchived(table, day, segment, moved, true);
+        logger.debug("archived {} rows into {}", rows, file);
+        return moved;
+    }
+
+    /**
+     * Finish deleting the rows of a day's segment from its partition, if a
+     * previous pass was interrupted doing so.
+     * 
+     * @param table archived table
+     * @param day days since epoch
+     * @return false if interrupted again
+     */
+    public boolean resume(String table, long day) {
+        String segment = partitions.partitionName(table, day);
+        synchronized (partitions) {
+            if (!cleanups.containsKey(segment)) {
+                return true;
+            }
+        }
+        return removeArchived(table, day, segment, -1, true);
+    }
+
+    /**
+     * Make a written segment readable next to the rows of the partition it
+     * has not been removed from yet.
+     */
+    private void publish(String table, long day, String segment, String partition, ArchiveSegment s) {
+        synchronized (partitions) {
+            SEGMENTS.put(segment + NEXT, s);
+            cleanups.put(segment, new Cleanup(partition, s));
+            table(table).put(day, segment);
+        }
+    }
+
+    /**
+     * Remove the rows of a segment from the day's partition, drop the
+     * partition if no other rows are left. The partitions monitor is only
+     * held while a chunk commits, readers listing the day's sources see
+     * each row once.
+     * 
+     * @param table archived table
+     * @param day days since epoch
+     * @param segment segment name
+     * @param moved number of partition rows written into the segment, or -1
+     *        if unknown
+     * @param pause whether to pause after each chunk
+     * @return false if interrupted
+     */
+    private boolean removeArchived(String table, long day, String segment, long moved, boolean pause) {
+        Cleanup cleanup;
+        synchronized (partitions) {
+            cleanup = cleanups.get(segment);
+            if (partitions.getPartition(table, day) == null) {
+                finish(segment, cleanup);
+                return true;
+            }
+            if (moved >= 0 && count(cleanup.partition) == moved) {
+                partitions.drop(table, day);
+                finish(segment, cleanup);
+                return true;
+            }
+        }
+        // rows added while the segment was written, or a pass interrupted
+        // before the partition was cleaned up
+        if (!deleteArchived(cleanup, pause)) {
+            return false;
+        }
+        synchronized (partitions) {
+            finish(segment, cleanup);
+            long rows = count(cleanup.partition);
+            if (rows == 0) {
+                partitions.drop(table, day);
+            } else {
+                logger.debug("{} rows added to {} while archiving, keeping them", rows, cleanup.partition);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replace the segment by the one whose rows were deleted from the
+     * partition. Caller must hold the partitions monitor.
+     */
+    private void finish(String segment, Cleanup cleanup) {
+        SEGMENTS.put(segment, cleanup.segment);
+        SEGMENTS.remove(segment + NEXT);
+        cleanups.remove(segment);
+    }
+
+    /**
+     * Delete the rows of a segment from its partition, the rows of a time
+     * range of about CHUNK_ROWS segment rows per transaction, and advance the
+     * cutoff with each commit.
+     * 
+     * @return false if interrupted
+     */
+    private boolean deleteArchived(Cleanup cleanup, boolean pause) {
+        ArchiveSegment s = cleanup.segment;
+        long maxTs = s.getMaxTs();
+        long step = Math.max(1, (maxTs - s.getMinTs()) / Math.max(1, s.getRows() / CHUNK_ROWS) + 1);
+        String[] uid = {"UID"};
+        while (cleanup.cutoff < maxTs) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            long lo = cleanup.cutoff + 1;
+            long hi = maxTs - lo < step ? maxTs : lo + step - 1;
+            Transaction txn = eServer.createTransaction();
+            try {
+                PreparedStatement stmt = txn.getConnection().prepareStatement("DELETE FROM "
+                        + cleanup.partition + " WHERE uid = ?");
+                try {
+                    SimpleRowSource rows = s.scan(lo, hi, uid);
+                    Object[] row;
+                    while ((row = rows.readRow()) != null) {
+                        stmt.setLong(1, ((Number) row[0]).longValue());
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                } finally {
+                    stmt.close();
+                }
+                // readers see the deleted rows in the segment from now on
+                synchronized (partitions) {
+                    txn.commit();
+                    cleanup.cutoff = hi;
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            } finally {
+                txn.end();
+            }
+            if (pause) {
+                try {
+                    Thread.sleep(CHUNK_PAUSE);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private long count(String table) {
+        return eServer.createSqlQuery("SELECT COUNT(*) AS n FROM " + table).findUnique().getLong("n");
+    }
+
+    /**
+     * Delete the segment of a day.
+     * 
+     * @param table archived table
+     * @param day days since epoch
+     * @return true if there was a segment
+     */
+    public boolean delete(String table, long day) {
+        String segment = table(table).remove(day);
+        if (segment == null) {
+            return false;
+        }
+        synchronized (partitions) {
+            if (cleanups.remove(segment) != null) {
+                SEGMENTS.remove(segment + NEXT);
+            }
+        }
+        ArchiveSegment s = SEGMENTS.remove(segment);
+        // running scans keep their mapping
+        if (s != null && !s.getFile().delete()) {
+            logger.warn("could not delete archive segment {}", s.getFile());
+            s.getFile().deleteOnExit();
+        }
+        return true;
+    }
+
+    /**
+     * Delete all segments of a table.
+     * 
+     * @param table archived table
+     */
+    public void deleteAll(String table) {
+        for (Long day : table(table).keySet()) {
+            delete(table, day);
+        }
+    }
+
+    /**
+     * 
+     * @param table archived table
+     * @param day days since epoch
+     * @return segments of days before the given day, oldest first
+     */
+    public SortedMap<Long, String> segmentsBefore(String table, long day) {
+        return new TreeMap<Long, String>(table(table).headMap(day));
+    }
+
+    /**
+     * 
+     * @return number of segments
+     */
+    public int size() {
+        int n = 0;
+        for (ConcurrentNavigableMap<Long, String> table : tables.values()) {
+            n += table.size();
+        }
+        return n;
+    }
+
+    /**
+     * 
+     * @return total size of the segment files in bytes
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (ConcurrentNavigableMap<Long, String> table : tables.values()) {
+            for (String segment : table.values()) {
+                ArchiveSegment s = SEGMENTS.get(segment);
+                if (s != null) {
+                    bytes += s.getFile().length();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * SQL table function ARCHIVE_SCAN: rows of a segment within a time
+     * range, in the column order of the archived table.
+     * 
+     * @param conn
+     * @param segment segment name
+     * @param fromTs
+     * @param toTs inclusive
+     * @return rows
+     * @throws SQLException
+     */
+    public static ResultSet scan(Connection conn, String segment, long fromTs, long toTs) throws SQLException {
+        int end = segment.endsWith(NEXT) ? segment.length() - NEXT.length() : segment.length();
+        String table = segment.substring(0, Math.max(0, end - 9));
+        String[] names = COLUMN_NAMES.get(table);
+        int[] types = COLUMN_TYPES.get(table);
+        if (names == null) {
+            throw new SQLException("unknown archive segment " + segment);
+        }
+        ArchiveSegment s = SEGMENTS.get(segment);
+        SimpleResultSet rs;
+        if (s == null || COLUMN_LIST_URL.equals(conn.getMetaData().getURL())) {
+            // column list only, or a segment deleted meanwhile
+            rs = new SimpleResultSet();
+        } else {
+            rs = new SimpleResultSet(s.scan(fromTs, toTs, names));
+        }
+        for (int i = 0; i < names.length; i++) {
+            rs.addColumn(names[i], types[i], 0, 0);
+        }
+        return rs;
+    }
+}
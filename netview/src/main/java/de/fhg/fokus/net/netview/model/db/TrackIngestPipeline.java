@@ -0,0 +1,853 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.Transaction;
+
+import de.fhg.fokus.net.netview.control.Controllable;
+import de.fhg.fokus.net.ptapi.PacketTrackRecord;
+import de.fhg.fokus.net.ptapi.PtBearerInformation;
+import de.fhg.fokus.net.ptapi.PtInterfaceStats;
+import de.fhg.fokus.net.ptapi.PtProbeLocation;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+
+/**
+ * Batched ingest pipeline. Records are converted into their database entities
+ * and put into a bounded queue; writer threads drain the queue and insert up to
+ * <code>batchSize</code> entries per transaction using JDBC batches (group
+ * commit). A partially filled batch is flushed after at most
+ * <code>maxFlushLatency</code> milliseconds. A batch that fails is written
+ * again in halves, so only the entries that can't be written are dropped.
+ * 
+ * Callers (e.g. collector threads) only enqueue. They block if the queue is
+ * full, i.e. the database is the one throttling the exporters. Callers that
+ * would rather shed load can check {@link #isOverloaded()} before enqueuing or
+ * use the <code>offer</code> methods, which reject records if the queue is full.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class TrackIngestPipeline implements TrackRecordRepository, Controllable {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private static final String INSERT_TRACK_DATA = "INSERT INTO %s "
+            + "(uid, track_id, rule_id, start_ts, stop_ts, delay) "
+            + "VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_RAW_TRACK_DATA = "INSERT INTO %s "
+            + "(uid, track_id, packet_id, record_id, probe_id, rule_id, ts, ttl, "
+            + "next_hop, delay, hop_number, flow_key) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String UPDATE_TRACK_ROLLUP = "UPDATE track_rollup SET "
+            + "volume = volume + ?, delay_sum = delay_sum + ?, "
+            + "min_start = LEAST(min_start, ?), max_stop = GREATEST(max_stop, ?) "
+            + "WHERE resolution = ? AND bucket = ? AND track_id = ?";
+    private static final String INSERT_TRACK_ROLLUP = "INSERT INTO track_rollup "
+            + "(uid, resolution, bucket, track_id, volume, delay_sum, min_start, max_stop) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_INTERFACE_STATS = "INSERT INTO %s "
+            + "(uid, oid, timestamp, sampling_size, packet_delta_count, "
+            + "pcap_stat_recv, pcap_stat_drop, interface_name, interface_description) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_PROBE_STATS = "INSERT INTO %s "
+            + "(uid, oid, timestamp, system_cpu_idle, system_mem_free, "
+            + "process_cpu_user, process_cpu_sys, process_mem_vzs, process_mem_rss) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    /**
+     * Held from the rollup update to the commit of a batch. Rollup rows are
+     * shared by the writers of all pipelines; under MVCC a writer updating a
+     * row locked by an uncommitted batch waits for the lock, two batches
+     * updating the same rows in a different order time out both.
+     */
+    private static final Object ROLLUP_LOCK = new Object();
+    // --
+    private final EbeanServer eServer;
+    private final FlowKeyDictionary flowKeys;
+    private final TrackPathCache trackPaths;
+    private final TablePartitions partitions;
+    private final BlockingQueue<Object> queue;
+    private final int batchSize;
+    private final long maxFlushLatency;
+    private final int numberOfWriters;
+    private final int queueCapacity;
+    /**
+     * Queue size from which on the pipeline reports to be overloaded.
+     */
+    private volatile int highWatermark;
+    private final List<Thread> writers = new ArrayList<Thread>();
+    private volatile boolean shouldRun = false;
+    /**
+     * Entries currently taken from the queue but not yet committed.
+     */
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong committedRows = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong droppedEntries = new AtomicLong();
+    private final AtomicLong rejectedEntries = new AtomicLong();
+    /**
+     * Set once an entry was rejected because the pipeline is stopped
+     */
+    private final AtomicBoolean rejectedStopped = new AtomicBoolean();
+    /**
+     * In-memory stores committed rows are added to, if set
+     */
+    private volatile HotWindow hotWindow;
+    private volatile StatsIndex statsIndex;
+    /**
+     * Cache whose watermarks committed rows advance, if set
+     */
+    private volatile ResultCache resultCache;
+
+    /**
+     * A packet track record converted into its database rows. Record ids are
+     * assigned by the writer.
+     */
+    private static final class TrackEntry {
+
+        final TrackData track;
+        final FlowKey flowKey;
+        final RawTrackData[] hops;
+        final long[] probeIds;
+
+        TrackEntry(PacketTrackRecord record) {
+            this.track = new TrackData(record);
+            this.flowKey = new FlowKey(record);
+            this.probeIds = record.oids.clone();
+            this.hops = new RawTrackData[record.oids.length];
+            for (int i = 0; i < record.oids.length; i++) {
+                hops[i] = new RawTrackData(record, i, 0);
+            }
+        }
+    }
+
+    /**
+     * Key of a track rollup row.
+     */
+    private static final class RollupKey {
+
+        final long resolution;
+        final long bucket;
+        final int trackId;
+
+        RollupKey(long resolution, long bucket, int trackId) {
+            this.resolution = resolution;
+            this.bucket = bucket;
+            this.trackId = trackId;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof RollupKey)) {
+                return false;
+            }
+            RollupKey other = (RollupKey) obj;
+            return resolution == other.resolution && bucket == other.bucket
+                    && trackId == other.trackId;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (resolution ^ (resolution >>> 32));
+            hash = 31 * hash + (int) (bucket ^ (bucket >>> 32));
+            return 31 * hash + trackId;
+        }
+    }
+
+    /**
+     * 
+     * @param eServer
+     * @param flowKeys dictionary assigning the flow key ids of raw track data
+     * @param trackPaths probe paths, the path of each new track id is stored
+     * @param partitions day partitions rows are routed to
+     * @param batchSize maximum number of queued entries written per transaction
+     * @param maxFlushLatency maximum time in milliseconds an entry waits for its batch to fill up
+     * @param queueCapacity maximum number of queued entries
+     * @param numberOfWriters number of writer threads
+     */
+    public TrackIngestPipeline(EbeanServer eServer, FlowKeyDictionary flowKeys,
+            TrackPathCache trackPaths, TablePartitions partitions, int batchSize,
+            long maxFlushLatency, int queueCapacity, int numberOfWriters) {
+        this.eServer = eServer;
+        this.flowKeys = flowKeys;
+        this.trackPaths = trackPaths;
+        this.partitions = partitions;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxFlushLatency = Math.max(0, maxFlushLatency);
+        this.numberOfWriters = Math.max(1, numberOfWriters);
+        this.queueCapacity = Math.max(this.batchSize, queueCapacity);
+        this.queue = new ArrayBlockingQueue<Object>(this.queueCapacity);
+        this.highWatermark = this.queueCapacity * 3 / 4;
+    }
+
+    @Override
+    public void init() {
+        logger.debug("initializing ingest pipeline, batch size: {}, max flush latency: {} ms",
+                batchSize, maxFlushLatency);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (shouldRun) {
+            return;
+        }
+        shouldRun = true;
+        rejectedStopped.set(false);
+        for (int i = 0; i < numberOfWriters; i++) {
+            Thread writer = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    drainLoop();
+                }
+            }, "IngestWriter-" + i);
+            writer.setDaemon(true);
+            writers.add(writer);
+            writer.start();
+        }
+    }
+
+    /**
+     * Stop writers after the queue was drained.
+     */
+    @Override
+    public synchronized void stop() {
+        shouldRun = false;
+        for (Thread writer : writers) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        writers.clear();
+    }
+
+    /**
+     * Block until all entries enqueued so far were written.
+     */
+    public void flush() {
+        while ((!queue.isEmpty() || inFlight.get() > 0) && shouldRun) {
+            try {
+                Thread.sleep(Math.max(1, maxFlushLatency / 4));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return true if the queue is filled above the high watermark
+     */
+    public boolean isOverloaded() {
+        return queue.size() >= highWatermark;
+    }
+
+    /**
+     * 
+     * @param hotWindow in-memory store committed rows are added to, or null
+     */
+    public void setHotWindow(HotWindow hotWindow) {
+        this.hotWindow = hotWindow;
+    }
+
+    /**
+     * 
+     * @param statsIndex time index committed stats are added to, or null
+     */
+    public void setStatsIndex(StatsIndex statsIndex) {
+        this.statsIndex = statsIndex;
+    }
+
+    /**
+     * 
+     * @param resultCache cache whose watermarks committed rows advance, or null
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * 
+     * @param highWatermark queue size from which on the pipeline reports to be overloaded
+     */
+    public void setHighWatermark(int highWatermark) {
+        this.highWatermark = Math.max(1, Math.min(highWatermark, queueCapacity));
+    }
+
+    /**
+     * Block while the queue is full, entries are rejected once the pipeline
+     * is stopped since no writer would take them.
+     */
+    private void enqueue(Object entry) {
+        try {
+            while (shouldRun) {
+                if (queue.offer(entry, Math.max(1, maxFlushLatency), TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("interrupted while enqueuing, dropping {}", entry.getClass().getSimpleName());
+            return;
+        }
+        rejectStopped(entry);
+    }
+
+    private boolean offer(Object entry) {
+        if (!shouldRun) {
+            rejectStopped(entry);
+            return false;
+        }
+        if (queue.offer(entry)) {
+            return true;
+        }
+        rejectedEntries.incrementAndGet();
+        return false;
+    }
+
+    private void rejectStopped(Object entry) {
+        rejectedEntries.incrementAndGet();
+        if (rejectedStopped.compareAndSet(false, true)) {
+            logger.warn("pipeline stopped, rejecting {} and further entries", entry.getClass().getSimpleName());
+        }
+    }
+
+    private void drainLoop() {
+        final List<Object> batch = new ArrayList<Object>(batchSize);
+        while (shouldRun || !queue.isEmpty()) {
+            try {
+                Object first = queue.poll(maxFlushLatency + 1, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                inFlight.incrementAndGet();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxFlushLatency);
+                while (batch.size() < batchSize) {
+                    int n = queue.drainTo(batch, batchSize - batch.size());
+                    inFlight.addAndGet(n);
+                    if (batch.size() >= batchSize) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || !shouldRun) {
+                        break;
+                    }
+                    Object next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    inFlight.incrementAndGet();
+                }
+                if (writeSplitting(batch) == 0) {
+                    failedBatches.incrementAndGet();
+                    logger.warn("could not write batch of " + batch.size() + " entries");
+                }
+            } catch (InterruptedException e) {
+                logger.debug("ingest writer interrupted");
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                inFlight.addAndGet(-batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write a batch; if it fails, write its halves separately so that only
+     * the entries which can't be written are dropped. Committed entries are
+     * published outside the retried path, so they are never written twice.
+     * 
+     * @param batch
+     * @return number of entries written
+     */
+    private int writeSplitting(List<Object> batch) {
+        try {
+            writeBatch(batch);
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                droppedEntries.incrementAndGet();
+                logger.warn("dropping " + batch.get(0).getClass().getSimpleName() + ": " + e.getMessage());
+                return 0;
+            }
+            int half = batch.size() / 2;
+            return writeSplitting(new ArrayList<Object>(batch.subList(0, half)))
+                    + writeSplitting(new ArrayList<Object>(batch.subList(half, batch.size())));
+        }
+        publish(batch);
+        return batch.size();
+    }
+
+    /**
+     * Write all entries in a single transaction.
+     * 
+     * @param batch
+     * @throws SQLException
+     */
+    private void writeBatch(List<Object> batch) throws SQLException {
+        createPartitions(batch);
+        List<TrackPath> paths = claimPaths(batch);
+        boolean committed = false;
+        Transaction txn = eServer.beginTransaction();
+        // insert statements by partition
+        Map<String, PreparedStatement> stmts = new LinkedHashMap<String, PreparedStatement>();
+        Map<RollupKey, TrackRollup> rollups = new LinkedHashMap<RollupKey, TrackRollup>();
+        long rows = 0;
+        try {
+            Connection con = txn.getConnection();
+            trackPaths.insert(con, paths);
+            for (Object entry : batch) {
+                if (entry instanceof TrackEntry) {
+                    TrackEntry te = (TrackEntry) entry;
+                    TrackData td = te.track;
+                    td.setUid(nextUid(TrackData.class));
+                    PreparedStatement trackStmt = statement(stmts, con, INSERT_TRACK_DATA,
+                            partitions.partitionFor(TablePartitions.TRACK_DATA, td.getStart_ts()));
+                    trackStmt.setLong(1, td.getUid());
+                    trackStmt.setInt(2, td.getTrackID());
+                    trackStmt.setLong(3, td.getRuleID());
+                    trackStmt.setLong(4, td.getStart_ts());
+                    trackStmt.setLong(5, td.getStop_ts());
+                    trackStmt.setLong(6, td.getDelay());
+                    trackStmt.addBatch();
+                    rows++;
+                    for (long resolution : TrackRollup.RESOLUTIONS) {
+                        RollupKey key = new RollupKey(resolution,
+                                TrackRollup.bucketOf(td.getStart_ts(), resolution), td.getTrackID());
+                        TrackRollup rollup = rollups.get(key);
+                        if (rollup == null) {
+                            rollup = new TrackRollup(key.resolution, key.bucket, key.trackId);
+                            rollups.put(key, rollup);
+                        }
+                        rollup.add(td);
+                    }
+                    int flowKey = flowKeys.getId(te.flowKey);
+                    for (RawTrackData rtd : te.hops) {
+                        rtd.setUid(nextUid(RawTrackData.class));
+                        rtd.setRecordID(td.getUid());
+                        rtd.setFlowKey(flowKey);
+                        PreparedStatement rawStmt = statement(stmts, con, INSERT_RAW_TRACK_DATA,
+                                partitions.partitionFor(TablePartitions.RAW_TRACK_DATA, rtd.getTs()));
+                        rawStmt.setLong(1, rtd.getUid());
+                        rawStmt.setInt(2, rtd.getTrackID());
+                        rawStmt.setInt(3, rtd.getPacketID());
+                        rawStmt.setLong(4, rtd.getRecordID());
+                        rawStmt.setLong(5, rtd.getProbeID());
+                        rawStmt.setLong(6, rtd.getRuleID());
+                        rawStmt.setLong(7, rtd.getTs());
+                        rawStmt.setInt(8, rtd.getTtl());
+                        rawStmt.setLong(9, rtd.getNextHop());
+                        rawStmt.setLong(10, rtd.getDelay());
+                        rawStmt.setInt(11, rtd.getHopNumber());
+                        rawStmt.setInt(12, rtd.getFlowKey());
+                        rawStmt.addBatch();
+                        rows++;
+                    }
+                } else if (entry instanceof InterfaceStats) {
+                    InterfaceStats is = (InterfaceStats) entry;
+                    PreparedStatement interfaceStmt = statement(stmts, con, INSERT_INTERFACE_STATS,
+                            partitions.partitionFor(TablePartitions.INTERFACE_STATS, is.getTimestamp()));
+                    is.setUid(nextUid(InterfaceStats.class));
+                    interfaceStmt.setLong(1, is.getUid());
+                    interfaceStmt.setLong(2, is.getOid());
+                    interfaceStmt.setLong(3, is.getTimestamp());
+                    interfaceStmt.setLong(4, is.getSamplingSize());
+                    interfaceStmt.setLong(5, is.getPacketDeltaCount());
+                    interfaceStmt.setLong(6, is.getPcapStatRecv());
+                    interfaceStmt.setLong(7, is.getPcapStatDrop());
+                    interfaceStmt.setString(8, is.getInterfaceName());
+                    interfaceStmt.setString(9, is.getInterfaceDescription());
+                    interfaceStmt.addBatch();
+                    rows++;
+                } else if (entry instanceof ProbeStats) {
+                    ProbeStats ps = (ProbeStats) entry;
+                    PreparedStatement probeStmt = statement(stmts, con, INSERT_PROBE_STATS,
+                            partitions.partitionFor(TablePartitions.PROBE_STATS, ps.getTimestamp()));
+                    ps.setUid(nextUid(ProbeStats.class));
+                    probeStmt.setLong(1, ps.getUid());
+                    probeStmt.setLong(2, ps.getOid());
+                    probeStmt.setLong(3, ps.getTimestamp());
+                    probeStmt.setFloat(4, ps.getSystemCpuIdle());
+                    probeStmt.setLong(5, ps.getSystemMemFree());
+                    probeStmt.setFloat(6, ps.getProcessCpuUser());
+                    probeStmt.setFloat(7, ps.getProcessCpuSys());
+                    probeStmt.setLong(8, ps.getProcessMemVzs());
+                    probeStmt.setLong(9, ps.getProcessMemRss());
+                    probeStmt.addBatch();
+                    rows++;
+                } else {
+                    // low volume entities (bearer information, locations),
+                    // inserted explicitly as a failed batch is written again
+                    eServer.insert(entry);
+                    rows++;
+                }
+            }
+            for (PreparedStatement stmt : stmts.values()) {
+                stmt.executeBatch();
+            }
+            synchronized (ROLLUP_LOCK) {
+                try {
+                    writeRollups(con, rollups.values());
+                    eServer.commitTransaction();
+                    committed = true;
+                } finally {
+                    if (!committed) {
+                        // release the row locks before the next writer updates
+                        eServer.endTransaction();
+                    }
+                }
+            }
+            committedRows.addAndGet(rows);
+        } finally {
+            for (PreparedStatement stmt : stmts.values()) {
+                close(stmt);
+            }
+            eServer.endTransaction();
+            trackPaths.release(paths, committed);
+        }
+    }
+
+    /**
+     * Add the rows of a committed batch to the in-memory stores and advance
+     * the cache watermarks. Failures are logged, the rows are stored anyway.
+     */
+    private void publish(List<Object> batch) {
+        try {
+            publishEntries(batch);
+        } catch (RuntimeException e) {
+            logger.warn("could not publish committed batch of " + batch.size() + " entries: " + e.getMessage());
+        }
+    }
+
+    private void publishEntries(List<Object> batch) {
+        HotWindow window = hotWindow;
+        StatsIndex index = statsIndex;
+        ResultCache cache = resultCache;
+        for (Object entry : batch) {
+            if (entry instanceof TrackEntry) {
+                TrackEntry te = (TrackEntry) entry;
+                if (window != null) {
+                    window.addTrack(te.track, te.hops);
+                }
+                if (cache != null) {
+                    cache.advance(ResultCache.Source.TRACKS, te.track.getStop_ts());
+                }
+            } else {
+                if (index != null) {
+                    index.add(entry);
+                }
+                if (cache != null) {
+                    if (entry instanceof InterfaceStats) {
+                        cache.advance(ResultCache.Source.INTERFACE_STATS,
+                                ((InterfaceStats) entry).getTimestamp());
+                    } else if (entry instanceof ProbeStats) {
+                        cache.advance(ResultCache.Source.PROBE_STATS, ((ProbeStats) entry).getTimestamp());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Create missing partitions of a batch up front, table creation would
+     * commit the batch transaction.
+     */
+    private void createPartitions(List<Object> batch) {
+        for (Object entry : batch) {
+            if (entry instanceof TrackEntry) {
+                TrackEntry te = (TrackEntry) entry;
+                partitions.partitionFor(TablePartitions.TRACK_DATA, te.track.getStart_ts());
+                for (RawTrackData rtd : te.hops) {
+                    partitions.partitionFor(TablePartitions.RAW_TRACK_DATA, rtd.getTs());
+                }
+            } else if (entry instanceof InterfaceStats) {
+                partitions.partitionFor(TablePartitions.INTERFACE_STATS,
+                        ((InterfaceStats) entry).getTimestamp());
+            } else if (entry instanceof ProbeStats) {
+                partitions.partitionFor(TablePartitions.PROBE_STATS,
+                        ((ProbeStats) entry).getTimestamp());
+            }
+        }
+    }
+
+    /**
+     * Claim the paths of new track ids, they are inserted with the batch.
+     */
+    private List<TrackPath> claimPaths(List<Object> batch) {
+        List<TrackPath> paths = new ArrayList<TrackPath>();
+        for (Object entry : batch) {
+            if (entry instanceof TrackEntry) {
+                TrackEntry te = (TrackEntry) entry;
+                TrackPath path = trackPaths.claim(te.track.getTrackID(), te.track.getStart_ts(), te.probeIds);
+                if (path != null) {
+                    paths.add(path);
+                }
+            }
+        }
+        return paths;
+    }
+
+    private static PreparedStatement statement(Map<String, PreparedStatement> stmts,
+            Connection con, String sql, String table) throws SQLException {
+        PreparedStatement stmt = stmts.get(table);
+        if (stmt == null) {
+            stmt = con.prepareStatement(String.format(sql, table));
+            stmts.put(table, stmt);
+        }
+        return stmt;
+    }
+
+    /**
+     * Add the rollups of a batch to the stored ones, rows not yet existing are
+     * inserted. Concurrent writers may both insert a row for the same key,
+     * readers sum those up.
+     * 
+     * @param con
+     * @param rollups
+     * @throws SQLException
+     */
+    private void writeRollups(Connection con, Collection<TrackRollup> rollups) throws SQLException {
+        if (rollups.isEmpty()) {
+            return;
+        }
+        List<TrackRollup> missing = new ArrayList<TrackRollup>();
+        PreparedStatement stmt = con.prepareStatement(UPDATE_TRACK_ROLLUP);
+        try {
+            for (TrackRollup rollup : rollups) {
+                stmt.setLong(1, rollup.getVolume());
+                stmt.setLong(2, rollup.getDelaySum());
+                stmt.setLong(3, rollup.getMinStart());
+                stmt.setLong(4, rollup.getMaxStop());
+                stmt.setLong(5, rollup.getResolution());
+                stmt.setLong(6, rollup.getBucket());
+                stmt.setInt(7, rollup.getTrackID());
+                stmt.addBatch();
+            }
+            int[] updated = stmt.executeBatch();
+            int i = 0;
+            for (TrackRollup rollup : rollups) {
+                if (updated[i++] == 0) {
+                    missing.add(rollup);
+                }
+            }
+        } finally {
+            close(stmt);
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        stmt = con.prepareStatement(INSERT_TRACK_ROLLUP);
+        try {
+            for (TrackRollup rollup : missing) {
+                rollup.setUid(nextUid(TrackRollup.class));
+                stmt.setLong(1, rollup.getUid());
+                stmt.setLong(2, rollup.getResolution());
+                stmt.setLong(3, rollup.getBucket());
+                stmt.setInt(4, rollup.getTrackID());
+                stmt.setLong(5, rollup.getVolume());
+                stmt.setLong(6, rollup.getDelaySum());
+                stmt.setLong(7, rollup.getMinStart());
+                stmt.setLong(8, rollup.getMaxStop());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        } finally {
+            close(stmt);
+        }
+    }
+
+    /**
+     * Get the next id from the sequence of the given entity. Ebean allocates
+     * ids in chunks of the configured database sequence batch size.
+     */
+    private int nextUid(Class<?> entity) {
+        return ((Number) eServer.nextId(entity)).intValue();
+    }
+
+    private void close(PreparedStatement stmt) {
+        if (stmt != null) {
+            try {
+                stmt.close();
+            } catch (SQLException e) {
+                logger.debug(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return number of entries waiting to be written
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * 
+     * @return number of rows committed since start
+     */
+    public long getCommittedRows() {
+        return committedRows.get();
+    }
+
+    /**
+     * 
+     * @return number of batches none of whose entries could be written
+     */
+    public long getFailedBatches() {
+        return failedBatches.get();
+    }
+
+    /**
+     * 
+     * @return number of entries dropped because they could not be written,
+     *         not even on their own
+     */
+    public long getDroppedEntries() {
+        return droppedEntries.get();
+    }
+
+    /**
+     * 
+     * @return number of records rejected by the <code>offer</code> methods
+     *         because the queue was full, or by any method after the
+     *         pipeline was stopped
+     */
+    public long getRejectedEntries() {
+        return rejectedEntries.get();
+    }
+
+    /**
+     * Enqueue interface stats without blocking.
+     * 
+     * @param sampling
+     * @return false if the queue is full and the record was dropped
+     */
+    public boolean offerPtInterfaceStats(PtInterfaceStats sampling) {
+        return offer(new InterfaceStats(sampling));
+    }
+
+    /**
+     * Enqueue probe stats without blocking.
+     * 
+     * @param probeStats
+     * @return false if the queue is full and the record was dropped
+     */
+    public boolean offerPtProbeStats(PtProbeStats probeStats) {
+        return offer(new ProbeStats(probeStats));
+    }
+
+    @Override
+    public void addPacketTrackRecord(PacketTrackRecord record) {
+        if (record == null) {
+            logger.warn("could not create (Raw)TrackData object, returning null");
+        } else {
+            enqueue(new TrackEntry(record));
+        }
+    }
+
+    @Override
+    public void addBearerInformation(PtBearerInformation record) {
+        if (record == null) {
+            logger.warn("could not create BearerInformation object, returning null");
+        } else {
+            enqueue(new BearerInformation(record));
+        }
+    }
+
+    @Override
+    public void addPtInterfaceStats(PtInterfaceStats sampling) {
+        if (sampling == null) {
+            logger.warn("could not create Sampling object, returning null");
+        } else {
+            enqueue(new InterfaceStats(sampling));
+        }
+    }
+
+    @Override
+    public void addPtProbeStats(PtProbeStats probeStats) {
+        if (probeStats == null) {
+            logger.warn("could not create ProbeStats object, returning null");
+        } else {
+            enqueue(new ProbeStats(probeStats));
+        }
+    }
+
+    @Override
+    public void addPtProbeLocation(PtProbeLocation location) {
+        if (location == null) {
+            logger.warn("could not create ProbeLocation object, returning null");
+        } else {
+            enqueue(new ProbeLocation(location));
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Ordered probe path of a track id, taken from the first record seen of the
+ * track.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+@Entity
+public class TrackPath {
+
+    public TrackPath() {
+    }
+
+    public TrackPath(int trackID, long firstTs, long[] probeIds) {
+        this.trackID = trackID;
+        this.firstTs = firstTs;
+        setProbeIds(probeIds);
+    }
+    /**
+     * Track id, a path is stored once per track
+     */
+    @Id
+    private int trackID;
+    /**
+     * Start of the record the path was taken from
+     */
+    @Column
+    private long firstTs;
+    /**
+     * Probe ids in hop order, comma separated
+     */
+    @Column(length = 4000)
+    private String probes;
+
+    public int getTrackID() {
+        return trackID;
+    }
+
+    public void setTrackID(int trackID) {
+        this.trackID = trackID;
+    }
+
+    public long getFirstTs() {
+        return firstTs;
+    }
+
+    public void setFirstTs(long firstTs) {
+        this.firstTs = firstTs;
+    }
+
+    public String getProbes() {
+        return probes;
+    }
+
+    public void setProbes(String probes) {
+        this.probes = probes;
+    }
+
+    public long[] getProbeIds() {
+        if (probes == null || probes.length() == 0) {
+            return new long[0];
+        }
+        String[] ids = probes.split(",");
+        long[] probeIds = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            probeIds[i] = Long.parseLong(ids[i]);
+        }
+        return probeIds;
+    }
+
+    public void setProbeIds(long[] probeIds) {
+        StringBuilder sb = new StringBuilder();
+        for (long probeId : probeIds) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(probeId);
+        }
+        this.probes = sb.toString();
+    }
+}
@@ -0,0 +1,327 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.SqlQuery;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.Transaction;
+
+/**
+ * Probe paths of track ids. Paths are stored in the track_path table once per
+ * track id at ingest, in the transaction of the ingest batch, and served from a size-bounded cache; the oldest cached
+ * paths are evicted first.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+public class TrackPathCache {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private static final long[] NO_PATH = new long[0];
+    private static final String INSERT_TRACK_PATH = "INSERT INTO track_path "
+            + "(track_id, first_ts, probes) VALUES (?, ?, ?)";
+    // --
+    private final EbeanServer eServer;
+    private final TablePartitions partitions;
+    private final int capacity;
+    private final ConcurrentMap<Integer, long[]> paths = new ConcurrentHashMap<Integer, long[]>();
+    /**
+     * Cached track ids in insertion order
+     */
+    private final Queue<Integer> order = new ConcurrentLinkedQueue<Integer>();
+    /**
+     * Track ids whose paths are being written
+     */
+    private final ConcurrentMap<Integer, Boolean> claimed = new ConcurrentHashMap<Integer, Boolean>();
+
+    /**
+     * 
+     * @param eServer
+     * @param partitions partitions of the raw track data, used for tracks
+     *        stored before paths were recorded
+     * @param capacity maximum number of cached paths
+     */
+    public TrackPathCache(EbeanServer eServer, TablePartitions partitions, int capacity) {
+        this.eServer = eServer;
+        this.partitions = partitions;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Warm the cache with the paths of the most recently seen tracks.
+     */
+    public void load() {
+        List<TrackPath> stored = eServer.find(TrackPath.class).orderBy("firstTs desc")
+                .setMaxRows(capacity).findList();
+        // oldest first, so they are evicted first
+        for (int i = stored.size() - 1; i >= 0; i--) {
+            put(stored.get(i).getTrackID(), stored.get(i).getProbeIds());
+        }
+        logger.debug("loaded {} track paths", stored.size());
+    }
+
+    private void put(int trackId, long[] probeIds) {
+        if (paths.put(trackId, probeIds) == null) {
+            order.add(trackId);
+            while (paths.size() > capacity) {
+                Integer eldest = order.poll();
+                if (eldest == null) {
+                    break;
+                }
+                paths.remove(eldest);
+            }
+        }
+    }
+
+    /**
+     * Claim the path of a track that is not cached yet. Only one writer claims
+     * a track id at a time; it stores the path with {@link #insert} and hands
+     * the claim back with {@link #release}.
+     * 
+     * @param trackId
+     * @param ts start of the record
+     * @param probeIds probe ids in hop order
+     * @return the claimed path, or null if the path is cached or claimed by
+     *         another writer
+     */
+    public TrackPath claim(int trackId, long ts, long[] probeIds) {
+        if (paths.containsKey(trackId) || claimed.putIfAbsent(trackId, Boolean.TRUE) != null) {
+            return null;
+        }
+        return new TrackPath(trackId, ts, probeIds);
+    }
+
+    /**
+     * Insert claimed paths not stored yet, as one JDBC batch in the
+     * transaction of the given connection.
+     * 
+     * @param con
+     * @param claims claimed paths
+     * @throws SQLException
+     */
+    public void insert(Connection con, Collection<TrackPath> claims) throws SQLException {
+        if (claims.isEmpty()) {
+            return;
+        }
+        // paths evicted from the cache are stored already
+        Set<Integer> stored = new HashSet<Integer>();
+        StringBuilder ids = new StringBuilder();
+        for (TrackPath path : claims) {
+            ids.append(ids.length() == 0 ? "" : ",").append(path.getTrackID());
+        }
+        Statement query = con.createStatement();
+        try {
+            ResultSet rs = query.executeQuery("SELECT track_id FROM track_path WHERE track_id IN (" + ids + ")");
+            while (rs.next()) {
+                stored.add(rs.getInt(1));
+            }
+        } finally {
+            query.close();
+        }
+        if (stored.size() == claims.size()) {
+            return;
+        }
+        PreparedStatement stmt = con.prepareStatement(INSERT_TRACK_PATH);
+        try {
+            for (TrackPath path : claims) {
+                if (!stored.contains(path.getTrackID())) {
+                    stmt.setInt(1, path.getTrackID());
+                    stmt.setLong(2, path.getFirstTs());
+                    stmt.setString(3, path.getProbes());
+                    stmt.addBatch();
+                }
+            }
+            stmt.executeBatch();
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Hand claimed paths back. Committed paths are cached, the others can be
+     * claimed again by the next record of their track.
+     * 
+     * @param claims
+     * @param committed whether the paths were committed
+     */
+    public void release(Collection<TrackPath> claims, boolean committed) {
+        for (TrackPath path : claims) {
+            if (committed) {
+                put(path.getTrackID(), path.getProbeIds());
+            }
+            claimed.remove(path.getTrackID());
+        }
+    }
+
+    /**
+     * Store the path of a track if it is not known yet, in a transaction of
+     * its own.
+     */
+    private void record(int trackId, long ts, long[] probeIds) {
+        TrackPath path = claim(trackId, ts, probeIds);
+        if (path == null) {
+            return;
+        }
+        List<TrackPath> claims = Collections.singletonList(path);
+        boolean committed = false;
+        Transaction txn = eServer.createTransaction();
+        try {
+            insert(txn.getConnection(), claims);
+            txn.commit();
+            committed = true;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            txn.end();
+            release(claims, committed);
+        }
+    }
+
+    /**
+     * 
+     * @param trackId
+     * @return probe ids in hop order, empty if the track is unknown
+     */
+    public long[] get(int trackId) {
+        long[] probeIds = paths.get(trackId);
+        if (probeIds != null) {
+            return probeIds;
+        }
+        TrackPath path = find(trackId);
+        if (path != null) {
+            probeIds = path.getProbeIds();
+            put(trackId, probeIds);
+            return probeIds;
+        }
+        return findStoredPath(trackId);
+    }
+
+    /**
+     * Ebean treats an id of 0 as unset, but 0 is a valid track id.
+     */
+    private TrackPath find(int trackId) {
+        SqlRow row = eServer.createSqlQuery("SELECT first_ts, probes FROM track_path WHERE track_id = :trackId")
+                .setParameter("trackId", trackId).findUnique();
+        if (row == null) {
+            return null;
+        }
+        TrackPath path = new TrackPath();
+        path.setTrackID(trackId);
+        path.setFirstTs(row.getLong("first_ts"));
+        path.setProbes(row.getString("probes"));
+        return path;
+    }
+
+    /**
+     * Look up the path of a track stored before paths were recorded and
+     * record it.
+     */
+    private long[] findStoredPath(int trackId) {
+        try {
+            /* find a record for this track, oldest partition first */
+            SqlRow row = null;
+            for (String table : partitions.list(TablePartitions.TRACK_DATA)) {
+                SqlQuery rquery = eServer.createSqlQuery("SELECT uid as record_id, start_ts, stop_ts FROM " + table + " WHERE track_id = :trackId ORDER BY uid LIMIT 1").setParameter("trackId", trackId);
+                row = rquery.findUnique();
+                if (row != null) {
+                    break;
+                }
+            }
+            if (row == null) {
+                return NO_PATH;
+            }
+            /* get order list of probeIds */
+            String from = partitions.from(TablePartitions.RAW_TRACK_DATA, row.getLong("start_ts"), row.getLong("stop_ts"),
+                    trackId, trackId);
+            List<SqlRow> prows = eServer.createSqlQuery("SELECT probe_id FROM " + from + " WHERE record_id = :recordId ORDER BY hop_number").setParameter("recordId", row.getLong("record_id")).findList();
+            long[] probeIds = new long[prows.size()];
+            for (int i = 0; i < probeIds.length; i++) {
+                probeIds[i] = prows.get(i).getLong("probe_id");
+            }
+            if (probeIds.length > 0) {
+                record(trackId, row.getLong("start_ts"), probeIds);
+            }
+            return probeIds;
+        } catch (RuntimeException e) {
+            logger.warn(e.getMessage());
+            return NO_PATH;
+        }
+    }
+
+    /**
+     * Forget all paths, e.g. after the tracks were purged.
+     */
+    public void clear() {
+        paths.clear();
+        order.clear();
+    }
+
+    /**
+     * 
+     * @return number of cached paths
+     */
+    public int size() {
+        return paths.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -47,6 +47,9 @@ import de.fhg.fokus.net.ptapi.PtProbeLocation;
 import de.fhg.fokus.net.ptapi.PtProbeStats;
 
 /**
+ * Sink for records received from exporters. Decoders may reuse record
+ * instances, so implementations must copy what they need before returning and
+ * must not keep references to the passed records.
  * 
  * @author FhG-FOKUS NETwork Research
  *
@@ -43,30 +43,31 @@ package de.fhg.fokus.net.netview.model.db;
 
 import java.util.ArrayList;
 import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.swing.JCheckBox;
 import javax.swing.JOptionPane;
-import org.geonames.InvalidParameterException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.avaje.ebean.EbeanServer;
-import com.avaje.ebean.SqlQuery;
-import com.avaje.ebean.SqlRow;
-
 import de.fhg.fokus.net.netview.control.Controllable;
 import de.fhg.fokus.net.netview.model.Node;
 import de.fhg.fokus.net.netview.model.NodeMeasurementProperties;
@@ -90,11 +91,6 @@ import de.fhg.fokus.net.geo.WayPoint;
 import de.fhg.fokus.net.netview.control.DataSourcesController;
 import de.fhg.fokus.net.netview.model.Probe;
 
-import org.geonames.PostalCodeSearchCriteria;
-import org.geonames.WebService;
-import org.geonames.PostalCode;
-import org.geonames.Toponym;
-
 /**
  * 
  * @author FhG-FOKUS NETwork Research
@@ -105,11 +101,18 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
 
     private final Logger logger = LoggerFactory.getLogger(getClass());
     // --
-    private final EbeanServer eServer;
+    private final StorageEngine engine;
+    /**
+     * Cache of hop delay queries, if set
+     */
+    private volatile ResultCache resultCache;
     private ConcurrentNavigableMap<Long, Track> trackMap = new ConcurrentSkipListMap<Long, Track>();
+    /**
+     * Bearers and flows of tracks in trackMap
+     */
+    private final ConcurrentMap<Track, TrackHierarchy> hierarchies = new ConcurrentHashMap<Track, TrackHierarchy>();
     private final ConcurrentMap<Long, MapMarker> probeIdMarkerMap;
     private final Lock preloadLock = new ReentrantLock();
-    private final Map<Long, List<MapMarker>> trackMarkerCache = new HashMap<Long, List<MapMarker>>();
     public DataSourcesController dsc = null;
     private Set<Node> nodes = null;
     //
@@ -163,27 +166,54 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
      * Database timestamp unit 
      */
     private final TimeUnit DB_TS_TIMEUNIT = TimeUnit.MICROSECONDS;
-
-    public TrackRepository(EbeanServer eServer,
-            ScheduledExecutorService scheduler, ConcurrentMap<Long, MapMarker> probeIdMarkerMap) {
+    /**
+     * Maximum number of tracks whose bearers and flows are loaded by one
+     * batch
+     */
+    private static final int MAX_HIERARCHY_TRACKS = 500;
+    /**
+     * 
+     * @param engine storage the tracks, hops, stats and locations are read
+     *        from and new records are forwarded to
+     * @param scheduler
+     * @param probeIdMarkerMap
+     */
+    public TrackRepository(StorageEngine engine, ScheduledExecutorService scheduler,
+            ConcurrentMap<Long, MapMarker> probeIdMarkerMap) {
         super();
-        this.eServer = eServer;
+        this.engine = engine;
         this.probeIdMarkerMap = probeIdMarkerMap;
         this.eventSupport = new EventSupport<EventType, EventData>(scheduler);
     }
     private long lastStartTs, lastStopTs;
-    private long aggregationInterval = DB_TS_TIMEUNIT.convert(1, TimeUnit.SECONDS);
+    /**
+     * Number of buckets a preloaded interval should at most be split into,
+     * the coarsest rollup resolution staying below is used.
+     */
+    private static final long MAX_PRELOAD_BUCKETS = 3600;
+    /**
+     * Rollup resolution of the tracks in trackMap
+     */
+    private volatile long aggregationInterval = TrackRollup.RESOLUTIONS[0];
+    /**
+     * Retention of the rollups of each resolution in database time units, 0
+     * keeps them forever
+     */
+    private volatile long[] rollupRetention = new long[TrackRollup.RESOLUTIONS.length];
 
     private static class Preloader {
 
         boolean preloadIntervalShouldChange;
         long newPreloadStart;
         long newPreloadStop;
+        /**
+         * The scan of the running preload stops on the next row if set.
+         */
+        volatile boolean canceled;
     };
     private Preloader preloader = new Preloader();
-    private boolean warnOnMissingMarkers = true;
+    private volatile boolean warnOnMissingMarkers = true;
 
-    // private long aggregationInterval = 10000000;
     public void setNodesHashSet(Set<Node> set) {
         this.nodes = set;
     }
@@ -217,125 +247,306 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
         return result;
     }
     
+    /**
+     * Bearers of a track, and flows of each bearer, as loaded by one batch.
+     */
+    private static final class TrackHierarchy {
+
+        final ArrayList<Bearer> bearers = new ArrayList<Bearer>();
+        final Map<Bearer, ArrayList<Flow>> flows = new HashMap<Bearer, ArrayList<Flow>>();
+    }
+
+    /**
+     * Key of a bearer within a batch: track id, rule id and bearer
+     * information uid.
+     */
+    private static final class BearerKey {
+
+        final long trackId;
+        final long ruleId;
+        final long bearerUid;
+
+        BearerKey(long trackId, long ruleId, long bearerUid) {
+            this.trackId = trackId;
+            this.ruleId = ruleId;
+            this.bearerUid = bearerUid;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BearerKey)) {
+                return false;
+            }
+            BearerKey other = (BearerKey) obj;
+            return trackId == other.trackId && ruleId == other.ruleId
+                    && bearerUid == other.bearerUid;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = (int) (trackId ^ (trackId >>> 32));
+            hash = 31 * hash + (int) (ruleId ^ (ruleId >>> 32));
+            return 31 * hash + (int) (bearerUid ^ (bearerUid >>> 32));
+        }
+    }
+
     public ArrayList<Bearer> getBearers(Track track) {
-        JenkinsHash hashCalculator = new JenkinsHash();
-        ArrayList<Bearer> bearers = new ArrayList<Bearer>();
-        
-        long startTs = track.getStartTs();
-        long stopTs = track.getStopTs();
-        
-        int counter = 1;
-        
-        try {
-            String sql_query = "SELECT count(*) as volume, "
-                    + "BEARER_INFORMATION.* FROM "
-                    + "RAW_TRACK_DATA, BEARER_INFORMATION "
-                    + "WHERE RAW_TRACK_DATA.RULE_ID = "
-                    + "BEARER_INFORMATION.RULE_ID AND "
-                    + "track_id=:trackIdSQL AND RULE_FLAG = 1 "
-                    + "AND ts BETWEEN :startTsSQL AND :stopTsSQL "
-                    + "GROUP BY BEARER_INFORMATION.UID, "
-                    + "RAW_TRACK_DATA.RULE_ID";
-            
-            SqlQuery query = eServer.createSqlQuery(sql_query)
-                    .setParameter("trackIdSQL", track.getTrackId())
-                    .setParameter("startTsSQL", startTs)
-                    .setParameter("stopTsSQL", stopTs);
-            List<SqlRow> results = query.findList();
-
-            if (results.size() > 0) {
-                for (SqlRow row : results) {
-                    ByteBuffer hashBuffer = ByteBuffer.allocate(24);
-                    hashBuffer.putLong(row.getLong("rule_id"));
-		    hashBuffer.putLong(row.getLong("uid"));
-                    hashBuffer.putLong(track.getTrackId());
-                    
-                    Bearer bearer = ObjectFactory.createAnimated(
-                            track,
-                            row.getInteger("volume"),
-                            (long) hashCalculator.hash(hashBuffer.array()),
-                            row.getLong("rule_id"),
-                            row.getString("apn"),
-                            row.getString("rule_name"),
-                            row.getString("imsi"),
-                            row.getLong("qci"),
-                            row.getLong("maximum_download"),
-                            row.getLong("maximum_upload"),
-                            row.getLong("guaranteed_download"),
-                            row.getLong("guaranteed_upload"),
-                            row.getLong("apn_download"),
-                            row.getLong("apn_upload"),
-                            row.getString("source_address"),
-                            row.getString("destination_address"),
-                            row.getInteger("source_port"),
-                            row.getInteger("destination_port"),
-                            track.view.markers,
-                            0.3*counter+0.7);
-                    bearers.add(bearer);
-                    counter++;
+        TrackHierarchy hierarchy = hierarchies.get(track);
+        if (hierarchy == null) {
+            // tracks visible together with this one are likely expanded next
+            List<Track> tracks = new ArrayList<Track>();
+            tracks.add(track);
+            for (Track t : trackMap.subMap(track.getStartTs() - aggregationInterval, true,
+                    track.getStopTs(), true).values()) {
+                if (t != track && t.getStopTs() >= track.getStartTs()
+                        && tracks.size() < MAX_HIERARCHY_TRACKS) {
+                    tracks.add(t);
                 }
             }
-        } catch (Exception e) {
-            logger.debug(e.getMessage());
+            loadHierarchies(tracks);
+            hierarchy = hierarchies.get(track);
         }
-        
-        return bearers;
+        // the view clears the list it is given
+        return hierarchy == null ? new ArrayList<Bearer>() : new ArrayList<Bearer>(hierarchy.bearers);
     }
-        
+
     public ArrayList<Flow> getFlows(Track track, Bearer bearer) {
-        JenkinsHash hashCalculator = new JenkinsHash();
-        ArrayList<Flow> flows = new ArrayList<Flow>(); 
-        long startTs = track.getStartTs();
-        long stopTs = track.getStopTs();
-        int counter = 1;
+        getBearers(track);
+        TrackHierarchy hierarchy = hierarchies.get(track);
+        if (hierarchy != null) {
+            for (Map.Entry<Bearer, ArrayList<Flow>> entry : hierarchy.flows.entrySet()) {
+                if (entry.getKey().getBearerId() == bearer.getBearerId()) {
+                    return new ArrayList<Flow>(entry.getValue());
+                }
+            }
+        }
+        return new ArrayList<Flow>();
+    }
 
+    /**
+     * Load the bearers and flows of the preloaded tracks starting within a
+     * time window. Tracks already loaded are skipped.
+     * 
+     * @param startTs in milliseconds
+     * @param stopTs in milliseconds
+     */
+    public void loadHierarchies(long startTs, long stopTs) {
+        List<Track> tracks = new ArrayList<Track>(trackMap.subMap(
+                DB_TS_TIMEUNIT.convert(startTs, TimeUnit.MILLISECONDS), true,
+                DB_TS_TIMEUNIT.convert(stopTs, TimeUnit.MILLISECONDS), false).values());
+        for (int i = 0; i < tracks.size(); i += MAX_HIERARCHY_TRACKS) {
+            loadHierarchies(tracks.subList(i, Math.min(tracks.size(), i + MAX_HIERARCHY_TRACKS)));
+        }
+    }
+
+    /**
+     * Load the bearers and flows of a set of tracks with one query each,
+     * the result is kept until the tracks are dropped from the preload
+     * cache. Tracks already loaded are skipped.
+     * 
+     * @param tracks preloaded tracks
+     */
+    public void loadHierarchies(Collection<Track> tracks) {
+        if (tracks.size() > MAX_HIERARCHY_TRACKS) {
+            List<Track> all = new ArrayList<Track>(tracks);
+            for (int i = 0; i < all.size(); i += MAX_HIERARCHY_TRACKS) {
+                loadHierarchies(all.subList(i, Math.min(all.size(), i + MAX_HIERARCHY_TRACKS)));
+            }
+            return;
+        }
+        List<Track> missing = new ArrayList<Track>();
+        for (Track track : tracks) {
+            if (!hierarchies.containsKey(track)) {
+                missing.add(track);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        // hops of each track within its exact time window
+        long[] ids = new long[missing.size()];
+        long[] from = new long[ids.length];
+        long[] to = new long[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = missing.get(i).getTrackId();
+            from[i] = missing.get(i).getStartTs();
+            to[i] = missing.get(i).getStopTs();
+        }
+        // rows by window start, which is unique in trackMap
+        Map<Long, List<StorageEngine.BearerVolume>> bearerRows = new HashMap<Long, List<StorageEngine.BearerVolume>>();
+        Map<Long, List<StorageEngine.FlowVolume>> flowRows = new HashMap<Long, List<StorageEngine.FlowVolume>>();
         try {
-            String sql_query = "SELECT count(*) as volume, "
-                    + "source_address, destination_address, source_port, "
-                    + "destination_port FROM raw_track_data WHERE rule_id="
-                    + ":ruleIdSQL AND track_id=:trackIdSQL AND ts BETWEEN "
-                    + ":startTsSQL AND :stopTsSQL GROUP BY source_address, "
-                    + "destination_address, source_port, destination_port";
-            
-            SqlQuery query = eServer.createSqlQuery(sql_query)
-                    .setParameter("ruleIdSQL", bearer.getRuleId())
-                    .setParameter("trackIdSQL", track.getTrackId())
-                    .setParameter("startTsSQL", startTs)
-                    .setParameter("stopTsSQL", stopTs);
-            List<SqlRow> results = query.findList();
-            
-            if (results.size() > 0) {
-                for (SqlRow row : results) {
-                    ByteBuffer hashBuffer = ByteBuffer.allocate(16);
-                    hashBuffer.putLong(bearer.getBearerId());
-                    hashBuffer.putInt(row.getInteger("source_port"));
-                    hashBuffer.putInt(row.getInteger("destination_port"));
-                     
-                    Flow flow = ObjectFactory.createAnimated(
-                            bearer,
-                            (long) hashCalculator.hash(hashBuffer.array()),
-                            row.getString("source_address"),
-                            row.getString("destination_address"),
-                            row.getInteger("source_port"), 
-                            row.getInteger("destination_port"),
-                            row.getInteger("volume"),
-                            track.view.markers,
-                            (0.3/results.size())*counter+
-                            (bearer.view.curveFactor-(0.3/results.size())));
-                    flows.add(flow);
-                    counter++;
-                }
+            for (StorageEngine.BearerVolume row : engine.findBearerVolumes(ids, from, to)) {
+                rowsOf(bearerRows, row.from).add(row);
+            }
+            for (StorageEngine.FlowVolume row : engine.findFlowVolumes(ids, from, to)) {
+                rowsOf(flowRows, row.from).add(row);
             }
         } catch (Exception e) {
             logger.debug(e.getMessage());
-        }     
+            return;
+        }
+        JenkinsHash hashCalculator = new JenkinsHash();
+        for (Track track : missing) {
+            TrackHierarchy hierarchy = new TrackHierarchy();
+            // bearers of the track in query order, with their volumes
+            Map<BearerKey, StorageEngine.BearerVolume> bearers = new LinkedHashMap<BearerKey, StorageEngine.BearerVolume>();
+            Map<BearerKey, Integer> volumes = new HashMap<BearerKey, Integer>();
+            for (StorageEngine.BearerVolume row : rowsOf(bearerRows, track.getStartTs())) {
+                if (row.trackId != track.getTrackId()) {
+                    continue;
+                }
+                BearerKey key = new BearerKey(track.getTrackId(), row.ruleId, row.uid);
+                if (!bearers.containsKey(key)) {
+                    bearers.put(key, row);
+                    volumes.put(key, 0);
+                }
+                volumes.put(key, volumes.get(key) + row.volume);
+            }
+            int counter = 1;
+            for (Map.Entry<BearerKey, StorageEngine.BearerVolume> entry : bearers.entrySet()) {
+                StorageEngine.BearerVolume row = entry.getValue();
+                ByteBuffer hashBuffer = ByteBuffer.allocate(24);
+                hashBuffer.putLong(row.ruleId);
+                hashBuffer.putLong(row.uid);
+                hashBuffer.putLong(track.getTrackId());
+
+                Bearer bearer = ObjectFactory.createAnimated(
+                        track,
+                        volumes.get(entry.getKey()),
+                        (long) hashCalculator.hash(hashBuffer.array()),
+                        row.ruleId,
+                        row.apn,
+                        row.ruleName,
+                        row.imsi,
+                        row.qci,
+                        row.maximumDownload,
+                        row.maximumUpload,
+                        row.guaranteedDownload,
+                        row.guaranteedUpload,
+                        row.apnDownload,
+                        row.apnUpload,
+                        row.sourceAddress,
+                        row.destinationAddress,
+                        row.sourcePort,
+                        row.destinationPort,
+                        track.view.markers,
+                        0.3 * counter + 0.7);
+                hierarchy.bearers.add(bearer);
+                hierarchy.flows.put(bearer, createFlows(hashCalculator, track, bearer,
+                        rowsOf(flowRows, track.getStartTs())));
+                counter++;
+            }
+            hierarchies.put(track, hierarchy);
+        }
+    }
+
+    /**
+     * 
+     * @return rows of a track window, added to the map if missing
+     */
+    private static <T> List<T> rowsOf(Map<Long, List<T>> byWindow, long from) {
+        List<T> rows = byWindow.get(from);
+        if (rows == null) {
+            rows = new ArrayList<T>();
+            byWindow.put(from, rows);
+        }
+        return rows;
+    }
+
+    private ArrayList<Flow> createFlows(JenkinsHash hashCalculator, Track track, Bearer bearer,
+            List<StorageEngine.FlowVolume> flowRows) {
+        Map<Integer, StorageEngine.FlowVolume> keys = new LinkedHashMap<Integer, StorageEngine.FlowVolume>();
+        Map<Integer, Integer> volumes = new HashMap<Integer, Integer>();
+        for (StorageEngine.FlowVolume row : flowRows) {
+            if (row.trackId != track.getTrackId() || row.ruleId != bearer.getRuleId()) {
+                continue;
+            }
+            if (!keys.containsKey(row.flowKey)) {
+                keys.put(row.flowKey, row);
+                volumes.put(row.flowKey, 0);
+            }
+            volumes.put(row.flowKey, volumes.get(row.flowKey) + row.volume);
+        }
+        ArrayList<Flow> flows = new ArrayList<Flow>();
+        int counter = 1;
+        for (Map.Entry<Integer, StorageEngine.FlowVolume> entry : keys.entrySet()) {
+            StorageEngine.FlowVolume row = entry.getValue();
+            ByteBuffer hashBuffer = ByteBuffer.allocate(16);
+            hashBuffer.putLong(bearer.getBearerId());
+            hashBuffer.putInt(row.sourcePort);
+            hashBuffer.putInt(row.destinationPort);
+
+            Flow flow = ObjectFactory.createAnimated(
+                    bearer,
+                    (long) hashCalculator.hash(hashBuffer.array()),
+                    row.sourceAddress,
+                    row.destinationAddress,
+                    row.sourcePort,
+                    row.destinationPort,
+                    volumes.get(entry.getKey()),
+                    track.view.markers,
+                    (0.3 / keys.size()) * counter
+                    + (bearer.view.curveFactor - (0.3 / keys.size())));
+            flow.setFlowKey(entry.getKey());
+            flows.add(flow);
+            counter++;
+        }
         return flows;
     }
 
+    /**
+     * 
+     * @param resultCache cache of hop delay queries, or null
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Set the retention of the rollups, resolutions expired at the start of a
+     * preload window are skipped.
+     * 
+     * @param retention retention in milliseconds for each of
+     *        {@link TrackRollup#RESOLUTIONS}, 0 keeps them forever
+     */
+    public void setRollupRetention(long[] retention) {
+        long[] r = new long[TrackRollup.RESOLUTIONS.length];
+        for (int i = 0; i < r.length && i < retention.length; i++) {
+            r[i] = DB_TS_TIMEUNIT.convert(retention[i], TimeUnit.MILLISECONDS);
+        }
+        rollupRetention = r;
+    }
+
+    /**
+     * Select the finest retained rollup resolution that splits the interval
+     * into at most MAX_PRELOAD_BUCKETS buckets.
+     * 
+     * @param interval length in database time units
+     * @param from start of the interval in database time units
+     * @return resolution in database time units
+     */
+    private long selectResolution(long interval, long from) {
+        long now = DB_TS_TIMEUNIT.convert(System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        long[] retention = rollupRetention;
+        for (int i = 0; i < TrackRollup.RESOLUTIONS.length; i++) {
+            long resolution = TrackRollup.RESOLUTIONS[i];
+            if (retention[i] > 0 && from < now - retention[i]) {
+                continue;
+            }
+            if (interval / resolution <= MAX_PRELOAD_BUCKETS) {
+                return resolution;
+            }
+        }
+        return TrackRollup.RESOLUTIONS[TrackRollup.RESOLUTIONS.length - 1];
+    }
+
     @Override
     public void preloadTracks(long startTs, long stopTs) {
         // align on aggregation boundaries
-        long aggregationMs = TimeUnit.MILLISECONDS.convert(aggregationInterval, DB_TS_TIMEUNIT);
+        long resolution = selectResolution(DB_TS_TIMEUNIT.convert(stopTs - startTs, TimeUnit.MILLISECONDS),
+                DB_TS_TIMEUNIT.convert(startTs, TimeUnit.MILLISECONDS));
+        long aggregationMs = TimeUnit.MILLISECONDS.convert(resolution, DB_TS_TIMEUNIT);
         startTs -= startTs % aggregationMs;
         stopTs += aggregationMs - (stopTs % aggregationMs);
 
@@ -348,6 +559,7 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
                 preloader.preloadIntervalShouldChange = true;
                 preloader.newPreloadStart = startTs;
                 preloader.newPreloadStop = stopTs;
+                cancelScan();
             }
             return;
         }
@@ -360,68 +572,33 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
 
             eventSupport.dispatch(EventType.LOADING_TRACKS_STARTED, new EventData(startTs, stopTs));
 
-            for (long currentTs = intervalLower; currentTs < intervalUpper; currentTs += aggregationInterval) {
-                String sql_query = "SELECT track_id, COUNT(*) as volume, "
-                        + "AVG(delay) as avgDelay, MIN(start_ts) as minTs, "
-                        + "MAX(stop_ts) as maxTs FROM track_data WHERE "
-                        + "start_ts BETWEEN :startTsSQL AND :stopTsSQL "
-                        + "GROUP BY track_id";
-                SqlQuery query = eServer.createSqlQuery(sql_query).setParameter("startTsSQL", currentTs).setParameter("stopTsSQL", currentTs + aggregationInterval);
-                List<SqlRow> results = query.findList();
-
-                if (results.isEmpty()) {
-                    // no results in this interval, skip to the next track start
-                    currentTs = findNextTrack(currentTs);
-                    if (currentTs == Long.MAX_VALUE) {
-                        // no more tracks terminate loop;
-                        currentTs = intervalUpper;
-                    } else {
-                        // align on interval boundary
-                        currentTs -= (currentTs % aggregationInterval);
-                    }
-                    continue;
+            while (true) {
+                synchronized (preloader) {
+                    preloader.canceled = false;
                 }
-
-                for (SqlRow row : results) {
-                    long trackTs = row.getLong("minTs");
-                    long trackId = row.getLong("track_id");
-
-                    if (trackMap.get(trackTs) == null) {
-                        List<MapMarker> markers;
-
-                        markers = trackMarkerCache.get(trackId);
-                        if (markers == null) {
-                            markers = findMarkersOnTrack(trackId);
-                            trackMarkerCache.put(trackId, markers);
-                        }
-
-                        if (markers.size() > 1) {
-                            Track track = ObjectFactory.createAnimated(
-                                    row.getInteger("track_id"),
-                                    row.getLong("minTs"),
-                                    row.getLong("maxTs"),
-                                    row.getInteger("volume"),
-                                    row.getLong("avgDelay"),
-                                    markers, DB_TS_TIMEUNIT);
-                            trackMap.put(track.getStartTs(), track);
-                            loadedTracks++;
-                        }
-                    }
-                } // end for track
+                resolution = selectResolution(intervalUpper - intervalLower, intervalLower);
+                if (resolution != aggregationInterval) {
+                    // tracks of different resolutions must not be mixed
+                    trackMap.clear();
+                    hierarchies.clear();
+                    aggregationInterval = resolution;
+                }
+                loadedTracks += preloadScan(resolution, TrackRollup.bucketOf(intervalLower, resolution),
+                        intervalUpper);
 
                 synchronized (preloader) {
-                    if (preloader.preloadIntervalShouldChange) {
-                        preloader.preloadIntervalShouldChange = false;
-                        intervalLower = DB_TS_TIMEUNIT.convert(preloader.newPreloadStart, TimeUnit.MILLISECONDS);
-                        intervalUpper = DB_TS_TIMEUNIT.convert(preloader.newPreloadStop, TimeUnit.MILLISECONDS);
-                        currentTs = intervalLower;
-                        logger.debug("Preloader: changed preloading interval to : " + preloader.newPreloadStart + " - " + preloader.newPreloadStop);
-                        loadedTracks = 0;
-                        loadStartedAt = System.currentTimeMillis();
-                        eventSupport.dispatch(EventType.LOADING_TRACKS_STARTED, new EventData(preloader.newPreloadStart, preloader.newPreloadStop));
+                    if (!preloader.preloadIntervalShouldChange) {
+                        break;
                     }
+                    preloader.preloadIntervalShouldChange = false;
+                    intervalLower = DB_TS_TIMEUNIT.convert(preloader.newPreloadStart, TimeUnit.MILLISECONDS);
+                    intervalUpper = DB_TS_TIMEUNIT.convert(preloader.newPreloadStop, TimeUnit.MILLISECONDS);
+                    logger.debug("Preloader: changed preloading interval to : " + preloader.newPreloadStart + " - " + preloader.newPreloadStop);
+                    loadedTracks = 0;
+                    loadStartedAt = System.currentTimeMillis();
+                    eventSupport.dispatch(EventType.LOADING_TRACKS_STARTED, new EventData(preloader.newPreloadStart, preloader.newPreloadStop));
                 }
-            } // end for interval
+            } // end while interval changes
 
             eventSupport.dispatch(EventType.LOADING_TRACKS_FINISHED, new EventData(startTs, stopTs, trackMap.size(), loadedTracks, System.currentTimeMillis() - loadStartedAt));
 
@@ -437,41 +614,68 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
         }
     }
 
-    private List<Long> findProbesOnTrack(long trackId) {
-        List<Long> probes = new ArrayList<Long>();
-
-        try {
-            /* find a record for this track */
-            SqlQuery rquery = eServer.createSqlQuery("SELECT MIN(uid) as record_id FROM track_data WHERE track_id = :trackId").setParameter("trackId", trackId);
-            SqlRow row = rquery.findUnique();
-
-            if (row.get("record_id") != null) {
-                /* get order list of probeIds */
-                long recordId = row.getLong("record_id");
-                SqlQuery pquery = eServer.createSqlQuery("SELECT probe_id FROM raw_track_data WHERE record_id = :recordId ORDER BY hop_number").setParameter("recordId", recordId);
-                List<SqlRow> prows = pquery.findList();
-
-                for (SqlRow prow : prows) {
-                    probes.add(prow.getLong("probe_id"));
+    /**
+     * Scan the rollups of a preload window and merge its tracks into
+     * trackMap. A single scan streamed from a cursor: H2 runs the statements
+     * of a database one at a time (no MULTI_THREADED), so splitting the window
+     * into scans on several connections did not load any faster.
+     * 
+     * @param resolution rollup resolution
+     * @param from first bucket of the window
+     * @param to end of the window, exclusive
+     * @return number of tracks added
+     */
+    private long preloadScan(long resolution, long from, long to) {
+        if (preloader.canceled) {
+            return 0;
+        }
+        final AtomicLong loaded = new AtomicLong();
+        // rollups are bucketed by track start
+        engine.scanTracks(resolution, from, to, new StorageEngine.TrackVisitor() {
+
+            @Override
+            public boolean visit(int trackId, long volume, long delaySum, long minStart, long maxStop) {
+                if (preloader.canceled) {
+                    return false;
+                }
+                if (addTrack(trackId, volume, delaySum, minStart, maxStop)) {
+                    loaded.incrementAndGet();
                 }
+                return true;
             }
-        } catch (Exception e) {
-            logger.warn(e.getMessage());
-            e.printStackTrace();
-        }
+        });
+        return loaded.get();
+    }
 
-        // logger.info("== probes " + trackId +
-        // "==============");
-        // for(Long p : vProbes) {
-        // 		logger.info("" + p);
-        // }
-        // logger.info("== probes =============================");
+    /**
+     * Add a track aggregated from one rollup bucket to trackMap.
+     * 
+     * @return true if the track was added
+     */
+    private boolean addTrack(int trackId, long volume, long delaySum, long trackTs, long maxTs) {
+        if (trackMap.get(trackTs) != null) {
+            return false;
+        }
+        List<MapMarker> markers = findMarkersOnTrack(trackId);
+        if (markers.size() <= 1) {
+            return false;
+        }
+        Track track = ObjectFactory.createAnimated(trackId, trackTs, maxTs,
+                (int) volume, delaySum / volume, markers, DB_TS_TIMEUNIT);
+        return trackMap.putIfAbsent(track.getStartTs(), track) == null;
+    }
 
-        return probes;
+    /**
+     * Cancel the scan of the running preload. Caller must hold the preloader
+     * monitor.
+     */
+    private void cancelScan() {
+        preloader.canceled = true;
+        engine.cancelScans();
     }
 
     private List<MapMarker> findMarkersOnTrack(long trackId) {
-        List<Long> probes = findProbesOnTrack(trackId);
+        long[] probes = engine.getTrackPath((int) trackId);
         List<MapMarker> markers = new ArrayList<MapMarker>();
         MapMarker lastMarker = null;
         for (long probeId : probes) {
@@ -497,6 +701,39 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
         return markers;
     }
 
+    /**
+     * Delays of the hops of a track in [fromTs, toTs].
+     * 
+     * @param trackId
+     * @param ruleId rule id or -1 for any
+     * @param flowKey flow key id or -1 for any
+     * @param fromTs in database time units
+     * @param toTs in database time units, inclusive
+     * @return ts, packet id and delay of each hop by hop number, ordered by
+     *         ts; shared with other callers if cached, not to be modified
+     */
+    public SortedMap<Integer, List<long[]>> findHopDelays(final long trackId, final long ruleId,
+            final long flowKey, final long fromTs, final long toTs) {
+        ResultCache cache = resultCache;
+        if (cache == null) {
+            return engine.findHopDelays(trackId, ruleId, flowKey, fromTs, toTs);
+        }
+        String entity = trackId + ":" + ruleId + ":" + flowKey;
+        return cache.get(ResultCache.Source.TRACKS, entity, fromTs, toTs, "hopDelays",
+                new ResultCache.Loader<SortedMap<Integer, List<long[]>>>() {
+
+                    @Override
+                    public SortedMap<Integer, List<long[]>> load() {
+                        return engine.findHopDelays(trackId, ruleId, flowKey, fromTs, toTs);
+                    }
+
+                    @Override
+                    public long sizeOf(SortedMap<Integer, List<long[]>> hops) {
+                        return ResultCache.sizeOfHops(hops);
+                    }
+                });
+    }
+
     public ArrayList<Node> findNodesOnTrack(long trackId) {
         List<MapMarker> markers = findMarkersOnTrack(trackId);
         ArrayList<Node> nodeList = new ArrayList<Node>();
@@ -520,11 +757,9 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
     public ArrayList<Long> findTrackRecords(long trackId, long start, long stop) {
         ArrayList<Long> records = new ArrayList<Long>();
         try {
-            SqlQuery query = eServer.createSqlQuery("SELECT uid FROM track_data WHERE track_id = :trackid AND start_ts BETWEEN :start AND :stop").setParameter("trackid", trackId).setParameter("start", DB_TS_TIMEUNIT.convert(start, TimeUnit.MILLISECONDS)).setParameter("stop", DB_TS_TIMEUNIT.convert(stop, TimeUnit.MILLISECONDS));
-            List<SqlRow> rows = query.findList();
-            for (SqlRow row : rows) {
-                records.add(row.getLong("uid"));
-            }
+            long from = DB_TS_TIMEUNIT.convert(start, TimeUnit.MILLISECONDS);
+            long to = DB_TS_TIMEUNIT.convert(stop, TimeUnit.MILLISECONDS);
+            records.addAll(engine.findTrackRecords(trackId, from, to));
         } catch (Exception e) {
             logger.warn(e.getMessage());
             e.printStackTrace();
@@ -534,13 +769,7 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
 
     private long findNextTrack(long currentTs) {
         try {
-            String sql_query = "SELECT MIN(start_ts) as timestamp FROM track_data WHERE start_ts > :now";
-            SqlQuery query = eServer.createSqlQuery(sql_query).setParameter("now", currentTs);
-            SqlRow row = query.findUnique();
-
-            if (row.get("timestamp") != null) {
-                return row.getLong("timestamp");
-            }
+            return engine.nextTrackStart(currentTs);
         } catch (Exception e) {
             logger.warn(e.getMessage());
             e.printStackTrace();
@@ -550,14 +779,7 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
 
     private long findPrevTrack(long t) {
         try {
-            String sql_query = "SELECT MAX(start_ts) as timestamp FROM track_data WHERE start_ts < :now";
-            SqlQuery query = eServer.createSqlQuery(sql_query).setParameter("now", t);
-            SqlRow row = query.findUnique();
-
-            if (row.get("timestamp") != null) {
-                return row.getLong("timestamp");
-            }
-
+            return engine.previousTrackStart(t);
         } catch (Exception e) {
             logger.warn(e.getMessage());
             e.printStackTrace();
@@ -579,6 +801,7 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
     @Override
     public void stop() {
         trackMap.clear();
+        hierarchies.clear();
     }
 
     public void addEventListener(EventType eventType, EventSupport.EventListener<EventData> lsn) {
@@ -591,206 +814,93 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
         
     @Override
     public void addPacketTrackRecord(PacketTrackRecord record) {
-        if (record == null) {
-            logger.warn("could not create (Raw)TrackData object, returning null");
-        } else {
-            TrackData td = new TrackData(record);
-            eServer.save(td);
-
-            for (int i = 0; i < record.oids.length; i++) {
-                RawTrackData rtd = new RawTrackData(record, i, td.getUid());
-                eServer.save(rtd);
-            }
-        }
+        engine.addPacketTrackRecord(record);
     }
     
     @Override
     public void addBearerInformation(PtBearerInformation record) {
-        if(record == null) {
-            logger.warn("could not create BearerInformation object, returning null");
-        } else {
-            final BearerInformation bi = new BearerInformation(record);
-            eServer.save(bi);
-        }
+        engine.addBearerInformation(record);
     }
 
     @Override
     public void addPtInterfaceStats(PtInterfaceStats sampling) {
-        if (sampling == null) {
-            logger.warn("could not create Sampling object, returning null");
-        } else {
-            final InterfaceStats sample = new InterfaceStats(sampling);
-            eServer.save(sample);
-        }
+        engine.addPtInterfaceStats(sampling);
     }
 
     @Override
     public void addPtProbeStats(PtProbeStats probeStats) {
-        if (probeStats == null) {
-            logger.warn("could not create ProbeStats object, returning null");
-        } else {
-            final ProbeStats probe = new ProbeStats(probeStats);
-            eServer.save(probe);
-        }
+        engine.addPtProbeStats(probeStats);
     }
 
     @Override
     public void addPtProbeLocation(PtProbeLocation location) {
-        if (location == null) {
-            logger.warn("could not create ProbeStats object, returning null");
-        } else {
-            ProbeLocation loc = new ProbeLocation(location);
-            eServer.save(loc);
-        }
+        engine.addPtProbeLocation(location);
     }
 
-    public List<SqlRow> getFirstAddresses(List<SqlRow> firstPositions) {
-        List<SqlRow> extractedRows = new ArrayList<SqlRow>();
-        List<Long> oids = new ArrayList<Long>();
-        long currOid;
-        for (SqlRow row : firstPositions) {
-            currOid = row.getLong("oid");
-            if (oids.isEmpty() || !(OidAlreadyReaded(oids, currOid))) {
-                oids.add(currOid);
-            }
-        }
-        List<SqlRow> rows;
-        SqlQuery query;
-        for (long a : oids) {
-            query = eServer.createSqlQuery(
-                    "SELECT oid, uid, address"
-                    + " FROM Probe_Location"
-                    + " WHERE oid = " + a
-                    + " ORDER BY uid asc");
-            rows = query.findList();
-            //logger.debug("--- getFirstAddresses ---");
-            for (SqlRow row : rows) {
-                //logger.debug(row.toString());
-                if (((String) row.get("address")).equals("unknown")
-                        || ((String) row.get("address")).equals("Unknown")
-                        || ((String) row.get("address")).equals("")) {
-                    continue;
-                }
-                extractedRows.add(row);
-                break;
-            }
-            //logger.debug("-------------------------");
-        }
-        //logger.debug("Returned Addr-Row: "+extractedRows.toString());
-        //logger.debug("-------------------------");
-        return extractedRows;
-    }
+    /**
+     * First valid position, name, location name and address reported by a
+     * probe.
+     */
+    private static final class FirstLocation {
 
-    public List<SqlRow> getFirstNames(List<SqlRow> firstPositions) {
-        List<SqlRow> extractedRows = new ArrayList<SqlRow>();
-        List<Long> oids = new ArrayList<Long>();
-        long currOid;
-        for (SqlRow row : firstPositions) {
-            currOid = row.getLong("oid");
-            if (oids.isEmpty() || !(OidAlreadyReaded(oids, currOid))) {
-                oids.add(currOid);
-            }
-        }
-        List<SqlRow> rows;
-        SqlQuery query;
-        for (long a : oids) {
-            query = eServer.createSqlQuery(
-                    "SELECT oid, uid, name"
-                    + " FROM Probe_Location"
-                    + " WHERE oid = " + a
-                    + " ORDER BY uid asc");
-            rows = query.findList();
-            //logger.debug("--- getFirstName ---");
-            for (SqlRow row : rows) {
-                //logger.debug(row.toString());
-                if (((String) row.get("name")).equals("unknown")
-                        || ((String) row.get("name")).equals("Unknown")
-                        || ((String) row.get("name")).equals("")) {
-                    continue;
-                }
-                extractedRows.add(row);
-                break;
-            }
-            //logger.debug("-------------------------");
-        }
-        //logger.debug("Returned Name-Rows: "+extractedRows.toString());
-        //logger.debug("-------------------------");
-        return extractedRows;
+        String latitude;
+        String longitude;
+        String name;
+        String locationName;
+        String address;
     }
 
-    public List<SqlRow> getFirstLocationNames(List<SqlRow> firstPositions) {
-        List<SqlRow> extractedRows = new ArrayList<SqlRow>();
-        List<Long> oids = new ArrayList<Long>();
-        long currOid;
-        for (SqlRow row : firstPositions) {
-            currOid = row.getLong("oid");
-            if (oids.isEmpty() || !(OidAlreadyReaded(oids, currOid))) {
-                oids.add(currOid);
-            }
-        }
-        List<SqlRow> rows;
-        SqlQuery query;
-        for (long a : oids) {
-            query = eServer.createSqlQuery(
-                    "SELECT oid, uid, location_name"
-                    + " FROM Probe_Location"
-                    + " WHERE oid = " + a
-                    + " ORDER BY uid asc");
-            rows = query.findList();
-            //logger.debug("--- getFirstLocationName ---");
-            for (SqlRow row : rows) {
-                //logger.debug(row.toString());
-                if (((String) row.get("location_name")).equals("unknown")
-                        || ((String) row.get("location_name")).equals("Unknown")
-                        || ((String) row.get("location_name")).equals("")) {
-                    continue;
+    /**
+     * Scan the probe locations once, keeping the first valid value of each
+     * field per probe.
+     * 
+     * @return first locations by probe id, in order of the first report
+     */
+    private Map<Long, FirstLocation> findFirstLocations() {
+        final Map<Long, FirstLocation> result = new LinkedHashMap<Long, FirstLocation>();
+        engine.scanLocations(new StorageEngine.LocationVisitor() {
+
+            @Override
+            public void visit(long oid, String latitude, String longitude, String name,
+                    String locationName, String address) {
+                FirstLocation first = result.get(oid);
+                if (first == null) {
+                    first = new FirstLocation();
+                    result.put(oid, first);
+                }
+                if (first.latitude == null && isCoordinate(latitude) && isCoordinate(longitude)) {
+                    first.latitude = latitude;
+                    first.longitude = longitude;
+                }
+                if (first.name == null && isKnown(name)) {
+                    first.name = name;
+                }
+                if (first.locationName == null && isKnown(locationName)) {
+                    first.locationName = locationName;
+                }
+                if (first.address == null && isKnown(address)) {
+                    first.address = address;
                 }
-                extractedRows.add(row);
-                break;
             }
-            //logger.debug("-------------------------");
-        }
-        //logger.debug("Returned LocName-Rows: "+extractedRows.toString());
-        //logger.debug("-------------------------");
-        return extractedRows;
+        });
+        return result;
     }
 
-    public List<SqlRow> getFirstPositions() {
-        SqlQuery query = eServer.createSqlQuery("SELECT uid, oid FROM Probe_Location ORDER BY uid asc");
-        List<SqlRow> rows1 = query.findList();
-        long currOid;
-        List<Long> oids = new ArrayList<Long>();
-        for (SqlRow row : rows1) {
-            currOid = row.getLong("oid");
-            if (oids.isEmpty() || !(OidAlreadyReaded(oids, currOid))) {
-                oids.add(currOid);
-            }
+    private static boolean isCoordinate(String value) {
+        if (value == null) {
+            return false;
         }
-        List<SqlRow> rows2;
-        List<SqlRow> extractedRows = new ArrayList<SqlRow>();
-        for (long a : oids) {
-            query = eServer.createSqlQuery(
-                    "SELECT oid, uid, latitude, longitude"
-                    + " FROM Probe_Location"
-                    + " WHERE oid = " + a
-                    + " ORDER BY uid asc");
-            rows2 = query.findList();
-            //logger.debug("--- getFirstPositions ---");
-            for (SqlRow row : rows2) {
-                //logger.debug(row.toString());
-                try {
-                    Double.parseDouble((String) row.get("latitude"));
-                    Double.parseDouble((String) row.get("longitude"));
-                } catch (NumberFormatException e) {
-                    continue;
-                }
-                extractedRows.add(row);
-                break;
-            }
-            //logger.debug("-------------------------");
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
         }
+    }
 
-        return extractedRows;
+    private static boolean isKnown(String value) {
+        return value != null && !value.equals("unknown") && !value.equals("Unknown")
+                && !value.equals("");
     }
 
     public void saveLocation(Node node) {
@@ -813,134 +923,48 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
                 locationName,
                 node.mp.getProbe().getLabel());
         logger.debug("OOO saving: " + loc.toString());
-        eServer.save(loc);
-
-    }
-
-    public boolean OidAlreadyReaded(List<Long> oids, long oid) {
-        for (long currOid : oids) {
-            if (currOid == oid) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    public String getLocationNameOverWebservice(long oid, double latitude, double longitude) {
-
-        logger.info("The probe " + oid + " did not sent his location name. Connecting to ws.geonames.org to retreive the location name ...");
-        PostalCodeSearchCriteria postalCodeSearchCriteria = new PostalCodeSearchCriteria();
-        try {
-            postalCodeSearchCriteria.setLatitude(latitude);
-        } catch (InvalidParameterException ex) {
-            logger.info("NetView wasn't able to set the latitude for the geonames request");
-        }
-        try {
-            postalCodeSearchCriteria.setLongitude(longitude);
-        } catch (InvalidParameterException ex) {
-            logger.info("NetView wasn't able to set the longitude for the geonames request");
-        }
+        engine.saveProbeLocation(loc);
 
-        // Calling the webservice
-        List<PostalCode> postalCodes = null;
-        String locationName = "Unknown";
-        for (int i = 0; i < 10; i++) {
-            logger.info("attempt " + (i + 1) + " ...");
-            try {
-                postalCodes = WebService.findNearbyPostalCodes(postalCodeSearchCriteria);
-            } catch (Exception ex) {
-                logger.info("The webservice geonames.org is unreachable");
-            }
-            if (postalCodes != null && !postalCodes.isEmpty()) {
-                locationName = postalCodes.get(0).getPlaceName();
-                break;
-            } else {
-                List<Toponym> typonyms = null;
-                try {
-                    typonyms = WebService.findNearbyPlaceName(latitude, longitude);
-                } catch (Exception ex) {
-                    logger.info("The webservice geonames.org is unreachable");
-                }
-                if (typonyms != null) {
-                    if (!typonyms.isEmpty()) {
-                        locationName = typonyms.get(0).getCountryName();
-                        break;
-                    } else {
-                        break;
-                    }
-                }
-            }
-        }
-        logger.info("The webservice geonames.org sent the following location name for the Probe " + oid + ":" + locationName);
-        return locationName;
     }
 
     public List<Node> getNodes() {
-        List<Node> nodesToReturn = new ArrayList<Node>();
-        List<SqlRow> firstPositions = getFirstPositions();
-        List<SqlRow> firstNames = getFirstNames(firstPositions);
-        List<SqlRow> firstLocationNames = getFirstLocationNames(firstPositions);
-        List<SqlRow> firstAddresses = getFirstAddresses(firstPositions);
-
-        Node node;
-        NodeViewProperties view;
-        NodePhysicalProperties phy;
-        NodeMeasurementProperties mp;
-        Probe probe;
-        long oid = 0;
-        String address;
-        String name;
-        String locationName;
-
-        for (SqlRow row : firstPositions) {
-
-            address = "Unknown IP";
-            name = "Unknown";
-            locationName = "Unknown";
-
-            double lat = 0.0;
-            double lon = 0.0;
-            oid = (Long) row.get("oid");
-            try {
-                lat = Double.parseDouble((String) row.get("latitude"));
-                lon = Double.parseDouble((String) row.get("longitude"));
-            } catch (NumberFormatException e) {
-                logger.error("No Location Received!");
-            }
-
-            for (SqlRow row2 : firstNames) {
-                if ((Long) row2.get("oid") == oid) {
-                    name = (String) row2.get("name");
-                }
-            }
-
-            for (SqlRow row3 : firstLocationNames) {
-                if ((Long) row3.get("oid") == oid) {
-                    locationName = (String) row3.get("location_name");
-                }
-            }
+        return new ArrayList<Node>(getNodesByProbeId().values());
+    }
 
-            for (SqlRow row4 : firstAddresses) {
-                if ((Long) row4.get("oid") == oid) {
-                    address = (String) row4.get("address");
-                }
+    /**
+     * Nodes of all probes that reported a position, built from the first
+     * valid position, name, location name and address of each probe.
+     * 
+     * @return nodes by probe id, in order of the first report
+     */
+    public Map<Long, Node> getNodesByProbeId() {
+        Map<Long, Node> nodesToReturn = new LinkedHashMap<Long, Node>();
+        for (Map.Entry<Long, FirstLocation> entry : findFirstLocations().entrySet()) {
+            FirstLocation first = entry.getValue();
+            if (first.latitude == null) {
+                continue;
             }
+            long oid = entry.getKey();
+            String name = first.name != null ? first.name : "Unknown";
+            String locationName = first.locationName != null ? first.locationName : "Unknown";
+            String address = first.address != null ? first.address : "Unknown IP";
 
-            node = new Node();
+            Node node = new Node();
             node.setUid(oid);
-            view = new NodeViewProperties();
+            NodeViewProperties view = new NodeViewProperties();
             view.setLabel(name + "@" + locationName);
             node.setView(view);
-            phy = new NodePhysicalProperties();
-            phy.setWaypoint(new WayPoint(lat, lon));
+            NodePhysicalProperties phy = new NodePhysicalProperties();
+            phy.setWaypoint(new WayPoint(Double.parseDouble(first.latitude),
+                    Double.parseDouble(first.longitude)));
             node.setPhy(phy);
-            mp = new NodeMeasurementProperties();
-            probe = new Probe(oid);
+            NodeMeasurementProperties mp = new NodeMeasurementProperties();
+            Probe probe = new Probe(oid);
             probe.setLabel(address);
             mp.setProbe(probe);
             node.setMp(mp);
 
-            nodesToReturn.add(node);
+            nodesToReturn.put(oid, node);
         }
         return nodesToReturn;
     }
@@ -970,6 +994,7 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
         lastStartTs = 0;
         lastStopTs = 0;
         trackMap.clear();
+        hierarchies.clear();
     }
 
     @Override
@@ -1026,7 +1051,7 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
         long oid = n.mp.getProbe().getProbeId();
 
         try {
-            r = eServer.find(InterfaceStats.class).where().lt("timestamp", ts).eq("oid", oid).orderBy("timestamp desc").setMaxRows(1).findUnique();
+            r = engine.getLatestInterfaceStats(oid, ts);
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
         }
@@ -1038,7 +1063,7 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
         long oid = n.mp.getProbe().getProbeId();
 
         try {
-            r = eServer.find(ProbeStats.class).where().lt("timestamp", ts).eq("oid", oid).orderBy("timestamp desc").setMaxRows(1).findUnique();
+            r = engine.getLatestProbeStats(oid, ts);
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
         }
@@ -1056,10 +1081,18 @@ public class TrackRepository implements TrackPlayer.TrackSource, Controllable, T
         long oid = n.mp.getProbe().getProbeId();
 
         try {
-            r = eServer.find(ProbeLocation.class).where().lt("timestamp", ts).eq("oid", oid).orderBy("timestamp desc").setMaxRows(1).findUnique();
+            r = engine.getLatestProbeLocation(oid, ts);
         } catch (Exception e) {
             logger.warn(e.getMessage(), e);
         }
         return r;
     }
+
+    /**
+     * 
+     * @return storage the repository reads from
+     */
+    public StorageEngine getStorageEngine() {
+        return engine;
+    }
 }
@@ -0,0 +1,184 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.model.db;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * Tracks of one track id starting within one bucket of a resolution,
+ * aggregated at ingest. A (resolution, bucket, track id) key may be spread over
+ * several rows, readers sum them up.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ */
+@Entity
+public class TrackRollup {
+
+    /**
+     * Maintained bucket widths in database time units (microseconds), finest
+     * first: 1 s, 10 s, 1 min, 1 h.
+     */
+    public static final long[] RESOLUTIONS = {1000000L, 10000000L, 60000000L, 3600000000L};
+
+    public TrackRollup() {
+    }
+
+    public TrackRollup(long resolution, long bucket, int trackID) {
+        this.resolution = resolution;
+        this.bucket = bucket;
+        this.trackID = trackID;
+        this.minStart = Long.MAX_VALUE;
+        this.maxStop = Long.MIN_VALUE;
+    }
+
+    /**
+     * 
+     * @param ts database timestamp
+     * @param resolution bucket width
+     * @return start of the bucket containing ts
+     */
+    public static long bucketOf(long ts, long resolution) {
+        return ts - ts % resolution;
+    }
+
+    /**
+     * Add a track to this rollup.
+     * 
+     * @param track
+     */
+    public void add(TrackData track) {
+        volume++;
+        delaySum += track.getDelay();
+        minStart = Math.min(minStart, track.getStart_ts());
+        maxStop = Math.max(maxStop, track.getStop_ts());
+    }
+    /**
+     * Unique Id
+     */
+    @Id
+    private int uid;
+    /**
+     * Bucket width
+     */
+    @Column
+    private long resolution;
+    /**
+     * Start of the bucket
+     */
+    @Column
+    private long bucket;
+    @Column
+    private int trackID;
+    @Column
+    private long volume;
+    @Column
+    private long delaySum;
+    @Column
+    private long minStart;
+    @Column
+    private long maxStop;
+
+    public int getUid() {
+        return uid;
+    }
+
+    public void setUid(int uid) {
+        this.uid = uid;
+    }
+
+    public long getResolution() {
+        return resolution;
+    }
+
+    public void setResolution(long resolution) {
+        this.resolution = resolution;
+    }
+
+    public long getBucket() {
+        return bucket;
+    }
+
+    public void setBucket(long bucket) {
+        this.bucket = bucket;
+    }
+
+    public int getTrackID() {
+        return trackID;
+    }
+
+    public void setTrackID(int trackID) {
+        this.trackID = trackID;
+    }
+
+    public long getVolume() {
+        return volume;
+    }
+
+    public void setVolume(long volume) {
+        this.volume = volume;
+    }
+
+    public long getDelaySum() {
+        return delaySum;
+    }
+
+    public void setDelaySum(long delaySum) {
+        this.delaySum = delaySum;
+    }
+
+    public long getMinStart() {
+        return minStart;
+    }
+
+    public void setMinStart(long minStart) {
+        this.minStart = minStart;
+    }
+
+    public long getMaxStop() {
+        return maxStop;
+    }
+
+    public void setMaxStop(long maxStop) {
+        this.maxStop = maxStop;
+    }
+}
@@ -71,6 +71,119 @@ public class NetViewConfig {
 	private File dbInitScriptFile;
 	private String dbCharsetName = "utf8";
 	private boolean dbContinueOnError = false;
+	/**
+	 * Connections of the pool used by ingest, import and maintenance and of
+	 * the pool used by charts, preloading and exports
+	 */
+	private int dbWritePoolSize = 16;
+	private int dbReadPoolSize = 16;
+	/**
+	 * Multi-version concurrency, readers don't wait for the locks of
+	 * writers. H2 still runs one statement at a time, so long reads are
+	 * split into short statements.
+	 */
+	private boolean dbMvcc = true;
+	/**
+	 * Seconds between two connection pool reports, 0 disables them
+	 */
+	private int dbPoolReportInterval = 60;
+	/**
+	 * Storage of tracks, hops and stats: h2, memory or file. The memory and
+	 * file engines keep at most storageCapacity track records in memory.
+	 */
+	private String storageEngine = "h2";
+	private int storageCapacity = 1000000;
+	/**
+	 * Memory budget in megabytes of the cached chart query results
+	 */
+	private int resultCacheMegabytes = 32;
+	/**
+	 * Maximum number of records written per ingest transaction
+	 */
+	private int ingestBatchSize = 500;
+	/**
+	 * Maximum time in milliseconds a record waits for its batch to fill up
+	 */
+	private long ingestMaxFlushLatency = 200;
+	private int ingestQueueCapacity = 50000;
+	private int ingestWriterThreads = 1;
+	/**
+	 * Maximum number of track paths kept in memory
+	 */
+	private int trackPathCacheSize = 100000;
+	/**
+	 * Minutes of recent tracks, hops and stats kept in memory, and the
+	 * maximum number of hops kept
+	 */
+	private int hotWindowMinutes = 10;
+	private int hotWindowCapacity = 1000000;
+	/**
+	 * Minutes of probe stats loaded around a timestamp the stats index
+	 * doesn't cover yet
+	 */
+	private int statsIndexSpanMinutes = 60;
+	/**
+	 * Bulk import: rows per insert transaction, insert workers per file and
+	 * number of files imported concurrently
+	 */
+	private int importBatchSize = 1000;
+	private int importWriterThreads = 2;
+	private int importFileConcurrency = 2;
+	/**
+	 * Serve exporters with a selector and a fixed pool of decoder threads
+	 * instead of one thread per connection.
+	 */
+	private boolean collectorSelectorMode = false;
+	private int collectorDecoderThreads = Runtime.getRuntime().availableProcessors();
+	/**
+	 * Collector overload policy: BLOCK, DROP_STATS or SAMPLE_TRACKS
+	 */
+	private String collectorOverloadPolicy = "BLOCK";
+	/**
+	 * Keep one of n track records when sampling under overload
+	 */
+	private int collectorSampleRate = 10;
+	/**
+	 * Spool received records to disk (write-ahead log) before they are
+	 * written to the database. Bursts are absorbed by the spool, so the
+	 * overload policy does not apply.
+	 */
+	private boolean collectorSpool = false;
+	private int spoolSegmentSize = 64 * 1024 * 1024;
+	private int spoolMaxSegments = 64;
+	/**
+	 * Receive interface and probe stats as datagrams
+	 */
+	private boolean statsDatagramEnabled = false;
+	private int statsDatagramPort = 40124;
+	/**
+	 * Retention in days, 0 keeps data forever. Raw hops and interface stats
+	 * are compacted into 1 min rollups before they are removed. Track rollups
+	 * are kept per resolution: 1 s, 10 s, 1 min, 1 h. Disabled by default,
+	 * so existing databases keep all their data; e.g. 7, 7 and {1, 7, 90, 0}
+	 * bound a busy installation.
+	 */
+	private int retentionRawDays = 0;
+	private int retentionStatsDays = 0;
+	private int[] retentionRollupDays = {0, 0, 0, 0};
+	/**
+	 * Minutes between two retention passes
+	 */
+	private int retentionInterval = 10;
+	/**
+	 * Days after which raw hops are moved into the columnar archive, 0
+	 * keeps them in the database until they expire. Disabled by default like
+	 * retention, archiving deletes the moved rows from the database.
+	 */
+	private int archiveAfterDays = 0;
+	/**
+	 * Reverse geocoding of probe locations: concurrent lookups, whether
+	 * ws.geonames.org may be queried, and an optional gazetteer file in the
+	 * geonames dump format used before the web service
+	 */
+	private int geonamesThreads = 2;
+	private boolean geonamesWebService = true;
+	private String gazetteerFile;
 
 	private static final Logger logger = LoggerFactory
 	.getLogger(NetViewConfig.class);
@@ -170,7 +283,7 @@ public class NetViewConfig {
 		this.dbDriver = dbDriver;
 	}
 	public String getDbUrl(){
-		return "jdbc:h2:"+getDbDir()+"/"+getDbName()+";AUTO_SERVER=TRUE";
+		return "jdbc:h2:"+getDbDir()+"/"+getDbName()+";AUTO_SERVER=TRUE"+(dbMvcc?";MVCC=TRUE":"");
 	}
 	/**
 	 * Get initialization db script file. 
@@ -200,6 +313,286 @@ public class NetViewConfig {
 		this.dbContinueOnError = dbContinueOnError;
 	}
 
+	public int getIngestBatchSize() {
+		return ingestBatchSize;
+	}
+
+	public void setIngestBatchSize(int ingestBatchSize) {
+		this.ingestBatchSize = ingestBatchSize;
+	}
+
+	public long getIngestMaxFlushLatency() {
+		return ingestMaxFlushLatency;
+	}
+
+	public void setIngestMaxFlushLatency(long ingestMaxFlushLatency) {
+		this.ingestMaxFlushLatency = ingestMaxFlushLatency;
+	}
+
+	public int getIngestQueueCapacity() {
+		return ingestQueueCapacity;
+	}
+
+	public void setIngestQueueCapacity(int ingestQueueCapacity) {
+		this.ingestQueueCapacity = ingestQueueCapacity;
+	}
+
+	public int getIngestWriterThreads() {
+		return ingestWriterThreads;
+	}
+
+	public void setIngestWriterThreads(int ingestWriterThreads) {
+		this.ingestWriterThreads = ingestWriterThreads;
+	}
+
+	public int getTrackPathCacheSize() {
+		return trackPathCacheSize;
+	}
+
+	public void setTrackPathCacheSize(int trackPathCacheSize) {
+		this.trackPathCacheSize = trackPathCacheSize;
+	}
+
+	public int getHotWindowMinutes() {
+		return hotWindowMinutes;
+	}
+
+	public void setHotWindowMinutes(int hotWindowMinutes) {
+		this.hotWindowMinutes = hotWindowMinutes;
+	}
+
+	public int getHotWindowCapacity() {
+		return hotWindowCapacity;
+	}
+
+	public void setHotWindowCapacity(int hotWindowCapacity) {
+		this.hotWindowCapacity = hotWindowCapacity;
+	}
+
+	public int getStatsIndexSpanMinutes() {
+		return statsIndexSpanMinutes;
+	}
+
+	public void setStatsIndexSpanMinutes(int statsIndexSpanMinutes) {
+		this.statsIndexSpanMinutes = statsIndexSpanMinutes;
+	}
+
+	public int getImportBatchSize() {
+		return importBatchSize;
+	}
+
+	public void setImportBatchSize(int importBatchSize) {
+		this.importBatchSize = importBatchSize;
+	}
+
+	public int getImportWriterThreads() {
+		return importWriterThreads;
+	}
+
+	public void setImportWriterThreads(int importWriterThreads) {
+		this.importWriterThreads = importWriterThreads;
+	}
+
+	public int getImportFileConcurrency() {
+		return importFileConcurrency;
+	}
+
+	public void setImportFileConcurrency(int importFileConcurrency) {
+		this.importFileConcurrency = importFileConcurrency;
+	}
+
+	public boolean isCollectorSelectorMode() {
+		return collectorSelectorMode;
+	}
+
+	public void setCollectorSelectorMode(boolean collectorSelectorMode) {
+		this.collectorSelectorMode = collectorSelectorMode;
+	}
+
+	public int getCollectorDecoderThreads() {
+		return collectorDecoderThreads;
+	}
+
+	public void setCollectorDecoderThreads(int collectorDecoderThreads) {
+		this.collectorDecoderThreads = collectorDecoderThreads;
+	}
+
+	public String getCollectorOverloadPolicy() {
+		return collectorOverloadPolicy;
+	}
+
+	public void setCollectorOverloadPolicy(String collectorOverloadPolicy) {
+		this.collectorOverloadPolicy = collectorOverloadPolicy;
+	}
+
+	public int getCollectorSampleRate() {
+		return collectorSampleRate;
+	}
+
+	public void setCollectorSampleRate(int collectorSampleRate) {
+		this.collectorSampleRate = collectorSampleRate;
+	}
+
+	public boolean isCollectorSpool() {
+		return collectorSpool;
+	}
+
+	public void setCollectorSpool(boolean collectorSpool) {
+		this.collectorSpool = collectorSpool;
+	}
+
+	public int getSpoolSegmentSize() {
+		return spoolSegmentSize;
+	}
+
+	public void setSpoolSegmentSize(int spoolSegmentSize) {
+		this.spoolSegmentSize = spoolSegmentSize;
+	}
+
+	public int getSpoolMaxSegments() {
+		return spoolMaxSegments;
+	}
+
+	public void setSpoolMaxSegments(int spoolMaxSegments) {
+		this.spoolMaxSegments = spoolMaxSegments;
+	}
+
+	public boolean isStatsDatagramEnabled() {
+		return statsDatagramEnabled;
+	}
+
+	public void setStatsDatagramEnabled(boolean statsDatagramEnabled) {
+		this.statsDatagramEnabled = statsDatagramEnabled;
+	}
+
+	public int getGeonamesThreads() {
+		return geonamesThreads;
+	}
+
+	public void setGeonamesThreads(int geonamesThreads) {
+		this.geonamesThreads = geonamesThreads;
+	}
+
+	public boolean isGeonamesWebService() {
+		return geonamesWebService;
+	}
+
+	public void setGeonamesWebService(boolean geonamesWebService) {
+		this.geonamesWebService = geonamesWebService;
+	}
+
+	public int getDbWritePoolSize() {
+		return dbWritePoolSize;
+	}
+
+	public void setDbWritePoolSize(int dbWritePoolSize) {
+		this.dbWritePoolSize = dbWritePoolSize;
+	}
+
+	public int getDbReadPoolSize() {
+		return dbReadPoolSize;
+	}
+
+	public void setDbReadPoolSize(int dbReadPoolSize) {
+		this.dbReadPoolSize = dbReadPoolSize;
+	}
+
+	public boolean isDbMvcc() {
+		return dbMvcc;
+	}
+
+	public void setDbMvcc(boolean dbMvcc) {
+		this.dbMvcc = dbMvcc;
+	}
+
+	public int getDbPoolReportInterval() {
+		return dbPoolReportInterval;
+	}
+
+	public void setDbPoolReportInterval(int dbPoolReportInterval) {
+		this.dbPoolReportInterval = dbPoolReportInterval;
+	}
+
+	public String getStorageEngine() {
+		return storageEngine;
+	}
+
+	public void setStorageEngine(String storageEngine) {
+		this.storageEngine = storageEngine;
+	}
+
+	public int getStorageCapacity() {
+		return storageCapacity;
+	}
+
+	public void setStorageCapacity(int storageCapacity) {
+		this.storageCapacity = storageCapacity;
+	}
+
+	public int getResultCacheMegabytes() {
+		return resultCacheMegabytes;
+	}
+
+	public void setResultCacheMegabytes(int resultCacheMegabytes) {
+		this.resultCacheMegabytes = resultCacheMegabytes;
+	}
+
+	public String getGazetteerFile() {
+		return gazetteerFile;
+	}
+
+	public void setGazetteerFile(String gazetteerFile) {
+		this.gazetteerFile = gazetteerFile;
+	}
+
+	public int getStatsDatagramPort() {
+		return statsDatagramPort;
+	}
+
+	public void setStatsDatagramPort(int statsDatagramPort) {
+		this.statsDatagramPort = statsDatagramPort;
+	}
+
+	public int getRetentionRawDays() {
+		return retentionRawDays;
+	}
+
+	public void setRetentionRawDays(int retentionRawDays) {
+		this.retentionRawDays = retentionRawDays;
+	}
+
+	public int getRetentionStatsDays() {
+		return retentionStatsDays;
+	}
+
+	public void setRetentionStatsDays(int retentionStatsDays) {
+		this.retentionStatsDays = retentionStatsDays;
+	}
+
+	public int[] getRetentionRollupDays() {
+		return retentionRollupDays;
+	}
+
+	public void setRetentionRollupDays(int[] retentionRollupDays) {
+		this.retentionRollupDays = retentionRollupDays;
+	}
+
+	public int getRetentionInterval() {
+		return retentionInterval;
+	}
+
+	public void setRetentionInterval(int retentionInterval) {
+		this.retentionInterval = retentionInterval;
+	}
+
+	public int getArchiveAfterDays() {
+		return archiveAfterDays;
+	}
+
+	public void setArchiveAfterDays(int archiveAfterDays) {
+		this.archiveAfterDays = archiveAfterDays;
+	}
+
 	public String getMarkersDirectory() {
 		if(markersDirectory == null)
 			return netviewHome.getAbsolutePath() + File.separator + "markers";
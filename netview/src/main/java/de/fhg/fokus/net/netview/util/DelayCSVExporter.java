@@ -45,9 +45,12 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.SwingWorker;
 
@@ -61,6 +64,7 @@ import com.avaje.ebean.SqlRow;
 import de.fhg.fokus.net.netview.model.Model;
 import de.fhg.fokus.net.netview.model.Node;
 import de.fhg.fokus.net.netview.model.db.NetViewDB;
+import de.fhg.fokus.net.netview.model.db.TablePartitions;
 
 public class DelayCSVExporter extends SwingWorker<Boolean, Void> {
 	private final static Logger logger = LoggerFactory.getLogger(Model.class);
@@ -87,11 +91,19 @@ public class DelayCSVExporter extends SwingWorker<Boolean, Void> {
 		
 		writeHeader();
 		ArrayList<Long> recordIds = db.getTrackRepository().findTrackRecords(trackid, from, to);
+		// records are selected by start time, their hops may end shortly after "to"
+		String rawTable = db.getPartitions().from(TablePartitions.RAW_TRACK_DATA,
+				TimeUnit.MICROSECONDS.convert(from, TimeUnit.MILLISECONDS),
+				TimeUnit.MICROSECONDS.convert(to + 60000, TimeUnit.MILLISECONDS),
+				trackid, trackid);
+		// one scan of the range instead of a query per record, archived days
+		// are not indexed by record
+		Map<Long, List<SqlRow>> hops = findHops(rawTable);
 
 		for(int i = 0; i < recordIds.size(); i++) {
 			if(isCancelled())
 				return false;
-			writeRecord(recordIds.get(i));
+			writeRecord(recordIds.get(i), hops.get(recordIds.get(i)));
 			int progress = (int)(100 * ((double)i / recordIds.size()));
 			if(progress != lastProgress)
 				setProgress(progress);			
@@ -119,11 +131,26 @@ public class DelayCSVExporter extends SwingWorker<Boolean, Void> {
 		writeLine("#");
 	}
 	
-	private void writeRecord(Long recordId) throws IOException {
-		EbeanServer eServer = db.getEbeanServer();
-		SqlQuery query = eServer.createSqlQuery("SELECT ts, delay FROM raw_track_data WHERE record_id = :record ORDER BY hop_number")
-							.setParameter("record", recordId);
-		List<SqlRow> rows = query.findList();
+	private Map<Long, List<SqlRow>> findHops(String rawTable) {
+		EbeanServer eServer = db.getQueryServer();
+		SqlQuery query = eServer.createSqlQuery("SELECT record_id, ts, delay FROM " + rawTable + " WHERE track_id = :track ORDER BY record_id, hop_number")
+							.setParameter("track", trackid);
+		Map<Long, List<SqlRow>> hops = new HashMap<Long, List<SqlRow>>();
+		for(SqlRow row : query.findList()) {
+			Long recordId = row.getLong("record_id");
+			List<SqlRow> rows = hops.get(recordId);
+			if(rows == null) {
+				rows = new ArrayList<SqlRow>();
+				hops.put(recordId, rows);
+			}
+			rows.add(row);
+		}
+		return hops;
+	}
+	
+	private void writeRecord(Long recordId, List<SqlRow> rows) throws IOException {
+		if(rows == null)
+			rows = new ArrayList<SqlRow>();
 		Iterator<SqlRow> it = rows.iterator();
 		StringBuffer line = new StringBuffer();
 		
@@ -0,0 +1,414 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geonames.PostalCode;
+import org.geonames.PostalCodeSearchCriteria;
+import org.geonames.Toponym;
+import org.geonames.WebService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves coordinates to location names in the background. Names are looked
+ * up in a persistent cache keyed by rounded coordinates, then in an optional
+ * local gazetteer and last at ws.geonames.org; at most a fixed number of
+ * lookups run concurrently.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ * 
+ */
+public class LocationResolver {
+    // sys
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    // --
+    public static final String UNKNOWN = "Unknown";
+
+    /**
+     * Receives the name of a location once it was resolved.
+     */
+    public static interface Listener {
+
+        /**
+         * 
+         * @param locationName location name or {@link #UNKNOWN}
+         */
+        void resolved(String locationName);
+    }
+    /**
+     * Decimal places coordinates are rounded to, about 1 km
+     */
+    private static final String KEY_FORMAT = "%.2f,%.2f";
+    private static final int WEB_SERVICE_ATTEMPTS = 3;
+    private static final long WEB_SERVICE_RETRY_DELAY = 1000;
+    /**
+     * Gazetteer places farther away are not used
+     */
+    private static final double GAZETTEER_MAX_KM = 50;
+    /**
+     * Gazetteer grid cell size in degrees
+     */
+    private static final double CELL = 1.0;
+    private final File cacheFile;
+    private final File gazetteerFile;
+    private final boolean webService;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, String> cache = new ConcurrentHashMap<String, String>();
+    /**
+     * Listeners of lookups in flight by key
+     */
+    private final Map<String, List<Listener>> pending = new HashMap<String, List<Listener>>();
+    /**
+     * Gazetteer places by grid cell: names, latitudes and longitudes
+     */
+    private final Map<Long, List<Object[]>> gazetteer = new HashMap<Long, List<Object[]>>();
+    private Writer cacheWriter;
+
+    /**
+     * 
+     * @param cacheFile file resolved names are stored in
+     * @param gazetteerFile places in the geonames dump format, or null
+     * @param webService true if ws.geonames.org may be queried
+     * @param threads maximum number of concurrent lookups
+     */
+    public LocationResolver(File cacheFile, File gazetteerFile, boolean webService, int threads) {
+        this.cacheFile = cacheFile;
+        this.gazetteerFile = gazetteerFile;
+        this.webService = webService;
+        final AtomicInteger n = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "LocationResolver-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Load the cache and the gazetteer.
+     */
+    public void init() {
+        if (cacheFile.exists()) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(cacheFile), "UTF-8"));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        int tab = line.indexOf('\t');
+                        if (tab > 0) {
+                            cache.put(line.substring(0, tab), line.substring(tab + 1));
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                logger.warn("could not read location cache " + cacheFile + ": " + e.getMessage());
+            }
+        }
+        if (gazetteerFile != null) {
+            loadGazetteer();
+        }
+        logger.debug("location resolver: {} cached names, {} gazetteer cells", cache.size(), gazetteer.size());
+    }
+
+    /**
+     * Read the name, latitude and longitude columns (2, 5, 6) of a geonames
+     * dump, e.g. cities1000.txt.
+     */
+    private void loadGazetteer() {
+        int places = 0;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(gazetteerFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length < 6) {
+                        continue;
+                    }
+                    try {
+                        double lat = Double.parseDouble(fields[4]);
+                        double lon = Double.parseDouble(fields[5]);
+                        long cell = cell(lat, lon);
+                        List<Object[]> cellPlaces = gazetteer.get(cell);
+                        if (cellPlaces == null) {
+                            cellPlaces = new ArrayList<Object[]>();
+                            gazetteer.put(cell, cellPlaces);
+                        }
+                        cellPlaces.add(new Object[]{fields[1], lat, lon});
+                        places++;
+                    } catch (NumberFormatException e) {
+                        // header or broken line
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            logger.warn("could not read gazetteer " + gazetteerFile + ": " + e.getMessage());
+        }
+        logger.info("loaded {} places from gazetteer {}", places, gazetteerFile);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+        synchronized (this) {
+            if (cacheWriter != null) {
+                try {
+                    cacheWriter.close();
+                } catch (IOException e) {
+                    logger.debug(e.getMessage());
+                }
+                cacheWriter = null;
+            }
+        }
+    }
+
+    private static String key(double latitude, double longitude) {
+        return String.format(Locale.US, KEY_FORMAT, latitude, longitude);
+    }
+
+    private static long cell(double latitude, double longitude) {
+        long row = (long) Math.floor((latitude + 90) / CELL);
+        long col = (long) Math.floor((longitude + 180) / CELL);
+        return row * 1000 + col;
+    }
+
+    /**
+     * 
+     * @return cached name of a location, or null if it wasn't resolved yet
+     */
+    public String getCached(double latitude, double longitude) {
+        return cache.get(key(latitude, longitude));
+    }
+
+    /**
+     * Resolve a location name in the background. Cached names are passed to
+     * the listener right away, otherwise from a resolver thread.
+     * 
+     * @param latitude
+     * @param longitude
+     * @param listener
+     */
+    public void resolve(final double latitude, final double longitude, Listener listener) {
+        final String key = key(latitude, longitude);
+        String name = cache.get(key);
+        if (name != null) {
+            listener.resolved(name);
+            return;
+        }
+        synchronized (pending) {
+            List<Listener> listeners = pending.get(key);
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+            listeners = new ArrayList<Listener>();
+            listeners.add(listener);
+            pending.put(key, listeners);
+        }
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                String name = UNKNOWN;
+                try {
+                    name = lookup(key, latitude, longitude);
+                } finally {
+                    List<Listener> listeners;
+                    synchronized (pending) {
+                        listeners = pending.remove(key);
+                    }
+                    for (Listener l : listeners) {
+                        try {
+                            l.resolved(name);
+                        } catch (Exception e) {
+                            logger.warn("location listener failed: " + e.getMessage(), e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private String lookup(String key, double latitude, double longitude) {
+        String name = findInGazetteer(latitude, longitude);
+        if (name == null && webService) {
+            name = findOverWebservice(latitude, longitude);
+        }
+        if (name == null) {
+            // not cached, a later lookup may succeed
+            return UNKNOWN;
+        }
+        cache.put(key, name);
+        store(key, name);
+        return name;
+    }
+
+    private String findInGazetteer(double latitude, double longitude) {
+        if (gazetteer.isEmpty()) {
+            return null;
+        }
+        String best = null;
+        double bestKm = GAZETTEER_MAX_KM;
+        for (int dLat = -1; dLat <= 1; dLat++) {
+            for (int dLon = -1; dLon <= 1; dLon++) {
+                List<Object[]> places = gazetteer.get(cell(latitude + dLat * CELL, longitude + dLon * CELL));
+                if (places == null) {
+                    continue;
+                }
+                for (Object[] place : places) {
+                    double km = distance(latitude, longitude, (Double) place[1], (Double) place[2]);
+                    if (km <= bestKm) {
+                        bestKm = km;
+                        best = (String) place[0];
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Great circle distance in km.
+     */
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 6371 * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /**
+     * 
+     * @return location name, {@link #UNKNOWN} if geonames knows no place
+     *         nearby, or null if the web service couldn't be reached
+     */
+    private String findOverWebservice(double latitude, double longitude) {
+        logger.info("Connecting to ws.geonames.org to retrieve the location name of " + latitude + ", " + longitude);
+        PostalCodeSearchCriteria postalCodeSearchCriteria = new PostalCodeSearchCriteria();
+        try {
+            postalCodeSearchCriteria.setLatitude(latitude);
+            postalCodeSearchCriteria.setLongitude(longitude);
+        } catch (Exception ex) {
+            logger.info("NetView wasn't able to set the coordinates for the geonames request");
+            return null;
+        }
+        for (int i = 0; i < WEB_SERVICE_ATTEMPTS; i++) {
+            if (i > 0) {
+                try {
+                    Thread.sleep(WEB_SERVICE_RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            try {
+                List<PostalCode> postalCodes = WebService.findNearbyPostalCodes(postalCodeSearchCriteria);
+                if (postalCodes != null && !postalCodes.isEmpty()) {
+                    return postalCodes.get(0).getPlaceName();
+                }
+                List<Toponym> toponyms = WebService.findNearbyPlaceName(latitude, longitude);
+                if (toponyms != null && !toponyms.isEmpty()) {
+                    return toponyms.get(0).getCountryName();
+                }
+                return UNKNOWN;
+            } catch (Exception ex) {
+                logger.info("The webservice geonames.org is unreachable, attempt " + (i + 1));
+            }
+        }
+        return null;
+    }
+
+    private synchronized void store(String key, String name) {
+        try {
+            if (cacheWriter == null) {
+                cacheWriter = new OutputStreamWriter(new FileOutputStream(cacheFile, true), "UTF-8");
+            }
+            cacheWriter.write(key + "\t" + name.replace('\n', ' ') + "\n");
+            cacheWriter.flush();
+        } catch (IOException e) {
+            logger.warn("could not store location name: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 
+     * @return number of lookups queued or running
+     */
+    public int getPending() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+}
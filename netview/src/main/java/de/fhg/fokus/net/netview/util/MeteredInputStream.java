@@ -0,0 +1,118 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream counting the bytes consumed by a reader and the time since the
+ * first byte of the current record was read. Not thread-safe, a stream is
+ * meant to be consumed by one reader at a time.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+    private long count = 0;
+    private long firstByteNanos = 0;
+
+    public MeteredInputStream(InputStream in) {
+        super(in);
+    }
+
+    private void consumed(long n) {
+        if (n > 0) {
+            if (firstByteNanos == 0) {
+                firstByteNanos = System.nanoTime();
+            }
+            count += n;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        consumed(b < 0 ? 0 : 1);
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        consumed(n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        consumed(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * 
+     * @return number of bytes consumed so far
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * 
+     * @return nanoseconds since the first byte read after the last {@link #resetTimer()}, 0 if none was read
+     */
+    public long getElapsedNanos() {
+        return firstByteNanos == 0 ? 0 : System.nanoTime() - firstByteNanos;
+    }
+
+    public void resetTimer() {
+        firstByteNanos = 0;
+    }
+}
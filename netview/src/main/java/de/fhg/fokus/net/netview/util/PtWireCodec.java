@@ -0,0 +1,597 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.StreamCorruptedException;
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import de.fhg.fokus.net.ptapi.PacketTrackRecord;
+import de.fhg.fokus.net.ptapi.PtBearerInformation;
+import de.fhg.fokus.net.ptapi.PtInterfaceStats;
+import de.fhg.fokus.net.ptapi.PtProbeLocation;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+
+/**
+ * Compact binary wire format for packet track records and probe statistics.
+ * 
+ * <pre>
+ * stream  := magic("PTWF") version(u8) frame*
+ * frame   := type(u8) length(u32) payload(length bytes)
+ * </pre>
+ * 
+ * A receiver answers the stream header with the version it accepted (one byte,
+ * 0 if it does not support the version). Unknown frame types are skipped, so
+ * newer senders can add types without breaking older receivers. Streams
+ * starting with the Java serialization magic are read with an
+ * ObjectInputStream instead, see {@link #openReader(InputStream)}.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public final class PtWireCodec {
+
+    public static final byte[] MAGIC = {'P', 'T', 'W', 'F'};
+    public static final int VERSION = 1;
+    /**
+     * Frame types
+     */
+    public static final int TYPE_TRACK_RECORD = 1;
+    public static final int TYPE_INTERFACE_STATS = 2;
+    public static final int TYPE_PROBE_STATS = 3;
+    public static final int TYPE_PROBE_LOCATION = 4;
+    public static final int TYPE_BEARER_INFORMATION = 5;
+    /**
+     * Upper bound for a frame payload, protects against corrupt length fields.
+     */
+    public static final int MAX_FRAME_LENGTH = 1 << 16;
+    /**
+     * Bytes of the type and length fields preceding a frame payload
+     */
+    public static final int FRAME_HEADER_LENGTH = 5;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int NULL_STRING = 0xffff;
+
+    private PtWireCodec() {
+    }
+
+    /**
+     * 
+     * @param type frame type
+     * @return true if frames of the type are decoded, others are skipped
+     */
+    public static boolean isKnownType(int type) {
+        return type >= TYPE_TRACK_RECORD && type <= TYPE_BEARER_INFORMATION;
+    }
+
+    /**
+     * Reads records from a stream.
+     */
+    public static abstract class RecordReader {
+
+        /**
+         * Read next record.
+         * 
+         * @return next record or null at the end of the stream
+         * @throws IOException
+         * @throws ClassNotFoundException
+         */
+        public abstract Object read() throws IOException, ClassNotFoundException;
+
+        /**
+         * 
+         * @return wire format version, 0 for Java serialization
+         */
+        public abstract int getVersion();
+    }
+
+    /**
+     * Open a reader by looking at the first bytes of the stream. Binary
+     * streams are read by a {@link Decoder}, Java serialization streams by an
+     * ObjectInputStream.
+     * 
+     * @param in
+     * @return record reader
+     * @throws IOException
+     */
+    public static RecordReader openReader(InputStream in) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in, MAGIC.length);
+        byte[] head = new byte[MAGIC.length];
+        int n = 0;
+        while (n < head.length) {
+            int r = pin.read(head, n, head.length - n);
+            if (r < 0) {
+                throw new EOFException("stream ended before header");
+            }
+            n += r;
+        }
+        if (Arrays.equals(head, MAGIC)) {
+            int version = pin.read();
+            if (version < 0) {
+                throw new EOFException("stream ended before version");
+            }
+            if (version < 1 || version > VERSION) {
+                throw new StreamCorruptedException("unsupported wire format version " + version);
+            }
+            return new Decoder(pin, version);
+        }
+        pin.unread(head);
+        final ObjectInputStream ois = new ObjectInputStream(pin);
+        return new RecordReader() {
+
+            @Override
+            public Object read() throws IOException, ClassNotFoundException {
+                try {
+                    return ois.readObject();
+                } catch (EOFException e) {
+                    return null;
+                }
+            }
+
+            @Override
+            public int getVersion() {
+                return 0;
+            }
+        };
+    }
+
+    /**
+     * Binary decoder. Records are decoded into holders owned by the decoder,
+     * i.e. the object returned by {@link #read()} is only valid until the next
+     * call.
+     */
+    public static final class Decoder extends RecordReader {
+
+        private final DataInputStream in;
+        private final int version;
+        private byte[] frame = new byte[512];
+        private final byte[] addr = new byte[16];
+        // reusable holders
+        private final PacketTrackRecord trackRecord = new PacketTrackRecord();
+        private final PtInterfaceStats interfaceStats = new PtInterfaceStats();
+        private final PtProbeStats probeStats = new PtProbeStats();
+        private final PtProbeLocation probeLocation = new PtProbeLocation();
+        private final PtBearerInformation bearerInformation = new PtBearerInformation();
+
+        /**
+         * 
+         * @param in stream positioned after the header
+         * @param version negotiated version
+         */
+        public Decoder(InputStream in, int version) {
+            this.in = in == null ? null : new DataInputStream(in);
+            this.version = version;
+        }
+
+        /**
+         * Create a decoder for frames held in buffers, see {@link #decode(ByteBuffer)}.
+         */
+        public Decoder() {
+            this(null, VERSION);
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public Object read() throws IOException {
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    return null;
+                }
+                int length = in.readInt();
+                if (length < 0 || length > MAX_FRAME_LENGTH) {
+                    throw new StreamCorruptedException("invalid frame length " + length);
+                }
+                if (frame.length < length) {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+                in.readFully(frame, 0, length);
+                Object obj = decode(type, ByteBuffer.wrap(frame, 0, length));
+                if (obj != null) {
+                    return obj;
+                }
+            }
+        }
+
+        /**
+         * Decode a complete frame (type, length and payload).
+         * 
+         * @param buf buffer positioned at the frame, position is advanced past it
+         * @return record or null if the frame type is unknown
+         * @throws IOException
+         */
+        public Object decode(ByteBuffer buf) throws IOException {
+            int type = buf.get() & 0xff;
+            int length = buf.getInt();
+            if (length < 0 || length > buf.remaining()) {
+                throw new StreamCorruptedException("invalid frame length " + length);
+            }
+            ByteBuffer payload = buf.slice();
+            payload.limit(length);
+            buf.position(buf.position() + length);
+            return decode(type, payload);
+        }
+
+        private Object decode(int type, ByteBuffer buf) throws IOException {
+            switch (type) {
+                case TYPE_TRACK_RECORD:
+                    return decodeTrackRecord(buf);
+                case TYPE_INTERFACE_STATS:
+                    return decodeInterfaceStats(buf);
+                case TYPE_PROBE_STATS:
+                    return decodeProbeStats(buf);
+                case TYPE_PROBE_LOCATION:
+                    return decodeProbeLocation(buf);
+                case TYPE_BEARER_INFORMATION:
+                    return decodeBearerInformation(buf);
+                default:
+                    // unknown frame type, skip it
+                    return null;
+            }
+        }
+
+        private PacketTrackRecord decodeTrackRecord(ByteBuffer buf) throws IOException {
+            PacketTrackRecord r = trackRecord;
+            r.trackid = buf.getInt();
+            r.pktid = buf.getInt();
+            r.ruleId = buf.getLong();
+            r.sourceAddress = getAddress(buf, r.sourceAddress);
+            r.destinationAddress = getAddress(buf, r.destinationAddress);
+            r.sourcePort = buf.getShort() & 0xffff;
+            r.destinationPort = buf.getShort() & 0xffff;
+            r.protocolIdentifier = (short) (buf.get() & 0xff);
+            int hops = buf.get() & 0xff;
+            if (r.oids == null || r.oids.length != hops) {
+                r.oids = new long[hops];
+                r.ts = new long[hops];
+                r.ttl = new short[hops];
+            }
+            long ts = 0;
+            for (int i = 0; i < hops; i++) {
+                r.oids[i] = buf.getInt() & 0xffffffffL;
+                ts = i == 0 ? buf.getLong() : ts + getVarLong(buf);
+                r.ts[i] = ts;
+                r.ttl[i] = (short) (buf.get() & 0xff);
+            }
+            return r;
+        }
+
+        private PtInterfaceStats decodeInterfaceStats(ByteBuffer buf) {
+            PtInterfaceStats s = interfaceStats;
+            s.oid = buf.getInt() & 0xffffffffL;
+            s.observationTimeMilliseconds = buf.getLong();
+            s.samplingSize = buf.getLong();
+            s.packetDeltaCount = BigInteger.valueOf(buf.getLong());
+            s.pcapStatRecv = buf.getLong();
+            s.pcapStatDrop = buf.getLong();
+            s.interfaceName = getString(buf);
+            s.interfaceDescription = getString(buf);
+            return s;
+        }
+
+        private PtProbeStats decodeProbeStats(ByteBuffer buf) {
+            PtProbeStats s = probeStats;
+            s.oid = buf.getInt() & 0xffffffffL;
+            s.observationTimeMilliseconds = buf.getLong();
+            s.systemCpuIdle = buf.getFloat();
+            s.systemMemFree = BigInteger.valueOf(buf.getLong());
+            s.processCpuUser = buf.getFloat();
+            s.processCpuSys = buf.getFloat();
+            s.processMemVzs = BigInteger.valueOf(buf.getLong());
+            s.processMemRss = BigInteger.valueOf(buf.getLong());
+            return s;
+        }
+
+        private PtProbeLocation decodeProbeLocation(ByteBuffer buf) throws IOException {
+            PtProbeLocation l = probeLocation;
+            l.oid = buf.getInt() & 0xffffffffL;
+            l.observationTimeMilliseconds = buf.getLong();
+            l.latitude = getString(buf);
+            l.longitude = getString(buf);
+            l.probeName = getString(buf);
+            l.probeLocationName = getString(buf);
+            l.sourceIpv4Address = getAddress(buf, l.sourceIpv4Address);
+            return l;
+        }
+
+        private PtBearerInformation decodeBearerInformation(ByteBuffer buf) throws IOException {
+            PtBearerInformation b = bearerInformation;
+            b.ruleFlag = buf.getShort();
+            b.ruleId = buf.getLong();
+            b.apn = getString(buf);
+            b.ruleName = getString(buf);
+            b.imsi = getString(buf);
+            b.maxDl = buf.getLong();
+            b.maxUl = buf.getLong();
+            b.guaDl = buf.getLong();
+            b.guaUl = buf.getLong();
+            b.apnDl = buf.getLong();
+            b.apnUl = buf.getLong();
+            b.srcIp = getAddress(buf, b.srcIp);
+            b.dstIp = getAddress(buf, b.dstIp);
+            b.srcPort = buf.getShort() & 0xffff;
+            b.dstPort = buf.getShort() & 0xffff;
+            b.observationTimeMilliseconds = buf.getLong();
+            return b;
+        }
+
+        /**
+         * Read an IPv4 address, reusing the previous instance if unchanged.
+         */
+        private Inet4Address getAddress(ByteBuffer buf, Inet4Address previous) throws IOException {
+            int len = buf.get() & 0xff;
+            if (len == 0) {
+                return null;
+            }
+            if (len != 4) {
+                throw new StreamCorruptedException("unsupported address length " + len);
+            }
+            buf.get(addr, 0, len);
+            if (previous != null) {
+                byte[] prev = previous.getAddress();
+                if (prev[0] == addr[0] && prev[1] == addr[1] && prev[2] == addr[2] && prev[3] == addr[3]) {
+                    return previous;
+                }
+            }
+            return (Inet4Address) InetAddress.getByAddress(Arrays.copyOf(addr, len));
+        }
+    }
+
+    /**
+     * Binary encoder.
+     */
+    public static final class Encoder {
+
+        private final DataOutputStream out;
+        private final ByteBuffer buf = ByteBuffer.allocate(MAX_FRAME_LENGTH + 5);
+
+        /**
+         * Create an encoder and write the stream header.
+         * 
+         * @param out
+         * @throws IOException
+         */
+        public Encoder(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.write(MAGIC);
+            this.out.write(VERSION);
+        }
+
+        /**
+         * Write one record, unknown types are rejected.
+         * 
+         * @param obj
+         * @throws IOException
+         */
+        public void write(Object obj) throws IOException {
+            buf.clear();
+            encode(obj, buf);
+            out.write(buf.array(), 0, buf.position());
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        private static void encodeTrackRecord(ByteBuffer buf, PacketTrackRecord r) {
+            buf.putInt(r.trackid);
+            buf.putInt(r.pktid);
+            buf.putLong(r.ruleId);
+            putAddress(buf, r.sourceAddress);
+            putAddress(buf, r.destinationAddress);
+            buf.putShort((short) r.sourcePort);
+            buf.putShort((short) r.destinationPort);
+            buf.put((byte) r.protocolIdentifier);
+            buf.put((byte) r.oids.length);
+            for (int i = 0; i < r.oids.length; i++) {
+                buf.putInt((int) r.oids[i]);
+                if (i == 0) {
+                    buf.putLong(r.ts[0]);
+                } else {
+                    putVarLong(buf, r.ts[i] - r.ts[i - 1]);
+                }
+                buf.put((byte) r.ttl[i]);
+            }
+        }
+
+        private static void encodeInterfaceStats(ByteBuffer buf, PtInterfaceStats s) {
+            buf.putInt((int) s.oid);
+            buf.putLong(s.observationTimeMilliseconds);
+            buf.putLong(s.samplingSize);
+            buf.putLong(s.packetDeltaCount == null ? 0 : s.packetDeltaCount.longValue());
+            buf.putLong(s.pcapStatRecv);
+            buf.putLong(s.pcapStatDrop);
+            putString(buf, s.interfaceName);
+            putString(buf, s.interfaceDescription);
+        }
+
+        private static void encodeProbeStats(ByteBuffer buf, PtProbeStats s) {
+            buf.putInt((int) s.oid);
+            buf.putLong(s.observationTimeMilliseconds);
+            buf.putFloat(s.systemCpuIdle);
+            buf.putLong(s.systemMemFree == null ? 0 : s.systemMemFree.longValue());
+            buf.putFloat(s.processCpuUser);
+            buf.putFloat(s.processCpuSys);
+            buf.putLong(s.processMemVzs == null ? 0 : s.processMemVzs.longValue());
+            buf.putLong(s.processMemRss == null ? 0 : s.processMemRss.longValue());
+        }
+
+        private static void encodeProbeLocation(ByteBuffer buf, PtProbeLocation l) {
+            buf.putInt((int) l.oid);
+            buf.putLong(l.observationTimeMilliseconds);
+            putString(buf, l.latitude);
+            putString(buf, l.longitude);
+            putString(buf, l.probeName);
+            putString(buf, l.probeLocationName);
+            putAddress(buf, l.sourceIpv4Address);
+        }
+
+        private static void encodeBearerInformation(ByteBuffer buf, PtBearerInformation b) {
+            buf.putShort(b.ruleFlag);
+            buf.putLong(b.ruleId);
+            putString(buf, b.apn);
+            putString(buf, b.ruleName);
+            putString(buf, b.imsi);
+            buf.putLong(b.maxDl);
+            buf.putLong(b.maxUl);
+            buf.putLong(b.guaDl);
+            buf.putLong(b.guaUl);
+            buf.putLong(b.apnDl);
+            buf.putLong(b.apnUl);
+            putAddress(buf, b.srcIp);
+            putAddress(buf, b.dstIp);
+            buf.putShort((short) b.srcPort);
+            buf.putShort((short) b.dstPort);
+            buf.putLong(b.observationTimeMilliseconds);
+        }
+    }
+
+    /**
+     * Encode a complete frame (type, length and payload).
+     * 
+     * @param obj record
+     * @param buf buffer with at least {@link #MAX_FRAME_LENGTH} + 5 bytes remaining
+     * @throws IllegalArgumentException if the record type is not supported
+     */
+    public static void encode(Object obj, ByteBuffer buf) {
+        int start = buf.position();
+        buf.position(start + 5);
+        int type;
+        if (obj instanceof PacketTrackRecord) {
+            type = TYPE_TRACK_RECORD;
+            Encoder.encodeTrackRecord(buf, (PacketTrackRecord) obj);
+        } else if (obj instanceof PtInterfaceStats) {
+            type = TYPE_INTERFACE_STATS;
+            Encoder.encodeInterfaceStats(buf, (PtInterfaceStats) obj);
+        } else if (obj instanceof PtProbeStats) {
+            type = TYPE_PROBE_STATS;
+            Encoder.encodeProbeStats(buf, (PtProbeStats) obj);
+        } else if (obj instanceof PtProbeLocation) {
+            type = TYPE_PROBE_LOCATION;
+            Encoder.encodeProbeLocation(buf, (PtProbeLocation) obj);
+        } else if (obj instanceof PtBearerInformation) {
+            type = TYPE_BEARER_INFORMATION;
+            Encoder.encodeBearerInformation(buf, (PtBearerInformation) obj);
+        } else {
+            buf.position(start);
+            throw new IllegalArgumentException("unsupported record type " + obj);
+        }
+        buf.put(start, (byte) type);
+        buf.putInt(start + 1, buf.position() - start - 5);
+    }
+
+    private static void putAddress(ByteBuffer buf, InetAddress address) {
+        if (address == null) {
+            buf.put((byte) 0);
+        } else {
+            byte[] a = address.getAddress();
+            buf.put((byte) a.length);
+            buf.put(a);
+        }
+    }
+
+    private static void putString(ByteBuffer buf, String s) {
+        if (s == null) {
+            buf.putShort((short) NULL_STRING);
+        } else {
+            byte[] b = s.getBytes(UTF8);
+            int len = Math.min(b.length, NULL_STRING - 1);
+            buf.putShort((short) len);
+            buf.put(b, 0, len);
+        }
+    }
+
+    private static String getString(ByteBuffer buf) {
+        int len = buf.getShort() & 0xffff;
+        if (len == NULL_STRING) {
+            return null;
+        }
+        if (buf.hasArray()) {
+            String s = new String(buf.array(), buf.arrayOffset() + buf.position(), len, UTF8);
+            buf.position(buf.position() + len);
+            return s;
+        }
+        byte[] b = new byte[len];
+        buf.get(b);
+        return new String(b, UTF8);
+    }
+
+    /**
+     * Zig-zag encoded variable length long (hop timestamp deltas may be
+     * negative if probe clocks are not in sync).
+     */
+    private static void putVarLong(ByteBuffer buf, long v) {
+        long z = (v << 1) ^ (v >> 63);
+        while ((z & ~0x7fL) != 0) {
+            buf.put((byte) ((z & 0x7f) | 0x80));
+            z >>>= 7;
+        }
+        buf.put((byte) z);
+    }
+
+    private static long getVarLong(ByteBuffer buf) {
+        long z = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buf.get();
+            z |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (z >>> 1) ^ -(z & 1);
+    }
+}
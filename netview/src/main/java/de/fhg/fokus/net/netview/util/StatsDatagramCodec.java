@@ -0,0 +1,196 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package de.fhg.fokus.net.netview.util;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import de.fhg.fokus.net.ptapi.PtInterfaceStats;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+
+/**
+ * Fixed-layout datagram encoding for interface and probe statistics.
+ * 
+ * <pre>
+ * datagram := magic(u16 0x5053) version(u8) type(u8) sequence(u32) count(u16) record*count
+ * interface stats (104 bytes) := oid(u32) time(i64) samplingSize(i64)
+ *     packetDeltaCount(i64) pcapStatRecv(i64) pcapStatDrop(i64)
+ *     interfaceName(16 bytes) interfaceDescription(44 bytes)
+ * probe stats (48 bytes) := oid(u32) time(i64) systemCpuIdle(f32) systemMemFree(i64)
+ *     processCpuUser(f32) processCpuSys(f32) processMemVzs(i64) processMemRss(i64)
+ * </pre>
+ * 
+ * All values are big endian, strings are UTF-8, zero padded and truncated to
+ * their field size. The sequence number is incremented per datagram by the
+ * sender and used to account losses.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public final class StatsDatagramCodec {
+
+    public static final int MAGIC = 0x5053;
+    public static final int VERSION = 1;
+    public static final int TYPE_INTERFACE_STATS = 1;
+    public static final int TYPE_PROBE_STATS = 2;
+    public static final int HEADER_LENGTH = 10;
+    public static final int INTERFACE_STATS_LENGTH = 104;
+    public static final int PROBE_STATS_LENGTH = 48;
+    private static final int INTERFACE_NAME_LENGTH = 16;
+    private static final int INTERFACE_DESCRIPTION_LENGTH = 44;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private StatsDatagramCodec() {
+    }
+
+    /**
+     * Datagram header as read by {@link #getHeader(ByteBuffer, Header)}.
+     */
+    public static final class Header {
+
+        public int type;
+        public long sequence;
+        public int count;
+    }
+
+    public static void putHeader(ByteBuffer buf, int type, long sequence, int count) {
+        buf.putShort((short) MAGIC);
+        buf.put((byte) VERSION);
+        buf.put((byte) type);
+        buf.putInt((int) sequence);
+        buf.putShort((short) count);
+    }
+
+    /**
+     * Read and validate a datagram header.
+     * 
+     * @param buf
+     * @param header
+     * @return false if the datagram is malformed
+     */
+    public static boolean getHeader(ByteBuffer buf, Header header) {
+        if (buf.remaining() < HEADER_LENGTH) {
+            return false;
+        }
+        if ((buf.getShort() & 0xffff) != MAGIC || (buf.get() & 0xff) != VERSION) {
+            return false;
+        }
+        header.type = buf.get() & 0xff;
+        header.sequence = buf.getInt() & 0xffffffffL;
+        header.count = buf.getShort() & 0xffff;
+        int recordLength;
+        switch (header.type) {
+            case TYPE_INTERFACE_STATS:
+                recordLength = INTERFACE_STATS_LENGTH;
+                break;
+            case TYPE_PROBE_STATS:
+                recordLength = PROBE_STATS_LENGTH;
+                break;
+            default:
+                return false;
+        }
+        return buf.remaining() == header.count * recordLength;
+    }
+
+    public static void putInterfaceStats(ByteBuffer buf, PtInterfaceStats s) {
+        buf.putInt((int) s.oid);
+        buf.putLong(s.observationTimeMilliseconds);
+        buf.putLong(s.samplingSize);
+        buf.putLong(s.packetDeltaCount == null ? 0 : s.packetDeltaCount.longValue());
+        buf.putLong(s.pcapStatRecv);
+        buf.putLong(s.pcapStatDrop);
+        putFixedString(buf, s.interfaceName, INTERFACE_NAME_LENGTH);
+        putFixedString(buf, s.interfaceDescription, INTERFACE_DESCRIPTION_LENGTH);
+    }
+
+    public static void getInterfaceStats(ByteBuffer buf, PtInterfaceStats s) {
+        s.oid = buf.getInt() & 0xffffffffL;
+        s.observationTimeMilliseconds = buf.getLong();
+        s.samplingSize = buf.getLong();
+        s.packetDeltaCount = BigInteger.valueOf(buf.getLong());
+        s.pcapStatRecv = buf.getLong();
+        s.pcapStatDrop = buf.getLong();
+        s.interfaceName = getFixedString(buf, INTERFACE_NAME_LENGTH);
+        s.interfaceDescription = getFixedString(buf, INTERFACE_DESCRIPTION_LENGTH);
+    }
+
+    public static void putProbeStats(ByteBuffer buf, PtProbeStats s) {
+        buf.putInt((int) s.oid);
+        buf.putLong(s.observationTimeMilliseconds);
+        buf.putFloat(s.systemCpuIdle);
+        buf.putLong(s.systemMemFree == null ? 0 : s.systemMemFree.longValue());
+        buf.putFloat(s.processCpuUser);
+        buf.putFloat(s.processCpuSys);
+        buf.putLong(s.processMemVzs == null ? 0 : s.processMemVzs.longValue());
+        buf.putLong(s.processMemRss == null ? 0 : s.processMemRss.longValue());
+    }
+
+    public static void getProbeStats(ByteBuffer buf, PtProbeStats s) {
+        s.oid = buf.getInt() & 0xffffffffL;
+        s.observationTimeMilliseconds = buf.getLong();
+        s.systemCpuIdle = buf.getFloat();
+        s.systemMemFree = BigInteger.valueOf(buf.getLong());
+        s.processCpuUser = buf.getFloat();
+        s.processCpuSys = buf.getFloat();
+        s.processMemVzs = BigInteger.valueOf(buf.getLong());
+        s.processMemRss = BigInteger.valueOf(buf.getLong());
+    }
+
+    private static void putFixedString(ByteBuffer buf, String s, int length) {
+        byte[] b = s == null ? new byte[0] : s.getBytes(UTF8);
+        int n = Math.min(b.length, length);
+        buf.put(b, 0, n);
+        for (int i = n; i < length; i++) {
+            buf.put((byte) 0);
+        }
+    }
+
+    private static String getFixedString(ByteBuffer buf, int length) {
+        byte[] b = new byte[length];
+        buf.get(b);
+        int n = 0;
+        while (n < length && b[n] != 0) {
+            n++;
+        }
+        return new String(b, 0, n, UTF8);
+    }
+}
@@ -41,7 +41,9 @@
 
 package de.fhg.fokus.net.netview.view.charts;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import javax.swing.JFrame;
@@ -63,6 +65,8 @@ import com.avaje.ebean.SqlQuery;
 import com.avaje.ebean.SqlRow;
 
 import de.fhg.fokus.net.netview.model.Node;
+import de.fhg.fokus.net.netview.model.db.ResultCache;
+import de.fhg.fokus.net.netview.model.db.TablePartitions;
 import de.fhg.fokus.net.netview.view.util.ColorSequence;
 
 
@@ -79,19 +83,23 @@ public class NodeSamplingStatsChart extends JFrame {
 	private ChartPanel chartPanel;
 	private JFreeChart chart;
 	private final EbeanServer eServer;
+	private final TablePartitions partitions;
+	private final ResultCache resultCache;
 	
 	private String[] names = { "ASF","pcap_Stat_Recv", "pcap_Stat_Drop"};
 
 	private ColorSequence colorSequence;
 	
 	
-	public NodeSamplingStatsChart(EbeanServer eServer, String title, Node node, long timestamp) {
+	public NodeSamplingStatsChart(EbeanServer eServer, TablePartitions partitions, ResultCache resultCache, String title, Node node, long timestamp) {
 		super(title);
 		this.chartTitle = title;
 		this.node = node;
 		this.timestamp = timestamp;
 
 		this.eServer = eServer;
+		this.partitions = partitions;
+		this.resultCache = resultCache;
 		
 		probeIds.add(node.mp.getProbe().getProbeId());
 		
@@ -144,11 +152,14 @@ public class NodeSamplingStatsChart extends JFrame {
 		int count = 0;
 		int i =0;
 		
-		String sql_query = "SELECT DISTINCT(interface_name) FROM interface_stats " +
+		// interfaces of expired stats are known from the rollups only
+		String sql_query = "SELECT interface_name FROM "
+			+ partitions.from(TablePartitions.INTERFACE_STATS) + " " +
+		"WHERE oid = :probeId UNION SELECT interface_name FROM interface_stats_rollup " +
 		"WHERE oid = :probeId"; 
 		SqlQuery query = eServer.createSqlQuery(sql_query)
 			.setParameter("probeId", probeId);
-		List<SqlRow> interf = query.findList();
+		List<SqlRow> interf = findRows("interfaces", probeId, Long.MAX_VALUE, query);
 		int interfaces = interf.size();
 		TimeSeriesCollection[] data = new TimeSeriesCollection[names.length*interfaces];
 		TimeSeries[] ts = new TimeSeries[names.length*interfaces];
@@ -161,15 +172,7 @@ public class NodeSamplingStatsChart extends JFrame {
 			}
 			i++;
 			
-			sql_query = "SELECT * FROM interface_stats " +
-			"WHERE oid = :probeId AND " +
-			"timestamp < :timestamp " +
-			"ORDER BY timestamp DESC LIMIT :limit";
-			query = eServer.createSqlQuery(sql_query)
-				.setParameter("probeId", probeId)
-				.setParameter("timestamp", timestamp)
-				.setParameter("limit", numberOfResults);
-			List<SqlRow> results = query.findList();
+			List<SqlRow> results = findLatestRows(probeId, numberOfResults);
 
 			for (SqlRow result : results) {
 				long samplingSize = result.getLong("sampling_size");
@@ -193,4 +196,64 @@ public class NodeSamplingStatsChart extends JFrame {
 		return data;
 	}
 
+	/**
+	 * Find the latest interface stats of a probe before the timestamp, walking
+	 * the partitions back from it instead of a scan over all of them, or return
+	 * the cached result. Rows missing because they expired are taken from the
+	 * 1 min rollups the retention compacted them into.
+	 */
+	private List<SqlRow> findLatestRows(final long probeId, final int limit) {
+		final long timestamp = ResultCache.bucketOf(ResultCache.Source.INTERFACE_STATS, this.timestamp);
+		return resultCache.get(ResultCache.Source.INTERFACE_STATS, Long.toString(probeId),
+				Long.MIN_VALUE, timestamp, "samplingStats", new ResultCache.Loader<List<SqlRow>>() {
+
+			@Override
+			public List<SqlRow> load() {
+				Map<String, Object> params = new HashMap<String, Object>();
+				params.put("probeId", probeId);
+				params.put("timestamp", timestamp);
+				List<SqlRow> rows = partitions.findLatest(eServer, TablePartitions.INTERFACE_STATS, "*",
+						"oid = :probeId AND timestamp < :timestamp", params, timestamp, limit);
+				if (rows.size() < limit) {
+					// compacted days are older than the rows left
+					long before = rows.isEmpty() ? timestamp : rows.get(rows.size() - 1).getLong("timestamp");
+					rows.addAll(eServer.createSqlQuery("SELECT bucket AS timestamp, interface_name, "
+							+ "SUM(sampling_size) AS sampling_size, SUM(packet_delta_count) AS packet_delta_count, "
+							+ "MAX(pcap_stat_recv) AS pcap_stat_recv, MAX(pcap_stat_drop) AS pcap_stat_drop "
+							+ "FROM interface_stats_rollup WHERE oid = :probeId AND bucket < :before "
+							+ "GROUP BY bucket, interface_name ORDER BY bucket DESC LIMIT :limit")
+						.setParameter("probeId", probeId)
+						.setParameter("before", before)
+						.setParameter("limit", limit - rows.size()).findList());
+				}
+				return rows;
+			}
+
+			@Override
+			public long sizeOf(List<SqlRow> rows) {
+				return ResultCache.sizeOfSqlRows(rows);
+			}
+		});
+	}
+
+	/**
+	 * Run a query over the interface stats of a probe up to a timestamp, or
+	 * return its cached result.
+	 */
+	private List<SqlRow> findRows(String name, long probeId, long to, final SqlQuery query) {
+		return resultCache.get(ResultCache.Source.INTERFACE_STATS, Long.toString(probeId),
+				Long.MIN_VALUE, to, name, new ResultCache.Loader<List<SqlRow>>() {
+
+			@Override
+			public List<SqlRow> load() {
+				return query.findList();
+			}
+
+			@Override
+			public long sizeOf(List<SqlRow> rows) {
+				return ResultCache.sizeOfSqlRows(rows);
+			}
+		});
+	}
+
 }
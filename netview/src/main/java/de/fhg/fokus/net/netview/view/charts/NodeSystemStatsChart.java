@@ -41,7 +41,9 @@
 
 package de.fhg.fokus.net.netview.view.charts;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.swing.JFrame;
 
@@ -58,10 +60,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.avaje.ebean.EbeanServer;
-import com.avaje.ebean.SqlQuery;
 import com.avaje.ebean.SqlRow;
 
 import de.fhg.fokus.net.netview.model.Node;
+import de.fhg.fokus.net.netview.model.db.ResultCache;
+import de.fhg.fokus.net.netview.model.db.TablePartitions;
 import de.fhg.fokus.net.netview.view.util.ColorSequence;
 
 
@@ -81,17 +84,21 @@ public class NodeSystemStatsChart extends JFrame {
 	private String[] names = { "cpu_free", "cpu_probe", "ram_free", "ram_probe" };
 
     private final EbeanServer eServer;
+	private final TablePartitions partitions;
+	private final ResultCache resultCache;
 	private ColorSequence colorSequence;
 
 	
 	
-	public NodeSystemStatsChart(EbeanServer eServer, String title, Node node, long timestamp) {
+	public NodeSystemStatsChart(EbeanServer eServer, TablePartitions partitions, ResultCache resultCache, String title, Node node, long timestamp) {
 		super(title);
 		this.chartTitle = title;
 		this.node = node;
 		this.timestamp = timestamp;
 		
 		this.eServer = eServer;
+		this.partitions = partitions;
+		this.resultCache = resultCache;
 //		this.ef = eServer.getExpressionFactory();
 		
 		setupChart();
@@ -134,23 +141,30 @@ public class NodeSystemStatsChart extends JFrame {
 
 
 	private TimeSeriesCollection[] fetchData() {
-		long probe = node.mp.getProbe().getProbeId();
+		final long probe = node.mp.getProbe().getProbeId();
 		// TODO fetch data from the db
-		long fixed_ts = timestamp;
+		final long fixed_ts = ResultCache.bucketOf(ResultCache.Source.PROBE_STATS, timestamp);
 //		long fixed_ts = DB_TS_TIMEUNIT.convert(timestamp, TimeUnit.MILLISECONDS);
-		int numberOfResults = 100;
-		String sql_query = "SELECT * FROM probe_stats " +
-			"WHERE oid = :probeId AND " +
-			"timestamp < :playerts " +
-			"ORDER BY timestamp DESC LIMIT :limit";
-		SqlQuery query = eServer.createSqlQuery(sql_query)
-			.setParameter("playerts", fixed_ts)
-			.setParameter("probeId", probe)
-			.setParameter("limit", numberOfResults);
-		List<SqlRow> results = query.findList();
-
-		logger.debug(sql_query);
-		logger.debug("SELECT * FROM probe_stats WHERE oid = "+probe+ " AND timestamp < "+fixed_ts +" ORDER BY timestamp DESC LIMIT "+ numberOfResults);
+		final int numberOfResults = 100;
+		List<SqlRow> results = resultCache.get(ResultCache.Source.PROBE_STATS, Long.toString(probe),
+				Long.MIN_VALUE, fixed_ts, "systemStats", new ResultCache.Loader<List<SqlRow>>() {
+
+			@Override
+			public List<SqlRow> load() {
+				// walk the partitions back from fixed_ts instead of a scan over all of them
+				Map<String, Object> params = new HashMap<String, Object>();
+				params.put("playerts", fixed_ts);
+				params.put("probeId", probe);
+				logger.debug("SELECT * FROM probe_stats WHERE oid = "+probe+ " AND timestamp < "+fixed_ts +" ORDER BY timestamp DESC LIMIT "+ numberOfResults);
+				return partitions.findLatest(eServer, TablePartitions.PROBE_STATS, "*",
+					"oid = :probeId AND timestamp < :playerts", params, fixed_ts, numberOfResults);
+			}
+
+			@Override
+			public long sizeOf(List<SqlRow> rows) {
+				return ResultCache.sizeOfSqlRows(rows);
+			}
+		});
 		
 		TimeSeriesCollection[] data = new TimeSeriesCollection[names.length];
 		TimeSeries[] ts = new TimeSeries[names.length];
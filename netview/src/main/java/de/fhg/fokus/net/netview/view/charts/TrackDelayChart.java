@@ -44,6 +44,7 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.SortedMap;
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
@@ -64,11 +65,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.avaje.ebean.EbeanServer;
-import com.avaje.ebean.SqlQuery;
-import com.avaje.ebean.SqlRow;
 
 import de.fhg.fokus.net.netview.model.Node;
 import de.fhg.fokus.net.netview.model.db.NetViewDB;
+import de.fhg.fokus.net.netview.model.db.ResultCache;
 import de.fhg.fokus.net.netview.view.util.ColorSequence;
 
 public class TrackDelayChart extends JFrame {
@@ -106,7 +106,7 @@ public class TrackDelayChart extends JFrame {
         super(title);
 
         this.db = netViewDB;
-        this.eServer = db.getEbeanServer();
+        this.eServer = db.getQueryServer();
 //		this.ef = eServer.getExpressionFactory();
 
         this.trackId = trackId;
@@ -154,36 +154,23 @@ public class TrackDelayChart extends JFrame {
         // TODO fetch data from db
 
         DefaultTableXYDataset data = new DefaultTableXYDataset();
-        long fixed_ts = DB_TS_TIMEUNIT.convert(time, TimeUnit.MILLISECONDS);
+        long fixed_ts = ResultCache.bucketOf(ResultCache.Source.TRACKS,
+                DB_TS_TIMEUNIT.convert(time, TimeUnit.MILLISECONDS));
         long timeInterval = 100000000;
-        String sql_query = "SELECT DISTINCT(hop_number) FROM raw_track_data WHERE track_id = :track ORDER BY hop_number ASC";
-        SqlQuery query = eServer.createSqlQuery(sql_query).setParameter("track", trackId);
-        List<SqlRow> hopResults = query.findList();
-        int numberOfHops = hopResults.size();
+        SortedMap<Integer, List<long[]>> hops = db.getTrackRepository().findHopDelays(
+                trackId, -1, -1, fixed_ts - timeInterval, fixed_ts);
+        int numberOfHops = hops.size();
         ArrayList<Long> rowStore;
         ArrayList<ArrayList<Long>> tableStore = new ArrayList<ArrayList<Long>>();
-        int i = 0;
-        for (SqlRow row : hopResults) {
-            int hopNumber = row.getInteger("hop_number");
-
-            //Query delays for each hop (time frame of 3 seconds)
-            sql_query = "SELECT delay, ts, packet_id FROM raw_track_data "
-                    + "WHERE ts BETWEEN :playertsstart AND :playertsstop "
-                    + "AND track_id = :track "
-                    + "AND hop_number = :hop "
-                    + "ORDER BY ts ASC";
-            query = eServer.createSqlQuery(sql_query).setParameter("playertsstart", fixed_ts - timeInterval).setParameter("playertsstop", fixed_ts).setParameter("hop", hopNumber).setParameter("track", trackId);
-
-            List<SqlRow> delayResults = query.findList();
+        for (List<long[]> delayResults : hops.values()) {
             rowStore = new ArrayList<Long>();
-            for (SqlRow delays : delayResults) {
-                rowStore.add(delays.getLong("ts"));
-                rowStore.add(delays.getLong("packet_id"));
-                rowStore.add(delays.getLong("delay") / 1000);
+            for (long[] delays : delayResults) {
+                rowStore.add(delays[0]);
+                rowStore.add(delays[1]);
+                rowStore.add(delays[2] / 1000);
 
             }
             tableStore.add(rowStore);
-            i++;
         }
 
         if (!tableStore.isEmpty()) {
@@ -40,7 +40,9 @@
  */
 package de.fhg.fokus.net.netview.view.charts;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
 import java.util.concurrent.TimeUnit;
 
@@ -62,6 +64,8 @@ import com.avaje.ebean.SqlRow;
 
 import de.fhg.fokus.net.netview.model.Node;
 import de.fhg.fokus.net.netview.model.db.NetViewDB;
+import de.fhg.fokus.net.netview.model.db.ResultCache;
+import de.fhg.fokus.net.netview.model.db.TablePartitions;
 import de.fhg.fokus.net.netview.view.util.ColorSequence;
 
 public class TrackPerPacketDelayChart extends JFrame {
@@ -82,7 +86,7 @@ public class TrackPerPacketDelayChart extends JFrame {
         super(title);
 
         this.db = netViewDB;
-        this.eServer = netViewDB.getEbeanServer();
+        this.eServer = netViewDB.getQueryServer();
 
         this.trackId = trackId;
         this.time = time;
@@ -119,31 +123,74 @@ public class TrackPerPacketDelayChart extends JFrame {
     }
 
     private DefaultCategoryDataset fetchData() {
-        //get last "numberOfResults" packets of a track
         DefaultCategoryDataset dataset = new DefaultCategoryDataset();
+        final long fixed_ts = ResultCache.bucketOf(ResultCache.Source.TRACKS,
+                DB_TS_TIMEUNIT.convert(time, TimeUnit.MILLISECONDS));
+        // the packets are the latest ones before fixed_ts
+        List<long[]> rows = db.getResultCache().get(ResultCache.Source.TRACKS,
+                trackId + ":-1:-1", Long.MIN_VALUE, fixed_ts, "packetDelays",
+                new ResultCache.Loader<List<long[]>>() {
+
+                    @Override
+                    public List<long[]> load() {
+                        return queryDelays(fixed_ts);
+                    }
+
+                    @Override
+                    public long sizeOf(List<long[]> rows) {
+                        return ResultCache.sizeOfRows(rows);
+                    }
+                });
+        for (long[] row : rows) {
+            dataset.addValue(row[2] / 1000., hopName((int) row[1]), Long.valueOf(row[0]));
+        }
+        return dataset;
+    }
+
+    private String hopName(int j) {
+        String from, to;
+        if (j < nodeNames.length) {
+            from = nodeNames[j];
+        } else {
+            from = Integer.toString(j);
+        }
+        if ((j + 1) < nodeNames.length) {
+            to = nodeNames[j + 1];
+        } else {
+            to = Integer.toString(j + 1);
+        }
+        return from + " -> " + to;
+    }
 
-        long fixed_ts = DB_TS_TIMEUNIT.convert(time, TimeUnit.MILLISECONDS);
+    /**
+     * 
+     * @return record id, hop number and delay of the hops of the last
+     *         "numberOfResults" packets, the last hop left out
+     */
+    private List<long[]> queryDelays(long fixed_ts) {
+        List<long[]> rows = new ArrayList<long[]>();
         int numberOfResults = 150;
         int hops = 0;
         long minPacketId = 0;
         long maxPacketId = 0;
-        String sql_query = "SELECT uid, start_ts FROM track_data "
-                + "WHERE track_id = :trackId "
-                + "AND stop_ts < :time ORDER BY start_ts DESC "
-                + "LIMIT :limit";
-
-        SqlQuery query = eServer.createSqlQuery(sql_query)
-                .setParameter("trackId", trackId)
-                .setParameter("time", fixed_ts)
-                .setParameter("limit", numberOfResults);
-        List<SqlRow> packetIds = query.findList();
+        TablePartitions partitions = db.getPartitions();
+        // walk the partitions back from fixed_ts instead of a scan over all of them
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put("trackId", trackId);
+        params.put("time", fixed_ts);
+        List<SqlRow> packetIds = partitions.findLatest(eServer, TablePartitions.TRACK_DATA, "uid, start_ts",
+                "track_id = :trackId AND stop_ts < :time", params, fixed_ts, numberOfResults);
+        String sql_query;
+        SqlQuery query;
 
         if (!packetIds.isEmpty()) {
             maxPacketId = packetIds.get(0).getLong("uid");
             minPacketId = packetIds.get(packetIds.size() - 1).getLong("uid");
+            long minStartTs = packetIds.get(packetIds.size() - 1).getLong("start_ts");
 
             sql_query = "SELECT MAX(hop_number) as maxHop from "
-                    + "raw_track_data WHERE track_id = :trackId";
+                    + partitions.from(TablePartitions.RAW_TRACK_DATA, minStartTs, fixed_ts,
+                            trackId, trackId) + " WHERE track_id = :trackId";
             query = eServer.createSqlQuery(sql_query)
                     .setParameter("trackId", trackId);
             List<SqlRow> hopNumber = query.findList();
@@ -153,24 +200,9 @@ public class TrackPerPacketDelayChart extends JFrame {
             }//for SqlRow hop	
             logger.debug("maxHop =" + hops);
 
-            String[] names = new String[hops];
-            for (int j = 0; j < names.length; j++) {
-                String from, to;
-                if (j < nodeNames.length) {
-                    from = nodeNames[j];
-                } else {
-                    from = Integer.toString(j);
-                }
-                if ((j + 1) < nodeNames.length) {
-                    to = nodeNames[j + 1];
-                } else {
-                    to = Integer.toString(j + 1);
-                }
-                names[j] = from + " -> " + to;
-            }
-
             sql_query = "SELECT packet_id, record_id, delay, hop_number "
-                    + "from raw_track_data WHERE track_id = :trackId AND "
+                    + "from " + partitions.from(TablePartitions.RAW_TRACK_DATA, minStartTs, fixed_ts,
+                            trackId, trackId) + " WHERE track_id = :trackId AND "
                     + "record_id BETWEEN :minPacketId and :maxPacketId "
                     + "ORDER BY record_id,hop_number ASC LIMIT :limit";
 
@@ -184,12 +216,10 @@ public class TrackPerPacketDelayChart extends JFrame {
             for (SqlRow delays : data) {
                 int hopCount = delays.getInteger("hop_number");
                 if (hopCount < hops) {
-                    dataset.addValue(delays.getLong("delay") / 1000.,
-                            names[hopCount], delays.getLong("record_id"));
+                    rows.add(new long[]{delays.getLong("record_id"), hopCount, delays.getLong("delay")});
                 }
             }
         }
-
-        return dataset;
+        return rows;
     }
 }
@@ -175,7 +175,10 @@ public class MarkerPopupMenu {
                 if (node != null) {
                     JFrame frame = new NodeSystemStatsChart(
                             MainController.getApplication().getModel().getDb()
-                            .getEbeanServer(), "Node system stats", node, 
+                            .getQueryServer(), MainController.getApplication()
+                            .getModel().getDb().getPartitions(), MainController
+                            .getApplication().getModel().getDb().getResultCache(),
+                            "Node system stats", node, 
                             MainController.getApplication().getTrackPlayer()
                             .getCurrentTimestamp() + 2000);
                     frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
@@ -194,7 +197,7 @@ public class MarkerPopupMenu {
             public void actionPerformed(ActionEvent e) {
                 Node node = marker.getReference(Node.class);
                 if (node != null) {
-                    JFrame frame = new NodeSamplingStatsChart(MainController.getApplication().getModel().getDb().getEbeanServer(), "Node sampling stats", node, MainController.getApplication().getTrackPlayer().getCurrentTimestamp() + 2000);
+                    JFrame frame = new NodeSamplingStatsChart(MainController.getApplication().getModel().getDb().getQueryServer(), MainController.getApplication().getModel().getDb().getPartitions(), MainController.getApplication().getModel().getDb().getResultCache(), "Node sampling stats", node, MainController.getApplication().getTrackPlayer().getCurrentTimestamp() + 2000);
                     frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
                     frame.pack();
                     frame.setVisible(true);
@@ -205,6 +208,10 @@ public class MarkerPopupMenu {
 
     public MarkerPopupMenu setMarker(NetViewMapMarker marker) {
         this.marker = marker;
+        // node stats are only read from the database
+        boolean database = MainController.getApplication().getModel().getDb().isDatabaseStorage();
+        showSystemStatsItem.setEnabled(database);
+        showSamplingStatsItem.setEnabled(database);
         Node node = this.marker.getReference(Node.class);
         if (node == null) {
             propertiesItem.setEnabled(false);
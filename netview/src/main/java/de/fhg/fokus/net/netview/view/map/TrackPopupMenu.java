@@ -201,6 +201,11 @@ public class TrackPopupMenu {
         title.setAlignmentX(JLabel.CENTER_ALIGNMENT);
         title.setFont(tfont.deriveFont(tfont.getStyle() ^ Font.BOLD));
 
+        // packets are only read from the database
+        boolean database = MainController.getApplication().getModel().getDb().isDatabaseStorage();
+        showPerPacketDelayItem.setEnabled(database);
+        savePacketDelaysItem.setEnabled(database);
+
         popupMenu.add(title);
         popupMenu.add(new JSeparator());
         popupMenu.add(showDelayStatsItem);
@@ -0,0 +1,203 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.fhg.fokus.net.netview.model.db.MemoryStorageEngine;
+import de.fhg.fokus.net.netview.model.db.ResultCache;
+import de.fhg.fokus.net.netview.model.db.ResultCache.Source;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+
+/**
+ * Hits, watermark invalidation and eviction of the result cache.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class ResultCacheTest {
+
+    /**
+     * Returns a new list of rows on each load.
+     */
+    private static class CountingLoader implements ResultCache.Loader<List<long[]>> {
+
+        final int rows;
+        int loads;
+
+        CountingLoader(int rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public List<long[]> load() {
+            loads++;
+            List<long[]> result = new ArrayList<long[]>();
+            for (int i = 0; i < rows; i++) {
+                result.add(new long[]{i, 0, 0});
+            }
+            return result;
+        }
+
+        @Override
+        public long sizeOf(List<long[]> result) {
+            return ResultCache.sizeOfRows(result);
+        }
+    }
+
+    @Test
+    public void hits() {
+        ResultCache cache = new ResultCache(1 << 20);
+        CountingLoader loader = new CountingLoader(10);
+        List<long[]> first = cache.get(Source.TRACKS, "1:-1:-1", 100, 200, "hopDelays", loader);
+        assertSame(first, cache.get(Source.TRACKS, "1:-1:-1", 100, 200, "hopDelays", loader));
+        assertEquals(1, loader.loads);
+        // other window, entity or query
+        cache.get(Source.TRACKS, "1:-1:-1", 100, 201, "hopDelays", loader);
+        cache.get(Source.TRACKS, "2:-1:-1", 100, 200, "hopDelays", loader);
+        cache.get(Source.TRACKS, "1:-1:-1", 100, 200, "packetDelays", loader);
+        assertEquals(4, loader.loads);
+        assertEquals(1, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void invalidation() {
+        ResultCache cache = new ResultCache(1 << 20);
+        cache.advance(Source.TRACKS, 150);
+        CountingLoader open = new CountingLoader(1);
+        CountingLoader closed = new CountingLoader(1);
+        cache.get(Source.TRACKS, "1:-1:-1", 100, 200, "hopDelays", open);
+        cache.get(Source.TRACKS, "1:-1:-1", 0, 100, "hopDelays", closed);
+        // stats do not touch track results
+        cache.advance(Source.PROBE_STATS, 175);
+        cache.get(Source.TRACKS, "1:-1:-1", 100, 200, "hopDelays", open);
+        assertEquals(1, open.loads);
+        // rows up to 175 fall into the open window only
+        cache.advance(Source.TRACKS, 175);
+        cache.get(Source.TRACKS, "1:-1:-1", 100, 200, "hopDelays", open);
+        cache.get(Source.TRACKS, "1:-1:-1", 0, 100, "hopDelays", closed);
+        assertEquals(2, open.loads);
+        assertEquals(1, closed.loads);
+        assertEquals(1, cache.getInvalidations());
+        // a window later than the watermark stays valid until rows reach it
+        CountingLoader later = new CountingLoader(1);
+        cache.get(Source.TRACKS, "1:-1:-1", 1000, 2000, "hopDelays", later);
+        cache.advance(Source.TRACKS, 999);
+        cache.get(Source.TRACKS, "1:-1:-1", 1000, 2000, "hopDelays", later);
+        assertEquals(1, later.loads);
+        cache.advance(Source.TRACKS, 1000);
+        cache.get(Source.TRACKS, "1:-1:-1", 1000, 2000, "hopDelays", later);
+        assertEquals(2, later.loads);
+        // the watermark does not move back
+        cache.advance(Source.TRACKS, 10);
+        assertEquals(1000, cache.getWatermark(Source.TRACKS));
+    }
+
+    @Test
+    public void eviction() {
+        CountingLoader loader = new CountingLoader(100);
+        long entry = ResultCache.sizeOfRows(loader.load()) + 1024;
+        ResultCache cache = new ResultCache(3 * entry);
+        for (int i = 0; i < 3; i++) {
+            cache.get(Source.TRACKS, Integer.toString(i), 0, 100, "hopDelays", loader);
+        }
+        // 0 is used more recently than 1
+        cache.get(Source.TRACKS, "0", 0, 100, "hopDelays", loader);
+        int loads = loader.loads;
+        for (int i = 3; i < 6; i++) {
+            cache.get(Source.TRACKS, Integer.toString(i), 0, 100, "hopDelays", loader);
+            assertTrue(cache.getBytes() <= cache.getBudget());
+        }
+        assertTrue(cache.getEvictions() > 0);
+        cache.get(Source.TRACKS, "1", 0, 100, "hopDelays", loader);
+        assertEquals(loads + 4, loader.loads);
+        // results larger than the budget are not kept
+        ResultCache small = new ResultCache(entry / 2);
+        small.get(Source.TRACKS, "0", 0, 100, "hopDelays", loader);
+        assertEquals(0, small.size());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void bucketedWindows() {
+        ResultCache cache = new ResultCache(1 << 20);
+        CountingLoader loader = new CountingLoader(1);
+        // player ticks within one second share an entry
+        for (long tick = 1300000000000000L; tick < 1300000001000000L; tick += 40000) {
+            cache.get(Source.TRACKS, "1:-1:-1", Long.MIN_VALUE, ResultCache.bucketOf(Source.TRACKS, tick),
+                    "packetDelays", loader);
+        }
+        assertEquals(1, loader.loads);
+        cache.get(Source.TRACKS, "1:-1:-1", Long.MIN_VALUE,
+                ResultCache.bucketOf(Source.TRACKS, 1300000001000000L), "packetDelays", loader);
+        assertEquals(2, loader.loads);
+        // stats are in milliseconds
+        assertEquals(1300000000000L, ResultCache.bucketOf(Source.PROBE_STATS, 1300000000999L));
+    }
+
+    @Test
+    public void engineAdvancesWatermark() {
+        ResultCache cache = new ResultCache(1 << 20);
+        MemoryStorageEngine engine = new MemoryStorageEngine(100);
+        engine.setResultCache(cache);
+        PtProbeStats ps = new PtProbeStats();
+        ps.oid = 1;
+        ps.observationTimeMilliseconds = 5000;
+        ps.systemMemFree = BigInteger.ONE;
+        ps.processMemVzs = BigInteger.ONE;
+        ps.processMemRss = BigInteger.ONE;
+        engine.addPtProbeStats(ps);
+        assertEquals(5000, cache.getWatermark(Source.PROBE_STATS));
+        assertEquals(Long.MIN_VALUE, cache.getWatermark(Source.TRACKS));
+    }
+}
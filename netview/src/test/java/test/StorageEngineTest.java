@@ -0,0 +1,559 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.EbeanServerFactory;
+import com.avaje.ebean.config.DataSourceConfig;
+import com.avaje.ebean.config.ServerConfig;
+
+import de.fhg.fokus.net.netview.model.db.BearerInformation;
+import de.fhg.fokus.net.netview.model.db.FileStorageEngine;
+import de.fhg.fokus.net.netview.model.db.FlowKey;
+import de.fhg.fokus.net.netview.model.db.FlowKeyDictionary;
+import de.fhg.fokus.net.netview.model.db.H2StorageEngine;
+import de.fhg.fokus.net.netview.model.db.HopRollup;
+import de.fhg.fokus.net.netview.model.db.InterfaceStats;
+import de.fhg.fokus.net.netview.model.db.InterfaceStatsRollup;
+import de.fhg.fokus.net.netview.model.db.MemoryStorageEngine;
+import de.fhg.fokus.net.netview.model.db.ProbeLocation;
+import de.fhg.fokus.net.netview.model.db.ProbeStats;
+import de.fhg.fokus.net.netview.model.db.RawTrackData;
+import de.fhg.fokus.net.netview.model.db.StorageEngine;
+import de.fhg.fokus.net.netview.model.db.TablePartitions;
+import de.fhg.fokus.net.netview.model.db.TrackData;
+import de.fhg.fokus.net.netview.model.db.TrackIngestPipeline;
+import de.fhg.fokus.net.netview.model.db.TrackPath;
+import de.fhg.fokus.net.netview.model.db.TrackPathCache;
+import de.fhg.fokus.net.netview.model.db.TrackRollup;
+import de.fhg.fokus.net.ptapi.PacketTrackRecord;
+import de.fhg.fokus.net.ptapi.PtBearerInformation;
+import de.fhg.fokus.net.ptapi.PtInterfaceStats;
+import de.fhg.fokus.net.ptapi.PtProbeLocation;
+import de.fhg.fokus.net.ptapi.PtProbeStats;
+
+/**
+ * Conformance and throughput of the storage engines. Every engine gets the
+ * same records and has to answer the same queries alike.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+@RunWith(Parameterized.class)
+public class StorageEngineTest {
+
+    private static Logger logger = LoggerFactory.getLogger(StorageEngineTest.class);
+    /**
+     * 2011-03-13, in microseconds
+     */
+    private static final long T0 = 1300000000000000L;
+    private static final long GAP = 10000;
+    private static final int RECORDS = 200;
+    private static final int TRACKS = 4;
+    private static final int HOPS = 3;
+    private static final long BEARER_RULE = 7;
+    private static final long RESOLUTION = TrackRollup.RESOLUTIONS[0];
+    private static final int THROUGHPUT_RECORDS = 20000;
+    private static final int THROUGHPUT_QUERIES = 500;
+    private static int servers = 0;
+    private final String name;
+    private StorageEngine engine;
+    private TrackIngestPipeline pipeline;
+    private File directory;
+
+    @Parameters
+    public static Collection<Object[]> engines() {
+        return Arrays.asList(new Object[][]{{"h2"}, {"memory"}, {"file"}});
+    }
+
+    public StorageEngineTest(String name) {
+        this.name = name;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        if (name.equals("memory")) {
+            engine = new MemoryStorageEngine(1000000);
+        } else if (name.equals("file")) {
+            directory = File.createTempFile("records", "");
+            directory.delete();
+            engine = new FileStorageEngine(directory, 1000000);
+        } else {
+            EbeanServer eServer = createServer();
+            TablePartitions partitions = new TablePartitions(eServer);
+            partitions.init();
+            TrackPathCache trackPaths = new TrackPathCache(eServer, partitions, 1000);
+            trackPaths.load();
+            FlowKeyDictionary flowKeys = new FlowKeyDictionary(eServer);
+            flowKeys.load();
+            pipeline = new TrackIngestPipeline(eServer, flowKeys, trackPaths, partitions,
+                    500, 50, 50000, 1);
+            pipeline.init();
+            pipeline.start();
+            engine = new H2StorageEngine(eServer, eServer, partitions, trackPaths, pipeline);
+        }
+        engine.init();
+        engine.start();
+    }
+
+    @After
+    public void tearDown() {
+        engine.stop();
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+        if (directory != null) {
+            for (File f : directory.listFiles()) {
+                f.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static EbeanServer createServer() {
+        return createServer("");
+    }
+
+    /**
+     * 
+     * @param options appended to the database url
+     */
+    private static EbeanServer createServer(String options) {
+        // ddl scripts are written to default*.sql
+        String serverName = "default_engine_test_" + (servers++);
+        DataSourceConfig ds = new DataSourceConfig();
+        ds.setDriver("org.h2.Driver");
+        ds.setUsername("sa");
+        ds.setPassword("");
+        ds.setUrl("jdbc:h2:mem:" + serverName + ";DB_CLOSE_DELAY=-1" + options);
+        ServerConfig sc = new ServerConfig();
+        sc.setName(serverName);
+        sc.setDataSourceConfig(ds);
+        sc.setDefaultServer(false);
+        sc.setDdlGenerate(true);
+        sc.setDdlRun(true);
+        for (Class<?> klass : new Class<?>[]{TrackData.class, RawTrackData.class, TrackRollup.class,
+                    TrackPath.class, HopRollup.class, FlowKey.class, BearerInformation.class,
+                    InterfaceStats.class, InterfaceStatsRollup.class, ProbeStats.class, ProbeLocation.class}) {
+            sc.addClass(klass);
+        }
+        return EbeanServerFactory.create(sc);
+    }
+
+    private static Inet4Address address(String address) throws IOException {
+        return (Inet4Address) InetAddress.getByName(address);
+    }
+
+    /**
+     * Record i belongs to track i % TRACKS, even tracks carry the bearer rule.
+     */
+    private static PacketTrackRecord record(int i) throws IOException {
+        PacketTrackRecord r = new PacketTrackRecord();
+        long t = T0 + i * GAP;
+        r.trackid = i % TRACKS;
+        r.pktid = i;
+        r.oids = new long[]{1, 2, 3};
+        r.ts = new long[]{t, t + 100, t + 250};
+        r.ttl = new short[]{64, 63, 62};
+        r.ruleId = r.trackid % 2 == 0 ? BEARER_RULE : 0;
+        r.sourceAddress = address("10.0.0.1");
+        r.destinationAddress = address("10.0.0.2");
+        r.sourcePort = 1000 + i % 3;
+        r.destinationPort = 80;
+        r.protocolIdentifier = 6;
+        return r;
+    }
+
+    private void addRecords() throws IOException {
+        PtBearerInformation b = new PtBearerInformation();
+        b.ruleFlag = 1;
+        b.ruleId = BEARER_RULE;
+        b.apn = "internet";
+        b.ruleName = "default";
+        b.imsi = "262011234567890";
+        b.srcIp = address("10.0.0.1");
+        b.dstIp = address("10.0.0.2");
+        engine.addBearerInformation(b);
+        for (int i = 0; i < RECORDS; i++) {
+            engine.addPacketTrackRecord(record(i));
+        }
+        for (int i = 1; i <= 3; i++) {
+            PtInterfaceStats is = new PtInterfaceStats();
+            is.oid = 1;
+            is.observationTimeMilliseconds = 1000 * i;
+            is.packetDeltaCount = BigInteger.valueOf(i);
+            is.interfaceName = "eth0";
+            engine.addPtInterfaceStats(is);
+            PtProbeStats ps = new PtProbeStats();
+            ps.oid = 1;
+            ps.observationTimeMilliseconds = 1000 * i;
+            ps.systemMemFree = BigInteger.valueOf(i);
+            ps.processMemVzs = BigInteger.ONE;
+            ps.processMemRss = BigInteger.ONE;
+            engine.addPtProbeStats(ps);
+        }
+        engine.addPtProbeLocation(location(1, 1000, "52.5", "13.3"));
+        engine.addPtProbeLocation(location(2, 1500, "48.1", "11.5"));
+        engine.flush();
+    }
+
+    private static PtProbeLocation location(long oid, long ts, String latitude, String longitude)
+            throws IOException {
+        PtProbeLocation l = new PtProbeLocation();
+        l.oid = oid;
+        l.observationTimeMilliseconds = ts;
+        l.latitude = latitude;
+        l.longitude = longitude;
+        l.probeName = "probe" + oid;
+        l.probeLocationName = "Unknown";
+        l.sourceIpv4Address = address("10.0.1." + oid);
+        return l;
+    }
+
+    /**
+     * 
+     * @return volume, delay sum, first start and last stop by track id
+     */
+    private Map<Integer, long[]> scan(long from, long to) {
+        final Map<Integer, long[]> tracks = new HashMap<Integer, long[]>();
+        engine.scanTracks(RESOLUTION, from, to, new StorageEngine.TrackVisitor() {
+
+            @Override
+            public boolean visit(int trackId, long volume, long delaySum, long minStart, long maxStop) {
+                long[] track = tracks.get(trackId);
+                if (track == null) {
+                    track = new long[]{0, 0, minStart, maxStop};
+                    tracks.put(trackId, track);
+                }
+                track[0] += volume;
+                track[1] += delaySum;
+                track[2] = Math.min(track[2], minStart);
+                track[3] = Math.max(track[3], maxStop);
+                return true;
+            }
+        });
+        return tracks;
+    }
+
+    @Test
+    public void tracks() throws IOException {
+        addRecords();
+        long from = TrackRollup.bucketOf(T0, RESOLUTION);
+        Map<Integer, long[]> tracks = scan(from, T0 + RECORDS * GAP + RESOLUTION);
+        assertEquals(TRACKS, tracks.size());
+        for (int id = 0; id < TRACKS; id++) {
+            long[] track = tracks.get(id);
+            assertEquals(RECORDS / TRACKS, track[0]);
+            assertEquals(250 * RECORDS / TRACKS, track[1]);
+            assertEquals(T0 + id * GAP, track[2]);
+            assertEquals(T0 + (RECORDS - TRACKS + id) * GAP + 250, track[3]);
+        }
+        // the buckets before the first record are empty
+        assertTrue(scan(from - 10 * RESOLUTION, from).isEmpty());
+        assertArrayEquals(new long[]{1, 2, 3}, engine.getTrackPath(2));
+        assertEquals(0, engine.getTrackPath(TRACKS + 1).length);
+    }
+
+    @Test
+    public void navigation() throws IOException {
+        addRecords();
+        assertEquals(T0 + GAP, engine.nextTrackStart(T0));
+        assertEquals(T0, engine.nextTrackStart(T0 - 1));
+        assertEquals(T0, engine.previousTrackStart(T0 + GAP));
+        assertEquals(Long.MIN_VALUE, engine.previousTrackStart(T0));
+        assertEquals(Long.MAX_VALUE, engine.nextTrackStart(T0 + (RECORDS - 1) * GAP));
+        // records 1, 5, 9, 13 and 17
+        assertEquals(5, engine.findTrackRecords(1, T0, T0 + 20 * GAP).size());
+        assertEquals(0, engine.findTrackRecords(1, T0 - GAP, T0).size());
+    }
+
+    @Test
+    public void hopDelays() throws IOException {
+        addRecords();
+        long to = T0 + RECORDS * GAP;
+        SortedMap<Integer, List<long[]>> hops = engine.findHopDelays(0, -1, -1, T0, to);
+        assertEquals(HOPS, hops.size());
+        long[] delays = {100, 150, 0};
+        for (int hop = 0; hop < HOPS; hop++) {
+            List<long[]> rows = hops.get(hop);
+            assertEquals(RECORDS / TRACKS, rows.size());
+            long last = Long.MIN_VALUE;
+            for (long[] row : rows) {
+                assertTrue(row[0] >= last);
+                last = row[0];
+                assertEquals(delays[hop], row[2]);
+            }
+        }
+        assertEquals(hops.get(0).size(), engine.findHopDelays(0, BEARER_RULE, -1, T0, to).get(0).size());
+        assertTrue(engine.findHopDelays(0, 0, -1, T0, to).isEmpty());
+        // the first hop of the first record only
+        assertEquals(1, engine.findHopDelays(0, -1, -1, T0, T0 + 99).size());
+    }
+
+    @Test
+    public void bearersAndFlows() throws IOException {
+        addRecords();
+        long to = T0 + RECORDS * GAP;
+        List<StorageEngine.BearerVolume> bearers = engine.findBearerVolumes(new long[]{2, 1, 0},
+                new long[]{T0, T0, T0}, new long[]{to, to, to});
+        Map<Long, Integer> volumes = new HashMap<Long, Integer>();
+        long lastTrack = Long.MIN_VALUE;
+        for (StorageEngine.BearerVolume row : bearers) {
+            assertTrue(row.trackId >= lastTrack);
+            assertEquals(T0, row.from);
+            lastTrack = row.trackId;
+            assertEquals(BEARER_RULE, row.ruleId);
+            assertEquals("internet", row.apn);
+            assertEquals("10.0.0.2", row.destinationAddress);
+            Integer v = volumes.get(row.trackId);
+            volumes.put(row.trackId, (v == null ? 0 : v) + row.volume);
+        }
+        // odd tracks have no bearer
+        assertEquals(2, volumes.size());
+        assertEquals(HOPS * RECORDS / TRACKS, (int) volumes.get(0L));
+        assertEquals(HOPS * RECORDS / TRACKS, (int) volumes.get(2L));
+        // windows are exact: the first hop of the first record of track 0,
+        // then the hops of its last record
+        long last = T0 + (RECORDS - TRACKS) * GAP;
+        bearers = engine.findBearerVolumes(new long[]{0, 0}, new long[]{last, T0},
+                new long[]{last + 250, T0 + 99});
+        assertEquals(2, bearers.size());
+        assertEquals(T0, bearers.get(0).from);
+        assertEquals(1, bearers.get(0).volume);
+        assertEquals(last, bearers.get(1).from);
+        assertEquals(HOPS, bearers.get(1).volume);
+
+        Map<Integer, Integer> flows = new HashMap<Integer, Integer>();
+        for (StorageEngine.FlowVolume row : engine.findFlowVolumes(new long[]{1},
+                new long[]{T0}, new long[]{to})) {
+            assertEquals(1, row.trackId);
+            assertEquals(80, row.destinationPort);
+            Integer v = flows.get(row.flowKey);
+            flows.put(row.flowKey, (v == null ? 0 : v) + row.volume);
+        }
+        assertEquals(3, flows.size());
+        int total = 0;
+        for (Map.Entry<Integer, Integer> flow : flows.entrySet()) {
+            total += flow.getValue();
+            SortedMap<Integer, List<long[]>> hops = engine.findHopDelays(1, -1, flow.getKey(), T0, to);
+            assertEquals(flow.getValue() / HOPS, hops.get(0).size());
+        }
+        assertEquals(HOPS * RECORDS / TRACKS, total);
+    }
+
+    @Test
+    public void stats() throws IOException {
+        addRecords();
+        assertEquals(1000, engine.getLatestInterfaceStats(1, 2000).getTimestamp());
+        assertEquals(2000, engine.getLatestInterfaceStats(1, 2001).getTimestamp());
+        assertNull(engine.getLatestInterfaceStats(1, 1000));
+        assertNull(engine.getLatestInterfaceStats(2, 5000));
+        assertEquals(3, engine.getLatestProbeStats(1, 5000).getSystemMemFree());
+        assertNull(engine.getLatestProbeStats(1, 500));
+    }
+
+    @Test
+    public void locations() throws IOException {
+        addRecords();
+        engine.saveProbeLocation(new ProbeLocation(1, 2000, "52.6", "13.4", "probe1", "Berlin", "10.0.1.1"));
+        engine.flush();
+        final List<String> visited = new ArrayList<String>();
+        engine.scanLocations(new StorageEngine.LocationVisitor() {
+
+            @Override
+            public void visit(long oid, String latitude, String longitude, String name,
+                    String locationName, String address) {
+                visited.add(oid + " " + latitude + " " + locationName + " " + address);
+            }
+        });
+        assertEquals(Arrays.asList("1 52.5 Unknown 10.0.1.1", "2 48.1 Unknown 10.0.1.2",
+                "1 52.6 Berlin 10.0.1.1"), visited);
+        assertEquals("Berlin", engine.getLatestProbeLocation(1, 3000).getLocationName());
+        assertEquals("Unknown", engine.getLatestProbeLocation(1, 2000).getLocationName());
+        assertNull(engine.getLatestProbeLocation(2, 1000));
+    }
+
+    @Test
+    public void clear() throws IOException {
+        addRecords();
+        engine.clear();
+        assertTrue(scan(TrackRollup.bucketOf(T0, RESOLUTION), T0 + RECORDS * GAP + RESOLUTION).isEmpty());
+        assertEquals(Long.MAX_VALUE, engine.nextTrackStart(0));
+        assertNull(engine.getLatestInterfaceStats(1, 5000));
+        assertTrue(engine.findHopDelays(0, -1, -1, T0, T0 + RECORDS * GAP).isEmpty());
+        // records added after clearing are found
+        engine.addPacketTrackRecord(record(0));
+        engine.flush();
+        assertEquals(T0, engine.nextTrackStart(0));
+    }
+
+    @Test
+    public void restart() throws IOException {
+        if (directory == null) {
+            // only the file engine keeps records across restarts
+            return;
+        }
+        addRecords();
+        Map<Integer, long[]> before = scan(0, Long.MAX_VALUE - RESOLUTION);
+        engine.stop();
+        engine = new FileStorageEngine(directory, 1000000);
+        engine.init();
+        Map<Integer, long[]> after = scan(0, Long.MAX_VALUE - RESOLUTION);
+        assertEquals(before.keySet(), after.keySet());
+        for (Integer trackId : before.keySet()) {
+            assertArrayEquals(before.get(trackId), after.get(trackId));
+        }
+        assertEquals(2000, engine.getLatestInterfaceStats(1, 2001).getTimestamp());
+        assertEquals(RECORDS + 9, ((FileStorageEngine) engine).getReplayedRecords());
+    }
+
+    @Test
+    public void addAfterStop() throws IOException {
+        if (pipeline == null) {
+            // only the database engine writes through the ingest pipeline
+            return;
+        }
+        pipeline.stop();
+        // rejected instead of blocking on a queue no writer drains
+        engine.addPacketTrackRecord(record(0));
+        assertEquals(1, pipeline.getRejectedEntries());
+    }
+
+    @Test
+    public void concurrentRollups() throws IOException {
+        if (pipeline == null) {
+            return;
+        }
+        // writers of separate pipelines updating the same rollup rows, under
+        // MVCC H2 rejects concurrent updates of a row
+        EbeanServer eServer = createServer(";MVCC=TRUE");
+        TablePartitions partitions = new TablePartitions(eServer);
+        partitions.init();
+        TrackPathCache trackPaths = new TrackPathCache(eServer, partitions, 1000);
+        trackPaths.load();
+        FlowKeyDictionary flowKeys = new FlowKeyDictionary(eServer);
+        flowKeys.load();
+        TrackIngestPipeline[] writers = new TrackIngestPipeline[2];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new TrackIngestPipeline(eServer, flowKeys, trackPaths, partitions,
+                    20, 5, 50000, 2);
+            writers[i].init();
+            writers[i].start();
+        }
+        int n = 4000;
+        for (int i = 0; i < n; i++) {
+            // records in the same bucket, the writers add the tracks in
+            // opposite order
+            PacketTrackRecord r = record(i % 100);
+            int k = i / writers.length % TRACKS;
+            r.trackid = i % writers.length == 0 ? k : TRACKS - 1 - k;
+            writers[i % writers.length].addPacketTrackRecord(r);
+        }
+        for (TrackIngestPipeline writer : writers) {
+            writer.flush();
+            writer.stop();
+            assertEquals(0, writer.getDroppedEntries());
+        }
+        assertEquals(n, eServer.createSqlQuery("SELECT SUM(volume) AS n FROM track_rollup "
+                + "WHERE resolution = :resolution").setParameter("resolution", RESOLUTION)
+                .findUnique().getLong("n").longValue());
+    }
+
+    @Test
+    public void throughput() throws IOException {
+        PacketTrackRecord[] records = new PacketTrackRecord[THROUGHPUT_RECORDS];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = record(i);
+        }
+        long started = System.nanoTime();
+        for (PacketTrackRecord r : records) {
+            engine.addPacketTrackRecord(r);
+        }
+        engine.flush();
+        long ingest = System.nanoTime() - started;
+        long to = T0 + THROUGHPUT_RECORDS * GAP;
+        started = System.nanoTime();
+        long hops = 0;
+        for (int i = 0; i < THROUGHPUT_QUERIES; i++) {
+            long from = T0 + (i % 100) * GAP * 100;
+            SortedMap<Integer, List<long[]>> delays = engine.findHopDelays(i % TRACKS, -1, -1,
+                    from, from + GAP * 100 - 1);
+            for (List<long[]> rows : delays.values()) {
+                hops += rows.size();
+            }
+        }
+        long queries = System.nanoTime() - started;
+        started = System.nanoTime();
+        int tracks = scan(TrackRollup.bucketOf(T0, RESOLUTION), to + RESOLUTION).size();
+        long scan = System.nanoTime() - started;
+        assertEquals(TRACKS, tracks);
+        assertEquals(THROUGHPUT_QUERIES * HOPS * 100 / TRACKS, hops);
+        logger.info(String.format("%s: %.0f records/s ingested, %.0f hop delay queries/s, scan %.1f ms",
+                name, THROUGHPUT_RECORDS * 1e9 / ingest, THROUGHPUT_QUERIES * 1e9 / queries, scan / 1e6));
+    }
+}
@@ -0,0 +1,238 @@
+/* Netview - a software component to visualize packet tracks, hop-by-hop delays,
+ *           sampling stats and resource consumption. Netview requires the deployment of
+ *           distributed probes (impd4e) and a central packet matcher to correlate the
+ *           obervations.
+ *
+ *           The probe can be obtained at http://impd4e.sourceforge.net/downloads.html
+ *
+ * Copyright (c) 2011
+ *
+ * Fraunhofer FOKUS
+ * www.fokus.fraunhofer.de
+ *
+ * in cooperation with
+ *
+ * Technical University Berlin
+ * www.av.tu-berlin.de
+ *
+ * Ramon Masek <ramon.masek@fokus.fraunhofer.de>
+ * Christian Henke <c.henke@tu-berlin.de>
+ * Carsten Schmoll <carsten.schmoll@fokus.fraunhofer.de>
+ * Julian Vetter <julian.vetter@fokus.fraunhofer.de>
+ * Jens Krenzin <jens.krenzin@fokus.fraunhofer.de>
+ * Michael Gehring <michael.gehring@fokus.fraunhofer.de>
+ * Tacio Grespan Santos
+ * Fabian Wolff
+ *
+ * For questions/comments contact packettracking@fokus.fraunhofer.de
+ *
+ * This program is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software Foundation;
+ * either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; if not, see <http://www.gnu.org/licenses/>.
+ */
+package test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.avaje.ebean.EbeanServer;
+import com.avaje.ebean.EbeanServerFactory;
+import com.avaje.ebean.SqlRow;
+import com.avaje.ebean.config.DataSourceConfig;
+import com.avaje.ebean.config.ServerConfig;
+
+import de.fhg.fokus.net.netview.model.db.InterfaceStats;
+import de.fhg.fokus.net.netview.model.db.ProbeStats;
+import de.fhg.fokus.net.netview.model.db.RawTrackData;
+import de.fhg.fokus.net.netview.model.db.TablePartitions;
+import de.fhg.fokus.net.netview.model.db.TrackArchive;
+import de.fhg.fokus.net.netview.model.db.TrackData;
+
+/**
+ * Round trip of raw track data through archive segments and ARCHIVE_SCAN,
+ * and that no row is listed twice while a day has a segment and a
+ * partition.
+ * 
+ * @author FhG-FOKUS NETwork Research
+ *
+ */
+public class TrackArchiveTest {
+
+    private static final String RAW = TablePartitions.RAW_TRACK_DATA;
+    /**
+     * 2011-03-13, in microseconds
+     */
+    private static final long T0 = 1300000000000000L;
+    private static final long DAY = 86400000000L;
+    private static final String[] COLUMNS = {"uid", "track_id", "packet_id", "record_id", "probe_id",
+        "rule_id", "ts", "ttl", "next_hop", "delay", "hop_number", "flow_key"};
+    private static int servers = 0;
+    private EbeanServer eServer;
+    private TablePartitions partitions;
+    private TrackArchive archive;
+    private File directory;
+    private long day;
+
+    @Before
+    public void setUp() throws IOException {
+        eServer = createServer();
+        directory = File.createTempFile("archive", "");
+        directory.delete();
+        partitions = new TablePartitions(eServer);
+        partitions.init();
+        archive = new TrackArchive(eServer, partitions, directory);
+        archive.init();
+        partitions.setArchive(archive);
+        day = T0 / DAY;
+    }
+
+    @After
+    public void tearDown() {
+        archive.deleteAll(RAW);
+        directory.delete();
+    }
+
+    private static EbeanServer createServer() {
+        // ddl scripts are written to default*.sql
+        String serverName = "default_archive_test_" + (servers++);
+        DataSourceConfig ds = new DataSourceConfig();
+        ds.setDriver("org.h2.Driver");
+        ds.setUsername("sa");
+        ds.setPassword("");
+        ds.setUrl("jdbc:h2:mem:" + serverName + ";DB_CLOSE_DELAY=-1");
+        ServerConfig sc = new ServerConfig();
+        sc.setName(serverName);
+        sc.setDataSourceConfig(ds);
+        sc.setDefaultServer(false);
+        sc.setDdlGenerate(true);
+        sc.setDdlRun(true);
+        for (Class<?> klass : new Class<?>[]{TrackData.class, RawTrackData.class,
+                    InterfaceStats.class, ProbeStats.class}) {
+            sc.addClass(klass);
+        }
+        return EbeanServerFactory.create(sc);
+    }
+
+    /**
+     * Insert hops with uids [first, first + n) into the partition of the test
+     * day, one every 10 ms.
+     */
+    private void insert(int first, int n) {
+        String partition = partitions.partitionFor(RAW, T0);
+        eServer.createSqlUpdate("INSERT INTO " + partition + " (uid, track_id, packet_id, record_id, "
+                + "probe_id, rule_id, ts, ttl, next_hop, delay, hop_number, flow_key) "
+                + "SELECT x, MOD(x, 5), x, x / 3, 1000 + MOD(x, 3), MOD(x, 2), " + T0 + " + x * 10000, "
+                + "64 - MOD(x, 3), 1001 + MOD(x, 3), x * 7, MOD(x, 3), MOD(x, 11) "
+                + "FROM SYSTEM_RANGE(" + first + ", " + (first + n - 1) + ")").execute();
+    }
+
+    private List<SqlRow> rows(String from) {
+        return eServer.createSqlQuery("SELECT * FROM " + from + " ORDER BY uid").findList();
+    }
+
+    private long count() {
+        return eServer.createSqlQuery("SELECT COUNT(*) AS n FROM " + partitions.from(RAW))
+                .findUnique().getLong("n");
+    }
+
+    private void assertSameRows(List<SqlRow> expected, List<SqlRow> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            for (String column : COLUMNS) {
+                assertEquals(column + " of row " + i, expected.get(i).getLong(column),
+                        actual.get(i).getLong(column));
+            }
+        }
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        insert(1, 3000);
+        String partition = partitions.getPartition(RAW, day);
+        List<SqlRow> expected = rows(partition);
+        assertEquals(3000, archive.archive(RAW, day));
+        assertNull(partitions.getPartition(RAW, day));
+        assertNotNull(archive.getSegment(RAW, day));
+        assertSameRows(expected, rows(archive.source(partition, Long.MIN_VALUE, Long.MAX_VALUE)));
+        // time range of the scan, inclusive
+        List<SqlRow> range = rows(archive.source(partition, T0 + 1000 * 10000, T0 + 1999 * 10000));
+        assertSameRows(expected.subList(999, 1999), range);
+        assertEquals(3000, count());
+    }
+
+    @Test
+    public void lateRows() throws IOException {
+        insert(1, 1000);
+        archive.archive(RAW, day);
+        // the partition is created again for rows arriving after archiving
+        insert(1001, 200);
+        assertNotNull(partitions.getPartition(RAW, day));
+        assertEquals(1200, count());
+        assertEquals(200, archive.archive(RAW, day));
+        assertNull(partitions.getPartition(RAW, day));
+        assertEquals(1200, archive.getSegment(RAW, day).getRows());
+        assertEquals(1200, count());
+    }
+
+    @Test
+    public void trackRange() throws IOException {
+        insert(1, 1000);
+        archive.archive(RAW, day);
+        // the segment holds tracks 0 to 4
+        assertTrue(partitions.from(RAW, T0, T0 + 1000 * 10000L, 3, 3).contains("ARCHIVE_SCAN"));
+        assertFalse(partitions.from(RAW, T0, T0 + 1000 * 10000L, 5, 9).contains("ARCHIVE_SCAN"));
+        assertEquals(0, rows(partitions.from(RAW, T0, T0 + 1000 * 10000L, 5, 9)).size());
+    }
+
+    @Test
+    public void chunkedCleanup() throws IOException {
+        insert(1, 30000);
+        archive.archive(RAW, day);
+        // a day of archived rows left in the partition, plus late rows
+        insert(1, 30100);
+        archive = new TrackArchive(eServer, partitions, directory);
+        archive.init();
+        partitions.setArchive(archive);
+        assertEquals(30100, count());
+        assertEquals(100L, eServer.createSqlQuery("SELECT COUNT(*) AS n FROM "
+                + partitions.getPartition(RAW, day)).findUnique().getLong("n").longValue());
+        assertEquals(100, archive.archive(RAW, day));
+        assertNull(partitions.getPartition(RAW, day));
+        assertEquals(30100, count());
+    }
+
+    @Test
+    public void interruptedPass() throws IOException {
+        insert(1, 1000);
+        archive.archive(RAW, day);
+        // a segment written but its rows left in the partition, plus late rows
+        insert(501, 700);
+        assertEquals(1700, count());
+        // reopening the archive removes the archived rows from the partition
+        archive = new TrackArchive(eServer, partitions, directory);
+        archive.init();
+        partitions.setArchive(archive);
+        assertEquals(1200, count());
+        assertEquals(200L, eServer.createSqlQuery("SELECT COUNT(*) AS n FROM "
+                + partitions.getPartition(RAW, day)).findUnique().getLong("n").longValue());
+    }
+}
@@ -6,6 +6,7 @@ public class Flow {
     private int srcPort;
     private int dstPort;
     private long flowId;
+    private int flowKey;
     
     private Bearer bearer;
     public View view;
@@ -48,6 +49,14 @@ public class Flow {
         this.flowId = flowId;
     }
 
+    public int getFlowKey() {
+        return flowKey;
+    }
+
+    public void setFlowKey(int flowKey) {
+        this.flowKey = flowKey;
+    }
+
     public String getSrcIp() {
         return srcIp;
     }